@@ -0,0 +1,119 @@
+package ru.kirillspirikhin.mirowidgets.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.RequiredArgsConstructor;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+
+/**
+ * Обертка, выполняющая все операции сервиса под одной эксклюзивной блокировкой -
+ * так, как это было до разделения путей чтения и записи. Используется как база
+ * для сравнения в бенчмарках.
+ */
+@RequiredArgsConstructor
+public class ExclusiveLockWidgetService implements WidgetService {
+
+  /**
+   * Блокировка для всех операций.
+   */
+  private final ReentrantLock reentrantLock = new ReentrantLock();
+
+  /**
+   * Оборачиваемый сервис.
+   */
+  private final WidgetService widgetService;
+
+  @Override
+  public Widget addWidget(WidgetDescription widgetDescription) {
+    reentrantLock.lock();
+    try {
+      return widgetService.addWidget(widgetDescription);
+    } finally {
+      reentrantLock.unlock();
+    }
+  }
+
+  @Override
+  public Widget getById(UUID id) throws WidgetNotFoundException {
+    reentrantLock.lock();
+    try {
+      return widgetService.getById(id);
+    } finally {
+      reentrantLock.unlock();
+    }
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description)
+      throws WidgetNotFoundException {
+    reentrantLock.lock();
+    try {
+      return widgetService.editWidget(id, description);
+    } finally {
+      reentrantLock.unlock();
+    }
+  }
+
+  @Override
+  public boolean deleteWidget(UUID id) {
+    reentrantLock.lock();
+    try {
+      return widgetService.deleteWidget(id);
+    } finally {
+      reentrantLock.unlock();
+    }
+  }
+
+  @Override
+  public void putWidget(Widget widget) {
+    reentrantLock.lock();
+    try {
+      widgetService.putWidget(widget);
+    } finally {
+      reentrantLock.unlock();
+    }
+  }
+
+  @Override
+  public Widget[] getAllWidgets() {
+    reentrantLock.lock();
+    try {
+      return widgetService.getAllWidgets();
+    } finally {
+      reentrantLock.unlock();
+    }
+  }
+
+  @Override
+  public Widget getByRank(int rank) {
+    reentrantLock.lock();
+    try {
+      return widgetService.getByRank(rank);
+    } finally {
+      reentrantLock.unlock();
+    }
+  }
+
+  @Override
+  public int getRank(UUID id) throws WidgetNotFoundException {
+    reentrantLock.lock();
+    try {
+      return widgetService.getRank(id);
+    } finally {
+      reentrantLock.unlock();
+    }
+  }
+
+  @Override
+  public void deleteAllWidgets() {
+    reentrantLock.lock();
+    try {
+      widgetService.deleteAllWidgets();
+    } finally {
+      reentrantLock.unlock();
+    }
+  }
+}
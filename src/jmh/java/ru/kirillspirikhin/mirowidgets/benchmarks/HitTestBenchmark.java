@@ -0,0 +1,99 @@
+package ru.kirillspirikhin.mirowidgets.benchmarks;
+
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
+
+/**
+ * Поиск верхнего виджета в точке: R-дерево {@link WidgetServiceLinkedList}
+ * против линейного перебора всех виджетов, полученных через {@code getAllWidgets()}.
+ *
+ * <p>Запуск: {@code mvn -Pjmh test-compile exec:exec -Djmh.args="HitTestBenchmark"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HitTestBenchmark {
+
+  /**
+   * Размер доски по каждой координате.
+   */
+  static final int BOARD_EXTENT = 100_000;
+
+  /**
+   * Количество виджетов на доске.
+   */
+  @Param({"10000", "100000", "1000000"})
+  int boardSize;
+
+  /**
+   * Сервис для тестирования.
+   */
+  WidgetService widgetService;
+
+  /**
+   * Заполнение доски виджетами случайного положения и размера.
+   */
+  @Setup
+  public void setUp() {
+    widgetService = new WidgetServiceLinkedList();
+    Random random = new Random(1);
+    for (int i = 0; i < boardSize; i++) {
+      widgetService.addWidget(WidgetDescription.builder()
+          .x(random.nextInt(BOARD_EXTENT))
+          .y(random.nextInt(BOARD_EXTENT))
+          .height(1 + random.nextInt(500))
+          .width(1 + random.nextInt(500)).build());
+    }
+  }
+
+  /**
+   * Поиск через пространственный индекс.
+   *
+   * @return верхний виджет
+   */
+  @Benchmark
+  public Optional<Widget> indexed() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return widgetService.getTopWidgetAt(random.nextInt(BOARD_EXTENT),
+        random.nextInt(BOARD_EXTENT));
+  }
+
+  /**
+   * Перебор всех виджетов доски.
+   *
+   * @return верхний виджет
+   */
+  @Benchmark
+  public Optional<Widget> linearScan() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int x = random.nextInt(BOARD_EXTENT);
+    int y = random.nextInt(BOARD_EXTENT);
+    Widget top = null;
+    for (Widget widget : widgetService.getAllWidgets()) {
+      if (widget.intersects(x, y, 1, 1)) {
+        top = widget;
+      }
+    }
+    return Optional.ofNullable(top);
+  }
+}
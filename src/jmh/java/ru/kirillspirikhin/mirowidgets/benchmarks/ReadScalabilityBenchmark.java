@@ -0,0 +1,215 @@
+package ru.kirillspirikhin.mirowidgets.benchmarks;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.kirillspirikhin.mirowidgets.config.ChangeLogProperties;
+import ru.kirillspirikhin.mirowidgets.config.JournalProperties;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.services.BoardRegistry;
+import ru.kirillspirikhin.mirowidgets.services.MeteredWidgetService;
+import ru.kirillspirikhin.mirowidgets.services.VersionedWidgetService;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
+import ru.kirillspirikhin.mirowidgets.services.journal.WidgetJournal;
+
+/**
+ * Масштабирование пропускной способности чтения по числу потоков:
+ * оптимистичные чтения {@link WidgetServiceLinkedList} против одной эксклюзивной
+ * блокировки на все операции ({@link ExclusiveLockWidgetService}).
+ *
+ * <p>Число потоков задается параметром JMH {@code -t}, например:
+ * {@code mvn -Pjmh test-compile exec:exec -Djmh.args="ReadScalabilityBenchmark -t 8"}.
+ * Группа {@code readWrite} - три читателя на одного писателя, группа {@code dragMove} -
+ * три перетаскивания на одно перемещение в начало доски (сдвиг всей доски).
+ * С {@code chain=registry} хранилище обернуто так же, как доска приложения
+ * ({@code BoardRegistry}): версия доски, журнал (без ожидания сброса) и метрики.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadScalabilityBenchmark {
+
+  /**
+   * Количество виджетов на доске.
+   */
+  @Param({"1000", "100000"})
+  int boardSize;
+
+  /**
+   * Блокировка: stamped - текущая реализация, exclusive - одна блокировка на все.
+   */
+  @Param({"stamped", "exclusive"})
+  String lock;
+
+  /**
+   * Обертки хранилища: bare - без оберток, registry - как у доски приложения, с журналом.
+   */
+  @Param({"bare", "registry"})
+  String chain;
+
+  /**
+   * Каталог журнала ({@code chain=registry}).
+   */
+  Path directory;
+
+  /**
+   * Журнал ({@code chain=registry}).
+   */
+  WidgetJournal journal;
+
+  /**
+   * Сервис для тестирования.
+   */
+  WidgetService widgetService;
+
+  /**
+   * ИД виджетов на доске.
+   */
+  UUID[] ids;
+
+  /**
+   * Заполнение доски.
+   *
+   * @throws IOException ошибка создания журнала
+   */
+  @Setup
+  public void setUp() throws IOException {
+    WidgetService service = new WidgetServiceLinkedList();
+    widgetService = "exclusive".equals(lock) ? new ExclusiveLockWidgetService(service) : service;
+    if ("registry".equals(chain)) {
+      directory = Files.createTempDirectory("widgets-journal");
+      JournalProperties properties = new JournalProperties();
+      properties.setEnabled(true);
+      properties.setDirectory(directory.toString());
+      journal = new WidgetJournal(properties);
+      journal.recover(WidgetServiceLinkedList::new);
+      widgetService = new MeteredWidgetService(new VersionedWidgetService(
+          journal.journaled(BoardRegistry.DEFAULT_BOARD, widgetService),
+          new ChangeLogProperties().getCapacity()), new SimpleMeterRegistry());
+    }
+    ids = new UUID[boardSize];
+    for (int i = 0; i < boardSize; i++) {
+      ids[i] = widgetService.addWidget(WidgetDescription.builder()
+          .x(i).y(i).height(10).width(10).build()).getId();
+    }
+  }
+
+  /**
+   * Остановка журнала и удаление его каталога.
+   *
+   * @throws IOException ошибка записи или удаления
+   */
+  @TearDown
+  public void tearDown() throws IOException {
+    if (journal == null) {
+      return;
+    }
+    journal.close();
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  /**
+   * Получение всех виджетов.
+   *
+   * @return виджеты
+   */
+  @Benchmark
+  public Widget[] getAllWidgets() {
+    return widgetService.getAllWidgets();
+  }
+
+  /**
+   * Получение виджета по ИД.
+   *
+   * @return виджет
+   * @throws WidgetNotFoundException виджет не найден
+   */
+  @Benchmark
+  public Widget getById() throws WidgetNotFoundException {
+    return widgetService.getById(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+  }
+
+  /**
+   * Чтение всех виджетов параллельно с изменениями.
+   *
+   * @return виджеты
+   */
+  @Benchmark
+  @Group("readWrite")
+  @GroupThreads(3)
+  public Widget[] readWriteGetAll() {
+    return widgetService.getAllWidgets();
+  }
+
+  /**
+   * Изменение координат виджета параллельно с чтениями.
+   *
+   * @return виджет
+   * @throws WidgetNotFoundException виджет не найден
+   */
+  @Benchmark
+  @Group("readWrite")
+  @GroupThreads(1)
+  public Widget readWriteEdit() throws WidgetNotFoundException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return widgetService.editWidget(ids[random.nextInt(ids.length)],
+        WidgetDescription.builder().x(random.nextInt()).y(random.nextInt()).build());
+  }
+
+  /**
+   * Перетаскивание виджета параллельно с перемещениями по Z-order.
+   *
+   * @return виджет
+   * @throws WidgetNotFoundException виджет не найден
+   */
+  @Benchmark
+  @Group("dragMove")
+  @GroupThreads(3)
+  public Widget dragMoveDrag() throws WidgetNotFoundException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return widgetService.editWidget(ids[random.nextInt(ids.length)],
+        WidgetDescription.builder().x(random.nextInt()).y(random.nextInt()).build());
+  }
+
+  /**
+   * Перемещение виджета в начало доски (сдвиг всей доски) параллельно с перетаскиваниями.
+   *
+   * @return виджет
+   * @throws WidgetNotFoundException виджет не найден
+   */
+  @Benchmark
+  @Group("dragMove")
+  @GroupThreads(1)
+  public Widget dragMoveMove() throws WidgetNotFoundException {
+    return widgetService.editWidget(ids[ThreadLocalRandom.current().nextInt(ids.length)],
+        WidgetDescription.builder().z(0).build());
+  }
+}
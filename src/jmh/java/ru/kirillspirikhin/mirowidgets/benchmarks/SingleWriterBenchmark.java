@@ -0,0 +1,131 @@
+package ru.kirillspirikhin.mirowidgets.benchmarks;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.services.SingleWriterWidgetService;
+import ru.kirillspirikhin.mirowidgets.services.VersionedWidgetService;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+
+/**
+ * Одновременные изменения одной доски: каждый вызов захватывает блокировку доски сам
+ * против очереди изменений и одного писателя ({@link SingleWriterWidgetService}).
+ * Доска собрана так же, как в приложении: хранилище под {@link VersionedWidgetService}.
+ *
+ * <p>Число потоков задается параметром JMH {@code -t}, например:
+ * {@code mvn -Pjmh test-compile exec:exec -Djmh.args="SingleWriterBenchmark -t 16"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SingleWriterBenchmark {
+
+  /**
+   * Количество виджетов на доске.
+   */
+  @Param({"10000", "100000"})
+  int boardSize;
+
+  /**
+   * Реализация хранилища (значения настройки {@code widgets.storage}).
+   */
+  @Param({"linked-list", "tree"})
+  String storage;
+
+  /**
+   * Применение изменений: locked - вызывающим потоком, writer - одним писателем.
+   */
+  @Param({"locked", "writer"})
+  String mode;
+
+  /**
+   * Потоки писателей.
+   */
+  ExecutorService writers;
+
+  /**
+   * Сервис для тестирования.
+   */
+  WidgetService widgetService;
+
+  /**
+   * ИД виджетов на доске.
+   */
+  UUID[] ids;
+
+  /**
+   * Заполнение доски.
+   */
+  @Setup
+  public void setUp() {
+    WidgetService board = new VersionedWidgetService(WidgetServiceBenchmark.create(storage), 4096);
+    if ("writer".equals(mode)) {
+      writers = Executors.newSingleThreadExecutor();
+      board = new SingleWriterWidgetService(board, writers, 1024, 256,
+          DistributionSummary.builder("batch").register(new SimpleMeterRegistry()));
+    }
+    widgetService = board;
+    ids = new UUID[boardSize];
+    for (int i = 0; i < boardSize; i++) {
+      ids[i] = widgetService.addWidget(WidgetServiceBenchmark.description(i, null)).getId();
+    }
+  }
+
+  /**
+   * Остановка писателей.
+   */
+  @TearDown
+  public void tearDown() {
+    if (writers != null) {
+      writers.shutdown();
+    }
+  }
+
+  /**
+   * Перемещение случайного виджета в начало доски: сдвиг Z-order всех виджетов
+   * ниже прежнего места.
+   *
+   * @return виджет
+   * @throws WidgetNotFoundException виджет не найден
+   */
+  @Benchmark
+  public Widget moveToFront() throws WidgetNotFoundException {
+    return widgetService.editWidget(ids[ThreadLocalRandom.current().nextInt(ids.length)],
+        WidgetDescription.builder().z(0).build());
+  }
+
+  /**
+   * Изменение координат случайного виджета (перетаскивание).
+   *
+   * @return виджет
+   * @throws WidgetNotFoundException виджет не найден
+   */
+  @Benchmark
+  public Widget drag() throws WidgetNotFoundException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return widgetService.editWidget(ids[random.nextInt(ids.length)],
+        WidgetDescription.builder().x(random.nextInt()).y(random.nextInt()).build());
+  }
+}
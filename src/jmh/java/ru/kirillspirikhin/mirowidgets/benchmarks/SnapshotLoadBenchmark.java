@@ -0,0 +1,133 @@
+package ru.kirillspirikhin.mirowidgets.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.kirillspirikhin.mirowidgets.config.JournalProperties;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.services.BoardRegistry;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.journal.WidgetJournal;
+
+/**
+ * Время запуска: восстановление доски из снимка {@link WidgetJournal} и первый ответ
+ * {@code getAllWidgets()}. Каждое измерение - холодное восстановление доски
+ * из отображенного в память файла снимка.
+ *
+ * <p>Запуск: {@code mvn -Pjmh test-compile exec:exec
+ * -Djmh.args="SnapshotLoadBenchmark -rf json -rff target/jmh-snapshot-load.json"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class SnapshotLoadBenchmark {
+
+  /**
+   * Количество виджетов в снимке.
+   */
+  @Param({"5000000"})
+  int boardSize;
+
+  /**
+   * Реализация хранилища (значения настройки {@code widgets.storage}).
+   */
+  @Param({"linked-list", "tree", "sparse", "persistent", "columnar"})
+  String storage;
+
+  /**
+   * Каталог журнала.
+   */
+  Path directory;
+
+  /**
+   * Журнал текущего измерения.
+   */
+  WidgetJournal journal;
+
+  /**
+   * Запись снимка доски.
+   *
+   * @throws IOException ошибка записи
+   */
+  @Setup(Level.Trial)
+  public void writeSnapshot() throws IOException {
+    directory = Files.createTempDirectory("widgets-journal");
+    WidgetService board = WidgetServiceBenchmark.create(storage);
+    for (int i = 0; i < boardSize; i++) {
+      board.addWidget(WidgetServiceBenchmark.description(i, null));
+    }
+    WidgetJournal writer = journal();
+    writer.recover(() -> WidgetServiceBenchmark.create(storage));
+    writer.journaled(BoardRegistry.DEFAULT_BOARD, board);
+    /* остановка журнала записывает снимок */
+    writer.close();
+  }
+
+  /**
+   * Остановка журнала измерения.
+   *
+   * @throws IOException ошибка записи
+   */
+  @TearDown(Level.Invocation)
+  public void closeJournal() throws IOException {
+    journal.close();
+    /* восстановленная доска не должна дожить до следующего измерения */
+    journal = null;
+  }
+
+  /**
+   * Удаление каталога журнала.
+   *
+   * @throws IOException ошибка удаления
+   */
+  @TearDown(Level.Trial)
+  public void deleteSnapshot() throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+    }
+  }
+
+  /**
+   * Восстановление доски и получение всех виджетов.
+   *
+   * @return виджеты доски
+   * @throws IOException ошибка чтения
+   */
+  @Benchmark
+  public Widget[] recoverAndGetAll() throws IOException {
+    journal = journal();
+    return journal.recover(() -> WidgetServiceBenchmark.create(storage))
+        .get(BoardRegistry.DEFAULT_BOARD).getAllWidgets();
+  }
+
+  /**
+   * Журнал в каталоге бенчмарка.
+   *
+   * @return журнал
+   */
+  private WidgetJournal journal() {
+    JournalProperties properties = new JournalProperties();
+    properties.setEnabled(true);
+    properties.setDirectory(directory.toString());
+    return new WidgetJournal(properties);
+  }
+}
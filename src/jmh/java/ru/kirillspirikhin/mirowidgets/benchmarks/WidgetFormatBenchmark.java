@@ -0,0 +1,120 @@
+package ru.kirillspirikhin.mirowidgets.benchmarks;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import ru.kirillspirikhin.mirowidgets.config.MiroWidgetsConfiguration;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
+
+/**
+ * Сериализация ответа getAll в JSON, Smile и CBOR: время на виджет. Размер ответа
+ * на виджет проверяет {@code WidgetTests#binarySizeTest}.
+ *
+ * <p>Запуск: {@code mvn -Pjmh test-compile exec:exec -Djmh.args="WidgetFormatBenchmark"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WidgetFormatBenchmark {
+
+  /**
+   * Количество виджетов в ответе.
+   */
+  static final int BOARD_SIZE = 10_000;
+
+  /**
+   * Формат ответа.
+   */
+  @Param({"json", "smile", "cbor"})
+  String format;
+
+  /**
+   * Сериализатор формата.
+   */
+  ObjectMapper mapper;
+
+  /**
+   * Виджеты доски.
+   */
+  Widget[] widgets;
+
+  /**
+   * Буфер ответа.
+   */
+  final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+
+  /**
+   * Заполнение доски и сериализатор с настройками приложения.
+   */
+  @Setup
+  public void setUp() {
+    switch (format) {
+      case "json":
+        /* как у сериализатора JSON приложения: даты - строки ISO */
+        mapper = Jackson2ObjectMapperBuilder.json()
+            .featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .build();
+        break;
+      case "smile":
+        mapper = MiroWidgetsConfiguration.binaryMapper(new Jackson2ObjectMapperBuilder(),
+            new SmileFactory());
+        break;
+      case "cbor":
+        mapper = MiroWidgetsConfiguration.binaryMapper(new Jackson2ObjectMapperBuilder(),
+            new CBORFactory());
+        break;
+      default:
+        throw new IllegalArgumentException("Неизвестный формат: " + format);
+    }
+    WidgetService widgetService = new WidgetServiceLinkedList();
+    for (int i = 0; i < BOARD_SIZE; i++) {
+      widgetService.addWidget(WidgetServiceBenchmark.description(i * 37, null));
+    }
+    widgets = widgetService.getAllWidgets();
+  }
+
+  /**
+   * Сериализация всех виджетов доски так же, как в ответе getAll.
+   *
+   * @return размер ответа
+   * @throws IOException ошибка сериализации
+   */
+  @Benchmark
+  @OperationsPerInvocation(BOARD_SIZE)
+  public int getAll() throws IOException {
+    out.reset();
+    JsonGenerator generator = mapper.getFactory().createGenerator(out);
+    try (SequenceWriter writer = mapper.writerFor(Widget.class)
+        .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+        .writeValuesAsArray(generator)) {
+      for (Widget widget : widgets) {
+        writer.write(widget);
+      }
+    }
+    return out.size();
+  }
+}
@@ -0,0 +1,223 @@
+package ru.kirillspirikhin.mirowidgets.benchmarks;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceColumnar;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServicePersistent;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceSparse;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceTree;
+
+/**
+ * Операции {@link WidgetService} во всех реализациях хранилища на досках разного размера.
+ *
+ * <p>Чтобы размер доски не менялся за время измерения, бенчмарки добавления удаляют
+ * добавленный виджет, а бенчмарк удаления добавляет удаленный виджет обратно в конец.
+ * Удаление в хранилищах дешевле вставки со сдвигом, поэтому разница между
+ * append, front и middle - это стоимость поиска места вставки и сдвига Z-order.
+ *
+ * <p>Запуск с профилировщиком GC по числу потоков 1..32 - {@link WidgetServiceBenchmarkRunner};
+ * отдельный запуск: {@code mvn -Pjmh test-compile exec:exec
+ * -Djmh.args="WidgetServiceBenchmark -prof gc -t 4 -p storage=linked-list,tree"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WidgetServiceBenchmark {
+
+  /**
+   * Количество виджетов на доске.
+   */
+  @Param({"1000", "10000", "100000", "1000000"})
+  int boardSize;
+
+  /**
+   * Реализация хранилища (значения настройки {@code widgets.storage}).
+   */
+  @Param({"linked-list", "tree", "sparse", "persistent", "columnar"})
+  String storage;
+
+  /**
+   * Сервис для тестирования.
+   */
+  WidgetService widgetService;
+
+  /**
+   * ИД виджетов на доске; бенчмарк удаления заменяет удаленные ИД добавленными.
+   */
+  AtomicReferenceArray<UUID> ids;
+
+  /**
+   * Заполнение доски.
+   */
+  @Setup
+  public void setUp() {
+    widgetService = create(storage);
+    ids = new AtomicReferenceArray<>(boardSize);
+    for (int i = 0; i < boardSize; i++) {
+      ids.set(i, widgetService.addWidget(description(i, null)).getId());
+    }
+  }
+
+  /**
+   * Создание хранилища.
+   *
+   * @param storage реализация хранилища
+   * @return сервис
+   */
+  static WidgetService create(String storage) {
+    switch (storage) {
+      case "linked-list":
+        return new WidgetServiceLinkedList();
+      case "tree":
+        return new WidgetServiceTree();
+      case "sparse":
+        return new WidgetServiceSparse();
+      case "persistent":
+        return new WidgetServicePersistent();
+      case "columnar":
+        return new WidgetServiceColumnar();
+      default:
+        throw new IllegalArgumentException("Неизвестное хранилище: " + storage);
+    }
+  }
+
+  /**
+   * Описание виджета.
+   *
+   * @param i номер виджета
+   * @param z Z-order ({@code null} - в конец)
+   * @return описание
+   */
+  static WidgetDescription description(int i, Integer z) {
+    return WidgetDescription.builder().x(i).y(i).z(z).height(10).width(10).build();
+  }
+
+  /**
+   * Случайный ИД виджета доски.
+   *
+   * @return ИД
+   */
+  private UUID randomId() {
+    return ids.get(ThreadLocalRandom.current().nextInt(boardSize));
+  }
+
+  /**
+   * Добавление виджета в конец (без Z-order) и его удаление.
+   *
+   * @return добавленный виджет
+   */
+  @Benchmark
+  public Widget addAppend() {
+    Widget widget = widgetService.addWidget(description(0, null));
+    widgetService.deleteWidget(widget.getId());
+    return widget;
+  }
+
+  /**
+   * Добавление виджета в начало (Z-order 0, сдвиг всей доски) и его удаление.
+   *
+   * @return добавленный виджет
+   */
+  @Benchmark
+  public Widget addFront() {
+    Widget widget = widgetService.addWidget(description(0, 0));
+    widgetService.deleteWidget(widget.getId());
+    return widget;
+  }
+
+  /**
+   * Добавление виджета в середину (сдвиг половины доски) и его удаление.
+   *
+   * @return добавленный виджет
+   */
+  @Benchmark
+  public Widget addMiddle() {
+    Widget widget = widgetService.addWidget(description(0, boardSize / 2));
+    widgetService.deleteWidget(widget.getId());
+    return widget;
+  }
+
+  /**
+   * Получение виджета по ИД.
+   *
+   * @return виджет
+   * @throws WidgetNotFoundException виджет не найден
+   */
+  @Benchmark
+  public Widget getById() throws WidgetNotFoundException {
+    return widgetService.getById(randomId());
+  }
+
+  /**
+   * Изменение координат виджета без изменения Z-order.
+   *
+   * @return виджет
+   * @throws WidgetNotFoundException виджет не найден
+   */
+  @Benchmark
+  public Widget editInPlace() throws WidgetNotFoundException {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return widgetService.editWidget(randomId(),
+        WidgetDescription.builder().x(random.nextInt()).y(random.nextInt()).build());
+  }
+
+  /**
+   * Перемещение виджета на случайный Z-order.
+   *
+   * @return виджет
+   * @throws WidgetNotFoundException виджет не найден
+   */
+  @Benchmark
+  public Widget editMove() throws WidgetNotFoundException {
+    return widgetService.editWidget(randomId(), WidgetDescription.builder()
+        .z(ThreadLocalRandom.current().nextInt(boardSize)).build());
+  }
+
+  /**
+   * Удаление случайного виджета и добавление его копии в конец. При нескольких
+   * потоках виджет могли удалить раньше - тогда копию добавляет удаливший его поток,
+   * иначе доска бы росла, а ИД в {@link #ids} терялись.
+   *
+   * @return признак удаления
+   */
+  @Benchmark
+  public boolean deleteWidget() {
+    int i = ThreadLocalRandom.current().nextInt(boardSize);
+    boolean deleted = widgetService.deleteWidget(ids.get(i));
+    if (deleted) {
+      ids.set(i, widgetService.addWidget(description(i, null)).getId());
+    }
+    return deleted;
+  }
+
+  /**
+   * Получение всех виджетов.
+   *
+   * @return виджеты
+   */
+  @Benchmark
+  public Widget[] getAllWidgets() {
+    return widgetService.getAllWidgets();
+  }
+}
@@ -0,0 +1,67 @@
+package ru.kirillspirikhin.mirowidgets.benchmarks;
+
+import java.io.IOException;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Запуск {@link WidgetServiceBenchmark} с профилировщиком GC по числу потоков
+ * 1, 2, 4, 8, 16 и 32. Результаты каждого запуска пишутся в
+ * {@code target/jmh-widget-service-<потоки>.json} для сравнения реализаций.
+ *
+ * <p>Запуск: {@code mvn -Pjmh test-compile exec:exec
+ * -Djmh.main=ru.kirillspirikhin.mirowidgets.benchmarks.WidgetServiceBenchmarkRunner
+ * -Djmh.args="<параметры JMH>"}; параметры JMH (например, {@code -p boardSize=1000})
+ * дополняют настройки по умолчанию, а {@code -t} заменяет перебор числа потоков.
+ */
+public final class WidgetServiceBenchmarkRunner {
+
+  /**
+   * Число потоков по умолчанию.
+   */
+  private static final int[] THREADS = {1, 2, 4, 8, 16, 32};
+
+  /**
+   * Утилитный класс.
+   */
+  private WidgetServiceBenchmarkRunner() {
+  }
+
+  /**
+   * Запуск бенчмарков.
+   *
+   * @param args параметры JMH
+   * @throws CommandLineOptionException неверные параметры
+   * @throws RunnerException            ошибка запуска
+   * @throws IOException                ошибка вывода справки
+   */
+  public static void main(String[] args)
+      throws CommandLineOptionException, RunnerException, IOException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    if (commandLine.shouldHelp()) {
+      commandLine.showHelp();
+      return;
+    }
+    int[] threads = commandLine.getThreads().hasValue()
+        ? new int[] {commandLine.getThreads().get()}
+        : THREADS;
+    for (int count : threads) {
+      ChainedOptionsBuilder options = new OptionsBuilder()
+          .parent(commandLine)
+          .threads(count)
+          .addProfiler(GCProfiler.class)
+          .resultFormat(ResultFormatType.JSON)
+          .result("target/jmh-widget-service-" + count + ".json");
+      if (commandLine.getIncludes().isEmpty()) {
+        options.include(WidgetServiceBenchmark.class.getSimpleName());
+      }
+      new Runner(options.build()).run();
+    }
+  }
+}
@@ -0,0 +1,19 @@
+package ru.kirillspirikhin.mirowidgets.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Настройки журнала изменений досок в памяти для запроса изменений после версии
+ * (widgets.changes.* в application.yml).
+ */
+@Data
+@ConfigurationProperties(prefix = "widgets.changes")
+public class ChangeLogProperties {
+
+  /**
+   * Количество последних изменений доски, хранимых в памяти. Клиент, отставший
+   * больше, получает доску целиком.
+   */
+  private int capacity = 4096;
+}
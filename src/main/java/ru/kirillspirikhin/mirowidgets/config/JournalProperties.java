@@ -0,0 +1,48 @@
+package ru.kirillspirikhin.mirowidgets.config;
+
+import java.time.Duration;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Настройки журнала изменений виджетов (widgets.journal.* в application.yml).
+ */
+@Data
+@ConfigurationProperties(prefix = "widgets.journal")
+public class JournalProperties {
+
+  /**
+   * Признак включения журнала.
+   */
+  private boolean enabled;
+
+  /**
+   * Каталог файлов журнала и снимка досок.
+   */
+  private String directory = "data";
+
+  /**
+   * Пауза между групповыми сбросами журнала на диск; 0 - сбрасывать сразу,
+   * как только завершился предыдущий сброс.
+   */
+  private Duration flushInterval = Duration.ZERO;
+
+  /**
+   * Наибольший объем записей, ожидающих сброса на диск; при его достижении
+   * изменения ждут сброса.
+   */
+  private DataSize maxPending = DataSize.ofMegabytes(16);
+
+  /**
+   * Период записи снимка досок, после которого старые сегменты журнала удаляются.
+   */
+  private Duration snapshotInterval = Duration.ofMinutes(5);
+
+  /**
+   * Признак ожидания сброса журнала на диск перед ответом на изменение.
+   * Без ожидания изменение подтверждается сразу, а при сбое узла могут быть
+   * потеряны изменения последнего несброшенного группового сброса.
+   */
+  private boolean sync;
+}
@@ -1,7 +1,16 @@
 package ru.kirillspirikhin.mirowidgets.config;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
 import springfox.documentation.builders.PathSelectors;
 import springfox.documentation.builders.RequestHandlerSelectors;
 import springfox.documentation.spi.DocumentationType;
@@ -11,6 +20,8 @@ import springfox.documentation.spring.web.plugins.Docket;
  * Конфигурация приложения.
  */
 @Configuration
+@EnableConfigurationProperties({JournalProperties.class, ChangeLogProperties.class,
+    PushProperties.class, WriterProperties.class})
 public class MiroWidgetsConfiguration {
   /**
    * Бин для swagger.
@@ -25,4 +36,42 @@ public class MiroWidgetsConfiguration {
         .paths(PathSelectors.any())
         .build();
   }
+
+  /**
+   * Ответы в формате Smile (application/x-jackson-smile) по заголовку Accept.
+   *
+   * @param builder построитель сериализаторов с настройками приложения
+   * @return конвертер ответов
+   */
+  @Bean
+  public MappingJackson2SmileHttpMessageConverter smileHttpMessageConverter(
+      Jackson2ObjectMapperBuilder builder) {
+    return new MappingJackson2SmileHttpMessageConverter(binaryMapper(builder, new SmileFactory()));
+  }
+
+  /**
+   * Ответы в формате CBOR (application/cbor) по заголовку Accept.
+   *
+   * @param builder построитель сериализаторов с настройками приложения
+   * @return конвертер ответов
+   */
+  @Bean
+  public MappingJackson2CborHttpMessageConverter cborHttpMessageConverter(
+      Jackson2ObjectMapperBuilder builder) {
+    return new MappingJackson2CborHttpMessageConverter(binaryMapper(builder, new CBORFactory()));
+  }
+
+  /**
+   * Сериализатор двоичного формата: виджеты пишутся {@link WidgetBinarySerializer}.
+   *
+   * @param builder построитель сериализаторов
+   * @param factory фабрика генераторов формата
+   * @return сериализатор
+   */
+  public static ObjectMapper binaryMapper(Jackson2ObjectMapperBuilder builder,
+                                          JsonFactory factory) {
+    return builder.factory(factory)
+        .serializerByType(Widget.class, new WidgetBinarySerializer())
+        .build();
+  }
 }
@@ -0,0 +1,35 @@
+package ru.kirillspirikhin.mirowidgets.config;
+
+import java.time.Duration;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Настройки рассылки изменений досок подписчикам (widgets.push.* в application.yml).
+ */
+@Data
+@ConfigurationProperties(prefix = "widgets.push")
+public class PushProperties {
+
+  /**
+   * Период кадра: изменения доски за кадр объединяются в одно событие.
+   */
+  private Duration frameInterval = Duration.ofMillis(16);
+
+  /**
+   * Количество потоков отправки событий подписчикам.
+   */
+  private int senderThreads = 4;
+
+  /**
+   * Срок отправки одного события: подписчик, отправка которому идет дольше,
+   * отключается, а поток отправки заменяется новым.
+   */
+  private Duration sendTimeout = Duration.ofSeconds(5);
+
+  /**
+   * Время жизни подписки; по его истечении клиент переподключается
+   * с последней полученной версией.
+   */
+  private Duration timeout = Duration.ofMinutes(30);
+}
@@ -0,0 +1,56 @@
+package ru.kirillspirikhin.mirowidgets.config;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import java.io.IOException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+
+/**
+ * Сериализация виджета в двоичных форматах (Smile, CBOR): те же поля, что и в JSON,
+ * но ИД - 16 байт (старшие и младшие биты, big-endian), а дата последнего изменения -
+ * число наносекунд от начала эпохи (UTC). Поля пишутся прямо из виджета,
+ * без промежуточных {@link java.util.UUID} и {@link java.time.LocalDateTime}
+ * и их строкового представления.
+ */
+public class WidgetBinarySerializer extends StdSerializer<Widget> {
+
+  /**
+   * Создание сериализатора.
+   */
+  public WidgetBinarySerializer() {
+    super(Widget.class);
+  }
+
+  @Override
+  public void serialize(Widget widget, JsonGenerator generator, SerializerProvider provider)
+      throws IOException {
+    byte[] id = new byte[16];
+    putLong(id, 0, widget.idMostSigBits());
+    putLong(id, 8, widget.idLeastSigBits());
+    generator.writeStartObject(widget);
+    generator.writeFieldName("id");
+    generator.writeBinary(id);
+    generator.writeNumberField("x", widget.getX());
+    generator.writeNumberField("y", widget.getY());
+    generator.writeNumberField("z", widget.getZ());
+    generator.writeNumberField("width", widget.getWidth());
+    generator.writeNumberField("height", widget.getHeight());
+    generator.writeNumberField("modifiedDate", widget.modifiedNanos());
+    generator.writeEndObject();
+  }
+
+  /**
+   * Запись {@code long} в массив (big-endian).
+   *
+   * @param bytes  массив
+   * @param offset смещение
+   * @param value  значение
+   */
+  private static void putLong(byte[] bytes, int offset, long value) {
+    for (int i = 7; i >= 0; i--) {
+      bytes[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+}
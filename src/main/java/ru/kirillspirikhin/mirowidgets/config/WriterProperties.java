@@ -0,0 +1,35 @@
+package ru.kirillspirikhin.mirowidgets.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Настройки применения изменений досок одним писателем на доску
+ * (widgets.writer.* в application.yml).
+ */
+@Data
+@ConfigurationProperties(prefix = "widgets.writer")
+public class WriterProperties {
+
+  /**
+   * Признак применения изменений доски одним писателем: изменения ставятся в очередь
+   * доски и применяются пакетами. Без него каждый вызов сам захватывает блокировку доски.
+   */
+  private boolean enabled = false;
+
+  /**
+   * Размер очереди изменений доски; при заполненной очереди вызовы ждут места в ней.
+   */
+  private int queueCapacity = 1024;
+
+  /**
+   * Максимальное количество изменений, применяемых одним пакетом.
+   */
+  private int batchSize = 256;
+
+  /**
+   * Количество потоков писателей, общих для всех досок (у доски не больше одного
+   * писателя одновременно).
+   */
+  private int threads = Runtime.getRuntime().availableProcessors();
+}
@@ -0,0 +1,53 @@
+package ru.kirillspirikhin.mirowidgets.controllers;
+
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
+import java.util.Set;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+import ru.kirillspirikhin.mirowidgets.services.BoardRegistry;
+
+/**
+ * Контроллер для работы с досками.
+ */
+@RestController()
+@RequiredArgsConstructor(onConstructor_ = @Autowired)
+public class BoardController {
+
+  /**
+   * Реестр досок.
+   */
+  private final BoardRegistry boardRegistry;
+
+  /**
+   * Получение ИД существующих досок.
+   *
+   * @return ИД досок
+   */
+  @GetMapping("boards")
+  @ApiOperation("Получение ИД существующих досок")
+  public Set<String> getBoards() {
+    return boardRegistry.getBoardIds();
+  }
+
+  /**
+   * Удаление доски со всеми виджетами.
+   *
+   * @param boardId ИД доски
+   * @return признак того, что доска удалена
+   */
+  @DeleteMapping("boards/{boardId}")
+  @ApiOperation("Удаление доски по ее ИД")
+  public ResponseEntity<Boolean> deleteBoard(
+      @ApiParam("Идентификатор доски") @PathVariable String boardId
+  ) {
+    boolean deleted = boardRegistry.deleteBoard(boardId);
+    return new ResponseEntity<>(deleted, deleted ? HttpStatus.OK : HttpStatus.NOT_FOUND);
+  }
+}
@@ -0,0 +1,38 @@
+package ru.kirillspirikhin.mirowidgets.controllers;
+
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * Заголовок {@code Vary: Accept} в ответах контроллеров виджетов и досок: формат ответа
+ * (JSON, Smile, CBOR) выбирается по заголовку Accept, поэтому кэши не должны отдавать
+ * ответ одного формата на запрос другого. Ответы без тела (304) и потоковые ответы
+ * контроллеры дополняют заголовком сами.
+ */
+@ControllerAdvice(assignableTypes = {WidgetController.class, BoardController.class})
+public class VaryByAcceptAdvice implements ResponseBodyAdvice<Object> {
+
+  @Override
+  public boolean supports(MethodParameter returnType,
+                          Class<? extends HttpMessageConverter<?>> converterType) {
+    return true;
+  }
+
+  @Override
+  public Object beforeBodyWrite(Object body, MethodParameter returnType,
+                                MediaType selectedContentType,
+                                Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                ServerHttpRequest request, ServerHttpResponse response) {
+    HttpHeaders headers = response.getHeaders();
+    if (!headers.getVary().contains(HttpHeaders.ACCEPT)) {
+      headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    }
+    return body;
+  }
+}
@@ -1,110 +1,213 @@
 package ru.kirillspirikhin.mirowidgets.controllers;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 import lombok.RequiredArgsConstructor;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.http.HttpMessageConverters;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.AbstractJackson2HttpMessageConverter;
+import org.springframework.web.HttpMediaTypeNotAcceptableException;
+import org.springframework.web.accept.ContentNegotiationManager;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.kirillspirikhin.mirowidgets.config.PushProperties;
+import ru.kirillspirikhin.mirowidgets.exceptions.BadQueryException;
+import ru.kirillspirikhin.mirowidgets.exceptions.BoardNotFoundException;
 import ru.kirillspirikhin.mirowidgets.exceptions.BadWidgetDescriptionException;
 import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetVersionMismatchException;
 import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetChanges;
+import ru.kirillspirikhin.mirowidgets.model.WidgetCursor;
 import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+import ru.kirillspirikhin.mirowidgets.services.BoardRegistry;
 import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.WidgetSnapshot;
+import ru.kirillspirikhin.mirowidgets.services.push.ChangeBroadcaster;
+import ru.kirillspirikhin.mirowidgets.services.push.ChangeSink;
 
 /**
  * Контроллер для работы с виджетами.
+ * Все методы доступны как для доски по умолчанию (без префикса),
+ * так и для произвольной доски с префиксом {@code boards/{boardId}/}.
  */
 @RestController()
+@RequestMapping({"", "boards/{boardId}"})
 @RequiredArgsConstructor(onConstructor_ = @Autowired)
 public class WidgetController {
 
   /**
-   * Сервис для работы с виджетами.
+   * Заголовок ответа с курсором следующей страницы.
    */
-  private final WidgetService widgetService;
+  public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+  /**
+   * Реестр досок.
+   */
+  private final BoardRegistry boardRegistry;
+
+  /**
+   * Конвертеры ответов: сериализаторы JSON и двоичных форматов.
+   */
+  private final HttpMessageConverters messageConverters;
+
+  /**
+   * Определение форматов ответа, принимаемых клиентом.
+   */
+  private final ContentNegotiationManager contentNegotiationManager;
+
+  /**
+   * Рассылка изменений досок.
+   */
+  private final ChangeBroadcaster changeBroadcaster;
+
+  /**
+   * Настройки рассылки изменений.
+   */
+  private final PushProperties pushProperties;
 
   /**
    * Добавление виджета.
    *
+   * @param boardId     ИД доски
    * @param description описание
    * @return добавленный виджет
    * @throws BadWidgetDescriptionException неыверное описание виджета
    */
   @PostMapping("create")
   @ApiOperation("Добавление виджета")
-  public ResponseEntity<Widget> createWidget(WidgetDescription description)
+  public ResponseEntity<Widget> createWidget(
+      @ApiParam("Идентификатор доски") @PathVariable(required = false) String boardId,
+      WidgetDescription description
+  )
       throws BadWidgetDescriptionException {
     String checkDescription = checkWidgetDescriptionToAdd(description);
     if (!"".equals(checkDescription)) {
       throw new BadWidgetDescriptionException("Некорректное описание виджета:" + checkDescription);
     }
-    Widget widget = widgetService.addWidget(description);
+    Widget widget = boardRegistry.getBoard(boardId).addWidget(description);
     return new ResponseEntity<>(widget, HttpStatus.CREATED);
   }
 
   /**
    * Получение виджта по его ИД.
+   * ETag ответа - версия виджета и формат ответа; если виджет не изменился с версии
+   * из If-None-Match, возвращается 304 без сериализации виджета.
    *
-   * @param id ИД виджета
+   * @param boardId ИД доски
+   * @param id      ИД виджета
+   * @param request запрос
    * @return полное описание виджета
-   * @throws WidgetNotFoundException виджет не найден
+   * @throws WidgetNotFoundException             виджет не найден
+   * @throws HttpMediaTypeNotAcceptableException неверный заголовок Accept
    */
   @GetMapping("get/{id}")
   @ApiOperation("Получение виджета по его ИД")
   public ResponseEntity<Widget> getWidgetById(
-      @ApiParam("Идентификатор виджета") @PathVariable UUID id
+      @ApiParam("Идентификатор доски") @PathVariable(required = false) String boardId,
+      @ApiParam("Идентификатор виджета") @PathVariable UUID id,
+      NativeWebRequest request
   )
-      throws WidgetNotFoundException {
-    Widget widget = widgetService.getById(id);
-    return new ResponseEntity<>(widget, HttpStatus.OK);
+      throws WidgetNotFoundException, HttpMediaTypeNotAcceptableException {
+    Widget widget = findBoard(boardId, id).getById(id);
+    final MediaType type = negotiate(request);
+    /* ETag ответа (и 200, и 304) записывает checkNotModified */
+    if (request.checkNotModified(etag(widget.fingerprint(), type))) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED).varyBy(HttpHeaders.ACCEPT).build();
+    }
+    return ResponseEntity.ok().contentType(type).body(widget);
   }
 
   /**
    * Редактирование виджета.
+   * С заголовком If-Match (ETag ответа get/{id}) виджет изменяется, только если его версия
+   * не изменилась, иначе возвращается 412 с текущей версией в ETag. Заголовок может
+   * содержать список меток или {@code *}; метки сравниваются строго, слабые
+   * ({@code W/"..."}) не совпадают ни с одной версией.
+   * ETag ответа - версия измененного виджета.
    *
+   * @param boardId     ИД доски
    * @param id          ИД виджета
    * @param description описание виджета
+   * @param ifMatch     ожидаемая версия виджета
+   * @param request     запрос
    * @return измененный виджета
-   * @throws BadWidgetDescriptionException неверное описание виджета
-   * @throws WidgetNotFoundException       виджета не найден
+   * @throws BadQueryException                   неверный заголовок If-Match
+   * @throws BadWidgetDescriptionException       неверное описание виджета
+   * @throws WidgetNotFoundException             виджета не найден
+   * @throws WidgetVersionMismatchException      версия виджета не совпадает с ожидаемой
+   * @throws HttpMediaTypeNotAcceptableException неверный заголовок Accept
    */
   @PatchMapping("edit/{id}")
   @ApiOperation("Редактирование виджета")
-  public ResponseEntity<Widget> editWidget(@ApiParam("Идентификатор виджета") @PathVariable UUID id,
-                                           WidgetDescription description)
-      throws BadWidgetDescriptionException, WidgetNotFoundException {
+  public ResponseEntity<Widget> editWidget(
+      @ApiParam("Идентификатор доски") @PathVariable(required = false) String boardId,
+      @ApiParam("Идентификатор виджета") @PathVariable UUID id,
+      WidgetDescription description,
+      @ApiParam("Версия виджета, известная клиенту")
+      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+      NativeWebRequest request
+  )
+      throws BadQueryException, BadWidgetDescriptionException, WidgetNotFoundException,
+      WidgetVersionMismatchException, HttpMediaTypeNotAcceptableException {
     String checkDescription = checkWidgetDescriptionToEdit(description);
     if (!"".equals(checkDescription)) {
       throw new BadWidgetDescriptionException("Некорректное описание виджета:" + checkDescription);
     }
-    Widget widget = widgetService.editWidget(id, description);
-    return new ResponseEntity<>(widget, HttpStatus.OK);
+    final MediaType type = negotiate(request);
+    final WidgetService widgetService = findBoard(boardId, id);
+    Widget widget = ifMatch == null
+        ? widgetService.editWidget(id, description)
+        : editIfMatch(widgetService, id, description, ifMatch);
+    return ResponseEntity.ok().contentType(type).eTag(etag(widget.fingerprint(), type))
+        .body(widget);
   }
 
   /**
    * Удаление виджета.
    *
-   * @param id ИД виджета
+   * @param boardId ИД доски
+   * @param id      ИД виджета
    * @return признак того, что виджета удален
    * @throws WidgetNotFoundException виджет не найден
    */
   @DeleteMapping("delete/{id}")
   @ApiOperation("Удаление виджета по его ИД")
   public ResponseEntity<Boolean> deleteWidget(
+      @ApiParam("Идентификатор доски") @PathVariable(required = false) String boardId,
       @ApiParam("Идентификатор виджета") @PathVariable UUID id
   )
       throws WidgetNotFoundException {
-    boolean deleted = widgetService.deleteWidget(id);
+    boolean deleted = findBoard(boardId, id).deleteWidget(id);
     if (!deleted) {
       throw new WidgetNotFoundException(id);
     }
@@ -112,14 +215,286 @@ public class WidgetController {
   }
 
   /**
-   * Полечение всех виджетов.
+   * Пакетное изменение виджетов: операции применяются по порядку и атомарно.
+   *
+   * @param boardId    ИД доски
+   * @param operations операции
+   * @return для каждой операции - виджет после ее выполнения
+   *     (для удаления - удаленный виджет)
+   * @throws BadQueryException             неверная операция
+   * @throws BadWidgetDescriptionException неверное описание виджета
+   * @throws WidgetNotFoundException       виджет не найден
+   */
+  @PostMapping("batch")
+  @ApiOperation("Пакетное изменение виджетов")
+  public Widget[] applyBatch(
+      @ApiParam("Идентификатор доски") @PathVariable(required = false) String boardId,
+      @ApiParam("Операции") @RequestBody List<WidgetOperation> operations
+  )
+      throws BadQueryException, BadWidgetDescriptionException, WidgetNotFoundException {
+    for (int i = 0; i < operations.size(); i++) {
+      WidgetOperation operation = operations.get(i);
+      if (operation.getType() == null) {
+        throw new BadQueryException("Операция " + i + ": тип операции должен быть указан");
+      }
+      if (operation.getType() != WidgetOperation.Type.CREATE && operation.getId() == null) {
+        throw new BadQueryException("Операция " + i + ": ИД виджета должен быть указан");
+      }
+      if (operation.getType() != WidgetOperation.Type.DELETE) {
+        if (operation.getDescription() == null) {
+          throw new BadQueryException("Операция " + i + ": описание виджета должно быть указано");
+        }
+        String checkDescription = operation.getType() == WidgetOperation.Type.CREATE
+            ? checkWidgetDescriptionToAdd(operation.getDescription())
+            : checkWidgetDescriptionToEdit(operation.getDescription());
+        if (!"".equals(checkDescription)) {
+          throw new BadWidgetDescriptionException(
+              "Операция " + i + ": некорректное описание виджета:" + checkDescription);
+        }
+      }
+    }
+    if (boardRegistry.findBoard(boardId) == null && operations.stream()
+        .noneMatch(operation -> operation.getType() == WidgetOperation.Type.CREATE)) {
+      /* пакет без добавлений не создает доску: изменяемых и удаляемых виджетов на ней нет */
+      if (operations.isEmpty()) {
+        return new Widget[0];
+      }
+      throw new WidgetNotFoundException(operations.get(0).getId());
+    }
+    return boardRegistry.getBoard(boardId).applyBatch(operations);
+  }
+
+  /**
+   * Полечение всех виджетов или страницы виджетов в порядке Z-order.
+   * Если страница не последняя, курсор следующей страницы возвращается
+   * в заголовке {@value #NEXT_CURSOR_HEADER}.
+   *
+   * <p>ETag ответа - версия доски и формат ответа; если доска не изменилась с версии
+   * из If-None-Match, возвращается 304 без обращения к хранилищу.
+   * Для несуществующей доски возвращается пустой список без ETag.
+   *
+   * <p>Виджеты берутся из согласованного снимка доски и пишутся в ответ по одному
+   * по мере сериализации, без промежуточного массива и документа целиком.
+   * Формат ответа - по заголовку Accept: JSON (по умолчанию), Smile или CBOR.
    *
+   * @param boardId ИД доски
+   * @param limit   максимальное количество виджетов на странице
+   * @param fromZ   минимальный Z-order (включительно)
+   * @param toZ     максимальный Z-order (включительно)
+   * @param cursor  курсор следующей страницы
+   * @param request запрос
    * @return список виджетов
+   * @throws BadQueryException                   неверные параметры страницы
+   * @throws WidgetNotFoundException             виджет курсора не найден
+   * @throws HttpMediaTypeNotAcceptableException неверный заголовок Accept
    */
   @GetMapping("getAll")
-  @ApiOperation("Получение всех виджетов")
-  public Widget[] getAllWidgets() {
-    return widgetService.getAllWidgets();
+  @ApiOperation(value = "Получение всех виджетов или страницы виджетов",
+      response = Widget.class, responseContainer = "List")
+  public ResponseEntity<StreamingResponseBody> getAllWidgets(
+      @ApiParam("Идентификатор доски") @PathVariable(required = false) String boardId,
+      @ApiParam("Максимальное количество виджетов на странице")
+      @RequestParam(required = false) Integer limit,
+      @ApiParam("Минимальный Z-order") @RequestParam(required = false) Integer fromZ,
+      @ApiParam("Максимальный Z-order") @RequestParam(required = false) Integer toZ,
+      @ApiParam("Курсор следующей страницы из заголовка " + NEXT_CURSOR_HEADER)
+      @RequestParam(required = false) String cursor,
+      NativeWebRequest request
+  )
+      throws BadQueryException, WidgetNotFoundException, HttpMediaTypeNotAcceptableException {
+    final MediaType type = negotiate(request);
+    HttpHeaders headers = new HttpHeaders();
+    headers.setContentType(type);
+    /* потоковый ответ минует VaryByAcceptAdvice */
+    headers.setVary(Collections.singletonList(HttpHeaders.ACCEPT));
+    final ObjectMapper mapper = mapper(type);
+    final WidgetService widgetService = boardRegistry.findBoard(boardId);
+    if (widgetService == null) {
+      return stream(WidgetSnapshot.of(new Widget[0]), mapper, headers);
+    }
+    /* версия читается до данных: отданные данные не старее версии в ETag */
+    final long version = widgetService.getVersion();
+    /* ETag ответа (и 200, и 304) записывает checkNotModified */
+    if (request.checkNotModified(etag(version, type))) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED).varyBy(HttpHeaders.ACCEPT).build();
+    }
+    if (limit == null && fromZ == null && toZ == null && cursor == null) {
+      return stream(widgetService.getSnapshot(), mapper, headers);
+    }
+    if (limit != null && limit <= 0) {
+      throw new BadQueryException("Некорректный размер страницы: " + limit);
+    }
+    final int from = fromZ != null ? fromZ : Integer.MIN_VALUE;
+    final int to = toZ != null ? toZ : Integer.MAX_VALUE;
+    final WidgetCursor after = cursor != null ? WidgetCursor.decode(cursor) : null;
+    /* запрашиваем на один виджет больше, чтобы узнать, есть ли следующая страница */
+    final int fetch = limit != null && limit < Integer.MAX_VALUE ? limit + 1 : Integer.MAX_VALUE;
+    Widget[] widgets = after == null
+        ? widgetService.getWidgetsPage(null, from, to, fetch)
+        : pageAfter(widgetService, after, from, to, fetch);
+    if (limit != null && widgets.length > limit) {
+      widgets = Arrays.copyOf(widgets, limit);
+      headers.set(NEXT_CURSOR_HEADER, WidgetCursor.of(widgets[limit - 1]).encode());
+    }
+    return stream(WidgetSnapshot.of(widgets), mapper, headers);
+  }
+
+  /**
+   * Страница после курсора. Если виджет курсора на прежнем месте (его Z-order совпадает
+   * с запомненным в курсоре), страница начинается сразу за ним. Если он удален, перемещен
+   * или сдвинут, страница начинается с запомненного Z-order: перемещение виджета курсора
+   * не обрывает перебор и не возвращает его назад, но виджеты, сдвинутые вставками ниже
+   * курсора, могут повториться.
+   *
+   * @param widgetService доска
+   * @param after         курсор
+   * @param from          минимальный Z-order
+   * @param to            максимальный Z-order
+   * @param limit         максимальное количество виджетов
+   * @return виджеты страницы
+   * @throws WidgetNotFoundException не ожидается: страница по Z-order не ищет виджет
+   */
+  private static Widget[] pageAfter(WidgetService widgetService, WidgetCursor after, int from,
+                                    int to, int limit) throws WidgetNotFoundException {
+    try {
+      if (widgetService.getById(after.getId()).getZ() == after.getZ()) {
+        return widgetService.getWidgetsPage(after.getId(), from, to, limit);
+      }
+    } catch (WidgetNotFoundException e) {
+      /* виджет курсора удален - продолжаем с запомненного в курсоре Z-order */
+    }
+    if (after.getZ() == Integer.MAX_VALUE) {
+      return new Widget[0];
+    }
+    return widgetService.getWidgetsPage(null, Math.max(from, after.getZ() + 1), to, limit);
+  }
+
+  /**
+   * Получение изменений доски после версии, известной клиенту: добавленных, измененных
+   * (в том числе со сдвинутым Z-order) и удаленных виджетов. Если изменения после версии
+   * уже не хранятся (или версия 0), возвращается доска целиком с признаком {@code full}.
+   * Для несуществующей доски - пустая доска целиком с версией 0.
+   *
+   * @param boardId ИД доски
+   * @param since   версия доски из предыдущего ответа
+   * @return изменения и новая версия доски
+   */
+  @GetMapping("changes")
+  @ApiOperation("Получение изменений доски после версии")
+  public WidgetChanges getChanges(
+      @ApiParam("Идентификатор доски") @PathVariable(required = false) String boardId,
+      @ApiParam("Версия доски из предыдущего ответа") @RequestParam(defaultValue = "0") long since
+  ) {
+    final WidgetService widgetService = boardRegistry.findBoard(boardId);
+    if (widgetService == null) {
+      return new WidgetChanges(0, true, new Widget[0], new UUID[0]);
+    }
+    return widgetService.getChanges(since);
+  }
+
+  /**
+   * Подписка на изменения доски (server-sent events). События {@code changes} содержат
+   * изменения доски в формате ответа {@code changes}, ИД события - версия доски.
+   * Изменения за кадр (16 мс) объединяются в одно событие. При переподключении
+   * браузер передает ИД последнего события в заголовке Last-Event-ID,
+   * и первое событие содержит только пропущенные изменения.
+   *
+   * @param boardId     ИД доски
+   * @param since       версия доски, известная клиенту (0 - начать с доски целиком)
+   * @param lastEventId ИД последнего полученного события; важнее since, который браузер
+   *                    при переподключении повторяет из исходного URL
+   * @return поток событий
+   * @throws BoardNotFoundException доска не найдена
+   */
+  @GetMapping(value = "subscribe", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  @ApiOperation("Подписка на изменения доски (server-sent events)")
+  public SseEmitter subscribe(
+      @ApiParam("Идентификатор доски") @PathVariable(required = false) String boardId,
+      @ApiParam("Версия доски, известная клиенту") @RequestParam(required = false) Long since,
+      @ApiParam("ИД последнего полученного события")
+      @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId
+  )
+      throws BoardNotFoundException {
+    final SseEmitter emitter = new SseEmitter(pushProperties.getTimeout().toMillis());
+    /* при переподключении since из URL подписки устарел - версию дает Last-Event-ID */
+    final long version = lastEventId != null ? lastEventId : since != null ? since : 0;
+    ChangeBroadcaster.Subscription subscription = changeBroadcaster.subscribe(boardId, version,
+        new ChangeSink() {
+          @Override
+          public void send(long version, String changes) throws IOException {
+            emitter.send(SseEmitter.event()
+                .name("changes")
+                .id(Long.toString(version))
+                .data(changes));
+          }
+
+          @Override
+          public void close() {
+            emitter.complete();
+          }
+        });
+    emitter.onCompletion(subscription::cancel);
+    emitter.onError(e -> subscription.cancel());
+    return emitter;
+  }
+
+  /**
+   * Получение виджетов, пересекающихся с прямоугольной областью, в порядке Z-order.
+   *
+   * @param boardId ИД доски
+   * @param x       координата X области
+   * @param y       координата Y области
+   * @param width   ширина области
+   * @param height  высота области
+   * @return список виджетов
+   * @throws BadQueryException неверные параметры области
+   */
+  @GetMapping("getInArea")
+  @ApiOperation("Получение виджетов в прямоугольной области")
+  public Widget[] getWidgetsInArea(
+      @ApiParam("Идентификатор доски") @PathVariable(required = false) String boardId,
+      @ApiParam("Координата X области") @RequestParam int x,
+      @ApiParam("Координата Y области") @RequestParam int y,
+      @ApiParam("Ширина области") @RequestParam int width,
+      @ApiParam("Высота области") @RequestParam int height
+  )
+      throws BadQueryException {
+    if (width < 0 || height < 0) {
+      throw new BadQueryException("Ширина и высота области не могут быть меньше 0");
+    }
+    final WidgetService widgetService = boardRegistry.findBoard(boardId);
+    return widgetService != null ? widgetService.getWidgetsInArea(x, y, width, height)
+        : new Widget[0];
+  }
+
+  /**
+   * Получение виджетов, покрывающих точку: только верхний или весь стек сверху вниз.
+   *
+   * @param boardId ИД доски
+   * @param x       координата X точки
+   * @param y       координата Y точки
+   * @param all     вернуть весь стек виджетов под точкой
+   * @return список виджетов (без {@code all} - не больше одного)
+   */
+  @GetMapping("getAt")
+  @ApiOperation("Получение верхнего виджета в точке")
+  public Widget[] getWidgetsAt(
+      @ApiParam("Идентификатор доски") @PathVariable(required = false) String boardId,
+      @ApiParam("Координата X точки") @RequestParam int x,
+      @ApiParam("Координата Y точки") @RequestParam int y,
+      @ApiParam("Вернуть все виджеты под точкой сверху вниз")
+      @RequestParam(defaultValue = "false") boolean all
+  ) {
+    final WidgetService widgetService = boardRegistry.findBoard(boardId);
+    if (widgetService == null) {
+      return new Widget[0];
+    }
+    if (all) {
+      return widgetService.getWidgetsAt(x, y);
+    }
+    return widgetService.getTopWidgetAt(x, y)
+        .map(widget -> new Widget[] {widget})
+        .orElse(new Widget[0]);
   }
 
   /**
@@ -134,6 +509,36 @@ public class WidgetController {
     return e.getMessage();
   }
 
+  /**
+   * Обработка ошибки несовпадения версии виджета: ETag ответа - текущая версия
+   * в формате, который клиент получил бы в ответе get/{id}.
+   *
+   * @param e       исключение
+   * @param request запрос
+   * @return текст ошибки
+   * @throws HttpMediaTypeNotAcceptableException неверный заголовок Accept
+   */
+  @ExceptionHandler(WidgetVersionMismatchException.class)
+  public ResponseEntity<String> handle(WidgetVersionMismatchException e,
+                                       NativeWebRequest request)
+      throws HttpMediaTypeNotAcceptableException {
+    return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED)
+        .eTag(etag(e.getActualVersion(), negotiate(request)))
+        .body(e.getMessage());
+  }
+
+  /**
+   * Обработка ошибки некорректных параметров запроса виджетов.
+   *
+   * @param e исключение
+   * @return текст ошибки
+   */
+  @ExceptionHandler(BadQueryException.class)
+  @ResponseStatus(HttpStatus.BAD_REQUEST)
+  public String handle(BadQueryException e) {
+    return e.getMessage();
+  }
+
   /**
    * Обработка ошибки, что виджет не найден.
    *
@@ -146,6 +551,203 @@ public class WidgetController {
     return e.getMessage();
   }
 
+  /**
+   * Обработка ошибки, что доска не найдена.
+   *
+   * @param e исключение
+   * @return текст ошибки
+   */
+  @ExceptionHandler(BoardNotFoundException.class)
+  @ResponseStatus(HttpStatus.NOT_FOUND)
+  public String handle(BoardNotFoundException e) {
+    return e.getMessage();
+  }
+
+  /**
+   * Существующая доска виджета: чтение, изменение и удаление виджета доску не создают.
+   *
+   * @param boardId ИД доски
+   * @param id      ИД виджета
+   * @return доска
+   * @throws WidgetNotFoundException доски нет - нет и виджета
+   */
+  private WidgetService findBoard(String boardId, UUID id) throws WidgetNotFoundException {
+    WidgetService widgetService = boardRegistry.findBoard(boardId);
+    if (widgetService == null) {
+      throw new WidgetNotFoundException(id);
+    }
+    return widgetService;
+  }
+
+  /**
+   * Значение ETag для версии в формате ответа. Представления в разных форматах различаются
+   * побайтно, поэтому метки JSON ({@code "версия"}) и двоичных форматов
+   * ({@code "версия-подтип"}, например {@code "1f-cbor"}) не совпадают.
+   *
+   * @param version версия доски или виджета
+   * @param type    формат ответа
+   * @return ETag
+   */
+  private static String etag(long version, MediaType type) {
+    String tag = Long.toHexString(version);
+    return '"' + (MediaType.APPLICATION_JSON.equalsTypeAndSubtype(type)
+        ? tag : tag + '-' + type.getSubtype()) + '"';
+  }
+
+  /**
+   * Изменение виджета по условию If-Match: {@code *} - без проверки версии, иначе - если
+   * текущая версия виджета совпадает с одной из меток при строгом сравнении.
+   *
+   * @param widgetService доска
+   * @param id            ИД виджета
+   * @param description   описание виджета
+   * @param ifMatch       значение заголовка If-Match
+   * @return измененный виджет
+   * @throws BadQueryException              неверный заголовок If-Match
+   * @throws WidgetNotFoundException        виджет не найден
+   * @throws WidgetVersionMismatchException версия виджета не совпадает ни с одной меткой
+   */
+  private static Widget editIfMatch(WidgetService widgetService, UUID id,
+                                    WidgetDescription description, String ifMatch)
+      throws BadQueryException, WidgetNotFoundException, WidgetVersionMismatchException {
+    List<String> tags = etags(ifMatch);
+    if (tags.contains("*")) {
+      return widgetService.editWidget(id, description);
+    }
+    WidgetVersionMismatchException mismatch = null;
+    for (String tag : tags) {
+      Long version = version(tag);
+      if (version == null) {
+        continue;
+      }
+      try {
+        return widgetService.editWidget(id, description, version);
+      } catch (WidgetVersionMismatchException e) {
+        mismatch = e;
+      }
+    }
+    if (mismatch == null) {
+      /* только слабые и чужие метки: при строгом сравнении не совпадает ни одна */
+      mismatch = new WidgetVersionMismatchException(id, 0, widgetService.getById(id).fingerprint());
+    }
+    throw mismatch;
+  }
+
+  /**
+   * Разбор списка меток заголовка If-Match.
+   *
+   * @param header значение заголовка
+   * @return метки в кавычках (слабые - с префиксом {@code W/}) или {@code *}
+   * @throws BadQueryException если элемент списка - не метка и не {@code *}
+   */
+  private static List<String> etags(String header) throws BadQueryException {
+    List<String> tags = new ArrayList<>();
+    for (String element : header.split(",")) {
+      String tag = element.trim();
+      if (tag.isEmpty()) {
+        continue;
+      }
+      String opaque = tag.startsWith("W/") ? tag.substring(2) : tag;
+      if (!"*".equals(tag) && (opaque.length() < 2 || opaque.charAt(0) != '"'
+          || opaque.charAt(opaque.length() - 1) != '"')) {
+        throw new BadQueryException("Ожидаются версии виджета в формате ETag: " + header);
+      }
+      tags.add(tag);
+    }
+    if (tags.isEmpty()) {
+      throw new BadQueryException("Ожидаются версии виджета в формате ETag: " + header);
+    }
+    return tags;
+  }
+
+  /**
+   * Версия виджета из метки для строгого сравнения. Метка любого формата ответа
+   * задает версию виджета: условие If-Match - о состоянии виджета, а не о формате.
+   *
+   * @param tag метка в кавычках
+   * @return версия или {@code null}, если метка слабая или выдана не этим сервисом
+   */
+  private static Long version(String tag) {
+    if (tag.startsWith("W/")) {
+      return null;
+    }
+    String opaque = tag.substring(1, tag.length() - 1);
+    int format = opaque.indexOf('-');
+    try {
+      return Long.parseUnsignedLong(format < 0 ? opaque : opaque.substring(0, format), 16);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Выбор формата ответа по заголовку Accept среди форматов конвертеров Jackson
+   * (JSON, Smile, CBOR); если ни один не подходит, ответ - JSON.
+   *
+   * @param request запрос
+   * @return формат ответа
+   * @throws HttpMediaTypeNotAcceptableException неверный заголовок Accept
+   */
+  private MediaType negotiate(NativeWebRequest request)
+      throws HttpMediaTypeNotAcceptableException {
+    /* принимаемые типы уже упорядочены по точности и предпочтению клиента */
+    for (MediaType accepted : contentNegotiationManager.resolveMediaTypes(request)) {
+      for (HttpMessageConverter<?> converter : messageConverters) {
+        if (!(converter instanceof AbstractJackson2HttpMessageConverter)) {
+          continue;
+        }
+        for (MediaType type : converter.getSupportedMediaTypes()) {
+          if (type.isConcrete() && accepted.isCompatibleWith(type)) {
+            return type;
+          }
+        }
+      }
+    }
+    return MediaType.APPLICATION_JSON;
+  }
+
+  /**
+   * Сериализатор формата ответа.
+   *
+   * @param type формат ответа
+   * @return сериализатор конвертера Jackson этого формата
+   */
+  private ObjectMapper mapper(MediaType type) {
+    for (HttpMessageConverter<?> converter : messageConverters) {
+      if (converter instanceof AbstractJackson2HttpMessageConverter
+          && converter.canWrite(Widget.class, type)) {
+        return ((AbstractJackson2HttpMessageConverter) converter).getObjectMapper();
+      }
+    }
+    throw new IllegalStateException("Не найден сериализатор " + type);
+  }
+
+  /**
+   * Ответ с массивом виджетов, который пишется в поток ответа по мере обхода снимка.
+   *
+   * @param widgets снимок виджетов
+   * @param mapper  сериализатор формата ответа
+   * @param headers заголовки ответа
+   * @return ответ
+   */
+  private ResponseEntity<StreamingResponseBody> stream(WidgetSnapshot widgets,
+      ObjectMapper mapper, HttpHeaders headers) {
+    StreamingResponseBody body = outputStream -> {
+      JsonGenerator generator = mapper.getFactory().createGenerator(outputStream)
+          .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      /* буфер генератора сбрасывается по заполнении, а не после каждого виджета */
+      try (SequenceWriter writer = mapper.writerFor(Widget.class)
+          .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+          .writeValuesAsArray(generator)) {
+        for (Widget widget : widgets) {
+          writer.write(widget);
+        }
+      }
+      generator.close();
+    };
+    return new ResponseEntity<>(body, headers, HttpStatus.OK);
+  }
+
   /**
    * Проверка описания виджета на корректность для добавления.
    *
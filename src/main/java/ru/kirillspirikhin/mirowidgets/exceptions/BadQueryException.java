@@ -0,0 +1,16 @@
+package ru.kirillspirikhin.mirowidgets.exceptions;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Неверные параметры запроса виджетов (страницы, области доски).
+ */
+@RequiredArgsConstructor
+@Getter
+public class BadQueryException extends Exception {
+  /**
+   * сообщение.
+   */
+  private final String message;
+}
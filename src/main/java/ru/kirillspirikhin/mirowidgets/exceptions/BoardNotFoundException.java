@@ -0,0 +1,26 @@
+package ru.kirillspirikhin.mirowidgets.exceptions;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+
+/**
+ * Доска не найдена.
+ */
+@RequiredArgsConstructor
+@Getter
+public class BoardNotFoundException extends Exception {
+
+  /**
+   * ИД доски.
+   */
+  private final String boardId;
+
+  /**
+   * сообщение.
+   */
+  @Override
+  public String getMessage() {
+    return String.format("Доска с id = %s не найдена", boardId);
+  }
+}
@@ -0,0 +1,38 @@
+package ru.kirillspirikhin.mirowidgets.exceptions;
+
+import java.util.UUID;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Версия виджета не совпадает с ожидаемой: виджет изменен после того,
+ * как клиент получил его версию.
+ */
+@RequiredArgsConstructor
+@Getter
+public class WidgetVersionMismatchException extends Exception {
+
+  /**
+   * ИД виджета.
+   */
+  private final UUID id;
+
+  /**
+   * Ожидаемая версия виджета.
+   */
+  private final long expectedVersion;
+
+  /**
+   * Текущая версия виджета.
+   */
+  private final long actualVersion;
+
+  /**
+   * сообщение.
+   */
+  @Override
+  public String getMessage() {
+    return String.format("Виджет с id = %s изменен: версия %x, ожидалась %x", id,
+        actualVersion, expectedVersion);
+  }
+}
@@ -1,54 +1,214 @@
 package ru.kirillspirikhin.mirowidgets.model;
 
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
-import lombok.Data;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.Value;
+import lombok.With;
 
 /**
  * Виджет.
+ *
+ * <p>Виджет неизменяем: изменения создают новый экземпляр (методы {@code with...}),
+ * поэтому хранилища могут отдавать хранимые экземпляры читателям без копирования
+ * и блокировок. Для экономии памяти ИД хранится двумя {@code long}, а дата
+ * последнего изменения - количеством наносекунд от начала эпохи (UTC).
  */
-@Data
-@Builder
+@Value
+@ToString(onlyExplicitlyIncluded = true)
 @AllArgsConstructor(access = AccessLevel.PRIVATE)
 public class Widget {
 
   /**
-   * ИД.
+   * Старшие биты ИД.
+   */
+  @Getter(AccessLevel.NONE)
+  long idMostSigBits;
+
+  /**
+   * Младшие биты ИД.
    */
-  private final UUID id;
+  @Getter(AccessLevel.NONE)
+  long idLeastSigBits;
 
   /**
    * Координата X.
    */
-  private int x;
+  @With
+  @ToString.Include
+  int x;
 
   /**
    * Координата Y.
    */
-  private int y;
+  @With
+  @ToString.Include
+  int y;
 
   /**
    * Координата Z.
    */
-  private int z;
+  @With
+  @ToString.Include
+  int z;
 
   /**
    * Ширина.
    */
-  private int width;
+  @With
+  @ToString.Include
+  int width;
 
   /**
    * Высота.
    */
-  private int height;
+  @With
+  @ToString.Include
+  int height;
+
+  /**
+   * Дата последнего изменения - наносекунды от начала эпохи (UTC).
+   */
+  @Getter(AccessLevel.NONE)
+  long modifiedNanos;
+
+  /**
+   * Создание виджета.
+   *
+   * @param id           ИД
+   * @param x            координата X
+   * @param y            координата Y
+   * @param z            координата Z
+   * @param width        ширина
+   * @param height       высота
+   * @param modifiedDate дата последнего изменения
+   */
+  @Builder
+  private Widget(UUID id, int x, int y, int z, int width, int height,
+                 LocalDateTime modifiedDate) {
+    this(id.getMostSignificantBits(), id.getLeastSignificantBits(), x, y, z, width, height,
+        toNanos(modifiedDate));
+  }
+
+  /**
+   * ИД.
+   *
+   * @return ИД
+   */
+  @ToString.Include(rank = 1)
+  public UUID getId() {
+    return new UUID(idMostSigBits, idLeastSigBits);
+  }
+
+  /**
+   * Дата последнего изменения (UTC).
+   *
+   * @return дата
+   */
+  @ToString.Include
+  public LocalDateTime getModifiedDate() {
+    return LocalDateTime.ofEpochSecond(
+        Math.floorDiv(modifiedNanos, TimeUnit.SECONDS.toNanos(1)),
+        (int) Math.floorMod(modifiedNanos, TimeUnit.SECONDS.toNanos(1)),
+        ZoneOffset.UTC);
+  }
+
+  /**
+   * Копия виджета с другой датой последнего изменения.
+   *
+   * @param modifiedDate дата
+   * @return виджет
+   */
+  public Widget withModifiedDate(LocalDateTime modifiedDate) {
+    return new Widget(idMostSigBits, idLeastSigBits, x, y, z, width, height,
+        toNanos(modifiedDate));
+  }
+
+  /**
+   * Старшие биты ИД (для двоичного представления виджета).
+   *
+   * @return старшие биты
+   */
+  public long idMostSigBits() {
+    return idMostSigBits;
+  }
+
+  /**
+   * Младшие биты ИД (для двоичного представления виджета).
+   *
+   * @return младшие биты
+   */
+  public long idLeastSigBits() {
+    return idLeastSigBits;
+  }
+
+  /**
+   * Дата последнего изменения в наносекундах от начала эпохи, UTC
+   * (для двоичного представления виджета).
+   *
+   * @return наносекунды
+   */
+  public long modifiedNanos() {
+    return modifiedNanos;
+  }
 
   /**
-   * Дата последнего изменения.
+   * Версия виджета - отпечаток всех его полей: совпадает у одинаковых виджетов
+   * и меняется при любом изменении, в том числе при сдвиге Z-order другим виджетом.
+   *
+   * @return отпечаток полей
    */
-  private LocalDateTime modifiedDate;
+  public long fingerprint() {
+    long hash = idMostSigBits;
+    hash = hash * 0x9E3779B97F4A7C15L + idLeastSigBits;
+    hash = hash * 0x9E3779B97F4A7C15L + x;
+    hash = hash * 0x9E3779B97F4A7C15L + y;
+    hash = hash * 0x9E3779B97F4A7C15L + z;
+    hash = hash * 0x9E3779B97F4A7C15L + width;
+    hash = hash * 0x9E3779B97F4A7C15L + height;
+    hash = hash * 0x9E3779B97F4A7C15L + modifiedNanos;
+    return hash ^ (hash >>> 32);
+  }
+
+  /**
+   * Виджет из полей двоичного представления - без промежуточных {@link UUID}
+   * и {@link LocalDateTime}.
+   *
+   * @param idMostSigBits  старшие биты ИД
+   * @param idLeastSigBits младшие биты ИД
+   * @param x              координата X
+   * @param y              координата Y
+   * @param z              координата Z
+   * @param width          ширина
+   * @param height         высота
+   * @param modifiedNanos  дата последнего изменения - наносекунды от начала эпохи (UTC)
+   * @return виджет
+   */
+  public static Widget of(long idMostSigBits, long idLeastSigBits, int x, int y, int z,
+                          int width, int height, long modifiedNanos) {
+    return new Widget(idMostSigBits, idLeastSigBits, x, y, z, width, height, modifiedNanos);
+  }
+
+  /**
+   * Проверка пересечения виджета с прямоугольником. Виджет занимает область
+   * {@code [x, x + width) x [y, y + height)}, прямоугольник - аналогично.
+   *
+   * @param areaX      координата X прямоугольника
+   * @param areaY      координата Y прямоугольника
+   * @param areaWidth  ширина прямоугольника
+   * @param areaHeight высота прямоугольника
+   * @return признак пересечения
+   */
+  public boolean intersects(int areaX, int areaY, int areaWidth, int areaHeight) {
+    return x < (long) areaX + areaWidth && areaX < (long) x + width
+        && y < (long) areaY + areaHeight && areaY < (long) y + height;
+  }
 
   /**
    * Создание виджета из описания.
@@ -57,16 +217,23 @@ public class Widget {
    * @return виджет
    */
   public static Widget fromDescription(WidgetDescription desc) {
-    Widget widget = Widget.builder()
+    return Widget.builder()
         .id(UUID.randomUUID())
         .x(desc.getX())
         .y(desc.getY())
+        .z(desc.getZ() != null ? desc.getZ() : 0)
         .height(desc.getHeight())
         .width(desc.getWidth())
-        .modifiedDate(LocalDateTime.now()).build();
-    if (desc.getZ() != null) {
-      widget.setZ(desc.getZ());
-    }
-    return widget;
+        .modifiedDate(LocalDateTime.now(ZoneOffset.UTC)).build();
+  }
+
+  /**
+   * Дата в наносекундах от начала эпохи (UTC).
+   *
+   * @param date дата
+   * @return наносекунды
+   */
+  private static long toNanos(LocalDateTime date) {
+    return TimeUnit.SECONDS.toNanos(date.toEpochSecond(ZoneOffset.UTC)) + date.getNano();
   }
 }
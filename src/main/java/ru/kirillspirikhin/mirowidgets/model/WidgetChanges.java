@@ -0,0 +1,32 @@
+package ru.kirillspirikhin.mirowidgets.model;
+
+import java.util.UUID;
+import lombok.Value;
+
+/**
+ * Изменения доски после версии, известной клиенту.
+ */
+@Value
+public class WidgetChanges {
+
+  /**
+   * Версия доски, до которой доведены изменения; ее клиент передает в следующем запросе.
+   */
+  long version;
+
+  /**
+   * Признак доски целиком: клиент заменяет свою копию доски виджетами {@link #changed}.
+   * Возвращается, если изменения после версии клиента уже не хранятся.
+   */
+  boolean full;
+
+  /**
+   * Добавленные и измененные виджеты (в том числе со сдвинутым Z-order) в порядке Z-order.
+   */
+  Widget[] changed;
+
+  /**
+   * ИД удаленных виджетов.
+   */
+  UUID[] deleted;
+}
@@ -0,0 +1,74 @@
+package ru.kirillspirikhin.mirowidgets.model;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.UUID;
+import lombok.Value;
+import ru.kirillspirikhin.mirowidgets.exceptions.BadQueryException;
+
+/**
+ * Курсор страницы виджетов: последний виджет предыдущей страницы.
+ * Клиенту передается в непрозрачном виде ({@link #encode()}).
+ */
+@Value
+public class WidgetCursor {
+
+  /**
+   * Размер закодированного курсора в байтах: ИД и Z-order.
+   */
+  private static final int BYTES = 2 * Long.BYTES + Integer.BYTES;
+
+  /**
+   * ИД последнего виджета страницы.
+   */
+  UUID id;
+
+  /**
+   * Z-order последнего виджета страницы на момент ее получения.
+   */
+  int z;
+
+  /**
+   * Курсор, указывающий на виджет.
+   *
+   * @param widget последний виджет страницы
+   * @return курсор
+   */
+  public static WidgetCursor of(Widget widget) {
+    return new WidgetCursor(widget.getId(), widget.getZ());
+  }
+
+  /**
+   * Кодирование курсора в строку.
+   *
+   * @return строка курсора
+   */
+  public String encode() {
+    ByteBuffer buffer = ByteBuffer.allocate(BYTES)
+        .putLong(id.getMostSignificantBits())
+        .putLong(id.getLeastSignificantBits())
+        .putInt(z);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+  }
+
+  /**
+   * Разбор строки курсора.
+   *
+   * @param cursor строка курсора
+   * @return курсор
+   * @throws BadQueryException если строка не является курсором
+   */
+  public static WidgetCursor decode(String cursor) throws BadQueryException {
+    byte[] bytes;
+    try {
+      bytes = Base64.getUrlDecoder().decode(cursor);
+    } catch (IllegalArgumentException e) {
+      bytes = null;
+    }
+    if (bytes == null || bytes.length != BYTES) {
+      throw new BadQueryException("Некорректный курсор: " + cursor);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    return new WidgetCursor(new UUID(buffer.getLong(), buffer.getLong()), buffer.getInt());
+  }
+}
@@ -3,12 +3,14 @@ package ru.kirillspirikhin.mirowidgets.model;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.NoArgsConstructor;
 
 /**
  * Описание виджета.
  */
 @Data
 @Builder
+@NoArgsConstructor
 @AllArgsConstructor
 public class WidgetDescription {
   /**
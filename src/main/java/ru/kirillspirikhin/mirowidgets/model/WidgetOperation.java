@@ -0,0 +1,82 @@
+package ru.kirillspirikhin.mirowidgets.model;
+
+import java.util.UUID;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Операция пакетного изменения виджетов.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class WidgetOperation {
+  /**
+   * Тип операции.
+   */
+  private Type type;
+
+  /**
+   * ИД виджета (для изменения и удаления).
+   */
+  private UUID id;
+
+  /**
+   * Описание виджета (для добавления и изменения).
+   */
+  private WidgetDescription description;
+
+  /**
+   * Тип операции.
+   */
+  public enum Type {
+    /**
+     * Добавление виджета.
+     */
+    CREATE,
+
+    /**
+     * Изменение виджета.
+     */
+    EDIT,
+
+    /**
+     * Удаление виджета.
+     */
+    DELETE
+  }
+
+  /**
+   * Операция добавления виджета.
+   *
+   * @param description описание виджета
+   * @return операция
+   */
+  public static WidgetOperation create(WidgetDescription description) {
+    return new WidgetOperation(Type.CREATE, null, description);
+  }
+
+  /**
+   * Операция изменения виджета.
+   *
+   * @param id          ИД виджета
+   * @param description описание виджета
+   * @return операция
+   */
+  public static WidgetOperation edit(UUID id, WidgetDescription description) {
+    return new WidgetOperation(Type.EDIT, id, description);
+  }
+
+  /**
+   * Операция удаления виджета.
+   *
+   * @param id ИД виджета
+   * @return операция
+   */
+  public static WidgetOperation delete(UUID id) {
+    return new WidgetOperation(Type.DELETE, id, null);
+  }
+}
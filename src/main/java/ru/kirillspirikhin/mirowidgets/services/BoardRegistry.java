@@ -0,0 +1,210 @@
+package ru.kirillspirikhin.mirowidgets.services;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ru.kirillspirikhin.mirowidgets.config.ChangeLogProperties;
+import ru.kirillspirikhin.mirowidgets.config.WriterProperties;
+import ru.kirillspirikhin.mirowidgets.services.journal.WidgetJournal;
+
+/**
+ * Реестр досок. У каждой доски собственный экземпляр хранилища виджетов
+ * (бин {@link WidgetService} с областью видимости prototype) со своей блокировкой,
+ * поэтому изменения разных досок не конкурируют друг с другом.
+ * Хранилища досок оборачиваются {@link VersionedWidgetService} для версии доски
+ * и {@link MeteredWidgetService} для замера времени операций, а если включен один писатель
+ * на доску (widgets.writer.enabled) - еще и {@link SingleWriterWidgetService}.
+ * Если включен журнал ({@link WidgetJournal}), доски восстанавливаются из него при запуске,
+ * а их изменения пишутся в журнал.
+ */
+@Service
+@RequiredArgsConstructor(onConstructor_ = @Autowired)
+public class BoardRegistry {
+
+  /**
+   * ИД доски по умолчанию - с ней работают запросы без указания доски.
+   */
+  public static final String DEFAULT_BOARD = "default";
+
+  /**
+   * Фабрика хранилищ виджетов.
+   */
+  private final ObjectProvider<WidgetService> widgetServices;
+
+  /**
+   * Реестр метрик.
+   */
+  private final MeterRegistry meterRegistry;
+
+  /**
+   * Настройки журнала последних изменений досок в памяти.
+   */
+  private final ChangeLogProperties changeLogProperties;
+
+  /**
+   * Настройки применения изменений досок одним писателем.
+   */
+  private final WriterProperties writerProperties;
+
+  /**
+   * Журнал изменений досок (если включен).
+   */
+  private final ObjectProvider<WidgetJournal> journals;
+
+  /**
+   * Журнал изменений досок; {@code null}, если журнал выключен.
+   */
+  private WidgetJournal journal;
+
+  /**
+   * Потоки писателей досок; {@code null}, если изменения применяет вызывающий поток.
+   */
+  private ExecutorService writers;
+
+  /**
+   * Размеры пакетов изменений, применяемых писателями.
+   */
+  private DistributionSummary writerBatchSizes;
+
+  /**
+   * Хранилища виджетов по ИД доски.
+   */
+  private final ConcurrentMap<String, WidgetService> boards = new ConcurrentHashMap<>();
+
+  /**
+   * Восстановление досок из журнала и регистрация метрик.
+   *
+   * @throws IOException ошибка чтения журнала
+   */
+  @PostConstruct
+  void init() throws IOException {
+    if (writerProperties.isEnabled()) {
+      AtomicInteger number = new AtomicInteger();
+      writers = Executors.newFixedThreadPool(writerProperties.getThreads(), task -> {
+        Thread thread = new Thread(task, "widgets-writer-" + number.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+      writerBatchSizes = DistributionSummary.builder("widgets.writer.batch.size")
+          .description("Количество изменений в пакете, применяемом писателем доски")
+          .register(meterRegistry);
+    }
+    journal = journals.getIfAvailable();
+    if (journal != null) {
+      journal.recover(widgetServices::getObject).forEach((boardId, board) ->
+          boards.put(boardId, wrap(board)));
+    }
+    registerMetrics();
+  }
+
+  /**
+   * Регистрация метрик досок: количество досок и виджетов на всех досках.
+   * Размер отдельной доски не публикуется - ИД досок задают клиенты,
+   * и метрика с тегом доски росла бы без ограничений.
+   */
+  private void registerMetrics() {
+    meterRegistry.gaugeMapSize("widgets.boards", Tags.empty(), boards);
+    Gauge.builder("widgets.count", boards,
+        map -> map.values().stream().mapToInt(WidgetService::getWidgetCount).sum())
+        .description("Количество виджетов на всех досках")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Получить хранилище виджетов доски; доска создается при первом обращении.
+   * Только для изменений: чтение несуществующей доски ({@link #findBoard}) ее не создает,
+   * иначе любой клиент мог бы без ограничений наполнять реестр и снимок досок.
+   *
+   * @param boardId ИД доски ({@code null} - доска по умолчанию)
+   * @return хранилище виджетов доски
+   */
+  public WidgetService getBoard(String boardId) {
+    final String id = boardId != null ? boardId : DEFAULT_BOARD;
+    /* быстрый путь без блокировки корзины - computeIfAbsent в Java 8 блокирует всегда */
+    WidgetService board = boards.get(id);
+    return board != null ? board : boards.computeIfAbsent(id, key -> {
+      WidgetService storage = widgetServices.getObject();
+      return wrap(journal != null ? journal.journaled(key, storage) : storage);
+    });
+  }
+
+  /**
+   * Найти хранилище виджетов существующей доски, не создавая ее.
+   *
+   * @param boardId ИД доски ({@code null} - доска по умолчанию)
+   * @return хранилище виджетов доски или {@code null}, если доски нет
+   */
+  public WidgetService findBoard(String boardId) {
+    return boards.get(boardId != null ? boardId : DEFAULT_BOARD);
+  }
+
+  /**
+   * Хранилище доски с версией, писателем (если включен) и замером времени операций.
+   *
+   * @param storage хранилище виджетов доски
+   * @return хранилище для работы с доской
+   */
+  private WidgetService wrap(WidgetService storage) {
+    WidgetService board = new VersionedWidgetService(storage, changeLogProperties.getCapacity());
+    if (writers != null) {
+      /* писатель выше блокировки версии: ее захватывает только он */
+      board = new SingleWriterWidgetService(board, writers, writerProperties.getQueueCapacity(),
+          writerProperties.getBatchSize(), writerBatchSizes);
+    }
+    return new MeteredWidgetService(board, meterRegistry);
+  }
+
+  /**
+   * Остановка писателей досок.
+   */
+  @PreDestroy
+  void shutdown() {
+    if (writers != null) {
+      writers.shutdown();
+    }
+  }
+
+  /**
+   * Удалить доску со всеми виджетами.
+   *
+   * @param boardId ИД доски
+   * @return признак того, что доска существовала
+   */
+  public boolean deleteBoard(String boardId) {
+    if (journal == null) {
+      return boards.remove(boardId) != null;
+    }
+    /* удаление пишется в журнал атомарно с удалением из реестра, чтобы не разойтись
+    с одновременным созданием доски с тем же ИД */
+    boolean[] deleted = new boolean[1];
+    boards.computeIfPresent(boardId, (id, board) -> {
+      journal.dropBoard(id);
+      deleted[0] = true;
+      return null;
+    });
+    return deleted[0];
+  }
+
+  /**
+   * Получить ИД существующих досок.
+   *
+   * @return ИД досок
+   */
+  public Set<String> getBoardIds() {
+    return boards.keySet();
+  }
+}
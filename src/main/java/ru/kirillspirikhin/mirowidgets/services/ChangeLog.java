@@ -0,0 +1,206 @@
+package ru.kirillspirikhin.mirowidgets.services;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Кольцевой буфер последних изменений доски: какие виджеты добавлены или изменены,
+ * какие удалены, и с какого Z-order виджеты могли быть сдвинуты.
+ * Не потокобезопасен - вызывается под блокировкой изменений доски.
+ */
+class ChangeLog {
+
+  /**
+   * Добавление или изменение виджета.
+   */
+  private static final byte UPSERT = 0;
+
+  /**
+   * Удаление виджета.
+   */
+  private static final byte DELETE = 1;
+
+  /**
+   * Сдвиг Z-order виджетов не ниже заданного.
+   */
+  private static final byte SHIFT = 2;
+
+  /**
+   * Версии изменений.
+   */
+  private final long[] versions;
+
+  /**
+   * Виды изменений.
+   */
+  private final byte[] kinds;
+
+  /**
+   * Старшие биты ИД виджета.
+   */
+  private final long[] idMostSigBits;
+
+  /**
+   * Младшие биты ИД виджета.
+   */
+  private final long[] idLeastSigBits;
+
+  /**
+   * Нижняя граница Z-order сдвинутых виджетов.
+   */
+  private final int[] floors;
+
+  /**
+   * Позиция следующей записи.
+   */
+  private int next;
+
+  /**
+   * Количество записей.
+   */
+  private int count;
+
+  /**
+   * Версия, начиная с которой (не включая ее) хранятся все изменения.
+   */
+  private long horizon;
+
+  /**
+   * Создание пустого журнала.
+   *
+   * @param capacity количество хранимых записей
+   * @param version  текущая версия доски
+   */
+  ChangeLog(int capacity, long version) {
+    versions = new long[capacity];
+    kinds = new byte[capacity];
+    idMostSigBits = new long[capacity];
+    idLeastSigBits = new long[capacity];
+    floors = new int[capacity];
+    horizon = version;
+  }
+
+  /**
+   * Запись добавления или изменения виджета.
+   *
+   * @param version версия изменения
+   * @param id      ИД виджета
+   */
+  void upsert(long version, UUID id) {
+    append(version, UPSERT, id, 0);
+  }
+
+  /**
+   * Запись удаления виджета.
+   *
+   * @param version версия изменения
+   * @param id      ИД виджета
+   */
+  void delete(long version, UUID id) {
+    append(version, DELETE, id, 0);
+  }
+
+  /**
+   * Запись сдвига Z-order: изменился Z-order виджетов, у которых он не ниже заданного.
+   *
+   * @param version версия изменения
+   * @param floor   нижняя граница Z-order сдвинутых виджетов
+   */
+  void shift(long version, int floor) {
+    append(version, SHIFT, null, floor);
+  }
+
+  /**
+   * Сброс журнала: изменения до версии больше не восстанавливаются.
+   *
+   * @param version версия изменения
+   */
+  void reset(long version) {
+    count = 0;
+    horizon = version;
+  }
+
+  /**
+   * Изменения после версии.
+   *
+   * @param since   версия, известная клиенту
+   * @param current текущая версия доски
+   * @return изменения или {@code null}, если изменения после версии не хранятся
+   */
+  Delta since(long since, long current) {
+    if (since < horizon || since > current) {
+      return null;
+    }
+    Delta delta = new Delta();
+    for (int i = 0; i < count; i++) {
+      int at = Math.floorMod(next - count + i, versions.length);
+      if (versions[at] <= since) {
+        continue;
+      }
+      if (kinds[at] == SHIFT) {
+        delta.floor = Math.min(delta.floor, floors[at]);
+        continue;
+      }
+      UUID id = new UUID(idMostSigBits[at], idLeastSigBits[at]);
+      if (kinds[at] == UPSERT) {
+        delta.deleted.remove(id);
+        delta.upserted.add(id);
+      } else {
+        delta.upserted.remove(id);
+        delta.deleted.add(id);
+      }
+    }
+    return delta;
+  }
+
+  /**
+   * Добавление записи с вытеснением самой старой.
+   *
+   * @param version версия изменения
+   * @param kind    вид изменения
+   * @param id      ИД виджета
+   * @param floor   нижняя граница Z-order сдвинутых виджетов
+   */
+  private void append(long version, byte kind, UUID id, int floor) {
+    if (versions.length == 0) {
+      horizon = version;
+      return;
+    }
+    if (count == versions.length) {
+      /* вытесняемое изменение больше не восстанавливается */
+      horizon = Math.max(horizon, versions[next]);
+    } else {
+      count++;
+    }
+    versions[next] = version;
+    kinds[next] = kind;
+    if (id != null) {
+      idMostSigBits[next] = id.getMostSignificantBits();
+      idLeastSigBits[next] = id.getLeastSignificantBits();
+    }
+    floors[next] = floor;
+    next = (next + 1) % versions.length;
+  }
+
+  /**
+   * Изменения после версии.
+   */
+  static class Delta {
+
+    /**
+     * ИД добавленных и измененных виджетов.
+     */
+    final Set<UUID> upserted = new LinkedHashSet<>();
+
+    /**
+     * ИД удаленных виджетов.
+     */
+    final Set<UUID> deleted = new LinkedHashSet<>();
+
+    /**
+     * Нижняя граница Z-order сдвинутых виджетов ({@link Integer#MAX_VALUE} - сдвигов не было).
+     */
+    int floor = Integer.MAX_VALUE;
+  }
+}
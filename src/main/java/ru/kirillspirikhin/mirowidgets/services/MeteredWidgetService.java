@@ -0,0 +1,299 @@
+package ru.kirillspirikhin.mirowidgets.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetVersionMismatchException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetChanges;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+
+/**
+ * Хранилище виджетов с замером времени операций.
+ *
+ * <p>Время каждой операции пишется в таймер {@code widgets.operations} с тегом
+ * {@code operation}; таймеры общие для всех досок. Операции, в том числе методы
+ * интерфейса с реализацией по умолчанию, передаются хранилищу без изменений.
+ */
+public class MeteredWidgetService implements WidgetService {
+
+  /**
+   * Хранилище виджетов.
+   */
+  private final WidgetService delegate;
+
+  /**
+   * Таймер добавления виджета.
+   */
+  private final Timer createTimer;
+
+  /**
+   * Таймер получения виджета по ИД.
+   */
+  private final Timer getTimer;
+
+  /**
+   * Таймер изменения виджета.
+   */
+  private final Timer editTimer;
+
+  /**
+   * Таймер удаления виджета.
+   */
+  private final Timer deleteTimer;
+
+  /**
+   * Таймер получения всех виджетов.
+   */
+  private final Timer getAllTimer;
+
+  /**
+   * Таймер получения снимка доски.
+   */
+  private final Timer snapshotTimer;
+
+  /**
+   * Таймер получения страницы виджетов.
+   */
+  private final Timer pageTimer;
+
+  /**
+   * Таймер поиска виджетов в области.
+   */
+  private final Timer areaTimer;
+
+  /**
+   * Таймер поиска виджетов в точке.
+   */
+  private final Timer atTimer;
+
+  /**
+   * Таймер пакета операций.
+   */
+  private final Timer batchTimer;
+
+  /**
+   * Таймер получения изменений доски.
+   */
+  private final Timer changesTimer;
+
+  /**
+   * Создание хранилища с замером времени операций.
+   *
+   * @param delegate      хранилище виджетов
+   * @param meterRegistry реестр метрик
+   */
+  public MeteredWidgetService(WidgetService delegate, MeterRegistry meterRegistry) {
+    this.delegate = delegate;
+    this.createTimer = timer(meterRegistry, "create");
+    this.getTimer = timer(meterRegistry, "get");
+    this.editTimer = timer(meterRegistry, "edit");
+    this.deleteTimer = timer(meterRegistry, "delete");
+    this.getAllTimer = timer(meterRegistry, "getAll");
+    this.snapshotTimer = timer(meterRegistry, "snapshot");
+    this.pageTimer = timer(meterRegistry, "page");
+    this.areaTimer = timer(meterRegistry, "area");
+    this.atTimer = timer(meterRegistry, "at");
+    this.batchTimer = timer(meterRegistry, "batch");
+    this.changesTimer = timer(meterRegistry, "changes");
+  }
+
+  /**
+   * Таймер операции.
+   *
+   * @param meterRegistry реестр метрик
+   * @param operation     операция
+   * @return таймер
+   */
+  private static Timer timer(MeterRegistry meterRegistry, String operation) {
+    return Timer.builder("widgets.operations")
+        .description("Время операций с виджетами")
+        .tag("operation", operation)
+        .publishPercentileHistogram()
+        .register(meterRegistry);
+  }
+
+  /**
+   * Запись времени операции.
+   *
+   * @param timer таймер
+   * @param start время начала ({@link System#nanoTime()})
+   */
+  private static void record(Timer timer, long start) {
+    timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public Widget addWidget(WidgetDescription widgetDescription) {
+    final long start = System.nanoTime();
+    try {
+      return delegate.addWidget(widgetDescription);
+    } finally {
+      record(createTimer, start);
+    }
+  }
+
+  @Override
+  public Widget getById(UUID id) throws WidgetNotFoundException {
+    final long start = System.nanoTime();
+    try {
+      return delegate.getById(id);
+    } finally {
+      record(getTimer, start);
+    }
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description)
+      throws WidgetNotFoundException {
+    final long start = System.nanoTime();
+    try {
+      return delegate.editWidget(id, description);
+    } finally {
+      record(editTimer, start);
+    }
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description, long expectedVersion)
+      throws WidgetNotFoundException, WidgetVersionMismatchException {
+    final long start = System.nanoTime();
+    try {
+      return delegate.editWidget(id, description, expectedVersion);
+    } finally {
+      record(editTimer, start);
+    }
+  }
+
+  @Override
+  public boolean deleteWidget(UUID id) {
+    final long start = System.nanoTime();
+    try {
+      return delegate.deleteWidget(id);
+    } finally {
+      record(deleteTimer, start);
+    }
+  }
+
+  @Override
+  public Widget[] applyBatch(List<WidgetOperation> operations)
+      throws WidgetNotFoundException {
+    final long start = System.nanoTime();
+    try {
+      return delegate.applyBatch(operations);
+    } finally {
+      record(batchTimer, start);
+    }
+  }
+
+  @Override
+  public void putWidget(Widget widget) {
+    delegate.putWidget(widget);
+  }
+
+  @Override
+  public Widget[] getAllWidgets() {
+    final long start = System.nanoTime();
+    try {
+      return delegate.getAllWidgets();
+    } finally {
+      record(getAllTimer, start);
+    }
+  }
+
+  @Override
+  public int getWidgetCount() {
+    return delegate.getWidgetCount();
+  }
+
+  @Override
+  public WidgetSnapshot getSnapshot() {
+    final long start = System.nanoTime();
+    try {
+      return delegate.getSnapshot();
+    } finally {
+      record(snapshotTimer, start);
+    }
+  }
+
+  @Override
+  public Widget[] getWidgetsPage(UUID afterId, int fromZ, int toZ, int limit)
+      throws WidgetNotFoundException {
+    final long start = System.nanoTime();
+    try {
+      return delegate.getWidgetsPage(afterId, fromZ, toZ, limit);
+    } finally {
+      record(pageTimer, start);
+    }
+  }
+
+  @Override
+  public Widget[] getWidgetsInArea(int x, int y, int width, int height) {
+    final long start = System.nanoTime();
+    try {
+      return delegate.getWidgetsInArea(x, y, width, height);
+    } finally {
+      record(areaTimer, start);
+    }
+  }
+
+  @Override
+  public Optional<Widget> getTopWidgetAt(int x, int y) {
+    final long start = System.nanoTime();
+    try {
+      return delegate.getTopWidgetAt(x, y);
+    } finally {
+      record(atTimer, start);
+    }
+  }
+
+  @Override
+  public Widget[] getWidgetsAt(int x, int y) {
+    final long start = System.nanoTime();
+    try {
+      return delegate.getWidgetsAt(x, y);
+    } finally {
+      record(atTimer, start);
+    }
+  }
+
+  @Override
+  public Widget getByRank(int rank) {
+    return delegate.getByRank(rank);
+  }
+
+  @Override
+  public int getRank(UUID id) throws WidgetNotFoundException {
+    return delegate.getRank(id);
+  }
+
+  @Override
+  public void deleteAllWidgets() {
+    delegate.deleteAllWidgets();
+  }
+
+  @Override
+  public long getVersion() {
+    return delegate.getVersion();
+  }
+
+  @Override
+  public WidgetChanges getChanges(long since) {
+    final long start = System.nanoTime();
+    try {
+      return delegate.getChanges(since);
+    } finally {
+      record(changesTimer, start);
+    }
+  }
+
+  @Override
+  public boolean isDenseZOrder() {
+    return delegate.isDenseZOrder();
+  }
+}
@@ -0,0 +1,369 @@
+package ru.kirillspirikhin.mirowidgets.services;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetVersionMismatchException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetChanges;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+
+/**
+ * Хранилище виджетов, изменения которого применяет один писатель.
+ *
+ * <p>Добавление, изменение и удаление виджетов и пакеты операций ставятся в ограниченную
+ * очередь доски, вызывающий получает {@link CompletableFuture} с результатом
+ * ({@link #submit(WidgetOperation)}, {@link #submit(List)}); синхронные методы
+ * {@link WidgetService} ждут его. Писатель забирает из очереди все накопившиеся изменения
+ * (не больше размера пакета) и применяет их одним {@link WidgetService#applyBatch}:
+ * одна блокировка доски на пакет вместо передачи блокировки между потоками на каждое
+ * изменение, а сдвиги Z-order изменений пакета хранилище объединяет в один проход.
+ * Если пакет не применился (например, виджет удален раньше в том же пакете), изменения
+ * применяются по отдельности, и ошибка достается только своему вызову. Другая ошибка
+ * (например, журнала) могла прервать уже частично примененный пакет, поэтому она
+ * достается всем изменениям пакета без повтора.
+ *
+ * <p>Писатели - общий пул потоков: доска занимает поток, только пока в ее очереди
+ * есть изменения, и не больше одного потока одновременно, поэтому изменения доски
+ * применяются в порядке постановки в очередь. Чтение передается хранилищу без очереди.
+ */
+public class SingleWriterWidgetService implements WidgetService {
+
+  /**
+   * Хранилище виджетов.
+   */
+  private final WidgetService delegate;
+
+  /**
+   * Очередь изменений доски.
+   */
+  private final BlockingQueue<Mutation> queue;
+
+  /**
+   * Потоки писателей.
+   */
+  private final Executor writers;
+
+  /**
+   * Максимальное количество изменений в пакете.
+   */
+  private final int batchSize;
+
+  /**
+   * Размеры применяемых пакетов.
+   */
+  private final DistributionSummary batchSizes;
+
+  /**
+   * Признак того, что писатель доски запущен.
+   */
+  private final AtomicBoolean writing = new AtomicBoolean();
+
+  /**
+   * Создание хранилища с одним писателем.
+   *
+   * @param delegate      хранилище виджетов
+   * @param writers       потоки писателей
+   * @param queueCapacity размер очереди изменений
+   * @param batchSize     максимальное количество изменений в пакете
+   * @param batchSizes    размеры применяемых пакетов
+   */
+  public SingleWriterWidgetService(WidgetService delegate, Executor writers, int queueCapacity,
+                                   int batchSize, DistributionSummary batchSizes) {
+    this.delegate = delegate;
+    this.writers = writers;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.batchSize = batchSize;
+    this.batchSizes = batchSizes;
+  }
+
+  /**
+   * Поставить операцию в очередь.
+   *
+   * @param operation операция
+   * @return виджет сразу после выполнения операции (для удаления - удаленный виджет);
+   *     завершается с {@link WidgetNotFoundException}, если виджет не найден
+   */
+  public CompletableFuture<Widget> submit(WidgetOperation operation) {
+    return submit(Collections.singletonList(operation)).thenApply(results -> results[0]);
+  }
+
+  /**
+   * Поставить пакет операций в очередь. Пакет применяется атомарно,
+   * как {@link WidgetService#applyBatch}.
+   *
+   * @param operations операции
+   * @return для каждой операции - виджет сразу после ее выполнения
+   *     (для удаления - удаленный виджет); завершается с {@link WidgetNotFoundException},
+   *     если изменяемый или удаляемый виджет не найден
+   */
+  public CompletableFuture<Widget[]> submit(List<WidgetOperation> operations) {
+    Mutation mutation = new Mutation(operations);
+    try {
+      queue.put(mutation);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      mutation.result.completeExceptionally(e);
+      return mutation.result;
+    }
+    startWriter();
+    return mutation.result;
+  }
+
+  /**
+   * Запуск писателя доски, если он еще не запущен.
+   */
+  private void startWriter() {
+    if (writing.compareAndSet(false, true)) {
+      writers.execute(this::write);
+    }
+  }
+
+  /**
+   * Писатель: применение одного пакета изменений из очереди. Следующий пакет
+   * применяется новой задачей, чтобы доска с непрерывным потоком изменений
+   * не занимала поток пула, пока ждут другие доски.
+   */
+  private void write() {
+    List<Mutation> batch = new ArrayList<>();
+    queue.drainTo(batch, batchSize);
+    try {
+      apply(batch);
+    } finally {
+      writing.set(false);
+      /* изменение могло встать в очередь после выборки, но до сброса признака */
+      if (!queue.isEmpty()) {
+        startWriter();
+      }
+    }
+  }
+
+  /**
+   * Применение пакета изменений.
+   *
+   * @param batch изменения
+   */
+  private void apply(List<Mutation> batch) {
+    if (batch.isEmpty()) {
+      return;
+    }
+    batchSizes.record(batch.size());
+    if (batch.size() == 1) {
+      applySeparately(batch.get(0));
+      return;
+    }
+    List<WidgetOperation> operations = new ArrayList<>();
+    for (Mutation mutation : batch) {
+      operations.addAll(mutation.operations);
+    }
+    Widget[] results;
+    try {
+      results = delegate.applyBatch(operations);
+    } catch (WidgetNotFoundException e) {
+      /* пакет не применен целиком - ошибку вызвало одно из изменений */
+      batch.forEach(this::applySeparately);
+      return;
+    } catch (RuntimeException e) {
+      /* часть пакета могла быть применена: повтор по одному задвоил бы добавления */
+      batch.forEach(mutation -> mutation.result.completeExceptionally(e));
+      return;
+    }
+    int from = 0;
+    for (Mutation mutation : batch) {
+      int to = from + mutation.operations.size();
+      mutation.result.complete(Arrays.copyOfRange(results, from, to));
+      from = to;
+    }
+  }
+
+  /**
+   * Применение одного изменения.
+   *
+   * @param mutation изменение
+   */
+  private void applySeparately(Mutation mutation) {
+    try {
+      mutation.result.complete(delegate.applyBatch(mutation.operations));
+    } catch (WidgetNotFoundException | RuntimeException e) {
+      mutation.result.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Ожидание результата изменения.
+   *
+   * @param result результат
+   * @param <T>    тип результата
+   * @return результат
+   * @throws WidgetNotFoundException если виджет не найден
+   */
+  private static <T> T await(CompletableFuture<T> result) throws WidgetNotFoundException {
+    try {
+      return result.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof WidgetNotFoundException) {
+        throw (WidgetNotFoundException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public Widget addWidget(WidgetDescription widgetDescription) {
+    try {
+      return await(submit(WidgetOperation.create(widgetDescription)));
+    } catch (WidgetNotFoundException e) {
+      /* не ожидается: добавление не ищет виджетов */
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public Widget getById(UUID id) throws WidgetNotFoundException {
+    return delegate.getById(id);
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description)
+      throws WidgetNotFoundException {
+    return await(submit(WidgetOperation.edit(id, description)));
+  }
+
+  /**
+   * Изменение с проверкой версии передается хранилищу без очереди: проверка
+   * и изменение атомарны в хранилище.
+   */
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description, long expectedVersion)
+      throws WidgetNotFoundException, WidgetVersionMismatchException {
+    return delegate.editWidget(id, description, expectedVersion);
+  }
+
+  @Override
+  public boolean deleteWidget(UUID id) {
+    try {
+      await(submit(WidgetOperation.delete(id)));
+      return true;
+    } catch (WidgetNotFoundException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public Widget[] applyBatch(List<WidgetOperation> operations)
+      throws WidgetNotFoundException {
+    return await(submit(operations));
+  }
+
+  @Override
+  public void putWidget(Widget widget) {
+    delegate.putWidget(widget);
+  }
+
+  @Override
+  public Widget[] getAllWidgets() {
+    return delegate.getAllWidgets();
+  }
+
+  @Override
+  public int getWidgetCount() {
+    return delegate.getWidgetCount();
+  }
+
+  @Override
+  public WidgetSnapshot getSnapshot() {
+    return delegate.getSnapshot();
+  }
+
+  @Override
+  public Widget[] getWidgetsPage(UUID afterId, int fromZ, int toZ, int limit)
+      throws WidgetNotFoundException {
+    return delegate.getWidgetsPage(afterId, fromZ, toZ, limit);
+  }
+
+  @Override
+  public Widget[] getWidgetsInArea(int x, int y, int width, int height) {
+    return delegate.getWidgetsInArea(x, y, width, height);
+  }
+
+  @Override
+  public Optional<Widget> getTopWidgetAt(int x, int y) {
+    return delegate.getTopWidgetAt(x, y);
+  }
+
+  @Override
+  public Widget[] getWidgetsAt(int x, int y) {
+    return delegate.getWidgetsAt(x, y);
+  }
+
+  @Override
+  public Widget getByRank(int rank) {
+    return delegate.getByRank(rank);
+  }
+
+  @Override
+  public int getRank(UUID id) throws WidgetNotFoundException {
+    return delegate.getRank(id);
+  }
+
+  @Override
+  public void deleteAllWidgets() {
+    delegate.deleteAllWidgets();
+  }
+
+  @Override
+  public long getVersion() {
+    return delegate.getVersion();
+  }
+
+  @Override
+  public WidgetChanges getChanges(long since) {
+    return delegate.getChanges(since);
+  }
+
+  @Override
+  public boolean isDenseZOrder() {
+    return delegate.isDenseZOrder();
+  }
+
+  /**
+   * Изменение в очереди: операции и их результат.
+   */
+  private static final class Mutation {
+
+    /**
+     * Операции, применяемые атомарно.
+     */
+    final List<WidgetOperation> operations;
+
+    /**
+     * Результат операций.
+     */
+    final CompletableFuture<Widget[]> result = new CompletableFuture<>();
+
+    /**
+     * Создание изменения.
+     *
+     * @param operations операции
+     */
+    Mutation(List<WidgetOperation> operations) {
+      this.operations = operations;
+    }
+  }
+}
@@ -0,0 +1,442 @@
+package ru.kirillspirikhin.mirowidgets.services;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetVersionMismatchException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetChanges;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+
+/**
+ * Хранилище виджетов с версией доски и журналом ее последних изменений в памяти.
+ *
+ * <p>Версия увеличивается после каждого успешного изменения доски, поэтому версия,
+ * прочитанная до получения данных, не новее этих данных: с ней можно отдать данные
+ * как ETag и не отдать клиенту устаревшую доску под актуальной версией.
+ * Версии всех досок берутся из одного счетчика, начинающегося с текущего времени,
+ * поэтому доска, удаленная и созданная заново, или доска после перезапуска приложения
+ * не повторяет прежних версий.
+ *
+ * <p>Изменения доски выполняются под блокировкой доски вместе с записью в {@link ChangeLog}:
+ * какие виджеты добавлены, изменены и удалены, и с какого Z-order виджеты могли сдвинуться.
+ * Сдвинутые виджеты не перечисляются - сдвиг может затронуть всю доску, - а находятся
+ * при запросе изменений: сдвиг только увеличивает Z-order (а в хранилище с плотным
+ * Z-order уменьшает не ниже места удаления), поэтому все сдвинутые после версии клиента
+ * виджеты лежат не ниже наименьшей границы сдвигов.
+ *
+ * <p>Изменения без Z-order (перетаскивание) блокировку доски не ждут: версия доски
+ * увеличивается атомарно, а ИД виджета ставится в очередь и записывается в журнал
+ * изменений под блокировкой - сразу, если она свободна, иначе следующим изменением
+ * под блокировкой или запросом изменений. Запись из очереди получает новую версию,
+ * большую любой уже выданной, поэтому клиент, получивший версию до записи,
+ * получит и это изменение.
+ */
+public class VersionedWidgetService implements WidgetService {
+
+  /**
+   * Счетчик версий всех досок (микросекунды от начала эпохи на момент запуска).
+   */
+  private static final AtomicLong VERSIONS = new AtomicLong(System.currentTimeMillis() * 1000);
+
+  /**
+   * Хранилище виджетов.
+   */
+  private final WidgetService delegate;
+
+  /**
+   * Блокировка изменений доски вместе с записью в журнал изменений.
+   * Изменения без Z-order выполняются без нее и ее не ждут.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * ИД виджетов, измененных без блокировки и еще не записанных в журнал изменений.
+   */
+  private final Queue<UUID> edited = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Последние изменения доски.
+   */
+  private final ChangeLog changes;
+
+  /**
+   * Версия доски; изменения без блокировки тоже ее увеличивают, поэтому она только
+   * растет ({@link #publish}), а не присваивается.
+   */
+  private final AtomicLong version = new AtomicLong(VERSIONS.incrementAndGet());
+
+  /**
+   * Создание хранилища с версией доски.
+   *
+   * @param delegate хранилище виджетов
+   * @param capacity количество хранимых последних изменений
+   */
+  public VersionedWidgetService(WidgetService delegate, int capacity) {
+    this.delegate = delegate;
+    this.changes = new ChangeLog(capacity, version.get());
+  }
+
+  @Override
+  public Widget addWidget(WidgetDescription widgetDescription) {
+    lock.lock();
+    try {
+      logEdited();
+      Widget widget = delegate.addWidget(widgetDescription);
+      final long next = VERSIONS.incrementAndGet();
+      if (widgetDescription.getZ() != null) {
+        changes.shift(next, widget.getZ());
+      }
+      changes.upsert(next, widget.getId());
+      publish(next);
+      return widget;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Widget getById(UUID id) throws WidgetNotFoundException {
+    return delegate.getById(id);
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description)
+      throws WidgetNotFoundException {
+    try {
+      return edit(id, description, null);
+    } catch (WidgetVersionMismatchException e) {
+      /* не ожидается: версия не проверяется */
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description, long expectedVersion)
+      throws WidgetNotFoundException, WidgetVersionMismatchException {
+    return edit(id, description, expectedVersion);
+  }
+
+  /**
+   * Изменение виджета. Изменение без Z-order никого не сдвигает, поэтому хранилище
+   * выполняет его без блокировки доски (если умеет), а в журнал изменений оно
+   * записывается без ожидания блокировки ({@link #logEdit}).
+   *
+   * @param id              ИД виджета
+   * @param description     описание виджета
+   * @param expectedVersion ожидаемая версия виджета ({@code null} - без проверки)
+   * @return измененный виджет
+   * @throws WidgetNotFoundException        если виджет не найден
+   * @throws WidgetVersionMismatchException если версия виджета не совпадает с ожидаемой
+   */
+  private Widget edit(UUID id, WidgetDescription description, Long expectedVersion)
+      throws WidgetNotFoundException, WidgetVersionMismatchException {
+    if (description.getZ() == null) {
+      return logEdit(id, expectedVersion == null ? delegate.editWidget(id, description)
+          : delegate.editWidget(id, description, expectedVersion));
+    }
+    lock.lock();
+    try {
+      logEdited();
+      final int before = delegate.getById(id).getZ();
+      Widget widget = expectedVersion == null ? delegate.editWidget(id, description)
+          : delegate.editWidget(id, description, expectedVersion);
+      final long next = VERSIONS.incrementAndGet();
+      if (description.getZ() != before) {
+        changes.shift(next, moveFloor(before, description.getZ(), widget.getZ()));
+      }
+      changes.upsert(next, id);
+      publish(next);
+      return widget;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Учет изменения виджета, измененного без блокировки доски: ИД - в очередь записи
+   * в журнал изменений, затем новая версия доски (позже изменения данных - данные
+   * не старше версии, прочитанной до них). Очередь записывается в журнал, только если
+   * блокировка свободна: изменение ее не ждет.
+   *
+   * @param id     ИД виджета
+   * @param widget измененный виджет
+   * @return измененный виджет
+   */
+  private Widget logEdit(UUID id, Widget widget) {
+    edited.add(id);
+    publish(VERSIONS.incrementAndGet());
+    if (lock.tryLock()) {
+      try {
+        logEdited();
+      } finally {
+        lock.unlock();
+      }
+    }
+    return widget;
+  }
+
+  /**
+   * Запись в журнал изменений виджетов из очереди изменений без блокировки
+   * (под блокировкой доски) с новой версией доски.
+   */
+  private void logEdited() {
+    if (edited.isEmpty()) {
+      return;
+    }
+    final long next = VERSIONS.incrementAndGet();
+    for (UUID id = edited.poll(); id != null; id = edited.poll()) {
+      try {
+        delegate.getById(id);
+      } catch (WidgetNotFoundException e) {
+        /* виджет удален параллельно - изменение было до удаления, и клиенты
+        получат удаление */
+        continue;
+      }
+      changes.upsert(next, id);
+    }
+    publish(next);
+  }
+
+  /**
+   * Публикация версии доски: версия только растет, даже если изменения без блокировки
+   * публикуют свои версии не в порядке их получения.
+   *
+   * @param next новая версия
+   */
+  private void publish(long next) {
+    version.accumulateAndGet(next, Math::max);
+  }
+
+  @Override
+  public boolean deleteWidget(UUID id) {
+    lock.lock();
+    try {
+      logEdited();
+      Widget widget = null;
+      if (delegate.isDenseZOrder()) {
+        try {
+          widget = delegate.getById(id);
+        } catch (WidgetNotFoundException e) {
+          return false;
+        }
+      }
+      if (!delegate.deleteWidget(id)) {
+        return false;
+      }
+      final long next = VERSIONS.incrementAndGet();
+      if (widget != null) {
+        changes.shift(next, widget.getZ());
+      }
+      changes.delete(next, id);
+      publish(next);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Widget[] applyBatch(List<WidgetOperation> operations)
+      throws WidgetNotFoundException {
+    lock.lock();
+    try {
+      logEdited();
+      /* одна граница сдвигов на весь пакет: Z-order виджетов до пакета, указанные
+      и полученные Z-order - сдвиги внутри пакета не опускаются ниже наименьшего из них */
+      int floor = Integer.MAX_VALUE;
+      for (WidgetOperation operation : operations) {
+        boolean moves = operation.getType() == WidgetOperation.Type.EDIT
+            && operation.getDescription().getZ() != null;
+        boolean compacts = operation.getType() == WidgetOperation.Type.DELETE
+            && delegate.isDenseZOrder();
+        if (moves || compacts) {
+          floor = Math.min(floor, delegate.getById(operation.getId()).getZ());
+        }
+      }
+      Widget[] results = delegate.applyBatch(operations);
+      final long next = VERSIONS.incrementAndGet();
+      for (int i = 0; i < results.length; i++) {
+        WidgetOperation operation = operations.get(i);
+        if (operation.getType() == WidgetOperation.Type.DELETE) {
+          changes.delete(next, results[i].getId());
+          continue;
+        }
+        if (operation.getDescription().getZ() != null) {
+          floor = Math.min(floor, Math.min(operation.getDescription().getZ(), results[i].getZ()));
+        }
+        changes.upsert(next, results[i].getId());
+      }
+      if (floor != Integer.MAX_VALUE) {
+        changes.shift(next, floor);
+      }
+      publish(next);
+      return results;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void putWidget(Widget widget) {
+    lock.lock();
+    try {
+      logEdited();
+      Widget before;
+      try {
+        before = delegate.getById(widget.getId());
+      } catch (WidgetNotFoundException e) {
+        before = null;
+      }
+      delegate.putWidget(widget);
+      final long next = VERSIONS.incrementAndGet();
+      if (before == null) {
+        changes.shift(next, widget.getZ());
+      } else if (before.getZ() != widget.getZ()) {
+        changes.shift(next, moveFloor(before.getZ(), widget.getZ(), widget.getZ()));
+      }
+      changes.upsert(next, widget.getId());
+      publish(next);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Widget[] getAllWidgets() {
+    return delegate.getAllWidgets();
+  }
+
+  @Override
+  public int getWidgetCount() {
+    return delegate.getWidgetCount();
+  }
+
+  @Override
+  public WidgetSnapshot getSnapshot() {
+    return delegate.getSnapshot();
+  }
+
+  @Override
+  public Widget[] getWidgetsPage(UUID afterId, int fromZ, int toZ, int limit)
+      throws WidgetNotFoundException {
+    return delegate.getWidgetsPage(afterId, fromZ, toZ, limit);
+  }
+
+  @Override
+  public Widget[] getWidgetsInArea(int x, int y, int width, int height) {
+    return delegate.getWidgetsInArea(x, y, width, height);
+  }
+
+  @Override
+  public Optional<Widget> getTopWidgetAt(int x, int y) {
+    return delegate.getTopWidgetAt(x, y);
+  }
+
+  @Override
+  public Widget[] getWidgetsAt(int x, int y) {
+    return delegate.getWidgetsAt(x, y);
+  }
+
+  @Override
+  public Widget getByRank(int rank) {
+    return delegate.getByRank(rank);
+  }
+
+  @Override
+  public int getRank(UUID id) throws WidgetNotFoundException {
+    return delegate.getRank(id);
+  }
+
+  @Override
+  public void deleteAllWidgets() {
+    lock.lock();
+    try {
+      logEdited();
+      delegate.deleteAllWidgets();
+      final long next = VERSIONS.incrementAndGet();
+      /* удаленные виджеты не перечисляются - клиенты получат доску целиком */
+      changes.reset(next);
+      publish(next);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * Изменения доски после версии. Доска блокируется на время сбора изменений,
+   * поэтому виджеты соответствуют возвращаемой версии; изменения без блокировки
+   * из очереди записываются в журнал изменений до сбора.
+   *
+   * @param since версия доски, известная клиенту
+   * @return изменения или доска целиком, если изменения после версии не хранятся
+   */
+  @Override
+  public WidgetChanges getChanges(long since) {
+    lock.lock();
+    try {
+      logEdited();
+      final long current = version.get();
+      ChangeLog.Delta delta = changes.since(since, current);
+      if (delta == null) {
+        return new WidgetChanges(current, true, delegate.getAllWidgets(), new UUID[0]);
+      }
+      Map<UUID, Widget> changed = new LinkedHashMap<>();
+      if (delta.floor != Integer.MAX_VALUE) {
+        for (Widget widget : delegate.getWidgetsPage(null, delta.floor, Integer.MAX_VALUE,
+            Integer.MAX_VALUE)) {
+          changed.put(widget.getId(), widget);
+        }
+      }
+      for (UUID id : delta.upserted) {
+        if (!changed.containsKey(id)) {
+          changed.put(id, delegate.getById(id));
+        }
+      }
+      List<Widget> widgets = new ArrayList<>(changed.values());
+      widgets.sort(Comparator.comparingInt(Widget::getZ));
+      return new WidgetChanges(current, false, widgets.toArray(new Widget[0]),
+          delta.deleted.toArray(new UUID[0]));
+    } catch (WidgetNotFoundException e) {
+      /* не ожидается: ИД добавленных и измененных виджетов без последующего удаления */
+      throw new IllegalStateException(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean isDenseZOrder() {
+    return delegate.isDenseZOrder();
+  }
+
+  /**
+   * Нижняя граница сдвига при перемещении виджета: вставка сдвигает виджеты не ниже
+   * нового места, а в хранилище с плотным Z-order еще и удаление со старого места -
+   * виджеты выше него.
+   *
+   * @param before    Z-order до перемещения
+   * @param requested указанный Z-order
+   * @param after     Z-order после перемещения
+   * @return нижняя граница Z-order сдвинутых виджетов
+   */
+  private int moveFloor(int before, int requested, int after) {
+    int floor = Math.min(requested, after);
+    return delegate.isDenseZOrder() ? Math.min(floor, before) : floor;
+  }
+}
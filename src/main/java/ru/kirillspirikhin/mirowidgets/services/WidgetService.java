@@ -1,9 +1,17 @@
 package ru.kirillspirikhin.mirowidgets.services;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetVersionMismatchException;
 import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetChanges;
 import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
 
 /**
  * Сервис для работы с виджетами.
@@ -37,6 +45,41 @@ public interface WidgetService {
   Widget editWidget(UUID id, WidgetDescription description)
       throws WidgetNotFoundException;
 
+  /**
+   * Редактировать виджет, если его версия ({@link Widget#fingerprint()}) не изменилась.
+   * Проверка версии и изменение атомарны: изменение, выполненное между ними другим
+   * вызовом, приводит к ошибке, а не затирается.
+   * Реализация по умолчанию проверяет версию и затем редактирует виджет без атомарности;
+   * хранилища переопределяют ее.
+   *
+   * @param id              ИД виджета
+   * @param description     описание виджета
+   * @param expectedVersion версия виджета, известная клиенту
+   * @return отредактированный виджет
+   * @throws WidgetNotFoundException        если виджет не найден
+   * @throws WidgetVersionMismatchException если версия виджета не совпадает с ожидаемой
+   */
+  default Widget editWidget(UUID id, WidgetDescription description, long expectedVersion)
+      throws WidgetNotFoundException, WidgetVersionMismatchException {
+    checkVersion(getById(id), expectedVersion);
+    return editWidget(id, description);
+  }
+
+  /**
+   * Проверка версии виджета.
+   *
+   * @param widget          виджет
+   * @param expectedVersion ожидаемая версия
+   * @throws WidgetVersionMismatchException если версия виджета не совпадает с ожидаемой
+   */
+  static void checkVersion(Widget widget, long expectedVersion)
+      throws WidgetVersionMismatchException {
+    final long version = widget.fingerprint();
+    if (version != expectedVersion) {
+      throw new WidgetVersionMismatchException(widget.getId(), expectedVersion, version);
+    }
+  }
+
   /**
    * Удалить виджет.
    *
@@ -45,6 +88,62 @@ public interface WidgetService {
    */
   boolean deleteWidget(UUID id);
 
+  /**
+   * Применить пакет операций добавления, изменения и удаления виджетов.
+   * Операции применяются по порядку с тем же результатом, что и отдельные вызовы
+   * {@link #addWidget}, {@link #editWidget} и {@link #deleteWidget}, но атомарно:
+   * если хотя бы один виджет не найден, пакет не применяется целиком.
+   * Реализация по умолчанию проверяет ИД виджетов и затем выполняет операции по одной;
+   * хранилища переопределяют ее, чтобы выполнить весь пакет за один захват блокировки.
+   *
+   * @param operations операции
+   * @return для каждой операции - виджет сразу после ее выполнения
+   *     (для удаления - удаленный виджет)
+   * @throws WidgetNotFoundException если изменяемый или удаляемый виджет не найден
+   */
+  default Widget[] applyBatch(List<WidgetOperation> operations)
+      throws WidgetNotFoundException {
+    Set<UUID> deleted = new HashSet<>();
+    for (WidgetOperation operation : operations) {
+      if (operation.getType() != WidgetOperation.Type.CREATE) {
+        UUID id = operation.getId();
+        if (deleted.contains(id)) {
+          throw new WidgetNotFoundException(id);
+        }
+        getById(id);
+        if (operation.getType() == WidgetOperation.Type.DELETE) {
+          deleted.add(id);
+        }
+      }
+    }
+    Widget[] results = new Widget[operations.size()];
+    for (int i = 0; i < results.length; i++) {
+      WidgetOperation operation = operations.get(i);
+      switch (operation.getType()) {
+        case CREATE:
+          results[i] = addWidget(operation.getDescription());
+          break;
+        case EDIT:
+          results[i] = editWidget(operation.getId(), operation.getDescription());
+          break;
+        default:
+          results[i] = getById(operation.getId());
+          deleteWidget(operation.getId());
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Записать виджет целиком: добавить новый или заменить виджет с тем же ИД.
+   * Z-order виджета соблюдается так же, как при добавлении или перемещении
+   * с указанным Z-order: виджеты с Z-order не меньше заданного сдвигаются.
+   * Используется для восстановления доски из журнала и снимка.
+   *
+   * @param widget виджет
+   */
+  void putWidget(Widget widget);
+
   /**
    * Получить все виджеты.
    *
@@ -52,8 +151,160 @@ public interface WidgetService {
    */
   Widget[] getAllWidgets();
 
+  /**
+   * Получить количество виджетов.
+   * Реализация по умолчанию берет размер снимка доски.
+   *
+   * @return количество виджетов
+   */
+  default int getWidgetCount() {
+    return getSnapshot().size();
+  }
+
+  /**
+   * Получить согласованный снимок доски.
+   * Реализация по умолчанию копирует все виджеты.
+   *
+   * @return снимок
+   */
+  default WidgetSnapshot getSnapshot() {
+    return WidgetSnapshot.of(getAllWidgets());
+  }
+
+  /**
+   * Получить страницу виджетов в порядке Z-order.
+   * Реализация по умолчанию перебирает снимок доски с начала; хранилища переопределяют
+   * ее так, чтобы продолжение после виджета стоило O(размер страницы). Поиск начала
+   * диапазона по Z-order зависит от хранилища: в деревьях - O(log n), в linked-list
+   * (индекса по Z-order нет) - обход списка с начала до {@code fromZ}.
+   *
+   * @param afterId ИД виджета, после которого начинается страница
+   *                ({@code null} - с начала диапазона)
+   * @param fromZ   минимальный Z-order (включительно)
+   * @param toZ     максимальный Z-order (включительно)
+   * @param limit   максимальное количество виджетов
+   * @return виджеты страницы
+   * @throws WidgetNotFoundException если виджет {@code afterId} не найден
+   */
+  default Widget[] getWidgetsPage(UUID afterId, int fromZ, int toZ, int limit)
+      throws WidgetNotFoundException {
+    int startZ = afterId != null ? Math.max(fromZ, getById(afterId).getZ() + 1) : fromZ;
+    List<Widget> page = new ArrayList<>();
+    for (Widget widget : getSnapshot()) {
+      if (widget.getZ() > toZ || page.size() == limit) {
+        break;
+      }
+      if (widget.getZ() >= startZ) {
+        page.add(widget);
+      }
+    }
+    return page.toArray(new Widget[0]);
+  }
+
+  /**
+   * Получить виджеты, пересекающиеся с прямоугольной областью, в порядке Z-order.
+   * Реализация по умолчанию перебирает снимок доски.
+   *
+   * @param x      координата X области
+   * @param y      координата Y области
+   * @param width  ширина области
+   * @param height высота области
+   * @return виджеты
+   */
+  default Widget[] getWidgetsInArea(int x, int y, int width, int height) {
+    List<Widget> found = new ArrayList<>();
+    for (Widget widget : getSnapshot()) {
+      if (widget.intersects(x, y, width, height)) {
+        found.add(widget);
+      }
+    }
+    return found.toArray(new Widget[0]);
+  }
+
+  /**
+   * Получить верхний (с наибольшим Z-order) виджет, покрывающий точку.
+   *
+   * @param x координата X точки
+   * @param y координата Y точки
+   * @return виджет или пустое значение, если точку не покрывает ни один виджет
+   */
+  default Optional<Widget> getTopWidgetAt(int x, int y) {
+    Widget[] widgets = getWidgetsInArea(x, y, 1, 1);
+    return widgets.length > 0 ? Optional.of(widgets[widgets.length - 1]) : Optional.empty();
+  }
+
+  /**
+   * Получить все виджеты, покрывающие точку, сверху вниз (по убыванию Z-order).
+   *
+   * @param x координата X точки
+   * @param y координата Y точки
+   * @return виджеты
+   */
+  default Widget[] getWidgetsAt(int x, int y) {
+    Widget[] widgets = getWidgetsInArea(x, y, 1, 1);
+    for (int i = 0, j = widgets.length - 1; i < j; i++, j--) {
+      Widget widget = widgets[i];
+      widgets[i] = widgets[j];
+      widgets[j] = widget;
+    }
+    return widgets;
+  }
+
+  /**
+   * Получить виджет по его порядковому номеру в Z-order.
+   *
+   * @param rank порядковый номер, начиная с 0 (самый нижний виджет)
+   * @return виджет
+   * @throws IndexOutOfBoundsException если номер вне диапазона
+   */
+  Widget getByRank(int rank);
+
+  /**
+   * Получить порядковый номер виджета в Z-order.
+   *
+   * @param id ИД виджета
+   * @return порядковый номер, начиная с 0 (самый нижний виджет)
+   * @throws WidgetNotFoundException если виджет не найден
+   */
+  int getRank(UUID id) throws WidgetNotFoundException;
+
   /**
    * Удалить все виджеты.
    */
   void deleteAllWidgets();
+
+  /**
+   * Версия доски: растет при каждом изменении доски. Чтение версии не обращается
+   * к хранилищу и не блокируется.
+   * Реализация по умолчанию версию не ведет и возвращает 0.
+   *
+   * @return версия доски
+   */
+  default long getVersion() {
+    return 0;
+  }
+
+  /**
+   * Изменения доски после версии: добавленные, измененные (в том числе со сдвинутым
+   * Z-order) и удаленные виджеты.
+   * Реализация по умолчанию изменений не хранит и возвращает доску целиком.
+   *
+   * @param since версия доски, известная клиенту
+   * @return изменения
+   */
+  default WidgetChanges getChanges(long since) {
+    final long version = getVersion();
+    return new WidgetChanges(version, true, getAllWidgets(), new UUID[0]);
+  }
+
+  /**
+   * Признак плотного Z-order: Z-order виджета - его порядковый номер, поэтому удаление
+   * и перемещение виджета сдвигают вниз виджеты выше него. Иначе Z-order других виджетов
+   * меняет только вставка, сдвигая вверх виджеты не ниже вставленного.
+   *
+   * @return признак плотного Z-order
+   */
+  default boolean isDenseZOrder() {
+    return false;
+  }
 }
@@ -0,0 +1,58 @@
+package ru.kirillspirikhin.mirowidgets.services;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+
+/**
+ * Согласованный снимок доски: виджеты в порядке Z-order на момент получения снимка.
+ * Последующие изменения доски на снимок не влияют.
+ */
+public interface WidgetSnapshot extends Iterable<Widget> {
+
+  /**
+   * Количество виджетов в снимке.
+   *
+   * @return количество
+   */
+  int size();
+
+  /**
+   * Виджеты снимка в виде массива.
+   *
+   * @return массив виджетов
+   */
+  default Widget[] toArray() {
+    Widget[] widgets = new Widget[size()];
+    int i = 0;
+    for (Widget widget : this) {
+      widgets[i++] = widget;
+    }
+    return widgets;
+  }
+
+  /**
+   * Снимок из готового массива виджетов.
+   *
+   * @param widgets виджеты в порядке Z-order
+   * @return снимок
+   */
+  static WidgetSnapshot of(Widget[] widgets) {
+    return new WidgetSnapshot() {
+      @Override
+      public int size() {
+        return widgets.length;
+      }
+
+      @Override
+      public Widget[] toArray() {
+        return widgets.clone();
+      }
+
+      @Override
+      public Iterator<Widget> iterator() {
+        return Arrays.asList(widgets).iterator();
+      }
+    };
+  }
+}
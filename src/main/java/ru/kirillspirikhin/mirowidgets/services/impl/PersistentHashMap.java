@@ -0,0 +1,434 @@
+package ru.kirillspirikhin.mirowidgets.services.impl;
+
+import java.util.Arrays;
+
+/**
+ * Неизменяемое хеш-отображение (hash array mapped trie). Каждое изменение возвращает
+ * новую версию отображения, разделяющую с предыдущей все незатронутые узлы,
+ * поэтому изменение стоит O(log32 n) копий узлов, а старые версии остаются
+ * корректными и могут читаться параллельно без блокировок.
+ *
+ * @param <K> тип ключа
+ * @param <V> тип значения
+ */
+final class PersistentHashMap<K, V> {
+
+  /**
+   * Количество бит хеша на один уровень дерева.
+   */
+  private static final int BITS = 5;
+
+  /**
+   * Маска индекса на одном уровне дерева.
+   */
+  private static final int MASK = (1 << BITS) - 1;
+
+  /**
+   * Пустое отображение.
+   */
+  @SuppressWarnings("rawtypes")
+  private static final PersistentHashMap EMPTY = new PersistentHashMap<>(null, 0);
+
+  /**
+   * Корневой узел.
+   */
+  private final BitmapNode root;
+
+  /**
+   * Количество элементов.
+   */
+  private final int size;
+
+  /**
+   * Создание версии отображения.
+   *
+   * @param root корневой узел
+   * @param size количество элементов
+   */
+  private PersistentHashMap(BitmapNode root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  /**
+   * Пустое отображение.
+   *
+   * @param <K> тип ключа
+   * @param <V> тип значения
+   * @return отображение
+   */
+  @SuppressWarnings("unchecked")
+  static <K, V> PersistentHashMap<K, V> empty() {
+    return EMPTY;
+  }
+
+  /**
+   * Количество элементов.
+   *
+   * @return количество
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Значение по ключу.
+   *
+   * @param key ключ
+   * @return значение или {@code null}, если ключа нет
+   */
+  @SuppressWarnings("unchecked")
+  V get(K key) {
+    final int hash = hash(key);
+    BitmapNode node = root;
+    int shift = 0;
+    while (node != null) {
+      int bit = bit(hash, shift);
+      if ((node.bitmap & bit) == 0) {
+        return null;
+      }
+      Object child = node.array[node.index(bit)];
+      if (child instanceof Entry) {
+        Entry entry = (Entry) child;
+        return entry.hash == hash && entry.key.equals(key) ? (V) entry.value : null;
+      }
+      if (child instanceof CollisionNode) {
+        return (V) ((CollisionNode) child).get(hash, key);
+      }
+      node = (BitmapNode) child;
+      shift += BITS;
+    }
+    return null;
+  }
+
+  /**
+   * Новая версия отображения с указанным значением ключа.
+   *
+   * @param key   ключ
+   * @param value значение
+   * @return отображение
+   */
+  PersistentHashMap<K, V> put(K key, V value) {
+    final Entry entry = new Entry(hash(key), key, value);
+    final boolean[] added = {false};
+    BitmapNode newRoot = put(root == null ? BitmapNode.EMPTY : root, entry, 0, added);
+    return new PersistentHashMap<>(newRoot, added[0] ? size + 1 : size);
+  }
+
+  /**
+   * Новая версия отображения без указанного ключа.
+   *
+   * @param key ключ
+   * @return отображение (эта же версия, если ключа не было)
+   */
+  PersistentHashMap<K, V> remove(K key) {
+    if (root == null) {
+      return this;
+    }
+    Object newRoot = remove(root, hash(key), key, 0);
+    if (newRoot == root) {
+      return this;
+    }
+    return new PersistentHashMap<>((BitmapNode) newRoot, size - 1);
+  }
+
+  /**
+   * Вставка элемента в узел.
+   *
+   * @param node  узел
+   * @param entry элемент
+   * @param shift сдвиг хеша для уровня узла
+   * @param added признак того, что ключ добавлен, а не заменен
+   * @return новый узел
+   */
+  private static BitmapNode put(BitmapNode node, Entry entry, int shift, boolean[] added) {
+    int bit = bit(entry.hash, shift);
+    int index = node.index(bit);
+    if ((node.bitmap & bit) == 0) {
+      added[0] = true;
+      Object[] array = new Object[node.array.length + 1];
+      System.arraycopy(node.array, 0, array, 0, index);
+      array[index] = entry;
+      System.arraycopy(node.array, index, array, index + 1, node.array.length - index);
+      return new BitmapNode(node.bitmap | bit, array);
+    }
+    Object child = node.array[index];
+    Object newChild;
+    if (child instanceof Entry) {
+      Entry existing = (Entry) child;
+      if (existing.hash == entry.hash && existing.key.equals(entry.key)) {
+        newChild = entry;
+      } else {
+        added[0] = true;
+        newChild = merge(existing, entry, shift + BITS);
+      }
+    } else if (child instanceof CollisionNode) {
+      CollisionNode collision = (CollisionNode) child;
+      if (collision.hash == entry.hash) {
+        newChild = collision.put(entry, added);
+      } else {
+        BitmapNode wrapper = new BitmapNode(bit(collision.hash, shift + BITS),
+            new Object[] {collision});
+        newChild = put(wrapper, entry, shift + BITS, added);
+      }
+    } else {
+      newChild = put((BitmapNode) child, entry, shift + BITS, added);
+    }
+    Object[] array = node.array.clone();
+    array[index] = newChild;
+    return new BitmapNode(node.bitmap, array);
+  }
+
+  /**
+   * Узел из двух элементов с разными ключами.
+   *
+   * @param first  первый элемент
+   * @param second второй элемент
+   * @param shift  сдвиг хеша для уровня узла
+   * @return узел
+   */
+  private static Object merge(Entry first, Entry second, int shift) {
+    if (first.hash == second.hash) {
+      return new CollisionNode(first.hash, new Entry[] {first, second});
+    }
+    int firstBit = bit(first.hash, shift);
+    int secondBit = bit(second.hash, shift);
+    if (firstBit == secondBit) {
+      return new BitmapNode(firstBit, new Object[] {merge(first, second, shift + BITS)});
+    }
+    return Integer.compareUnsigned(firstBit, secondBit) < 0
+        ? new BitmapNode(firstBit | secondBit, new Object[] {first, second})
+        : new BitmapNode(firstBit | secondBit, new Object[] {second, first});
+  }
+
+  /**
+   * Удаление элемента из узла.
+   *
+   * @param node  узел
+   * @param hash  хеш ключа
+   * @param key   ключ
+   * @param shift сдвиг хеша для уровня узла
+   * @return новый узел, {@code null} если узел опустел, или тот же узел, если ключа не было
+   */
+  private static Object remove(BitmapNode node, int hash, Object key, int shift) {
+    int bit = bit(hash, shift);
+    if ((node.bitmap & bit) == 0) {
+      return node;
+    }
+    int index = node.index(bit);
+    Object child = node.array[index];
+    Object newChild;
+    if (child instanceof Entry) {
+      Entry entry = (Entry) child;
+      if (entry.hash != hash || !entry.key.equals(key)) {
+        return node;
+      }
+      newChild = null;
+    } else if (child instanceof CollisionNode) {
+      newChild = ((CollisionNode) child).remove(key);
+    } else {
+      newChild = remove((BitmapNode) child, hash, key, shift + BITS);
+    }
+    if (newChild == child) {
+      return node;
+    }
+    if (newChild != null) {
+      Object[] array = node.array.clone();
+      array[index] = newChild;
+      return new BitmapNode(node.bitmap, array);
+    }
+    if (node.array.length == 1) {
+      return null;
+    }
+    Object[] array = new Object[node.array.length - 1];
+    System.arraycopy(node.array, 0, array, 0, index);
+    System.arraycopy(node.array, index + 1, array, index, array.length - index);
+    return new BitmapNode(node.bitmap & ~bit, array);
+  }
+
+  /**
+   * Хеш ключа.
+   *
+   * @param key ключ
+   * @return хеш
+   */
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Бит позиции хеша на уровне.
+   *
+   * @param hash  хеш
+   * @param shift сдвиг хеша для уровня
+   * @return бит
+   */
+  private static int bit(int hash, int shift) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+  /**
+   * Элемент отображения.
+   */
+  private static final class Entry {
+
+    /**
+     * Хеш ключа.
+     */
+    private final int hash;
+
+    /**
+     * Ключ.
+     */
+    private final Object key;
+
+    /**
+     * Значение.
+     */
+    private final Object value;
+
+    /**
+     * Создание элемента.
+     *
+     * @param hash  хеш ключа
+     * @param key   ключ
+     * @param value значение
+     */
+    private Entry(int hash, Object key, Object value) {
+      this.hash = hash;
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  /**
+   * Узел с битовой картой занятых позиций. Элементы массива - {@link Entry},
+   * {@link CollisionNode} или дочерние {@link BitmapNode}.
+   */
+  private static final class BitmapNode {
+
+    /**
+     * Пустой узел.
+     */
+    private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    /**
+     * Битовая карта занятых позиций.
+     */
+    private final int bitmap;
+
+    /**
+     * Содержимое занятых позиций.
+     */
+    private final Object[] array;
+
+    /**
+     * Создание узла.
+     *
+     * @param bitmap битовая карта
+     * @param array  содержимое
+     */
+    private BitmapNode(int bitmap, Object[] array) {
+      this.bitmap = bitmap;
+      this.array = array;
+    }
+
+    /**
+     * Индекс позиции в массиве.
+     *
+     * @param bit бит позиции
+     * @return индекс
+     */
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+  }
+
+  /**
+   * Узел элементов с одинаковым хешем.
+   */
+  private static final class CollisionNode {
+
+    /**
+     * Общий хеш.
+     */
+    private final int hash;
+
+    /**
+     * Элементы.
+     */
+    private final Entry[] entries;
+
+    /**
+     * Создание узла.
+     *
+     * @param hash    общий хеш
+     * @param entries элементы
+     */
+    private CollisionNode(int hash, Entry[] entries) {
+      this.hash = hash;
+      this.entries = entries;
+    }
+
+    /**
+     * Значение по ключу.
+     *
+     * @param hash хеш ключа
+     * @param key  ключ
+     * @return значение или {@code null}
+     */
+    private Object get(int hash, Object key) {
+      if (hash == this.hash) {
+        for (Entry entry : entries) {
+          if (entry.key.equals(key)) {
+            return entry.value;
+          }
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Узел с добавленным или замененным элементом.
+     *
+     * @param entry элемент
+     * @param added признак того, что ключ добавлен, а не заменен
+     * @return узел
+     */
+    private CollisionNode put(Entry entry, boolean[] added) {
+      for (int i = 0; i < entries.length; i++) {
+        if (entries[i].key.equals(entry.key)) {
+          Entry[] copy = entries.clone();
+          copy[i] = entry;
+          return new CollisionNode(hash, copy);
+        }
+      }
+      added[0] = true;
+      Entry[] copy = Arrays.copyOf(entries, entries.length + 1);
+      copy[entries.length] = entry;
+      return new CollisionNode(hash, copy);
+    }
+
+    /**
+     * Узел без указанного ключа.
+     *
+     * @param key ключ
+     * @return узел, единственный оставшийся элемент или этот же узел, если ключа не было
+     */
+    private Object remove(Object key) {
+      for (int i = 0; i < entries.length; i++) {
+        if (entries[i].key.equals(key)) {
+          if (entries.length == 2) {
+            return entries[1 - i];
+          }
+          Entry[] copy = new Entry[entries.length - 1];
+          System.arraycopy(entries, 0, copy, 0, i);
+          System.arraycopy(entries, i + 1, copy, i, copy.length - i);
+          return new CollisionNode(hash, copy);
+        }
+      }
+      return this;
+    }
+  }
+}
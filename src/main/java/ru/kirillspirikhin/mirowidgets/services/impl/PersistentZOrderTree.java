@@ -0,0 +1,574 @@
+package ru.kirillspirikhin.mirowidgets.services.impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.ObjIntConsumer;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+
+/**
+ * Неизменяемое декартово дерево (treap) виджетов, упорядоченное по Z-order.
+ * Каждое изменение возвращает новый корень и копирует только узлы на пути
+ * от корня (O(log n)), остальные узлы разделяются между версиями.
+ *
+ * <p>Помимо Z-order узлы упорядочены по стабильному ключу {@link Node#key}:
+ * он не меняется при сдвигах Z-order и позволяет найти виджет по ключу из индекса
+ * по ИД. Порядок по ключу и по Z-order совпадает.
+ *
+ * <p>Как и в {@link ZOrderTree}, сдвиг Z-order диапазона откладывается:
+ * {@link Node#pending} - смещение для всех потомков узла, фактический Z-order
+ * узла - его собственный плюс отложенные смещения предков. При копировании узла
+ * на пути изменения смещение проталкивается в копии потомков.
+ */
+final class PersistentZOrderTree {
+
+  private PersistentZOrderTree() {
+  }
+
+  /**
+   * Количество узлов поддерева.
+   *
+   * @param node корень поддерева
+   * @return количество
+   */
+  static int size(Node node) {
+    return node == null ? 0 : node.size;
+  }
+
+  /**
+   * Копия виджета узла с указанным ключом с фактическим Z-order.
+   *
+   * @param root корень
+   * @param key  ключ существующего узла
+   * @return виджет
+   */
+  static Widget widgetOf(Node root, long key) {
+    Node node = root;
+    int offset = 0;
+    while (node.key != key) {
+      offset += node.pending;
+      node = key < node.key ? node.left : node.right;
+    }
+    return node.widget.withZ(node.z + offset);
+  }
+
+  /**
+   * Порядковый номер узла с указанным ключом.
+   *
+   * @param root корень
+   * @param key  ключ существующего узла
+   * @return порядковый номер, начиная с 0
+   */
+  static int rankOf(Node root, long key) {
+    Node node = root;
+    int rank = 0;
+    while (node.key != key) {
+      if (key < node.key) {
+        node = node.left;
+      } else {
+        rank += size(node.left) + 1;
+        node = node.right;
+      }
+    }
+    return rank + size(node.left);
+  }
+
+  /**
+   * Ключ узла по порядковому номеру.
+   *
+   * @param root корень
+   * @param rank порядковый номер
+   * @return ключ
+   * @throws IndexOutOfBoundsException если номер вне диапазона
+   */
+  static long keyAtRank(Node root, int rank) {
+    if (rank < 0 || rank >= size(root)) {
+      throw new IndexOutOfBoundsException("Ранг " + rank + " вне диапазона, размер: " + size(root));
+    }
+    Node node = root;
+    int remaining = rank;
+    while (true) {
+      int leftSize = size(node.left);
+      if (remaining < leftSize) {
+        node = node.left;
+      } else if (remaining == leftSize) {
+        return node.key;
+      } else {
+        remaining -= leftSize + 1;
+        node = node.right;
+      }
+    }
+  }
+
+  /**
+   * Фактический Z-order последнего узла.
+   *
+   * @param root непустой корень
+   * @return Z-order
+   */
+  static int lastZ(Node root) {
+    Node node = root;
+    int offset = 0;
+    while (node.right != null) {
+      offset += node.pending;
+      node = node.right;
+    }
+    return node.z + offset;
+  }
+
+  /**
+   * Узел с наибольшим Z-order, меньшим указанного.
+   *
+   * @param root корень
+   * @param z    Z-order
+   * @return узел или {@code null}
+   */
+  static Node lower(Node root, int z) {
+    Node result = null;
+    Node node = root;
+    int offset = 0;
+    while (node != null) {
+      int nodeZ = node.z + offset;
+      offset += node.pending;
+      if (nodeZ < z) {
+        result = node;
+        node = node.right;
+      } else {
+        node = node.left;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Узел с наименьшим Z-order, большим либо равным указанному.
+   *
+   * @param root корень
+   * @param z    Z-order
+   * @return узел или {@code null}
+   */
+  static Node ceiling(Node root, int z) {
+    Node result = null;
+    Node node = root;
+    int offset = 0;
+    while (node != null) {
+      int nodeZ = node.z + offset;
+      offset += node.pending;
+      if (nodeZ >= z) {
+        result = node;
+        node = node.left;
+      } else {
+        node = node.right;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Сдвиг Z-order всех узлов, у которых он больше либо равен указанному.
+   *
+   * @param root  корень
+   * @param z     минимальный сдвигаемый Z-order
+   * @param delta смещение
+   * @return новый корень
+   */
+  static Node shiftFrom(Node root, int z, int delta) {
+    Node[] parts = splitByZ(root, z);
+    return merge(parts[0], shifted(parts[1], delta));
+  }
+
+  /**
+   * Вставка узла. Ключ и Z-order должны сохранять общий порядок узлов.
+   *
+   * @param root     корень
+   * @param key      стабильный ключ
+   * @param z        Z-order
+   * @param widget   виджет
+   * @param priority приоритет узла
+   * @return новый корень
+   */
+  static Node insert(Node root, long key, int z, Widget widget, int priority) {
+    Node[] parts = splitByKey(root, key);
+    Node leaf = new Node(key, z, 0, priority, null, null, widget);
+    return merge(merge(parts[0], leaf), parts[1]);
+  }
+
+  /**
+   * Удаление узла.
+   *
+   * @param root корень
+   * @param key  ключ узла
+   * @return новый корень
+   */
+  static Node remove(Node root, long key) {
+    Node[] parts = splitByKey(root, key);
+    Node[] rest = splitByKey(parts[1], key + 1);
+    return merge(parts[0], rest[1]);
+  }
+
+  /**
+   * Замена виджета в узле без изменения его положения.
+   *
+   * @param node   корень
+   * @param key    ключ существующего узла
+   * @param widget новый виджет
+   * @return новый корень
+   */
+  static Node replace(Node node, long key, Widget widget) {
+    if (key < node.key) {
+      return new Node(node.key, node.z, node.pending, node.priority,
+          replace(node.left, key, widget), node.right, node.widget);
+    }
+    if (key > node.key) {
+      return new Node(node.key, node.z, node.pending, node.priority,
+          node.left, replace(node.right, key, widget), node.widget);
+    }
+    return new Node(node.key, node.z, node.pending, node.priority, node.left, node.right, widget);
+  }
+
+  /**
+   * Перенумерация стабильных ключей с равным шагом. Форма дерева сохраняется,
+   * отложенные смещения проталкиваются.
+   *
+   * @param root корень
+   * @param step шаг между ключами соседних узлов
+   * @return новый корень
+   */
+  static Node renumber(Node root, long step) {
+    return renumber(root, 0, 0, step);
+  }
+
+  /**
+   * Перенумерация поддерева.
+   *
+   * @param node   корень поддерева
+   * @param offset отложенное смещение предков
+   * @param first  порядковый номер первого узла поддерева
+   * @param step   шаг между ключами
+   * @return новый корень поддерева
+   */
+  private static Node renumber(Node node, int offset, int first, long step) {
+    if (node == null) {
+      return null;
+    }
+    int rank = first + size(node.left);
+    int childOffset = offset + node.pending;
+    return new Node(rank * step, node.z + offset, 0, node.priority,
+        renumber(node.left, childOffset, first, step),
+        renumber(node.right, childOffset, rank + 1, step),
+        node.widget);
+  }
+
+  /**
+   * Обход узлов в порядке Z-order.
+   *
+   * @param root    корень
+   * @param visitor обработчик узла и его фактического Z-order
+   */
+  static void forEach(Node root, ObjIntConsumer<Node> visitor) {
+    InOrderIterator iterator = new InOrderIterator(root, Integer.MIN_VALUE);
+    while (iterator.hasNext()) {
+      Node node = iterator.next();
+      visitor.accept(node, iterator.z);
+    }
+  }
+
+  /**
+   * Итератор по виджетам в порядке Z-order с фактическим Z-order.
+   * Начальный узел находится за O(log n).
+   *
+   * @param root  корень
+   * @param fromZ минимальный Z-order первого виджета
+   * @return итератор
+   */
+  static Iterator<Widget> widgets(Node root, int fromZ) {
+    InOrderIterator nodes = new InOrderIterator(root, fromZ);
+    return new Iterator<Widget>() {
+      @Override
+      public boolean hasNext() {
+        return nodes.hasNext();
+      }
+
+      @Override
+      public Widget next() {
+        Node node = nodes.next();
+        return node.widget.withZ(nodes.z);
+      }
+    };
+  }
+
+  /**
+   * Разделение по Z-order.
+   *
+   * @param node корень
+   * @param z    Z-order
+   * @return узлы с меньшим Z-order и узлы с большим либо равным
+   */
+  private static Node[] splitByZ(Node node, int z) {
+    if (node == null) {
+      return new Node[2];
+    }
+    Node pushed = pushed(node);
+    if (pushed.z >= z) {
+      Node[] parts = splitByZ(pushed.left, z);
+      parts[1] = withChildren(pushed, parts[1], pushed.right);
+      return parts;
+    }
+    Node[] parts = splitByZ(pushed.right, z);
+    parts[0] = withChildren(pushed, pushed.left, parts[0]);
+    return parts;
+  }
+
+  /**
+   * Разделение по стабильному ключу.
+   *
+   * @param node корень
+   * @param key  ключ
+   * @return узлы с меньшим ключом и узлы с большим либо равным
+   */
+  private static Node[] splitByKey(Node node, long key) {
+    if (node == null) {
+      return new Node[2];
+    }
+    Node pushed = pushed(node);
+    if (pushed.key >= key) {
+      Node[] parts = splitByKey(pushed.left, key);
+      parts[1] = withChildren(pushed, parts[1], pushed.right);
+      return parts;
+    }
+    Node[] parts = splitByKey(pushed.right, key);
+    parts[0] = withChildren(pushed, pushed.left, parts[0]);
+    return parts;
+  }
+
+  /**
+   * Слияние деревьев, все узлы первого из которых меньше узлов второго.
+   *
+   * @param left  левое дерево
+   * @param right правое дерево
+   * @return корень
+   */
+  private static Node merge(Node left, Node right) {
+    if (left == null) {
+      return right;
+    }
+    if (right == null) {
+      return left;
+    }
+    if (left.priority > right.priority) {
+      Node pushed = pushed(left);
+      return withChildren(pushed, pushed.left, merge(pushed.right, right));
+    }
+    Node pushed = pushed(right);
+    return withChildren(pushed, merge(left, pushed.left), pushed.right);
+  }
+
+  /**
+   * Копия узла с отложенным смещением, протолкнутым в потомков.
+   *
+   * @param node узел
+   * @return узел без отложенного смещения
+   */
+  private static Node pushed(Node node) {
+    if (node.pending == 0) {
+      return node;
+    }
+    return new Node(node.key, node.z, 0, node.priority,
+        shifted(node.left, node.pending), shifted(node.right, node.pending), node.widget);
+  }
+
+  /**
+   * Копия поддерева со сдвигом Z-order.
+   *
+   * @param node  корень поддерева
+   * @param delta смещение
+   * @return новый корень поддерева
+   */
+  private static Node shifted(Node node, int delta) {
+    if (node == null || delta == 0) {
+      return node;
+    }
+    return new Node(node.key, node.z + delta, node.pending + delta, node.priority,
+        node.left, node.right, node.widget);
+  }
+
+  /**
+   * Копия узла без отложенного смещения с другими потомками.
+   *
+   * @param node  узел без отложенного смещения
+   * @param left  левый потомок
+   * @param right правый потомок
+   * @return узел
+   */
+  private static Node withChildren(Node node, Node left, Node right) {
+    if (node.left == left && node.right == right) {
+      return node;
+    }
+    return new Node(node.key, node.z, 0, node.priority, left, right, node.widget);
+  }
+
+  /**
+   * Неизменяемый узел дерева.
+   */
+  static final class Node {
+
+    /**
+     * Стабильный ключ, не меняющийся при сдвигах Z-order.
+     */
+    final long key;
+
+    /**
+     * Z-order без учета отложенных смещений предков.
+     */
+    private final int z;
+
+    /**
+     * Смещение Z-order, отложенное для всех потомков узла.
+     */
+    private final int pending;
+
+    /**
+     * Приоритет узла (куча по приоритетам).
+     */
+    private final int priority;
+
+    /**
+     * Размер поддерева.
+     */
+    private final int size;
+
+    /**
+     * Левый потомок.
+     */
+    private final Node left;
+
+    /**
+     * Правый потомок.
+     */
+    private final Node right;
+
+    /**
+     * Виджет.
+     */
+    final Widget widget;
+
+    /**
+     * Создание узла.
+     *
+     * @param key      стабильный ключ
+     * @param z        Z-order без учета смещений предков
+     * @param pending  отложенное смещение потомков
+     * @param priority приоритет
+     * @param left     левый потомок
+     * @param right    правый потомок
+     * @param widget   виджет
+     */
+    private Node(long key, int z, int pending, int priority, Node left, Node right,
+                 Widget widget) {
+      this.key = key;
+      this.z = z;
+      this.pending = pending;
+      this.priority = priority;
+      this.left = left;
+      this.right = right;
+      this.widget = widget;
+      this.size = 1 + size(left) + size(right);
+    }
+  }
+
+  /**
+   * Обход узлов в порядке Z-order с вычислением фактического Z-order.
+   */
+  private static final class InOrderIterator implements Iterator<Node> {
+
+    /**
+     * Стек узлов.
+     */
+    private Node[] nodes = new Node[64];
+
+    /**
+     * Отложенные смещения предков узлов стека.
+     */
+    private int[] offsets = new int[64];
+
+    /**
+     * Глубина стека.
+     */
+    private int depth;
+
+    /**
+     * Фактический Z-order последнего возвращенного узла.
+     */
+    private int z;
+
+    /**
+     * Создание итератора, начинающего обход с узла с наименьшим Z-order,
+     * большим либо равным указанному.
+     *
+     * @param root  корень
+     * @param fromZ минимальный Z-order
+     */
+    private InOrderIterator(Node root, int fromZ) {
+      Node current = root;
+      int offset = 0;
+      while (current != null) {
+        if (current.z + offset >= fromZ) {
+          push(current, offset);
+          offset += current.pending;
+          current = current.left;
+        } else {
+          offset += current.pending;
+          current = current.right;
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return depth > 0;
+    }
+
+    @Override
+    public Node next() {
+      if (depth == 0) {
+        throw new NoSuchElementException();
+      }
+      Node node = nodes[--depth];
+      int offset = offsets[depth];
+      z = node.z + offset;
+      pushLeft(node.right, offset + node.pending);
+      return node;
+    }
+
+    /**
+     * Помещение в стек левой ветви поддерева.
+     *
+     * @param node   корень поддерева
+     * @param offset отложенное смещение предков
+     */
+    private void pushLeft(Node node, int offset) {
+      Node current = node;
+      int currentOffset = offset;
+      while (current != null) {
+        push(current, currentOffset);
+        currentOffset += current.pending;
+        current = current.left;
+      }
+    }
+
+    /**
+     * Помещение узла в стек.
+     *
+     * @param node   узел
+     * @param offset отложенное смещение предков
+     */
+    private void push(Node node, int offset) {
+      if (depth == nodes.length) {
+        nodes = Arrays.copyOf(nodes, depth * 2);
+        offsets = Arrays.copyOf(offsets, depth * 2);
+      }
+      nodes[depth] = node;
+      offsets[depth++] = offset;
+    }
+  }
+}
@@ -0,0 +1,496 @@
+package ru.kirillspirikhin.mirowidgets.services.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * R-дерево прямоугольников (Guttman, квадратичное разделение узлов).
+ * Прямоугольники полуоткрытые: {@code [minX, maxX) x [minY, maxY)}; границы хранятся
+ * в {@code long}, чтобы {@code x + width} не переполнялся.
+ *
+ * <p>Для удаления по ключу хранится индекс ключ - лист, поэтому удаление не требует
+ * поиска по дереву. Структура не потокобезопасна.
+ *
+ * @param <K> тип ключа прямоугольника
+ */
+final class RTree<K> {
+
+  /**
+   * Максимальное количество элементов узла.
+   */
+  static final int MAX_ENTRIES = 16;
+
+  /**
+   * Минимальное количество элементов узла (кроме корня).
+   */
+  static final int MIN_ENTRIES = 6;
+
+  /**
+   * Листья по ключам.
+   */
+  private final Map<K, Node> leaves = new HashMap<>();
+
+  /**
+   * Корень.
+   */
+  private Node root = new Node(true);
+
+  /**
+   * Количество прямоугольников.
+   *
+   * @return количество
+   */
+  int size() {
+    return leaves.size();
+  }
+
+  /**
+   * Добавление прямоугольника. Ключ не должен уже присутствовать в дереве.
+   *
+   * @param key  ключ
+   * @param minX левая граница (включительно)
+   * @param minY нижняя граница (включительно)
+   * @param maxX правая граница (не включительно)
+   * @param maxY верхняя граница (не включительно)
+   */
+  void insert(K key, long minX, long minY, long maxX, long maxY) {
+    Node leaf = root;
+    while (!leaf.leaf) {
+      leaf = (Node) leaf.items[leaf.chooseSubtree(minX, minY, maxX, maxY)];
+    }
+    leaf.add(minX, minY, maxX, maxY, key);
+    leaves.put(key, leaf);
+    adjust(leaf);
+  }
+
+  /**
+   * Удаление прямоугольника.
+   *
+   * @param key ключ
+   * @return признак того, что ключ был в дереве
+   */
+  boolean remove(K key) {
+    Node leaf = leaves.remove(key);
+    if (leaf == null) {
+      return false;
+    }
+    leaf.removeAt(leaf.indexOf(key));
+    condense(leaf);
+    return true;
+  }
+
+  /**
+   * Обход ключей прямоугольников, пересекающихся с указанным.
+   *
+   * @param minX     левая граница (включительно)
+   * @param minY     нижняя граница (включительно)
+   * @param maxX     правая граница (не включительно)
+   * @param maxY     верхняя граница (не включительно)
+   * @param consumer обработчик ключа
+   */
+  @SuppressWarnings("unchecked")
+  void search(long minX, long minY, long maxX, long maxY, Consumer<? super K> consumer) {
+    Node[] stack = new Node[16];
+    int depth = 0;
+    stack[depth++] = root;
+    while (depth > 0) {
+      Node node = stack[--depth];
+      for (int i = 0; i < node.count; i++) {
+        if (node.minX[i] < maxX && minX < node.maxX[i]
+            && node.minY[i] < maxY && minY < node.maxY[i]) {
+          if (node.leaf) {
+            consumer.accept((K) node.items[i]);
+          } else {
+            if (depth == stack.length) {
+              Node[] grown = new Node[depth * 2];
+              System.arraycopy(stack, 0, grown, 0, depth);
+              stack = grown;
+            }
+            stack[depth++] = (Node) node.items[i];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Удаление всех прямоугольников.
+   */
+  void clear() {
+    leaves.clear();
+    root = new Node(true);
+  }
+
+  /**
+   * Разделение переполненных узлов и уточнение границ от узла до корня.
+   *
+   * @param start измененный узел
+   */
+  private void adjust(Node start) {
+    Node node = start;
+    while (true) {
+      Node sibling = node.count > MAX_ENTRIES ? split(node) : null;
+      if (node == root) {
+        if (sibling != null) {
+          Node newRoot = new Node(false);
+          newRoot.addChild(node);
+          newRoot.addChild(sibling);
+          root = newRoot;
+        }
+        return;
+      }
+      Node parent = node.parent;
+      parent.updateChild(parent.indexOf(node));
+      if (sibling != null) {
+        parent.addChild(sibling);
+      }
+      node = parent;
+    }
+  }
+
+  /**
+   * Удаление недозаполненных узлов от листа до корня с повторной вставкой
+   * их прямоугольников.
+   *
+   * @param leaf лист, из которого удален прямоугольник
+   */
+  private void condense(Node leaf) {
+    List<Node> eliminated = new ArrayList<>();
+    Node node = leaf;
+    while (node != root) {
+      Node parent = node.parent;
+      int index = parent.indexOf(node);
+      if (node.count < MIN_ENTRIES) {
+        parent.removeAt(index);
+        eliminated.add(node);
+      } else {
+        parent.updateChild(index);
+      }
+      node = parent;
+    }
+    while (!root.leaf && root.count == 1) {
+      root = (Node) root.items[0];
+      root.parent = null;
+    }
+    if (!root.leaf && root.count == 0) {
+      root = new Node(true);
+    }
+    for (Node removed : eliminated) {
+      reinsert(removed);
+    }
+  }
+
+  /**
+   * Повторная вставка всех прямоугольников поддерева.
+   *
+   * @param node корень поддерева
+   */
+  @SuppressWarnings("unchecked")
+  private void reinsert(Node node) {
+    for (int i = 0; i < node.count; i++) {
+      if (node.leaf) {
+        insert((K) node.items[i], node.minX[i], node.minY[i], node.maxX[i], node.maxY[i]);
+      } else {
+        reinsert((Node) node.items[i]);
+      }
+    }
+  }
+
+  /**
+   * Квадратичное разделение переполненного узла.
+   *
+   * @param node узел
+   * @return новый узел с частью элементов
+   */
+  @SuppressWarnings("unchecked")
+  private Node split(Node node) {
+    final int total = node.count;
+    long[] minX = node.minX.clone();
+    long[] minY = node.minY.clone();
+    long[] maxX = node.maxX.clone();
+    long[] maxY = node.maxY.clone();
+    Object[] items = node.items.clone();
+    /* затравки - пара, объединение которой дает наибольшую потерю площади */
+    int first = 0;
+    int second = 1;
+    double worst = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < total; i++) {
+      for (int j = i + 1; j < total; j++) {
+        double waste = area(Math.min(minX[i], minX[j]), Math.min(minY[i], minY[j]),
+            Math.max(maxX[i], maxX[j]), Math.max(maxY[i], maxY[j]))
+            - area(minX[i], minY[i], maxX[i], maxY[i])
+            - area(minX[j], minY[j], maxX[j], maxY[j]);
+        if (waste > worst) {
+          worst = waste;
+          first = i;
+          second = j;
+        }
+      }
+    }
+    Node sibling = new Node(node.leaf);
+    node.count = 0;
+    boolean[] assigned = new boolean[total];
+    Node[] groups = {node, sibling};
+    int[] seeds = {first, second};
+    for (int g = 0; g < 2; g++) {
+      int s = seeds[g];
+      groups[g].add(minX[s], minY[s], maxX[s], maxY[s], items[s]);
+      assigned[s] = true;
+    }
+    int remaining = total - 2;
+    while (remaining > 0) {
+      Node target = null;
+      int next = -1;
+      /* если группе нужны все оставшиеся элементы до минимума - отдаем их ей */
+      if (node.count + remaining <= MIN_ENTRIES) {
+        target = node;
+      } else if (sibling.count + remaining <= MIN_ENTRIES) {
+        target = sibling;
+      }
+      double bestDiff = -1;
+      for (int i = 0; i < total && target == null; i++) {
+        if (assigned[i]) {
+          continue;
+        }
+        double diff = Math.abs(node.enlargement(minX[i], minY[i], maxX[i], maxY[i])
+            - sibling.enlargement(minX[i], minY[i], maxX[i], maxY[i]));
+        if (diff > bestDiff) {
+          bestDiff = diff;
+          next = i;
+        }
+      }
+      for (int i = 0; i < total && next < 0; i++) {
+        if (!assigned[i]) {
+          next = i;
+        }
+      }
+      if (target == null) {
+        double d1 = node.enlargement(minX[next], minY[next], maxX[next], maxY[next]);
+        double d2 = sibling.enlargement(minX[next], minY[next], maxX[next], maxY[next]);
+        if (d1 != d2) {
+          target = d1 < d2 ? node : sibling;
+        } else {
+          target = node.count <= sibling.count ? node : sibling;
+        }
+      }
+      target.add(minX[next], minY[next], maxX[next], maxY[next], items[next]);
+      assigned[next] = true;
+      remaining--;
+    }
+    for (int i = node.count; i < items.length; i++) {
+      node.items[i] = null;
+    }
+    if (node.leaf) {
+      for (int i = 0; i < sibling.count; i++) {
+        leaves.put((K) sibling.items[i], sibling);
+      }
+    }
+    return sibling;
+  }
+
+  /**
+   * Площадь прямоугольника.
+   *
+   * @param minX левая граница
+   * @param minY нижняя граница
+   * @param maxX правая граница
+   * @param maxY верхняя граница
+   * @return площадь
+   */
+  private static double area(long minX, long minY, long maxX, long maxY) {
+    return (double) (maxX - minX) * (double) (maxY - minY);
+  }
+
+  /**
+   * Узел дерева: прямоугольники элементов и сами элементы (дочерние узлы или ключи).
+   */
+  private static final class Node {
+
+    /**
+     * Признак листа.
+     */
+    private final boolean leaf;
+
+    /**
+     * Левые границы элементов.
+     */
+    private final long[] minX = new long[MAX_ENTRIES + 1];
+
+    /**
+     * Нижние границы элементов.
+     */
+    private final long[] minY = new long[MAX_ENTRIES + 1];
+
+    /**
+     * Правые границы элементов.
+     */
+    private final long[] maxX = new long[MAX_ENTRIES + 1];
+
+    /**
+     * Верхние границы элементов.
+     */
+    private final long[] maxY = new long[MAX_ENTRIES + 1];
+
+    /**
+     * Элементы: дочерние узлы или ключи.
+     */
+    private final Object[] items = new Object[MAX_ENTRIES + 1];
+
+    /**
+     * Количество элементов.
+     */
+    private int count;
+
+    /**
+     * Родительский узел.
+     */
+    private Node parent;
+
+    /**
+     * Создание узла.
+     *
+     * @param leaf признак листа
+     */
+    private Node(boolean leaf) {
+      this.leaf = leaf;
+    }
+
+    /**
+     * Добавление элемента.
+     *
+     * @param minX левая граница
+     * @param minY нижняя граница
+     * @param maxX правая граница
+     * @param maxY верхняя граница
+     * @param item элемент
+     */
+    private void add(long minX, long minY, long maxX, long maxY, Object item) {
+      this.minX[count] = minX;
+      this.minY[count] = minY;
+      this.maxX[count] = maxX;
+      this.maxY[count] = maxY;
+      items[count++] = item;
+      if (item instanceof Node) {
+        ((Node) item).parent = this;
+      }
+    }
+
+    /**
+     * Добавление дочернего узла с его границами.
+     *
+     * @param child дочерний узел
+     */
+    private void addChild(Node child) {
+      add(0, 0, 0, 0, child);
+      updateChild(count - 1);
+    }
+
+    /**
+     * Пересчет границ дочернего узла.
+     *
+     * @param index индекс дочернего узла
+     */
+    private void updateChild(int index) {
+      Node child = (Node) items[index];
+      long x1 = Long.MAX_VALUE;
+      long y1 = Long.MAX_VALUE;
+      long x2 = Long.MIN_VALUE;
+      long y2 = Long.MIN_VALUE;
+      for (int i = 0; i < child.count; i++) {
+        x1 = Math.min(x1, child.minX[i]);
+        y1 = Math.min(y1, child.minY[i]);
+        x2 = Math.max(x2, child.maxX[i]);
+        y2 = Math.max(y2, child.maxY[i]);
+      }
+      minX[index] = x1;
+      minY[index] = y1;
+      maxX[index] = x2;
+      maxY[index] = y2;
+    }
+
+    /**
+     * Удаление элемента; на его место переносится последний элемент.
+     *
+     * @param index индекс элемента
+     */
+    private void removeAt(int index) {
+      int last = --count;
+      minX[index] = minX[last];
+      minY[index] = minY[last];
+      maxX[index] = maxX[last];
+      maxY[index] = maxY[last];
+      items[index] = items[last];
+      items[last] = null;
+    }
+
+    /**
+     * Индекс элемента.
+     *
+     * @param item элемент
+     * @return индекс
+     */
+    private int indexOf(Object item) {
+      for (int i = 0; i < count; i++) {
+        if (items[i] == item || leaf && items[i].equals(item)) {
+          return i;
+        }
+      }
+      throw new IllegalStateException("Элемент не найден в узле R-дерева");
+    }
+
+    /**
+     * Выбор дочернего узла для вставки: наименьшее увеличение площади,
+     * при равенстве - наименьшая площадь.
+     *
+     * @param x1 левая граница вставляемого прямоугольника
+     * @param y1 нижняя граница
+     * @param x2 правая граница
+     * @param y2 верхняя граница
+     * @return индекс дочернего узла
+     */
+    private int chooseSubtree(long x1, long y1, long x2, long y2) {
+      int best = 0;
+      double bestEnlargement = Double.POSITIVE_INFINITY;
+      double bestArea = Double.POSITIVE_INFINITY;
+      for (int i = 0; i < count; i++) {
+        double area = area(minX[i], minY[i], maxX[i], maxY[i]);
+        double enlargement = area(Math.min(minX[i], x1), Math.min(minY[i], y1),
+            Math.max(maxX[i], x2), Math.max(maxY[i], y2)) - area;
+        if (enlargement < bestEnlargement
+            || enlargement == bestEnlargement && area < bestArea) {
+          best = i;
+          bestEnlargement = enlargement;
+          bestArea = area;
+        }
+      }
+      return best;
+    }
+
+    /**
+     * Увеличение площади границ узла при добавлении прямоугольника.
+     *
+     * @param x1 левая граница
+     * @param y1 нижняя граница
+     * @param x2 правая граница
+     * @param y2 верхняя граница
+     * @return увеличение площади
+     */
+    private double enlargement(long x1, long y1, long x2, long y2) {
+      long cx1 = Long.MAX_VALUE;
+      long cy1 = Long.MAX_VALUE;
+      long cx2 = Long.MIN_VALUE;
+      long cy2 = Long.MIN_VALUE;
+      for (int i = 0; i < count; i++) {
+        cx1 = Math.min(cx1, minX[i]);
+        cy1 = Math.min(cy1, minY[i]);
+        cx2 = Math.max(cx2, maxX[i]);
+        cy2 = Math.max(cy2, maxY[i]);
+      }
+      return area(Math.min(x1, cx1), Math.min(y1, cy1), Math.max(x2, cx2), Math.max(y2, cy2))
+          - area(cx1, cy1, cx2, cy2);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package ru.kirillspirikhin.mirowidgets.services.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Метрики хранилища виджетов: ожидание и удержание блокировки изменений
+ * и количество виджетов, Z-order которых изменился при вставке.
+ *
+ * <p>Метры регистрируются по имени без тегов доски, поэтому хранилища всех досок
+ * пишут в одни и те же метры. Без реестра метрик ({@link #NOOP}) записи ничего не стоят.
+ */
+final class StorageMetrics {
+
+  /**
+   * Метрики, которые никуда не публикуются.
+   */
+  static final StorageMetrics NOOP = new StorageMetrics(new CompositeMeterRegistry());
+
+  /**
+   * Реестр метрик.
+   */
+  private final MeterRegistry registry;
+
+  /**
+   * Время ожидания блокировки.
+   */
+  private final Timer lockWait;
+
+  /**
+   * Время удержания блокировки.
+   */
+  private final Timer lockHold;
+
+  /**
+   * Количество сдвинутых виджетов.
+   */
+  private final DistributionSummary shifts;
+
+  /**
+   * Создание метрик.
+   *
+   * @param registry реестр метрик
+   */
+  StorageMetrics(MeterRegistry registry) {
+    this.registry = registry;
+    this.lockWait = Timer.builder("widgets.lock.wait")
+        .description("Время ожидания блокировки изменений доски")
+        .publishPercentileHistogram()
+        .register(registry);
+    this.lockHold = Timer.builder("widgets.lock.hold")
+        .description("Время удержания блокировки изменений доски")
+        .publishPercentileHistogram()
+        .register(registry);
+    this.shifts = DistributionSummary.builder("widgets.shift.size")
+        .description("Количество виджетов, Z-order которых изменился при вставке")
+        .baseUnit("widgets")
+        .publishPercentileHistogram()
+        .register(registry);
+  }
+
+  /**
+   * Запись времени ожидания блокировки.
+   *
+   * @param nanos наносекунды
+   */
+  void lockWait(long nanos) {
+    lockWait.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Запись времени удержания блокировки.
+   *
+   * @param nanos наносекунды
+   */
+  void lockHold(long nanos) {
+    lockHold.record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Запись количества сдвинутых виджетов.
+   *
+   * @param count количество
+   */
+  void shifted(int count) {
+    shifts.record(count);
+  }
+
+  /**
+   * Счетчик хранилища.
+   *
+   * @param name        имя
+   * @param description описание
+   * @return счетчик
+   */
+  Counter counter(String name, String description) {
+    return Counter.builder(name).description(description).register(registry);
+  }
+}
@@ -0,0 +1,899 @@
+package ru.kirillspirikhin.mirowidgets.services.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetVersionMismatchException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.WidgetSnapshot;
+
+/**
+ * Реализация сервиса виджетов на столбцах примитивов (struct-of-arrays).
+ * Включается настройкой {@code widgets.storage: columnar}.
+ *
+ * <p>Поля виджетов хранятся в массивах по номеру слота: ИД - двумя массивами
+ * {@code long}, координаты и размеры - массивами {@code int}, дата изменения -
+ * наносекундами в массиве {@code long}. Порядок по Z-order - массив номеров слотов,
+ * индекс по ИД - хеш-таблица с открытой адресацией из номеров слотов. Объекты
+ * {@link Widget} создаются только на границе API, поэтому виджет занимает около
+ * 75 байт кучи вместо 180-320 байт объектов, узлов и записей индексов, а перебор
+ * доски (поиск в области, в точке) идет по плотным массивам.
+ *
+ * <p>Z-order виджетов уникален и возрастает вдоль массива порядка, поэтому место
+ * виджета в порядке находится двоичным поиском. Вставка сдвигает хвост массива
+ * порядка ({@link System#arraycopy}) и увеличивает Z-order виджетов над вставляемым -
+ * как и в списке, O(n), но проходом по массиву, а не по узлам в куче.
+ * Удаленный слот занимает последний слот, поэтому массивы остаются плотными.
+ *
+ * <p>Изменения выполняются под блокировкой записи, чтения - под блокировкой чтения
+ * {@link ReentrantReadWriteLock} и не ждут друг друга.
+ */
+@Service
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+@ConditionalOnProperty(name = "widgets.storage", havingValue = "columnar")
+public class WidgetServiceColumnar implements WidgetService {
+
+  /**
+   * Начальная емкость столбцов.
+   */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /**
+   * Пустой слот хеш-таблицы.
+   */
+  private static final int EMPTY = -1;
+
+  /**
+   * Блокировка хранилища.
+   */
+  final ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+
+  /**
+   * Блокировка чтения.
+   */
+  private final Lock readLock = readWriteLock.readLock();
+
+  /**
+   * Момент захвата блокировки записи ({@link System#nanoTime()}); пишется и читается под ней.
+   */
+  private long lockedAt;
+
+  /**
+   * Метрики хранилища.
+   */
+  private StorageMetrics metrics = StorageMetrics.NOOP;
+
+  /**
+   * Старшие биты ИД по слотам.
+   */
+  private long[] idMostSigBits;
+
+  /**
+   * Младшие биты ИД по слотам.
+   */
+  private long[] idLeastSigBits;
+
+  /**
+   * Координаты X по слотам.
+   */
+  private int[] xs;
+
+  /**
+   * Координаты Y по слотам.
+   */
+  private int[] ys;
+
+  /**
+   * Z-order по слотам.
+   */
+  private int[] zs;
+
+  /**
+   * Ширины по слотам.
+   */
+  private int[] widths;
+
+  /**
+   * Высоты по слотам.
+   */
+  private int[] heights;
+
+  /**
+   * Даты последнего изменения (наносекунды от начала эпохи, UTC) по слотам.
+   */
+  private long[] modifiedNanos;
+
+  /**
+   * Слоты в порядке возрастания Z-order.
+   */
+  private int[] order;
+
+  /**
+   * Хеш-таблица ИД - слот с линейным пробированием ({@link #EMPTY} - свободно);
+   * размер - степень двойки, заполнение не больше 2/3.
+   */
+  private int[] table;
+
+  /**
+   * Количество виджетов (занятых слотов).
+   */
+  private int size;
+
+  /**
+   * Создание пустого хранилища.
+   */
+  public WidgetServiceColumnar() {
+    allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Публикация метрик хранилища.
+   *
+   * @param meterRegistry реестр метрик
+   */
+  @Autowired(required = false)
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.metrics = new StorageMetrics(meterRegistry);
+  }
+
+  @Override
+  public Widget addWidget(WidgetDescription widgetDescription) {
+    Widget widget = Widget.fromDescription(widgetDescription);
+    lock();
+    try {
+      if (widgetDescription.getZ() == null) {
+        /* если у добавляемого виджета не указан Z-order,
+        то присвоим Z-order на 1 больше, чем у последнего */
+        widget = widget.withZ(size > 0 ? zs[order[size - 1]] + 1 : 0);
+      }
+      insert(widget);
+      return widget;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget getById(UUID id) throws WidgetNotFoundException {
+    readLock.lock();
+    try {
+      return materialize(findSlot(id));
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description)
+      throws WidgetNotFoundException {
+    lock();
+    try {
+      int slot = findSlot(id);
+      Widget widget = edited(materialize(slot), description);
+      replace(slot, widget);
+      return widget;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description, long expectedVersion)
+      throws WidgetNotFoundException, WidgetVersionMismatchException {
+    lock();
+    try {
+      /* проверка версии и изменение - под одной блокировкой */
+      WidgetService.checkVersion(getById(id), expectedVersion);
+      return editWidget(id, description);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public boolean deleteWidget(UUID id) {
+    lock();
+    try {
+      int slot = find(id.getMostSignificantBits(), id.getLeastSignificantBits());
+      if (slot < 0) {
+        return false;
+      }
+      remove(slot);
+      return true;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget[] applyBatch(List<WidgetOperation> operations)
+      throws WidgetNotFoundException {
+    lock();
+    try {
+      /* пакет выполняется под одной блокировкой записи (она реентерабельна) */
+      return WidgetService.super.applyBatch(operations);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public void putWidget(Widget widget) {
+    lock();
+    try {
+      int slot = find(widget.idMostSigBits(), widget.idLeastSigBits());
+      if (slot < 0) {
+        insert(widget);
+      } else {
+        replace(slot, widget);
+      }
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget[] getAllWidgets() {
+    readLock.lock();
+    try {
+      Widget[] widgets = new Widget[size];
+      for (int i = 0; i < size; i++) {
+        widgets[i] = materialize(order[i]);
+      }
+      return widgets;
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  /**
+   * Снимок доски - копия столбцов в порядке Z-order; виджеты создаются при обходе снимка,
+   * поэтому снимок большой доски занимает столько же памяти, сколько ее столбцы.
+   *
+   * @return снимок доски
+   */
+  @Override
+  public WidgetSnapshot getSnapshot() {
+    readLock.lock();
+    try {
+      final Snapshot snapshot = new Snapshot(size);
+      for (int i = 0; i < size; i++) {
+        int slot = order[i];
+        snapshot.idMostSigBits[i] = idMostSigBits[slot];
+        snapshot.idLeastSigBits[i] = idLeastSigBits[slot];
+        snapshot.xs[i] = xs[slot];
+        snapshot.ys[i] = ys[slot];
+        snapshot.zs[i] = zs[slot];
+        snapshot.widths[i] = widths[slot];
+        snapshot.heights[i] = heights[slot];
+        snapshot.modifiedNanos[i] = modifiedNanos[slot];
+      }
+      return snapshot;
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public int getWidgetCount() {
+    readLock.lock();
+    try {
+      return size;
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public Widget[] getWidgetsPage(UUID afterId, int fromZ, int toZ, int limit)
+      throws WidgetNotFoundException {
+    readLock.lock();
+    try {
+      int start = lowerBound(fromZ);
+      if (afterId != null) {
+        start = Math.max(start, position(findSlot(afterId)) + 1);
+      }
+      List<Widget> page = new ArrayList<>(Math.min(limit, size));
+      for (int i = start; i < size && page.size() < limit && zs[order[i]] <= toZ; i++) {
+        page.add(materialize(order[i]));
+      }
+      return page.toArray(new Widget[0]);
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public Widget[] getWidgetsInArea(int x, int y, int width, int height) {
+    readLock.lock();
+    try {
+      List<Widget> found = new ArrayList<>();
+      for (int i = 0; i < size; i++) {
+        int slot = order[i];
+        if (intersects(slot, x, y, width, height)) {
+          found.add(materialize(slot));
+        }
+      }
+      return found.toArray(new Widget[0]);
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public Optional<Widget> getTopWidgetAt(int x, int y) {
+    readLock.lock();
+    try {
+      for (int i = size - 1; i >= 0; i--) {
+        int slot = order[i];
+        if (intersects(slot, x, y, 1, 1)) {
+          return Optional.of(materialize(slot));
+        }
+      }
+      return Optional.empty();
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public Widget[] getWidgetsAt(int x, int y) {
+    readLock.lock();
+    try {
+      List<Widget> found = new ArrayList<>();
+      for (int i = size - 1; i >= 0; i--) {
+        int slot = order[i];
+        if (intersects(slot, x, y, 1, 1)) {
+          found.add(materialize(slot));
+        }
+      }
+      return found.toArray(new Widget[0]);
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public Widget getByRank(int rank) {
+    readLock.lock();
+    try {
+      if (rank < 0 || rank >= size) {
+        throw new IndexOutOfBoundsException("Ранг " + rank + " вне диапазона, размер: " + size);
+      }
+      return materialize(order[rank]);
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public int getRank(UUID id) throws WidgetNotFoundException {
+    readLock.lock();
+    try {
+      return position(findSlot(id));
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  @Override
+  public void deleteAllWidgets() {
+    lock();
+    try {
+      allocate(INITIAL_CAPACITY);
+      size = 0;
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Виджет из слота.
+   *
+   * @param slot слот
+   * @return виджет
+   */
+  private Widget materialize(int slot) {
+    return Widget.of(idMostSigBits[slot], idLeastSigBits[slot], xs[slot], ys[slot], zs[slot],
+        widths[slot], heights[slot], modifiedNanos[slot]);
+  }
+
+  /**
+   * Запись полей виджета в слот.
+   *
+   * @param slot   слот
+   * @param widget виджет
+   */
+  private void store(int slot, Widget widget) {
+    idMostSigBits[slot] = widget.idMostSigBits();
+    idLeastSigBits[slot] = widget.idLeastSigBits();
+    xs[slot] = widget.getX();
+    ys[slot] = widget.getY();
+    zs[slot] = widget.getZ();
+    widths[slot] = widget.getWidth();
+    heights[slot] = widget.getHeight();
+    modifiedNanos[slot] = widget.modifiedNanos();
+  }
+
+  /**
+   * Проверка пересечения виджета слота с прямоугольником (как {@link Widget#intersects}).
+   *
+   * @param slot       слот
+   * @param areaX      координата X прямоугольника
+   * @param areaY      координата Y прямоугольника
+   * @param areaWidth  ширина прямоугольника
+   * @param areaHeight высота прямоугольника
+   * @return признак пересечения
+   */
+  private boolean intersects(int slot, int areaX, int areaY, int areaWidth, int areaHeight) {
+    return xs[slot] < (long) areaX + areaWidth && areaX < (long) xs[slot] + widths[slot]
+        && ys[slot] < (long) areaY + areaHeight && areaY < (long) ys[slot] + heights[slot];
+  }
+
+  /**
+   * Измененный по описанию виджет.
+   *
+   * @param widget      виджет
+   * @param description описание виджета
+   * @return новый экземпляр виджета или тот же, если изменений нет
+   */
+  private static Widget edited(Widget widget, WidgetDescription description) {
+    boolean wasChanges = false;
+    if (description.getX() != null) {
+      widget = widget.withX(description.getX());
+      wasChanges = true;
+    }
+    if (description.getY() != null) {
+      widget = widget.withY(description.getY());
+      wasChanges = true;
+    }
+    if (description.getHeight() != null) {
+      widget = widget.withHeight(description.getHeight());
+      wasChanges = true;
+    }
+    if (description.getWidth() != null) {
+      widget = widget.withWidth(description.getWidth());
+      wasChanges = true;
+    }
+    if (description.getZ() != null) {
+      widget = widget.withZ(description.getZ());
+      wasChanges = true;
+    }
+    return wasChanges ? widget.withModifiedDate(LocalDateTime.now(ZoneOffset.UTC)) : widget;
+  }
+
+  /**
+   * Добавление нового виджета в последний слот и в порядок по Z-order.
+   *
+   * @param widget виджет с заполненным Z-order
+   */
+  private void insert(Widget widget) {
+    if (size == order.length) {
+      grow();
+    }
+    final int slot = size;
+    store(slot, widget);
+    link(slot, size);
+    size++;
+    tableInsert(slot);
+  }
+
+  /**
+   * Замена виджета слота; при изменении Z-order виджет перемещается со сдвигом остальных.
+   *
+   * @param slot   слот
+   * @param widget новое состояние виджета
+   */
+  private void replace(int slot, Widget widget) {
+    if (widget.getZ() != zs[slot]) {
+      unlink(position(slot), size);
+      store(slot, widget);
+      link(slot, size - 1);
+    } else {
+      store(slot, widget);
+    }
+  }
+
+  /**
+   * Удаление виджета: последний слот переносится на место удаленного.
+   *
+   * @param slot слот
+   */
+  private void remove(int slot) {
+    unlink(position(slot), size);
+    tableRemove(slot);
+    final int last = size - 1;
+    if (slot != last) {
+      order[positionIn(zs[last], last)] = slot;
+      tableReplace(last, slot);
+      idMostSigBits[slot] = idMostSigBits[last];
+      idLeastSigBits[slot] = idLeastSigBits[last];
+      xs[slot] = xs[last];
+      ys[slot] = ys[last];
+      zs[slot] = zs[last];
+      widths[slot] = widths[last];
+      heights[slot] = heights[last];
+      modifiedNanos[slot] = modifiedNanos[last];
+    }
+    size = last;
+  }
+
+  /**
+   * Вставка слота в порядок по его Z-order: Z-order виджетов, у которых он больше либо
+   * равен вставляемому, увеличивается на 1 - это хвост массива порядка.
+   *
+   * @param slot  слот с заполненным Z-order
+   * @param count текущая длина порядка (без вставляемого слота)
+   */
+  private void link(int slot, int count) {
+    final int z = zs[slot];
+    final int at = lowerBound(z, count);
+    for (int i = at; i < count; i++) {
+      zs[order[i]]++;
+    }
+    metrics.shifted(count - at);
+    System.arraycopy(order, at, order, at + 1, count - at);
+    order[at] = slot;
+  }
+
+  /**
+   * Исключение слота из порядка.
+   *
+   * @param at    позиция слота в порядке
+   * @param count текущая длина порядка
+   */
+  private void unlink(int at, int count) {
+    System.arraycopy(order, at + 1, order, at, count - at - 1);
+  }
+
+  /**
+   * Первая позиция порядка с Z-order не меньше заданного.
+   *
+   * @param z Z-order
+   * @return позиция (длина порядка, если таких нет)
+   */
+  private int lowerBound(int z) {
+    return lowerBound(z, size);
+  }
+
+  /**
+   * Первая позиция порядка заданной длины с Z-order не меньше заданного.
+   *
+   * @param z     Z-order
+   * @param count длина порядка
+   * @return позиция
+   */
+  private int lowerBound(int z, int count) {
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (zs[order[mid]] < z) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Позиция слота в порядке (Z-order уникален, поэтому - двоичный поиск).
+   *
+   * @param slot слот
+   * @return позиция
+   */
+  private int position(int slot) {
+    return positionIn(zs[slot], slot);
+  }
+
+  /**
+   * Позиция слота с заданным Z-order в порядке.
+   *
+   * @param z    Z-order слота
+   * @param slot слот
+   * @return позиция
+   */
+  private int positionIn(int z, int slot) {
+    int at = lowerBound(z);
+    if (at == size || order[at] != slot) {
+      throw new IllegalStateException("Слот " + slot + " не упорядочен по Z-order " + z);
+    }
+    return at;
+  }
+
+  /**
+   * Слот виджета по ИД.
+   *
+   * @param id ИД
+   * @return слот
+   * @throws WidgetNotFoundException если виджет не найден
+   */
+  private int findSlot(UUID id) throws WidgetNotFoundException {
+    int slot = find(id.getMostSignificantBits(), id.getLeastSignificantBits());
+    if (slot < 0) {
+      throw new WidgetNotFoundException(id);
+    }
+    return slot;
+  }
+
+  /**
+   * Поиск слота по ИД в хеш-таблице.
+   *
+   * @param most  старшие биты ИД
+   * @param least младшие биты ИД
+   * @return слот или -1
+   */
+  private int find(long most, long least) {
+    final int mask = table.length - 1;
+    for (int i = hash(most, least) & mask; ; i = (i + 1) & mask) {
+      int slot = table[i];
+      if (slot == EMPTY) {
+        return -1;
+      }
+      if (idMostSigBits[slot] == most && idLeastSigBits[slot] == least) {
+        return slot;
+      }
+    }
+  }
+
+  /**
+   * Позиция слота в хеш-таблице.
+   *
+   * @param slot слот
+   * @return позиция
+   */
+  private int tableIndex(int slot) {
+    final int mask = table.length - 1;
+    int i = hash(idMostSigBits[slot], idLeastSigBits[slot]) & mask;
+    while (table[i] != slot) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /**
+   * Добавление слота в хеш-таблицу.
+   *
+   * @param slot слот
+   */
+  private void tableInsert(int slot) {
+    if (size * 3 > table.length * 2) {
+      rehash(table.length * 2);
+      return;
+    }
+    final int mask = table.length - 1;
+    int i = hash(idMostSigBits[slot], idLeastSigBits[slot]) & mask;
+    while (table[i] != EMPTY) {
+      i = (i + 1) & mask;
+    }
+    table[i] = slot;
+  }
+
+  /**
+   * Удаление слота из хеш-таблицы со сдвигом следующих записей цепочки назад,
+   * чтобы в цепочках пробирования не оставалось дыр.
+   *
+   * @param slot слот
+   */
+  private void tableRemove(int slot) {
+    final int mask = table.length - 1;
+    int hole = tableIndex(slot);
+    table[hole] = EMPTY;
+    for (int i = (hole + 1) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+      int home = hash(idMostSigBits[table[i]], idLeastSigBits[table[i]]) & mask;
+      /* запись остается на месте, если ее начальная позиция циклически лежит в (hole, i] */
+      boolean stays = hole <= i ? hole < home && home <= i : hole < home || home <= i;
+      if (!stays) {
+        table[hole] = table[i];
+        table[i] = EMPTY;
+        hole = i;
+      }
+    }
+  }
+
+  /**
+   * Замена номера слота в хеш-таблице (ИД при этом не меняется).
+   *
+   * @param from прежний слот
+   * @param to   новый слот
+   */
+  private void tableReplace(int from, int to) {
+    table[tableIndex(from)] = to;
+  }
+
+  /**
+   * Перестроение хеш-таблицы по всем занятым слотам.
+   *
+   * @param length новый размер (степень двойки)
+   */
+  private void rehash(int length) {
+    table = new int[length];
+    Arrays.fill(table, EMPTY);
+    final int mask = length - 1;
+    for (int slot = 0; slot < size; slot++) {
+      int i = hash(idMostSigBits[slot], idLeastSigBits[slot]) & mask;
+      while (table[i] != EMPTY) {
+        i = (i + 1) & mask;
+      }
+      table[i] = slot;
+    }
+  }
+
+  /**
+   * Хеш ИД.
+   *
+   * @param most  старшие биты ИД
+   * @param least младшие биты ИД
+   * @return хеш
+   */
+  private static int hash(long most, long least) {
+    long hash = (most ^ least) * 0x9E3779B97F4A7C15L;
+    return (int) (hash >>> 32);
+  }
+
+  /**
+   * Выделение пустых столбцов.
+   *
+   * @param capacity емкость
+   */
+  private void allocate(int capacity) {
+    idMostSigBits = new long[capacity];
+    idLeastSigBits = new long[capacity];
+    xs = new int[capacity];
+    ys = new int[capacity];
+    zs = new int[capacity];
+    widths = new int[capacity];
+    heights = new int[capacity];
+    modifiedNanos = new long[capacity];
+    order = new int[capacity];
+    table = new int[Integer.highestOneBit(capacity) * 2];
+    Arrays.fill(table, EMPTY);
+  }
+
+  /**
+   * Увеличение емкости столбцов в 1,5 раза.
+   */
+  private void grow() {
+    int capacity = order.length + (order.length >> 1);
+    idMostSigBits = Arrays.copyOf(idMostSigBits, capacity);
+    idLeastSigBits = Arrays.copyOf(idLeastSigBits, capacity);
+    xs = Arrays.copyOf(xs, capacity);
+    ys = Arrays.copyOf(ys, capacity);
+    zs = Arrays.copyOf(zs, capacity);
+    widths = Arrays.copyOf(widths, capacity);
+    heights = Arrays.copyOf(heights, capacity);
+    modifiedNanos = Arrays.copyOf(modifiedNanos, capacity);
+    order = Arrays.copyOf(order, capacity);
+  }
+
+  /**
+   * Захват блокировки записи с записью времени ожидания.
+   */
+  private void lock() {
+    final long start = System.nanoTime();
+    readWriteLock.writeLock().lock();
+    if (readWriteLock.getWriteHoldCount() == 1) {
+      lockedAt = System.nanoTime();
+      metrics.lockWait(lockedAt - start);
+    }
+  }
+
+  /**
+   * Освобождение блокировки записи с записью времени удержания.
+   */
+  private void unlock() {
+    final long held = readWriteLock.getWriteHoldCount() == 1 ? System.nanoTime() - lockedAt : -1;
+    readWriteLock.writeLock().unlock();
+    if (held >= 0) {
+      metrics.lockHold(held);
+    }
+  }
+
+  /**
+   * Снимок доски: столбцы, упорядоченные по Z-order.
+   */
+  private static final class Snapshot implements WidgetSnapshot {
+
+    /**
+     * Старшие биты ИД.
+     */
+    final long[] idMostSigBits;
+
+    /**
+     * Младшие биты ИД.
+     */
+    final long[] idLeastSigBits;
+
+    /**
+     * Координаты X.
+     */
+    final int[] xs;
+
+    /**
+     * Координаты Y.
+     */
+    final int[] ys;
+
+    /**
+     * Z-order.
+     */
+    final int[] zs;
+
+    /**
+     * Ширины.
+     */
+    final int[] widths;
+
+    /**
+     * Высоты.
+     */
+    final int[] heights;
+
+    /**
+     * Даты последнего изменения в наносекундах.
+     */
+    final long[] modifiedNanos;
+
+    /**
+     * Создание пустого снимка.
+     *
+     * @param size количество виджетов
+     */
+    Snapshot(int size) {
+      idMostSigBits = new long[size];
+      idLeastSigBits = new long[size];
+      xs = new int[size];
+      ys = new int[size];
+      zs = new int[size];
+      widths = new int[size];
+      heights = new int[size];
+      modifiedNanos = new long[size];
+    }
+
+    @Override
+    public int size() {
+      return zs.length;
+    }
+
+    @Override
+    public Iterator<Widget> iterator() {
+      return new Iterator<Widget>() {
+        private int next;
+
+        @Override
+        public boolean hasNext() {
+          return next < zs.length;
+        }
+
+        @Override
+        public Widget next() {
+          if (next >= zs.length) {
+            throw new NoSuchElementException();
+          }
+          final int i = next++;
+          return Widget.of(idMostSigBits[i], idLeastSigBits[i], xs[i], ys[i], zs[i],
+              widths[i], heights[i], modifiedNanos[i]);
+        }
+      };
+    }
+  }
+}
@@ -1,194 +1,1336 @@
 package ru.kirillspirikhin.mirowidgets.services.impl;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import java.time.LocalDateTime;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.locks.ReentrantLock;
-import javax.naming.OperationNotSupportedException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Service;
 import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetVersionMismatchException;
 import ru.kirillspirikhin.mirowidgets.model.Widget;
 import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
 import ru.kirillspirikhin.mirowidgets.services.WidgetService;
 
 /**
- * Реализация сервиса виджетов на {@link java.util.LinkedList}.
+ * Реализация сервиса виджетов на двусвязном списке, упорядоченном по Z-order,
+ * с хеш-индексом узлов по ИД виджета.
+ * Используется по умолчанию ({@code widgets.storage: linked-list}).
+ *
+ * <p>Изменения выполняются под эксклюзивной блокировкой записи {@link StampedLock}.
+ * Чтения сначала выполняются оптимистично, без блокировки, и проверяют, что за время
+ * чтения не было записи; если была - чтение повторяется под разделяемой блокировкой
+ * чтения. Таким образом читатели никогда не ждут друг друга. Поиск по ИД блокировку
+ * не берет вовсе - индекс узлов построен на {@link ConcurrentHashMap}.
+ *
+ * <p>Изменение виджета без Z-order (перетаскивание, изменение размера) никого не сдвигает
+ * и выполняется без блокировки: узел находится по индексу, и новый виджет публикуется
+ * сравнением с обменом (CAS) ссылки на виджет в узле; при гонке изменение повторяется
+ * с новым состоянием виджета. Под блокировкой выполняются только изменения, затрагивающие
+ * порядок. Они тоже меняют виджет узла через CAS и применяют свое изменение к текущему
+ * виджету, поэтому не затирают параллельных изменений геометрии. Так перетаскивание
+ * не задерживает изменения Z-order и не заставляет оптимистичные чтения повторяться
+ * под блокировкой; снимок доски при этом согласован по составу и Z-order виджетов,
+ * а геометрию каждого виджета видит на момент чтения его узла.
+ *
+ * <p>Прямоугольники виджетов дополнительно индексируются {@link RTree} для поиска
+ * виджетов в области доски. Индекс строится при первом поиске в области или в точке
+ * (доска, восстановленная из снимка, начинает отвечать на запросы без построения
+ * R-дерева), а после этого обновляется при каждом изменении геометрии. R-дерево защищено
+ * своей блокировкой чтения-записи, которая берется после блокировки доски и только
+ * на время обновления прямоугольников, поэтому поиск в области и в точке не берет
+ * блокировку доски и не ждет изменений Z-order. Изменение без блокировки доски
+ * и ее не ждет: узел ставится в очередь обновления R-дерева, которую изменение
+ * применяет, только если блокировка R-дерева свободна, иначе ее применит следующее
+ * изменение. Поиск проверяет узлы очереди отдельно, по их текущей геометрии.
+ * Z-order найденных виджетов читается на момент поиска: во время сдвига Z-order
+ * результаты могут содержать виджеты и до, и после сдвига.
  */
 @Slf4j
 @Service
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+@ConditionalOnProperty(name = "widgets.storage", havingValue = "linked-list", matchIfMissing = true)
 public class WidgetServiceLinkedList implements WidgetService {
 
   /**
    * The lock protecting all mutators.
    */
-  final ReentrantLock reentrantLock = new ReentrantLock();
+  final StampedLock stampedLock = new StampedLock();
 
   /**
-   * Хранилище виджетов.
+   * Момент захвата блокировки записи ({@link System#nanoTime()}); пишется и читается под ней.
    */
-  private final LinkedList<Widget> widgets = new LinkedList<>();
+  private long lockedAt;
+
+  /**
+   * Метрики хранилища.
+   */
+  private StorageMetrics metrics = StorageMetrics.NOOP;
+
+  /**
+   * Индекс узлов списка по ИД виджета.
+   */
+  private final Map<UUID, Node> index = new ConcurrentHashMap<>();
+
+  /**
+   * Пространственный индекс ИД виджетов по их прямоугольникам.
+   */
+  private final RTree<UUID> spatialIndex = new RTree<>();
+
+  /**
+   * Блокировка пространственного индекса; берется после блокировки доски.
+   */
+  private final ReentrantReadWriteLock spatialLock = new ReentrantReadWriteLock();
+
+  /**
+   * Признак построения пространственного индекса; меняется только под блокировкой
+   * записи пространственного индекса.
+   */
+  private volatile boolean spatialIndexed;
+
+  /**
+   * Узлы, измененные без блокировки доски, прямоугольники которых еще не обновлены
+   * в пространственном индексе.
+   */
+  private final Set<Node> unindexed = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Количество виджетов.
+   */
+  private int size;
+
+  /**
+   * Первый (нижний по Z-order) узел списка.
+   */
+  private Node head;
+
+  /**
+   * Последний (верхний по Z-order) узел списка.
+   */
+  private Node tail;
+
+  /**
+   * Публикация метрик хранилища.
+   *
+   * @param meterRegistry реестр метрик
+   */
+  @Autowired(required = false)
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.metrics = new StorageMetrics(meterRegistry);
+  }
 
   @Override
   public Widget addWidget(WidgetDescription widgetDescription) {
     boolean insetAsLast = widgetDescription.getZ() == null;
     Widget widget = Widget.fromDescription(widgetDescription);
-    widget.setModifiedDate(LocalDateTime.now());
-    final ReentrantLock lock = this.reentrantLock;
-    lock.lock();
+    Node node = new Node(widget);
+    long stamp = writeLock();
     try {
-      addWidgetInternal(widget, insetAsLast);
-    } catch (OperationNotSupportedException e) {
-      log.error(e.toString());
+      addWidgetInternal(node, insetAsLast);
+      index.put(widget.getId(), node);
+      reindex(node);
+      size++;
+      return node.widget;
     } finally {
-      lock.unlock();
+      unlockWrite(stamp);
     }
-    return widget;
   }
 
   /**
-   * Добавление виджета в коллекцию.
+   * Добавление узла виджета в список.
    *
-   * @param widget       виджет
+   * @param node         узел виджета
    * @param insertAsLast вставка в конец (не указан Z-order)
-   * @throws OperationNotSupportedException исключение
    */
-  private void addWidgetInternal(final Widget widget, final boolean insertAsLast)
-      throws OperationNotSupportedException {
+  private void addWidgetInternal(final Node node, final boolean insertAsLast) {
     if (insertAsLast) {
       /* если у добавляемого виджета не указан Z-order,
       то присвоим Z-order на 1 больше, чем у последнего */
-      widget.setZ(!widgets.isEmpty()
-          ? widgets.getLast().getZ() + 1
+      node.setZ(tail != null
+          ? tail.widget.getZ() + 1
           : 0);
     }
-    if (widgets.isEmpty() || widget.getZ() > widgets.getLast().getZ()) {
-      /* если список пуст или если у добавляемого виджета заведомо больший Z-order,
-      то просто вставляем */
-      widgets.add(widget);
-    } else if (widget.getZ() <= widgets.getFirst().getZ()) {
-      /* если все элементы имеют Z-order больше, чем у вставляемого */
-      widgets.forEach(w -> w.setZ(w.getZ() + 1));
-      widgets.add(0, widget);
+    final int z = node.widget.getZ();
+    /* идем с конца списка и сдвигаем Z-order у тех виджетов,
+    у которых он больше либо равен вставляемому, - затрагиваются только сдвигаемые узлы */
+    int shifted = 0;
+    Node current = tail;
+    while (current != null && current.widget.getZ() >= z) {
+      current.setZ(current.widget.getZ() + 1);
+      current = current.prev;
+      shifted++;
+    }
+    metrics.shifted(shifted);
+    linkAfter(current, node);
+  }
+
+  /**
+   * Вставка узла в список после указанного.
+   *
+   * @param prev узел, после которого вставляется новый ({@code null} - в начало списка)
+   * @param node вставляемый узел
+   */
+  private void linkAfter(final Node prev, final Node node) {
+    final Node next = prev != null ? prev.next : head;
+    node.prev = prev;
+    node.next = next;
+    if (prev != null) {
+      prev.next = node;
+    } else {
+      head = node;
+    }
+    if (next != null) {
+      next.prev = node;
     } else {
-      /* ищем, куда вставить добавляемый виджет и сдвигаем Z-order у тех виджетов,
-      у которых он больше либо равен вставляемому */
-      boolean positionFound = false;
-      ListIterator<Widget> iterator = widgets.listIterator();
-      while (iterator.hasNext()) {
-        Widget currentWidget = iterator.next();
-        if (currentWidget.getZ() >= widget.getZ()) {
-          if (!positionFound) {
-            iterator.previous();
-            iterator.add(widget);
-            positionFound = true;
-            iterator.next();
-          }
-          currentWidget.setZ(currentWidget.getZ() + 1);
-        }
-      }
-      if (!positionFound) {
-        /* если так и не вставили, значит бага в алгоритме */
-        throw new OperationNotSupportedException("Ошибка в алгоритме");
-      }
+      tail = node;
     }
   }
 
+  /**
+   * Исключение узла из списка.
+   *
+   * @param node исключаемый узел
+   */
+  private void unlink(final Node node) {
+    if (node.prev != null) {
+      node.prev.next = node.next;
+    } else {
+      head = node.next;
+    }
+    if (node.next != null) {
+      node.next.prev = node.prev;
+    } else {
+      tail = node.prev;
+    }
+    node.prev = null;
+    node.next = null;
+  }
+
   @Override
   public Widget getById(UUID id) throws WidgetNotFoundException {
-    Widget[] local = getAllWidgets();
-    for (Widget w : local) {
-      if (w.getId().equals(id)) {
-        return w;
-      }
+    Node node = index.get(id);
+    if (node == null) {
+      throw new WidgetNotFoundException(id);
     }
-    throw new WidgetNotFoundException(id);
+    return node.widget;
   }
 
   @Override
   public Widget editWidget(UUID id, WidgetDescription description)
       throws WidgetNotFoundException {
-    Widget widget = null;
-    final ReentrantLock lock = this.reentrantLock;
-    lock.lock();
     try {
-      widget = widgets.stream().filter(w -> w.getId().equals(id)).findFirst()
-          .orElseThrow(() -> new WidgetNotFoundException(id));
-      boolean wasChanges = false;
-      boolean needMove = false;
-      if (description.getX() != null) {
-        widget.setX(description.getX());
-        wasChanges = true;
+      return edit(id, description, null);
+    } catch (WidgetVersionMismatchException e) {
+      /* не ожидается: версия не проверяется */
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Изменение с проверкой версии - тем же CAS, что публикует новый виджет:
+   * блокировка на время проверки не нужна.
+   */
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description, long expectedVersion)
+      throws WidgetNotFoundException, WidgetVersionMismatchException {
+    return edit(id, description, expectedVersion);
+  }
+
+  /**
+   * Изменение виджета. Без Z-order - без блокировки доски: CAS виджета в узле
+   * и обновление его прямоугольника без ожидания блокировки пространственного индекса.
+   *
+   * @param id              ИД виджета
+   * @param description     описание виджета
+   * @param expectedVersion ожидаемая версия виджета ({@code null} - без проверки)
+   * @return измененный виджет
+   * @throws WidgetNotFoundException        если виджет не найден
+   * @throws WidgetVersionMismatchException если версия виджета не совпадает с ожидаемой
+   */
+  private Widget edit(UUID id, WidgetDescription description, Long expectedVersion)
+      throws WidgetNotFoundException, WidgetVersionMismatchException {
+    if (description.getZ() == null) {
+      Node node = index.get(id);
+      if (node == null) {
+        throw new WidgetNotFoundException(id);
       }
-      if (description.getY() != null) {
-        widget.setY(description.getY());
-        wasChanges = true;
+      Widget widget = update(node, description, expectedVersion);
+      if (hasGeometry(description)) {
+        reindexLater(node);
       }
-      if (description.getHeight() != null) {
-        widget.setHeight(description.getHeight());
-        wasChanges = true;
+      return widget;
+    }
+    long stamp = writeLock();
+    try {
+      Node node = index.get(id);
+      if (node == null) {
+        throw new WidgetNotFoundException(id);
       }
-      if (description.getWidth() != null) {
-        widget.setWidth(description.getWidth());
-        wasChanges = true;
+      /* Z-order меняется только под блокировкой, геометрия - и без нее */
+      final boolean needMove = description.getZ() != node.widget.getZ();
+      update(node, description, expectedVersion);
+      if (hasGeometry(description)) {
+        reindex(node);
+      }
+      if (needMove) {
+        unlink(node);
+        addWidgetInternal(node, false);
+      }
+      return node.widget;
+    } finally {
+      unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Применение описания к виджету узла сравнением с обменом; при гонке описание
+   * применяется заново к новому виджету, и заново проверяется версия.
+   *
+   * @param node            узел виджета
+   * @param description     описание виджета
+   * @param expectedVersion ожидаемая версия виджета ({@code null} - без проверки)
+   * @return новый виджет
+   * @throws WidgetVersionMismatchException если версия виджета не совпадает с ожидаемой
+   */
+  private static Widget update(Node node, WidgetDescription description, Long expectedVersion)
+      throws WidgetVersionMismatchException {
+    final LocalDateTime now = LocalDateTime.now(ZoneOffset.UTC);
+    while (true) {
+      Widget current = node.widget;
+      if (expectedVersion != null) {
+        WidgetService.checkVersion(current, expectedVersion);
+      }
+      if (!hasGeometry(description) && description.getZ() == null) {
+        return current;
       }
+      Widget updated = withGeometry(current, description);
       if (description.getZ() != null) {
-        needMove = !description.getZ().equals(widget.getZ());
-        widget.setZ(description.getZ());
-        wasChanges = true;
+        updated = updated.withZ(description.getZ());
       }
-      if (wasChanges) {
-        widget.setModifiedDate(LocalDateTime.now());
-        if (needMove) {
-          if (widgets.removeIf(w -> w.getId().equals(id))) {
-            addWidgetInternal(widget, false);
-          } else {
-            return null;
-          }
-        }
+      updated = updated.withModifiedDate(now);
+      if (node.compareAndSet(current, updated)) {
+        return updated;
       }
-    } catch (OperationNotSupportedException e) {
-      log.error(e.toString());
-    } finally {
-      lock.unlock();
+    }
+  }
+
+  /**
+   * Применение указанных в описании координат и размеров к виджету.
+   *
+   * @param widget      виджет
+   * @param description описание виджета
+   * @return виджет с новой геометрией
+   */
+  private static Widget withGeometry(Widget widget, WidgetDescription description) {
+    if (description.getX() != null) {
+      widget = widget.withX(description.getX());
+    }
+    if (description.getY() != null) {
+      widget = widget.withY(description.getY());
+    }
+    if (description.getHeight() != null) {
+      widget = widget.withHeight(description.getHeight());
+    }
+    if (description.getWidth() != null) {
+      widget = widget.withWidth(description.getWidth());
     }
     return widget;
   }
 
+  /**
+   * Проверка наличия в описании координат или размеров.
+   *
+   * @param description описание виджета
+   * @return признак изменения геометрии
+   */
+  private static boolean hasGeometry(WidgetDescription description) {
+    return description.getX() != null || description.getY() != null
+        || description.getWidth() != null || description.getHeight() != null;
+  }
+
   @Override
   public boolean deleteWidget(UUID id) {
-    final ReentrantLock lock = this.reentrantLock;
-    lock.lock();
+    long stamp = writeLock();
+    try {
+      Node node = index.remove(id);
+      if (node == null) {
+        return false;
+      }
+      unlink(node);
+      unindexArea(id);
+      size--;
+      return true;
+    } finally {
+      unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public void putWidget(Widget widget) {
+    long stamp = writeLock();
+    try {
+      Node node = index.get(widget.getId());
+      if (node == null) {
+        node = new Node(widget);
+        addWidgetInternal(node, false);
+        index.put(widget.getId(), node);
+        reindex(node);
+        size++;
+        return;
+      }
+      Widget before = node.widget;
+      node.widget = widget;
+      if (isGeometryChanged(before, widget)) {
+        reindex(node);
+      }
+      if (before.getZ() != widget.getZ()) {
+        unlink(node);
+        addWidgetInternal(node, false);
+      }
+    } finally {
+      unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public Widget[] applyBatch(List<WidgetOperation> operations)
+      throws WidgetNotFoundException {
+    long stamp = writeLock();
     try {
-      return widgets.removeIf(w -> w.getId().equals(id));
+      Batch batch = new Batch();
+      Widget[] results = new Widget[operations.size()];
+      for (int i = 0; i < results.length; i++) {
+        results[i] = batch.apply(operations.get(i));
+      }
+      batch.commit();
+      return results;
     } finally {
-      lock.unlock();
+      unlockWrite(stamp);
     }
   }
 
+  @Override
+  public int getWidgetCount() {
+    return index.size();
+  }
+
   @Override
   public Widget[] getAllWidgets() {
-    Widget[] localWidgets;
-    final ReentrantLock lock = this.reentrantLock;
-    lock.lock();
+    final StampedLock lock = this.stampedLock;
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      Widget[] localWidgets = copyWidgets();
+      if (lock.validate(stamp)) {
+        return localWidgets;
+      }
+    }
+    /* во время оптимистичного чтения была запись - читаем под блокировкой */
+    stamp = lock.readLock();
     try {
-      localWidgets = new Widget[widgets.size()];
-      localWidgets = widgets.toArray(localWidgets);
+      return copyWidgets();
     } finally {
-      lock.unlock();
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Копирование виджетов в массив в порядке Z-order.
+   * При оптимистичном чтении список может меняться параллельно, поэтому обход
+   * ограничен размером массива, а результат годен только после проверки штампа.
+   *
+   * @return массив виджетов
+   */
+  private Widget[] copyWidgets() {
+    Widget[] localWidgets = new Widget[size];
+    int i = 0;
+    for (Node node = head; node != null && i < localWidgets.length; node = node.next) {
+      localWidgets[i++] = node.widget;
     }
     return localWidgets;
   }
 
+  @Override
+  public Widget[] getWidgetsPage(UUID afterId, int fromZ, int toZ, int limit)
+      throws WidgetNotFoundException {
+    final StampedLock lock = this.stampedLock;
+    long stamp = lock.readLock();
+    try {
+      Node node;
+      if (afterId != null) {
+        /* продолжение страницы начинается сразу за узлом курсора - O(размер страницы) */
+        Node after = index.get(afterId);
+        if (after == null) {
+          throw new WidgetNotFoundException(afterId);
+        }
+        node = after.next;
+      } else {
+        /* индекса по Z-order нет: начало диапазона ищется обходом с начала списка -
+        O(количество виджетов ниже fromZ) */
+        node = head;
+      }
+      while (node != null && node.widget.getZ() < fromZ) {
+        node = node.next;
+      }
+      List<Widget> page = new ArrayList<>(Math.min(limit, size));
+      for (; node != null && page.size() < limit && node.widget.getZ() <= toZ;
+           node = node.next) {
+        page.add(node.widget);
+      }
+      return page.toArray(new Widget[0]);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public Widget[] getWidgetsInArea(int x, int y, int width, int height) {
+    List<Widget> widgets = new ArrayList<>();
+    search(x, y, width, height, widgets::add);
+    Widget[] found = widgets.toArray(new Widget[0]);
+    Arrays.sort(found, Comparator.comparingInt(Widget::getZ));
+    return found;
+  }
+
+  @Override
+  public Optional<Widget> getTopWidgetAt(int x, int y) {
+    Widget[] top = new Widget[1];
+    search(x, y, 1, 1, widget -> {
+      if (top[0] == null || widget.getZ() > top[0].getZ()) {
+        top[0] = widget;
+      }
+    });
+    return Optional.ofNullable(top[0]);
+  }
+
+  /**
+   * Поиск виджетов, пересекающихся с областью, под блокировкой чтения пространственного
+   * индекса. Узлы очереди обновления R-дерева проверяются отдельно: их прямоугольники
+   * в R-дереве могут быть устаревшими.
+   *
+   * @param x        координата X области
+   * @param y        координата Y области
+   * @param width    ширина области
+   * @param height   высота области
+   * @param consumer получатель найденных виджетов
+   */
+  private void search(int x, int y, int width, int height, Consumer<Widget> consumer) {
+    ensureSpatialIndex();
+    spatialLock.readLock().lock();
+    try {
+      final Set<Node> pending = unindexed.isEmpty()
+          ? Collections.emptySet() : new HashSet<>(unindexed);
+      /* виджет может быть уже удален из индекса узлов, а геометрия - измениться
+      до обновления его прямоугольника: проверяется по найденному виджету */
+      spatialIndex.search(x, y, (long) x + width, (long) y + height, id -> {
+        Node node = index.get(id);
+        if (node != null && !pending.contains(node)) {
+          Widget widget = node.widget;
+          if (widget.intersects(x, y, width, height)) {
+            consumer.accept(widget);
+          }
+        }
+      });
+      for (Node node : pending) {
+        Widget widget = node.widget;
+        if (index.get(widget.getId()) == node && widget.intersects(x, y, width, height)) {
+          consumer.accept(widget);
+        }
+      }
+    } finally {
+      spatialLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Обновление прямоугольника виджета узла в пространственном индексе. Виджет читается
+   * под блокировкой индекса, поэтому обновление после последнего изменения виджета
+   * (с блокировкой доски или без) оставляет в индексе его текущий прямоугольник.
+   * Узел, уже удаленный из индекса узлов, удаляется и из пространственного индекса.
+   *
+   * @param node узел виджета
+   */
+  private void reindex(Node node) {
+    if (!spatialIndexed) {
+      /* флаг читается после изменения виджета: если индекс строится параллельно,
+      либо построение увидит новую геометрию, либо здесь будет виден флаг */
+      return;
+    }
+    spatialLock.writeLock().lock();
+    try {
+      reindexPending();
+      reindexLocked(node);
+    } finally {
+      spatialLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Обновление прямоугольника виджета, измененного без блокировки доски, без ожидания
+   * блокировки пространственного индекса: узел ставится в очередь обновления, а очередь
+   * применяется, только если блокировка свободна (иначе - следующим обновлением).
+   *
+   * @param node узел виджета
+   */
+  private void reindexLater(Node node) {
+    if (!spatialIndexed) {
+      return;
+    }
+    unindexed.add(node);
+    if (spatialLock.writeLock().tryLock()) {
+      try {
+        reindexPending();
+      } finally {
+        spatialLock.writeLock().unlock();
+      }
+    }
+  }
+
+  /**
+   * Применение очереди обновления R-дерева (под блокировкой записи пространственного
+   * индекса). Узел удаляется из очереди до чтения его виджета: изменение, опубликованное
+   * позже чтения, снова поставит узел в очередь.
+   */
+  private void reindexPending() {
+    for (Iterator<Node> nodes = unindexed.iterator(); nodes.hasNext(); ) {
+      Node node = nodes.next();
+      nodes.remove();
+      reindexLocked(node);
+    }
+  }
+
+  /**
+   * Обновление прямоугольника виджета узла (под блокировкой записи пространственного
+   * индекса).
+   *
+   * @param node узел виджета
+   */
+  private void reindexLocked(Node node) {
+    Widget widget = node.widget;
+    spatialIndex.remove(widget.getId());
+    if (index.get(widget.getId()) == node) {
+      spatialIndex.insert(widget.getId(), widget.getX(), widget.getY(),
+          (long) widget.getX() + widget.getWidth(), (long) widget.getY() + widget.getHeight());
+    }
+  }
+
+  /**
+   * Удаление прямоугольника виджета из пространственного индекса.
+   *
+   * @param id ИД виджета
+   */
+  private void unindexArea(UUID id) {
+    if (!spatialIndexed) {
+      return;
+    }
+    spatialLock.writeLock().lock();
+    try {
+      reindexPending();
+      spatialIndex.remove(id);
+    } finally {
+      spatialLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Построение пространственного индекса при первом поиске по нему - по индексу узлов,
+   * без блокировки доски: узлы, добавленные во время построения, добавляют свои
+   * прямоугольники сами, когда увидят флаг построения.
+   */
+  private void ensureSpatialIndex() {
+    if (spatialIndexed) {
+      return;
+    }
+    spatialLock.writeLock().lock();
+    try {
+      if (!spatialIndexed) {
+        spatialIndexed = true;
+        for (Node node : index.values()) {
+          Widget widget = node.widget;
+          spatialIndex.insert(widget.getId(), widget.getX(), widget.getY(),
+              (long) widget.getX() + widget.getWidth(), (long) widget.getY() + widget.getHeight());
+        }
+      }
+    } finally {
+      spatialLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Проверка изменения прямоугольника виджета.
+   *
+   * @param before виджет до изменения
+   * @param after  виджет после изменения
+   * @return признак изменения
+   */
+  private static boolean isGeometryChanged(Widget before, Widget after) {
+    return before.getX() != after.getX() || before.getY() != after.getY()
+        || before.getWidth() != after.getWidth() || before.getHeight() != after.getHeight();
+  }
+
+  @Override
+  public Widget getByRank(int rank) {
+    final StampedLock lock = this.stampedLock;
+    long stamp = lock.readLock();
+    try {
+      if (rank < 0 || rank >= size) {
+        throw new IndexOutOfBoundsException("Ранг " + rank + " вне диапазона, размер: " + size);
+      }
+      Node node = head;
+      for (int i = 0; i < rank; i++) {
+        node = node.next;
+      }
+      return node.widget;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  @Override
+  public int getRank(UUID id) throws WidgetNotFoundException {
+    final StampedLock lock = this.stampedLock;
+    long stamp = lock.readLock();
+    try {
+      Node node = index.get(id);
+      if (node == null) {
+        throw new WidgetNotFoundException(id);
+      }
+      int rank = 0;
+      for (Node current = node.prev; current != null; current = current.prev) {
+        rank++;
+      }
+      return rank;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
   @Override
   public void deleteAllWidgets() {
-    final ReentrantLock lock = this.reentrantLock;
-    lock.lock();
+    long stamp = writeLock();
     try {
-      widgets.clear();
+      index.clear();
+      spatialLock.writeLock().lock();
+      try {
+        spatialIndex.clear();
+        unindexed.clear();
+      } finally {
+        spatialLock.writeLock().unlock();
+      }
+      head = null;
+      tail = null;
+      size = 0;
     } finally {
-      lock.unlock();
+      unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Захват блокировки записи с записью времени ожидания.
+   *
+   * @return штамп блокировки
+   */
+  private long writeLock() {
+    final long start = System.nanoTime();
+    final long stamp = stampedLock.writeLock();
+    lockedAt = System.nanoTime();
+    metrics.lockWait(lockedAt - start);
+    return stamp;
+  }
+
+  /**
+   * Освобождение блокировки записи с записью времени удержания.
+   *
+   * @param stamp штамп блокировки
+   */
+  private void unlockWrite(long stamp) {
+    final long held = System.nanoTime() - lockedAt;
+    stampedLock.unlockWrite(stamp);
+    metrics.lockHold(held);
+  }
+
+  /**
+   * Пакет изменений виджетов.
+   *
+   * <p>Операции сначала применяются к модели пакета, не трогая список: добавленные
+   * и перемещенные виджеты хранятся в отдельном упорядоченном по Z-order списке,
+   * а сдвиги Z-order остальных виджетов накапливаются порогами - сдвиг "все виджеты
+   * с Z-order не меньше z на 1" запоминается как порог в исходных координатах.
+   * Если какой-то виджет не найден, список остается нетронутым. Затем {@link #commit()}
+   * за один проход с конца списка до нижнего затронутого виджета применяет все сдвиги
+   * и вставки, поэтому N вставок в начало доски стоят один проход, а не N.
+   */
+  private final class Batch {
+
+    /**
+     * Изменения виджетов по ИД.
+     */
+    private final Map<UUID, Change> changes = new LinkedHashMap<>();
+
+    /**
+     * Добавленные и перемещенные виджеты в порядке Z-order.
+     */
+    private final List<Change> placed = new ArrayList<>();
+
+    /**
+     * Пороги сдвигов Z-order виджетов списка в исходных координатах, по возрастанию.
+     */
+    private int[] shifts = new int[8];
+
+    /**
+     * Количество порогов сдвигов.
+     */
+    private int shiftCount;
+
+    /**
+     * Применение операции к модели пакета.
+     *
+     * @param operation операция
+     * @return виджет сразу после выполнения операции
+     * @throws WidgetNotFoundException если виджет не найден
+     */
+    private Widget apply(WidgetOperation operation) throws WidgetNotFoundException {
+      switch (operation.getType()) {
+        case CREATE:
+          return create(operation.getDescription());
+        case EDIT:
+          return edit(operation.getId(), operation.getDescription());
+        default:
+          return delete(operation.getId());
+      }
+    }
+
+    /**
+     * Добавление виджета.
+     *
+     * @param description описание виджета
+     * @return добавленный виджет
+     */
+    private Widget create(WidgetDescription description) {
+      Widget widget = Widget.fromDescription(description);
+      Change change = new Change(new Node(widget), null);
+      changes.put(widget.getId(), change);
+      place(change, description.getZ() != null ? description.getZ() : topZ() + 1);
+      return widget.withZ(change.z);
+    }
+
+    /**
+     * Изменение виджета.
+     *
+     * @param id          ИД виджета
+     * @param description описание виджета
+     * @return измененный виджет
+     * @throws WidgetNotFoundException если виджет не найден
+     */
+    private Widget edit(UUID id, WidgetDescription description)
+        throws WidgetNotFoundException {
+      Change change = find(id);
+      Widget widget = change.widget;
+      boolean wasChanges = false;
+      if (description.getX() != null) {
+        widget = widget.withX(description.getX());
+        wasChanges = true;
+      }
+      if (description.getY() != null) {
+        widget = widget.withY(description.getY());
+        wasChanges = true;
+      }
+      if (description.getHeight() != null) {
+        widget = widget.withHeight(description.getHeight());
+        wasChanges = true;
+      }
+      if (description.getWidth() != null) {
+        widget = widget.withWidth(description.getWidth());
+        wasChanges = true;
+      }
+      if (description.getZ() != null) {
+        wasChanges = true;
+      }
+      if (wasChanges) {
+        change.widget = widget.withModifiedDate(LocalDateTime.now(ZoneOffset.UTC));
+        change.edit(description);
+        if (description.getZ() != null && description.getZ() != currentZ(change)) {
+          unplace(change);
+          place(change, description.getZ());
+        }
+      }
+      return change.widget.withZ(currentZ(change));
+    }
+
+    /**
+     * Удаление виджета.
+     *
+     * @param id ИД виджета
+     * @return удаленный виджет
+     * @throws WidgetNotFoundException если виджет не найден
+     */
+    private Widget delete(UUID id) throws WidgetNotFoundException {
+      Change change = find(id);
+      Widget widget = change.widget.withZ(currentZ(change));
+      unplace(change);
+      change.deleted = true;
+      return widget;
+    }
+
+    /**
+     * Поиск изменения виджета; при первом обращении к виджету списка изменение создается.
+     *
+     * @param id ИД виджета
+     * @return изменение
+     * @throws WidgetNotFoundException если виджет не найден или уже удален пакетом
+     */
+    private Change find(UUID id) throws WidgetNotFoundException {
+      Change change = changes.get(id);
+      if (change == null) {
+        Node node = index.get(id);
+        if (node == null) {
+          throw new WidgetNotFoundException(id);
+        }
+        change = new Change(node, node.widget);
+        changes.put(id, change);
+      }
+      if (change.deleted) {
+        throw new WidgetNotFoundException(id);
+      }
+      return change;
+    }
+
+    /**
+     * Текущий (с учетом уже примененных операций пакета) Z-order виджета.
+     *
+     * @param change изменение виджета
+     * @return Z-order
+     */
+    private int currentZ(Change change) {
+      return change.placed ? change.z : shifted(change.widget.getZ());
+    }
+
+    /**
+     * Текущий Z-order верхнего виджета ({@code -1}, если доска пуста).
+     *
+     * @return Z-order
+     */
+    private int topZ() {
+      int top = placed.isEmpty() ? -1 : placed.get(placed.size() - 1).z;
+      /* верхний виджет списка, оставшийся на своем месте, - выше него только
+      затронутые пакетом узлы, поэтому обход короткий */
+      for (Node node = tail; node != null; node = node.prev) {
+        Change change = changes.get(node.widget.getId());
+        if (change == null || !change.placed && !change.deleted) {
+          return Math.max(top, shifted(node.widget.getZ()));
+        }
+      }
+      return top;
+    }
+
+    /**
+     * Вставка виджета в позицию Z-order со сдвигом виджетов с Z-order не меньше нее.
+     *
+     * @param change изменение виджета
+     * @param z      Z-order
+     */
+    private void place(Change change, int z) {
+      int from = lowerBound(z);
+      for (int i = from; i < placed.size(); i++) {
+        placed.get(i).z++;
+      }
+      addShift(unshifted(z));
+      change.z = z;
+      change.placed = true;
+      placed.add(from, change);
+    }
+
+    /**
+     * Исключение виджета из его текущей позиции (сдвигов не вызывает).
+     *
+     * @param change изменение виджета
+     */
+    private void unplace(Change change) {
+      if (change.placed) {
+        placed.remove(lowerBound(change.z));
+      }
+    }
+
+    /**
+     * Позиция первого добавленного или перемещенного виджета с Z-order не меньше z.
+     *
+     * @param z Z-order
+     * @return позиция
+     */
+    private int lowerBound(int z) {
+      int low = 0;
+      int high = placed.size();
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (placed.get(mid).z < z) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * Текущий Z-order виджета списка по его исходному Z-order.
+     *
+     * @param z исходный Z-order
+     * @return текущий Z-order
+     */
+    private int shifted(int z) {
+      int low = 0;
+      int high = shiftCount;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (shifts[mid] <= z) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return z + low;
+    }
+
+    /**
+     * Наименьший исходный Z-order, текущий Z-order которого не меньше z.
+     * Каждый порог сдвигает на 1, поэтому ответ лежит в [z - shiftCount, z].
+     *
+     * @param z текущий Z-order
+     * @return исходный Z-order
+     */
+    private int unshifted(int z) {
+      int low = z - shiftCount;
+      int high = z;
+      while (low < high) {
+        int mid = (int) (((long) low + high) >> 1);
+        if (shifted(mid) < z) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    /**
+     * Добавление порога сдвига.
+     *
+     * @param threshold порог в исходных координатах
+     */
+    private void addShift(int threshold) {
+      if (shiftCount == shifts.length) {
+        shifts = Arrays.copyOf(shifts, shiftCount * 2);
+      }
+      int i = shiftCount;
+      while (i > 0 && shifts[i - 1] > threshold) {
+        shifts[i] = shifts[i - 1];
+        i--;
+      }
+      shifts[i] = threshold;
+      shiftCount++;
+    }
+
+    /**
+     * Применение пакета к списку и индексам.
+     */
+    private void commit() {
+      for (Change change : changes.values()) {
+        if (change.original != null && (change.placed || change.deleted)) {
+          unlink(change.node);
+        }
+      }
+      /* один проход с конца: сдвигаем оставшиеся на месте узлы и вставляем
+      добавленные и перемещенные; ниже первого несдвинутого узла, под которым
+      нечего вставлять, ничего не меняется */
+      int i = placed.size() - 1;
+      int shiftedCount = 0;
+      Node node = tail;
+      while (node != null) {
+        final int originalZ = node.widget.getZ();
+        final int z = shifted(originalZ);
+        if (i < 0 && z == originalZ) {
+          break;
+        }
+        for (; i >= 0 && placed.get(i).z > z; i--) {
+          link(node, placed.get(i));
+        }
+        if (z != originalZ) {
+          node.setZ(z);
+          shiftedCount++;
+        }
+        node = node.prev;
+      }
+      for (; i >= 0; i--) {
+        link(null, placed.get(i));
+      }
+      if (shiftCount > 0) {
+        /* сдвиги всего пакета выполнены одним проходом - одна запись на пакет */
+        metrics.shifted(shiftedCount);
+      }
+      for (Map.Entry<UUID, Change> entry : changes.entrySet()) {
+        final UUID id = entry.getKey();
+        final Change change = entry.getValue();
+        if (change.deleted) {
+          if (change.original != null) {
+            index.remove(id);
+            unindexArea(id);
+            size--;
+          }
+          continue;
+        }
+        if (!change.placed) {
+          final int z = shifted(change.widget.getZ());
+          change.node.update(widget -> change.merge(widget).withZ(z));
+        }
+        if (change.original == null) {
+          index.put(id, change.node);
+          reindex(change.node);
+          size++;
+        } else if (isGeometryChanged(change.original, change.node.widget)) {
+          reindex(change.node);
+        }
+      }
+    }
+
+    /**
+     * Вставка узла добавленного или перемещенного виджета.
+     *
+     * @param prev   узел, после которого вставляется виджет ({@code null} - в начало)
+     * @param change изменение виджета
+     */
+    private void link(Node prev, Change change) {
+      final int z = change.z;
+      if (change.original == null) {
+        change.node.widget = change.widget.withZ(z);
+      } else {
+        /* перемещаемый виджет остается в индексе и может меняться без блокировки */
+        change.node.update(widget -> change.merge(widget).withZ(z));
+      }
+      linkAfter(prev, change.node);
+    }
+  }
+
+  /**
+   * Изменение виджета в пакете.
+   */
+  private static final class Change {
+
+    /**
+     * Узел виджета.
+     */
+    private final Node node;
+
+    /**
+     * Виджет до пакета ({@code null} - виджет добавлен пакетом).
+     */
+    private final Widget original;
+
+    /**
+     * Виджет с учетом изменений. Для виджетов, оставшихся на месте,
+     * Z-order исходный, иначе - не используется (см. {@link #z}).
+     */
+    private Widget widget;
+
+    /**
+     * Текущий Z-order добавленного или перемещенного виджета.
+     */
+    private int z;
+
+    /**
+     * Признак того, что виджет добавлен или перемещен пакетом.
+     */
+    private boolean placed;
+
+    /**
+     * Признак того, что виджет удален пакетом.
+     */
+    private boolean deleted;
+
+    /**
+     * Признак изменения виджета пакетом.
+     */
+    private boolean edited;
+
+    /**
+     * Координата X, указанная в изменениях пакета ({@code null} - не менялась).
+     */
+    private Integer x;
+
+    /**
+     * Координата Y, указанная в изменениях пакета ({@code null} - не менялась).
+     */
+    private Integer y;
+
+    /**
+     * Ширина, указанная в изменениях пакета ({@code null} - не менялась).
+     */
+    private Integer width;
+
+    /**
+     * Высота, указанная в изменениях пакета ({@code null} - не менялась).
+     */
+    private Integer height;
+
+    /**
+     * Создание изменения.
+     *
+     * @param node     узел виджета
+     * @param original виджет до пакета
+     */
+    private Change(Node node, Widget original) {
+      this.node = node;
+      this.original = original;
+      this.widget = node.widget;
+    }
+
+    /**
+     * Учет изменения виджета пакетом.
+     *
+     * @param description описание виджета
+     */
+    private void edit(WidgetDescription description) {
+      edited = true;
+      if (description.getX() != null) {
+        x = description.getX();
+      }
+      if (description.getY() != null) {
+        y = description.getY();
+      }
+      if (description.getWidth() != null) {
+        width = description.getWidth();
+      }
+      if (description.getHeight() != null) {
+        height = description.getHeight();
+      }
+    }
+
+    /**
+     * Применение изменений пакета к текущему виджету узла: геометрия, измененная
+     * без блокировки во время пакета, сохраняется, если пакет ее не менял.
+     *
+     * @param current текущий виджет узла
+     * @return виджет с изменениями пакета (Z-order не меняется)
+     */
+    private Widget merge(Widget current) {
+      if (!edited) {
+        return current;
+      }
+      Widget merged = current;
+      if (x != null) {
+        merged = merged.withX(x);
+      }
+      if (y != null) {
+        merged = merged.withY(y);
+      }
+      if (width != null) {
+        merged = merged.withWidth(width);
+      }
+      if (height != null) {
+        merged = merged.withHeight(height);
+      }
+      return merged.withModifiedDate(widget.getModifiedDate());
+    }
+  }
+
+  /**
+   * Узел двусвязного списка виджетов.
+   */
+  private static final class Node {
+
+    /**
+     * Обновление виджета узла сравнением с обменом.
+     */
+    private static final AtomicReferenceFieldUpdater<Node, Widget> WIDGET =
+        AtomicReferenceFieldUpdater.newUpdater(Node.class, Widget.class, "widget");
+
+    /**
+     * Виджет. При изменении виджета или сдвиге Z-order заменяется новым экземпляром;
+     * volatile - чтобы поиск по ИД без блокировки видел последнюю версию.
+     * Виджет индексированного узла меняется только через CAS ({@link #update},
+     * {@link #setZ}), чтобы не затереть изменение геометрии без блокировки.
+     */
+    private volatile Widget widget;
+
+    /**
+     * Предыдущий узел (с меньшим Z-order).
+     */
+    private Node prev;
+
+    /**
+     * Следующий узел (с большим Z-order).
+     */
+    private Node next;
+
+    /**
+     * Создание узла.
+     *
+     * @param widget виджет
+     */
+    private Node(Widget widget) {
+      this.widget = widget;
+    }
+
+    /**
+     * Замена виджета, если он не изменился.
+     *
+     * @param expect ожидаемый текущий виджет
+     * @param update новый виджет
+     * @return признак замены
+     */
+    private boolean compareAndSet(Widget expect, Widget update) {
+      return WIDGET.compareAndSet(this, expect, update);
+    }
+
+    /**
+     * Замена виджета результатом изменения текущего виджета; при гонке изменение
+     * применяется заново к новому виджету.
+     *
+     * @param change изменение
+     * @return новый виджет
+     */
+    private Widget update(UnaryOperator<Widget> change) {
+      while (true) {
+        Widget current = widget;
+        Widget updated = change.apply(current);
+        if (compareAndSet(current, updated)) {
+          return updated;
+        }
+      }
+    }
+
+    /**
+     * Установка Z-order виджета (без лямбды - вызывается в циклах сдвига).
+     *
+     * @param z Z-order
+     */
+    private void setZ(int z) {
+      while (true) {
+        Widget current = widget;
+        if (compareAndSet(current, current.withZ(z))) {
+          return;
+        }
+      }
     }
   }
 }
@@ -0,0 +1,458 @@
+package ru.kirillspirikhin.mirowidgets.services.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetVersionMismatchException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.WidgetSnapshot;
+
+/**
+ * Реализация сервиса виджетов на неизменяемых (персистентных) структурах.
+ *
+ * <p>Доска - это неизменяемая версия {@link Board}: дерево виджетов по Z-order
+ * ({@link PersistentZOrderTree}) и индекс ИД - стабильный ключ узла
+ * ({@link PersistentHashMap}). Изменения выполняются по одному под блокировкой,
+ * строят новую версию, разделяющую с предыдущей все незатронутые узлы, и публикуют ее
+ * одной записью в volatile-ссылку. Читатели берут текущую версию за O(1) без блокировок
+ * и копирования и никогда не видят частично выполненный сдвиг Z-order.
+ *
+ * <p>Включается настройкой {@code widgets.storage: persistent}.
+ */
+@Service
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+@ConditionalOnProperty(name = "widgets.storage", havingValue = "persistent")
+public class WidgetServicePersistent implements WidgetService {
+
+  /**
+   * Шаг между стабильными ключами соседних виджетов после перенумерации.
+   */
+  static final long GAP = 1L << 32;
+
+  /**
+   * The lock protecting all mutators.
+   */
+  final ReentrantLock reentrantLock = new ReentrantLock();
+
+  /**
+   * Момент захвата блокировки ({@link System#nanoTime()}); пишется и читается под ней.
+   */
+  private long lockedAt;
+
+  /**
+   * Метрики хранилища.
+   */
+  private StorageMetrics metrics = StorageMetrics.NOOP;
+
+  /**
+   * Генератор приоритетов узлов дерева.
+   */
+  private final Random random = new Random();
+
+  /**
+   * Текущая версия доски.
+   */
+  private volatile Board board = Board.EMPTY;
+
+  /**
+   * Публикация метрик хранилища.
+   *
+   * @param meterRegistry реестр метрик
+   */
+  @Autowired(required = false)
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.metrics = new StorageMetrics(meterRegistry);
+  }
+
+  @Override
+  public Widget addWidget(WidgetDescription widgetDescription) {
+    lock();
+    try {
+      Board current = board;
+      Widget widget = created(current, widgetDescription);
+      board = insert(current, widget);
+      return widget;
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Новый виджет по описанию с заполненным Z-order.
+   *
+   * @param current           текущая версия доски
+   * @param widgetDescription описание виджета
+   * @return виджет
+   */
+  private static Widget created(Board current, WidgetDescription widgetDescription) {
+    Widget widget = Widget.fromDescription(widgetDescription);
+    if (widgetDescription.getZ() == null) {
+      /* если у добавляемого виджета не указан Z-order,
+      то присвоим Z-order на 1 больше, чем у последнего */
+      widget = widget.withZ(
+          current.root != null ? PersistentZOrderTree.lastZ(current.root) + 1 : 0);
+    }
+    return widget;
+  }
+
+  /**
+   * Новая версия доски со вставленным виджетом.
+   * Виджеты с Z-order больше либо равным вставляемому сдвигаются на 1.
+   *
+   * @param current текущая версия
+   * @param widget  виджет с заполненным Z-order
+   * @return новая версия
+   */
+  private Board insert(Board current, Widget widget) {
+    final int z = widget.getZ();
+    PersistentZOrderTree.Node root = PersistentZOrderTree.shiftFrom(current.root, z, 1);
+    PersistentHashMap<UUID, Long> ids = current.ids;
+    PersistentZOrderTree.Node lower = PersistentZOrderTree.lower(root, z);
+    PersistentZOrderTree.Node higher = PersistentZOrderTree.ceiling(root, z);
+    metrics.shifted(higher != null
+        ? PersistentZOrderTree.size(root) - PersistentZOrderTree.rankOf(root, higher.key) : 0);
+    if (lower != null && higher != null && higher.key - lower.key < 2) {
+      /* промежуток между стабильными ключами исчерпан - перенумеровываем все */
+      root = PersistentZOrderTree.renumber(root, GAP);
+      ids = reindex(root);
+      lower = PersistentZOrderTree.lower(root, z);
+      higher = PersistentZOrderTree.ceiling(root, z);
+    }
+    long key;
+    if (lower == null && higher == null) {
+      key = 0;
+    } else if (lower == null) {
+      key = higher.key - GAP;
+    } else if (higher == null) {
+      key = lower.key + GAP;
+    } else {
+      key = lower.key + (higher.key - lower.key) / 2;
+    }
+    root = PersistentZOrderTree.insert(root, key, z, widget, random.nextInt());
+    return new Board(root, ids.put(widget.getId(), key));
+  }
+
+  /**
+   * Индекс ИД виджетов по дереву.
+   *
+   * @param root корень дерева
+   * @return индекс
+   */
+  private static PersistentHashMap<UUID, Long> reindex(PersistentZOrderTree.Node root) {
+    @SuppressWarnings("unchecked")
+    PersistentHashMap<UUID, Long>[] ids = new PersistentHashMap[] {PersistentHashMap.empty()};
+    PersistentZOrderTree.forEach(root,
+        (node, z) -> ids[0] = ids[0].put(node.widget.getId(), node.key));
+    return ids[0];
+  }
+
+  @Override
+  public Widget getById(UUID id) throws WidgetNotFoundException {
+    Board current = board;
+    return PersistentZOrderTree.widgetOf(current.root, keyOf(current, id));
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description)
+      throws WidgetNotFoundException {
+    lock();
+    try {
+      Board current = board;
+      long key = keyOf(current, id);
+      Widget widget = PersistentZOrderTree.widgetOf(current.root, key);
+      Widget edited = edited(widget, description);
+      board = replace(current, key, widget, edited);
+      return edited;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description, long expectedVersion)
+      throws WidgetNotFoundException, WidgetVersionMismatchException {
+    lock();
+    try {
+      /* проверка версии и изменение - под одной блокировкой */
+      WidgetService.checkVersion(getById(id), expectedVersion);
+      return editWidget(id, description);
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Стабильный ключ виджета.
+   *
+   * @param current версия доски
+   * @param id      ИД виджета
+   * @return ключ
+   * @throws WidgetNotFoundException если виджет не найден
+   */
+  private static long keyOf(Board current, UUID id) throws WidgetNotFoundException {
+    Long key = current.ids.get(id);
+    if (key == null) {
+      throw new WidgetNotFoundException(id);
+    }
+    return key;
+  }
+
+  /**
+   * Измененный по описанию виджет.
+   *
+   * @param widget      виджет
+   * @param description описание виджета
+   * @return новый экземпляр виджета или тот же, если изменений нет
+   */
+  private static Widget edited(Widget widget, WidgetDescription description) {
+    boolean wasChanges = false;
+    if (description.getX() != null) {
+      widget = widget.withX(description.getX());
+      wasChanges = true;
+    }
+    if (description.getY() != null) {
+      widget = widget.withY(description.getY());
+      wasChanges = true;
+    }
+    if (description.getHeight() != null) {
+      widget = widget.withHeight(description.getHeight());
+      wasChanges = true;
+    }
+    if (description.getWidth() != null) {
+      widget = widget.withWidth(description.getWidth());
+      wasChanges = true;
+    }
+    if (description.getZ() != null) {
+      widget = widget.withZ(description.getZ());
+      wasChanges = true;
+    }
+    return wasChanges ? widget.withModifiedDate(LocalDateTime.now(ZoneOffset.UTC)) : widget;
+  }
+
+  /**
+   * Новая версия доски с замененным виджетом.
+   * Если изменился Z-order, виджет перемещается со сдвигом остальных.
+   *
+   * @param current текущая версия
+   * @param key     стабильный ключ виджета
+   * @param before  виджет до изменения
+   * @param after   виджет после изменения
+   * @return новая версия
+   */
+  private Board replace(Board current, long key, Widget before, Widget after) {
+    if (after == before) {
+      return current;
+    }
+    if (after.getZ() != before.getZ()) {
+      Board removed = new Board(PersistentZOrderTree.remove(current.root, key), current.ids);
+      return insert(removed, after);
+    }
+    return new Board(PersistentZOrderTree.replace(current.root, key, after), current.ids);
+  }
+
+
+  @Override
+  public boolean deleteWidget(UUID id) {
+    lock();
+    try {
+      Board current = board;
+      Long key = current.ids.get(id);
+      if (key == null) {
+        return false;
+      }
+      board = new Board(PersistentZOrderTree.remove(current.root, key), current.ids.remove(id));
+      return true;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public void putWidget(Widget widget) {
+    lock();
+    try {
+      Board current = board;
+      Long key = current.ids.get(widget.getId());
+      board = key == null
+          ? insert(current, widget)
+          : replace(current, key, PersistentZOrderTree.widgetOf(current.root, key), widget);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget[] applyBatch(List<WidgetOperation> operations)
+      throws WidgetNotFoundException {
+    Widget[] results = new Widget[operations.size()];
+    lock();
+    try {
+      /* пакет строит цепочку версий локально и публикует только последнюю:
+      читатели видят доску до пакета или после него целиком, а при ошибке
+      текущая версия просто не меняется */
+      Board current = board;
+      for (int i = 0; i < results.length; i++) {
+        WidgetOperation operation = operations.get(i);
+        if (operation.getType() == WidgetOperation.Type.CREATE) {
+          Widget widget = created(current, operation.getDescription());
+          current = insert(current, widget);
+          results[i] = widget;
+          continue;
+        }
+        long key = keyOf(current, operation.getId());
+        Widget widget = PersistentZOrderTree.widgetOf(current.root, key);
+        if (operation.getType() == WidgetOperation.Type.EDIT) {
+          Widget edited = edited(widget, operation.getDescription());
+          current = replace(current, key, widget, edited);
+          results[i] = edited;
+        } else {
+          current = new Board(PersistentZOrderTree.remove(current.root, key),
+              current.ids.remove(operation.getId()));
+          results[i] = widget;
+        }
+      }
+      board = current;
+    } finally {
+      unlock();
+    }
+    return results;
+  }
+
+  @Override
+  public Widget[] getAllWidgets() {
+    return getSnapshot().toArray();
+  }
+
+  @Override
+  public WidgetSnapshot getSnapshot() {
+    return board;
+  }
+
+  @Override
+  public Widget[] getWidgetsPage(UUID afterId, int fromZ, int toZ, int limit)
+      throws WidgetNotFoundException {
+    Board current = board;
+    int startZ = fromZ;
+    if (afterId != null) {
+      Long key = current.ids.get(afterId);
+      if (key == null) {
+        throw new WidgetNotFoundException(afterId);
+      }
+      startZ = Math.max(startZ, PersistentZOrderTree.widgetOf(current.root, key).getZ() + 1);
+    }
+    List<Widget> page = new ArrayList<>();
+    Iterator<Widget> widgets = PersistentZOrderTree.widgets(current.root, startZ);
+    while (widgets.hasNext() && page.size() < limit) {
+      Widget widget = widgets.next();
+      if (widget.getZ() > toZ) {
+        break;
+      }
+      page.add(widget);
+    }
+    return page.toArray(new Widget[0]);
+  }
+
+  @Override
+  public Widget getByRank(int rank) {
+    Board current = board;
+    return PersistentZOrderTree.widgetOf(current.root,
+        PersistentZOrderTree.keyAtRank(current.root, rank));
+  }
+
+  @Override
+  public int getRank(UUID id) throws WidgetNotFoundException {
+    Board current = board;
+    return PersistentZOrderTree.rankOf(current.root, keyOf(current, id));
+  }
+
+  @Override
+  public void deleteAllWidgets() {
+    lock();
+    try {
+      board = Board.EMPTY;
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Захват блокировки с записью времени ожидания.
+   * Повторный захват тем же потоком не измеряется.
+   */
+  private void lock() {
+    final long start = System.nanoTime();
+    reentrantLock.lock();
+    if (reentrantLock.getHoldCount() == 1) {
+      lockedAt = System.nanoTime();
+      metrics.lockWait(lockedAt - start);
+    }
+  }
+
+  /**
+   * Освобождение блокировки с записью времени удержания.
+   */
+  private void unlock() {
+    final long held = reentrantLock.getHoldCount() == 1 ? System.nanoTime() - lockedAt : -1;
+    reentrantLock.unlock();
+    if (held >= 0) {
+      metrics.lockHold(held);
+    }
+  }
+
+  /**
+   * Неизменяемая версия доски.
+   */
+  private static final class Board implements WidgetSnapshot {
+
+    /**
+     * Пустая доска.
+     */
+    private static final Board EMPTY = new Board(null, PersistentHashMap.empty());
+
+    /**
+     * Корень дерева виджетов.
+     */
+    private final PersistentZOrderTree.Node root;
+
+    /**
+     * Индекс стабильных ключей по ИД виджета.
+     */
+    private final PersistentHashMap<UUID, Long> ids;
+
+    /**
+     * Создание версии доски.
+     *
+     * @param root корень дерева виджетов
+     * @param ids  индекс стабильных ключей
+     */
+    private Board(PersistentZOrderTree.Node root, PersistentHashMap<UUID, Long> ids) {
+      this.root = root;
+      this.ids = ids;
+    }
+
+    @Override
+    public int size() {
+      return PersistentZOrderTree.size(root);
+    }
+
+    @Override
+    public Iterator<Widget> iterator() {
+      return PersistentZOrderTree.widgets(root, Integer.MIN_VALUE);
+    }
+  }
+}
@@ -0,0 +1,506 @@
+package ru.kirillspirikhin.mirowidgets.services.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetVersionMismatchException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+
+/**
+ * Реализация сервиса виджетов с разреженными внутренними ключами Z-order.
+ *
+ * <p>Виджеты хранятся в {@link ZOrderTree} с ключами, между которыми оставлены
+ * промежутки ({@link #GAP}), поэтому новый виджет обычно получает ключ между соседями
+ * и никого не сдвигает. Наружу отдается плотный непрерывный Z-order - порядковый номер
+ * виджета (0, 1, 2, ...): вставка с Z-order {@code z} ставит виджет на позицию {@code z}
+ * (но не дальше конца списка), виджеты выше него получают номер на 1 больше.
+ *
+ * <p>Если промежуток между соседями исчерпан, ключи всех виджетов выше места вставки
+ * лениво сдвигаются на {@link #GAP} (O(log n)), а в фоне запускается перенумерация
+ * всех ключей с равным шагом. Количество исчерпаний и перенумераций доступно через
+ * {@link #getGapExhaustedCount()} и {@link #getCompactionCount()}.
+ *
+ * <p>Включается настройкой {@code widgets.storage: sparse}.
+ */
+@Slf4j
+@Service
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+@ConditionalOnProperty(name = "widgets.storage", havingValue = "sparse")
+public class WidgetServiceSparse implements WidgetService {
+
+  /**
+   * Шаг между ключами соседних виджетов после перенумерации.
+   */
+  static final long GAP = 1024;
+
+  /**
+   * The lock protecting all mutators.
+   */
+  final ReentrantLock reentrantLock = new ReentrantLock();
+
+  /**
+   * Момент захвата блокировки ({@link System#nanoTime()}); пишется и читается под ней.
+   */
+  private long lockedAt;
+
+  /**
+   * Метрики хранилища.
+   */
+  private StorageMetrics metrics = StorageMetrics.NOOP;
+
+  /**
+   * Счетчик исчерпаний промежутка между ключами всех досок.
+   */
+  private Counter gapExhaustedCounter = gapExhaustedCounter(StorageMetrics.NOOP);
+
+  /**
+   * Счетчик перенумераций ключей всех досок.
+   */
+  private Counter compactionCounter = compactionCounter(StorageMetrics.NOOP);
+
+  /**
+   * Индекс узлов дерева по ИД виджета.
+   */
+  private final Map<UUID, ZOrderTree.Node> index = new HashMap<>();
+
+  /**
+   * Хранилище виджетов.
+   */
+  private final ZOrderTree tree = new ZOrderTree();
+
+  /**
+   * Исполнитель фоновой перенумерации.
+   */
+  private final Executor compactionExecutor;
+
+  /**
+   * Признак того, что перенумерация уже запланирована.
+   */
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+  /**
+   * Количество исчерпаний промежутка между ключами.
+   */
+  private final AtomicLong gapExhaustedCount = new AtomicLong();
+
+  /**
+   * Количество выполненных перенумераций.
+   */
+  private final AtomicLong compactionCount = new AtomicLong();
+
+  /**
+   * Создание сервиса с перенумерацией в общем пуле потоков.
+   */
+  public WidgetServiceSparse() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Создание сервиса.
+   *
+   * @param compactionExecutor исполнитель фоновой перенумерации
+   */
+  public WidgetServiceSparse(Executor compactionExecutor) {
+    this.compactionExecutor = compactionExecutor;
+  }
+
+  /**
+   * Публикация метрик хранилища.
+   *
+   * @param meterRegistry реестр метрик
+   */
+  @Autowired(required = false)
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.metrics = new StorageMetrics(meterRegistry);
+    this.gapExhaustedCounter = gapExhaustedCounter(metrics);
+    this.compactionCounter = compactionCounter(metrics);
+  }
+
+  /**
+   * Счетчик исчерпаний промежутка между ключами.
+   *
+   * @param metrics метрики хранилища
+   * @return счетчик
+   */
+  private static Counter gapExhaustedCounter(StorageMetrics metrics) {
+    return metrics.counter("widgets.sparse.gap.exhausted",
+        "Количество исчерпаний промежутка между разреженными ключами");
+  }
+
+  /**
+   * Счетчик перенумераций ключей.
+   *
+   * @param metrics метрики хранилища
+   * @return счетчик
+   */
+  private static Counter compactionCounter(StorageMetrics metrics) {
+    return metrics.counter("widgets.sparse.compactions",
+        "Количество фоновых перенумераций разреженных ключей");
+  }
+
+  @Override
+  public Widget addWidget(WidgetDescription widgetDescription) {
+    Widget widget = Widget.fromDescription(widgetDescription);
+    lock();
+    try {
+      ZOrderTree.Node node = addWidgetInternal(widget, widgetDescription.getZ());
+      index.put(widget.getId(), node);
+      return materialize(node, tree.rankOf(node));
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Добавление виджета в дерево.
+   *
+   * @param widget виджет
+   * @param z      позиция вставки ({@code null} - в конец)
+   * @return узел дерева
+   */
+  private ZOrderTree.Node addWidgetInternal(final Widget widget, final Integer z) {
+    final int size = tree.size();
+    final int rank = z == null ? size : Math.max(0, Math.min(z, size));
+    /* наружу Z-order - порядковый номер, поэтому вставка меняет его всем виджетам выше */
+    metrics.shifted(size - rank);
+    ZOrderTree.Node prev = rank > 0 ? tree.atRank(rank - 1) : null;
+    ZOrderTree.Node next = rank < size ? tree.atRank(rank) : null;
+    long key;
+    if (next == null) {
+      key = prev == null ? 0 : tree.keyOf(prev) + GAP;
+    } else if (prev == null) {
+      key = tree.keyOf(next) - GAP;
+    } else {
+      long prevKey = tree.keyOf(prev);
+      long nextKey = tree.keyOf(next);
+      if (nextKey - prevKey < 2) {
+        /* промежуток исчерпан: раздвигаем ключи выше места вставки
+        и планируем перенумерацию */
+        gapExhaustedCount.incrementAndGet();
+        gapExhaustedCounter.increment();
+        tree.shiftFrom(nextKey, GAP);
+        nextKey += GAP;
+        scheduleCompaction();
+      }
+      key = prevKey + (nextKey - prevKey) / 2;
+    }
+    return tree.insert(key, widget);
+  }
+
+  /**
+   * Планирование фоновой перенумерации ключей, если она еще не запланирована.
+   */
+  private void scheduleCompaction() {
+    if (compactionScheduled.compareAndSet(false, true)) {
+      compactionExecutor.execute(this::compact);
+    }
+  }
+
+  /**
+   * Перенумерация ключей всех виджетов с шагом {@link #GAP}.
+   */
+  void compact() {
+    lock();
+    try {
+      compactionScheduled.set(false);
+      tree.renumber(GAP);
+      compactionCount.incrementAndGet();
+      compactionCounter.increment();
+      log.debug("Ключи {} виджетов перенумерованы", tree.size());
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget getById(UUID id) throws WidgetNotFoundException {
+    lock();
+    try {
+      ZOrderTree.Node node = findNode(id);
+      return materialize(node, tree.rankOf(node));
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description)
+      throws WidgetNotFoundException {
+    lock();
+    try {
+      ZOrderTree.Node node = findNode(id);
+      Widget widget = node.widget;
+      boolean wasChanges = false;
+      boolean needMove = false;
+      if (description.getX() != null) {
+        widget = widget.withX(description.getX());
+        wasChanges = true;
+      }
+      if (description.getY() != null) {
+        widget = widget.withY(description.getY());
+        wasChanges = true;
+      }
+      if (description.getHeight() != null) {
+        widget = widget.withHeight(description.getHeight());
+        wasChanges = true;
+      }
+      if (description.getWidth() != null) {
+        widget = widget.withWidth(description.getWidth());
+        wasChanges = true;
+      }
+      /* как и в остальных хранилищах, виджет встает на место виджета, который сейчас
+      занимает позицию Z-order, - ниже него, а не выше */
+      ZOrderTree.Node anchor = null;
+      if (description.getZ() != null) {
+        final int rank = Math.max(0, description.getZ());
+        anchor = rank < tree.size() ? tree.atRank(rank) : null;
+        needMove = anchor != node;
+        wasChanges = true;
+      }
+      if (wasChanges) {
+        widget = widget.withModifiedDate(LocalDateTime.now(ZoneOffset.UTC));
+        if (needMove) {
+          tree.remove(node);
+          node = addWidgetInternal(widget, anchor != null ? tree.rankOf(anchor) : null);
+          index.put(id, node);
+        } else {
+          node.widget = widget;
+        }
+      }
+      return materialize(node, tree.rankOf(node));
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description, long expectedVersion)
+      throws WidgetNotFoundException, WidgetVersionMismatchException {
+    lock();
+    try {
+      /* проверка версии и изменение - под одной блокировкой */
+      WidgetService.checkVersion(getById(id), expectedVersion);
+      return editWidget(id, description);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public boolean deleteWidget(UUID id) {
+    lock();
+    try {
+      ZOrderTree.Node node = index.remove(id);
+      if (node == null) {
+        return false;
+      }
+      tree.remove(node);
+      return true;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public void putWidget(Widget widget) {
+    lock();
+    try {
+      ZOrderTree.Node node = index.get(widget.getId());
+      if (node != null) {
+        if (tree.rankOf(node) == widget.getZ()) {
+          node.widget = widget;
+          return;
+        }
+        tree.remove(node);
+      }
+      index.put(widget.getId(), addWidgetInternal(widget, widget.getZ()));
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget[] applyBatch(List<WidgetOperation> operations)
+      throws WidgetNotFoundException {
+    lock();
+    try {
+      /* пакет выполняется под одной блокировкой (она реентерабельна); вставка
+    между разреженными ключами обычно никого не сдвигает, поэтому операции выполняются по одной */
+      return WidgetService.super.applyBatch(operations);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public int getWidgetCount() {
+    lock();
+    try {
+      return tree.size();
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget[] getAllWidgets() {
+    lock();
+    try {
+      Widget[] localWidgets = new Widget[tree.size()];
+      int[] i = {0};
+      tree.forEach((node, key) -> {
+        localWidgets[i[0]] = materialize(node, i[0]);
+        i[0]++;
+      });
+      return localWidgets;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget[] getWidgetsPage(UUID afterId, int fromZ, int toZ, int limit)
+      throws WidgetNotFoundException {
+    lock();
+    try {
+      int rank = Math.max(0, fromZ);
+      if (afterId != null) {
+        rank = Math.max(rank, tree.rankOf(findNode(afterId)) + 1);
+      }
+      List<Widget> page = new ArrayList<>();
+      ZOrderTree.Node node = rank < tree.size() ? tree.atRank(rank) : null;
+      for (; node != null && page.size() < limit && rank <= toZ;
+           node = ZOrderTree.successor(node)) {
+        page.add(materialize(node, rank++));
+      }
+      return page.toArray(new Widget[0]);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget getByRank(int rank) {
+    lock();
+    try {
+      return materialize(tree.atRank(rank), rank);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public boolean isDenseZOrder() {
+    return true;
+  }
+
+  @Override
+  public int getRank(UUID id) throws WidgetNotFoundException {
+    lock();
+    try {
+      return tree.rankOf(findNode(id));
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public void deleteAllWidgets() {
+    lock();
+    try {
+      index.clear();
+      tree.clear();
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Количество исчерпаний промежутка между ключами соседних виджетов.
+   *
+   * @return количество
+   */
+  public long getGapExhaustedCount() {
+    return gapExhaustedCount.get();
+  }
+
+  /**
+   * Количество выполненных перенумераций ключей.
+   *
+   * @return количество
+   */
+  public long getCompactionCount() {
+    return compactionCount.get();
+  }
+
+  /**
+   * Хранимый виджет с плотным Z-order.
+   *
+   * @param node узел дерева
+   * @param rank порядковый номер узла
+   * @return виджет
+   */
+  private static Widget materialize(ZOrderTree.Node node, int rank) {
+    return node.widget.withZ(rank);
+  }
+
+  /**
+   * Поиск узла по ИД виджета. Вызывается под блокировкой.
+   *
+   * @param id ИД виджета
+   * @return узел дерева
+   * @throws WidgetNotFoundException если виджет не найден
+   */
+  private ZOrderTree.Node findNode(UUID id) throws WidgetNotFoundException {
+    ZOrderTree.Node node = index.get(id);
+    if (node == null) {
+      throw new WidgetNotFoundException(id);
+    }
+    return node;
+  }
+
+  /**
+   * Захват блокировки с записью времени ожидания.
+   * Повторный захват тем же потоком не измеряется.
+   */
+  private void lock() {
+    final long start = System.nanoTime();
+    reentrantLock.lock();
+    if (reentrantLock.getHoldCount() == 1) {
+      lockedAt = System.nanoTime();
+      metrics.lockWait(lockedAt - start);
+    }
+  }
+
+  /**
+   * Освобождение блокировки с записью времени удержания.
+   */
+  private void unlock() {
+    final long held = reentrantLock.getHoldCount() == 1 ? System.nanoTime() - lockedAt : -1;
+    reentrantLock.unlock();
+    if (held >= 0) {
+      metrics.lockHold(held);
+    }
+  }
+}
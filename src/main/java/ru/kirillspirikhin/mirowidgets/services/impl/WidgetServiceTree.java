@@ -0,0 +1,350 @@
+package ru.kirillspirikhin.mirowidgets.services.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Service;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetVersionMismatchException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+
+/**
+ * Реализация сервиса виджетов на дереве порядковых статистик ({@link ZOrderTree}).
+ * Место вставки, виджет по рангу и ранг виджета находятся за O(log n).
+ * Сдвиг Z-order виджетов над вставляемым тоже стоит O(log n): он откладывается
+ * в узлах дерева, а фактический Z-order материализуется только при чтении -
+ * сервис возвращает копии хранимых виджетов с вычисленным Z-order.
+ * Включается настройкой {@code widgets.storage: tree}.
+ */
+@Service
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+@ConditionalOnProperty(name = "widgets.storage", havingValue = "tree")
+public class WidgetServiceTree implements WidgetService {
+
+  /**
+   * The lock protecting all mutators.
+   */
+  final ReentrantLock reentrantLock = new ReentrantLock();
+
+  /**
+   * Момент захвата блокировки ({@link System#nanoTime()}); пишется и читается под ней.
+   */
+  private long lockedAt;
+
+  /**
+   * Метрики хранилища.
+   */
+  private StorageMetrics metrics = StorageMetrics.NOOP;
+
+  /**
+   * Индекс узлов дерева по ИД виджета.
+   */
+  private final Map<UUID, ZOrderTree.Node> index = new HashMap<>();
+
+  /**
+   * Хранилище виджетов.
+   */
+  private final ZOrderTree tree = new ZOrderTree();
+
+  /**
+   * Публикация метрик хранилища.
+   *
+   * @param meterRegistry реестр метрик
+   */
+  @Autowired(required = false)
+  public void setMeterRegistry(MeterRegistry meterRegistry) {
+    this.metrics = new StorageMetrics(meterRegistry);
+  }
+
+  @Override
+  public Widget addWidget(WidgetDescription widgetDescription) {
+    boolean insetAsLast = widgetDescription.getZ() == null;
+    Widget widget = Widget.fromDescription(widgetDescription);
+    lock();
+    try {
+      ZOrderTree.Node node = addWidgetInternal(widget, insetAsLast);
+      index.put(widget.getId(), node);
+      return node.widget;
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Добавление виджета в дерево.
+   *
+   * @param widget       виджет
+   * @param insertAsLast вставка в конец (не указан Z-order)
+   * @return узел дерева
+   */
+  private ZOrderTree.Node addWidgetInternal(Widget widget, final boolean insertAsLast) {
+    if (insertAsLast) {
+      /* если у добавляемого виджета не указан Z-order,
+      то присвоим Z-order на 1 больше, чем у последнего */
+      ZOrderTree.Node last = tree.last();
+      widget = widget.withZ(last != null ? (int) tree.keyOf(last) + 1 : 0);
+    }
+    /* сдвигаем Z-order у тех виджетов, у которых он больше либо равен вставляемому */
+    metrics.shifted(tree.shiftFrom(widget.getZ(), 1));
+    return tree.insert(widget.getZ(), widget);
+  }
+
+  @Override
+  public Widget getById(UUID id) throws WidgetNotFoundException {
+    lock();
+    try {
+      ZOrderTree.Node node = findNode(id);
+      return materialize(node, tree.keyOf(node));
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description)
+      throws WidgetNotFoundException {
+    lock();
+    try {
+      ZOrderTree.Node node = findNode(id);
+      Widget widget = materialize(node, tree.keyOf(node));
+      boolean wasChanges = false;
+      boolean needMove = false;
+      if (description.getX() != null) {
+        widget = widget.withX(description.getX());
+        wasChanges = true;
+      }
+      if (description.getY() != null) {
+        widget = widget.withY(description.getY());
+        wasChanges = true;
+      }
+      if (description.getHeight() != null) {
+        widget = widget.withHeight(description.getHeight());
+        wasChanges = true;
+      }
+      if (description.getWidth() != null) {
+        widget = widget.withWidth(description.getWidth());
+        wasChanges = true;
+      }
+      if (description.getZ() != null) {
+        needMove = !description.getZ().equals(widget.getZ());
+        widget = widget.withZ(description.getZ());
+        wasChanges = true;
+      }
+      if (wasChanges) {
+        widget = widget.withModifiedDate(LocalDateTime.now(ZoneOffset.UTC));
+        if (needMove) {
+          tree.remove(node);
+          node = addWidgetInternal(widget, false);
+          index.put(id, node);
+        } else {
+          node.widget = widget;
+        }
+      }
+      return widget;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description, long expectedVersion)
+      throws WidgetNotFoundException, WidgetVersionMismatchException {
+    lock();
+    try {
+      /* проверка версии и изменение - под одной блокировкой */
+      WidgetService.checkVersion(getById(id), expectedVersion);
+      return editWidget(id, description);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public boolean deleteWidget(UUID id) {
+    lock();
+    try {
+      ZOrderTree.Node node = index.remove(id);
+      if (node == null) {
+        return false;
+      }
+      tree.remove(node);
+      return true;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public void putWidget(Widget widget) {
+    lock();
+    try {
+      ZOrderTree.Node node = index.get(widget.getId());
+      if (node != null) {
+        if (tree.keyOf(node) == widget.getZ()) {
+          node.widget = widget;
+          return;
+        }
+        tree.remove(node);
+      }
+      index.put(widget.getId(), addWidgetInternal(widget, false));
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget[] applyBatch(List<WidgetOperation> operations)
+      throws WidgetNotFoundException {
+    lock();
+    try {
+      /* пакет выполняется под одной блокировкой (она реентерабельна); сдвиг Z-order
+    при вставке в дерево и так стоит O(log n), поэтому операции выполняются по одной */
+      return WidgetService.super.applyBatch(operations);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public int getWidgetCount() {
+    lock();
+    try {
+      return tree.size();
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget[] getAllWidgets() {
+    lock();
+    try {
+      Widget[] localWidgets = new Widget[tree.size()];
+      int[] i = {0};
+      tree.forEach((node, z) -> localWidgets[i[0]++] = materialize(node, z));
+      return localWidgets;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget[] getWidgetsPage(UUID afterId, int fromZ, int toZ, int limit)
+      throws WidgetNotFoundException {
+    lock();
+    try {
+      ZOrderTree.Node node = afterId != null
+          ? ZOrderTree.successor(findNode(afterId))
+          : tree.ceiling(fromZ);
+      if (node != null && tree.keyOf(node) < fromZ) {
+        node = tree.ceiling(fromZ);
+      }
+      List<Widget> page = new ArrayList<>(Math.min(limit, tree.size()));
+      for (; node != null && page.size() < limit; node = ZOrderTree.successor(node)) {
+        long z = tree.keyOf(node);
+        if (z > toZ) {
+          break;
+        }
+        page.add(materialize(node, z));
+      }
+      return page.toArray(new Widget[0]);
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public Widget getByRank(int rank) {
+    lock();
+    try {
+      ZOrderTree.Node node = tree.atRank(rank);
+      return materialize(node, tree.keyOf(node));
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public int getRank(UUID id) throws WidgetNotFoundException {
+    lock();
+    try {
+      return tree.rankOf(findNode(id));
+    } finally {
+      unlock();
+    }
+  }
+
+  @Override
+  public void deleteAllWidgets() {
+    lock();
+    try {
+      index.clear();
+      tree.clear();
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Хранимый виджет с фактическим Z-order.
+   *
+   * @param node узел дерева
+   * @param z    фактический Z-order узла
+   * @return виджет
+   */
+  private static Widget materialize(ZOrderTree.Node node, long z) {
+    return node.widget.withZ((int) z);
+  }
+
+  /**
+   * Поиск узла по ИД виджета. Вызывается под блокировкой.
+   *
+   * @param id ИД виджета
+   * @return узел дерева
+   * @throws WidgetNotFoundException если виджет не найден
+   */
+  private ZOrderTree.Node findNode(UUID id) throws WidgetNotFoundException {
+    ZOrderTree.Node node = index.get(id);
+    if (node == null) {
+      throw new WidgetNotFoundException(id);
+    }
+    return node;
+  }
+
+  /**
+   * Захват блокировки с записью времени ожидания.
+   * Повторный захват тем же потоком не измеряется.
+   */
+  private void lock() {
+    final long start = System.nanoTime();
+    reentrantLock.lock();
+    if (reentrantLock.getHoldCount() == 1) {
+      lockedAt = System.nanoTime();
+      metrics.lockWait(lockedAt - start);
+    }
+  }
+
+  /**
+   * Освобождение блокировки с записью времени удержания.
+   */
+  private void unlock() {
+    final long held = reentrantLock.getHoldCount() == 1 ? System.nanoTime() - lockedAt : -1;
+    reentrantLock.unlock();
+    if (held >= 0) {
+      metrics.lockHold(held);
+    }
+  }
+}
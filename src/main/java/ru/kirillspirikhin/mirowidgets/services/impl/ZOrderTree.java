@@ -0,0 +1,493 @@
+package ru.kirillspirikhin.mirowidgets.services.impl;
+
+import java.util.Arrays;
+import java.util.Random;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+
+/**
+ * Декартово дерево (treap) виджетов, упорядоченное по ключу Z-order.
+ * Каждый узел хранит размер своего поддерева, что позволяет за O(log n)
+ * находить место вставки, виджет по его порядковому номеру (рангу) и ранг узла.
+ * Узлы знают своего родителя, поэтому ранг и ключ узла из индекса по ИД вычисляются
+ * подъемом к корню.
+ *
+ * <p>Сдвиг ключей диапазона ({@link #shiftFrom(long, long)}) выполняется лениво:
+ * смещение записывается в узел как отложенное для всего его поддерева и проталкивается
+ * к потомкам только при спуске через узел или при поворотах. Поэтому фактический ключ
+ * узла - это сумма его собственного ключа и отложенных смещений всех его предков
+ * ({@link #keyOf(Node)}), а обход с вычислением ключей выполняет {@link #forEach(Visitor)}.
+ *
+ * <p>Класс не потокобезопасен, синхронизация - на стороне сервиса.
+ */
+final class ZOrderTree {
+
+  /**
+   * Генератор приоритетов узлов.
+   */
+  private final Random random = new Random();
+
+  /**
+   * Корень дерева.
+   */
+  private Node root;
+
+  /**
+   * Количество узлов в дереве.
+   *
+   * @return количество узлов
+   */
+  int size() {
+    return size(root);
+  }
+
+  /**
+   * Узел с наименьшим ключом.
+   *
+   * @return узел или {@code null}, если дерево пусто
+   */
+  Node first() {
+    Node node = root;
+    if (node != null) {
+      while (node.left != null) {
+        node = node.left;
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Узел с наибольшим ключом.
+   *
+   * @return узел или {@code null}, если дерево пусто
+   */
+  Node last() {
+    Node node = root;
+    if (node != null) {
+      while (node.right != null) {
+        node = node.right;
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Узел с наименьшим ключом, большим либо равным указанному.
+   *
+   * @param key ключ
+   * @return узел или {@code null}, если такого нет
+   */
+  Node ceiling(long key) {
+    Node result = null;
+    Node node = root;
+    long offset = 0;
+    while (node != null) {
+      if (node.key + offset >= key) {
+        result = node;
+        offset += node.pending;
+        node = node.left;
+      } else {
+        offset += node.pending;
+        node = node.right;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Фактический ключ узла с учетом отложенных смещений его предков.
+   *
+   * @param node узел дерева
+   * @return ключ
+   */
+  long keyOf(Node node) {
+    long key = node.key;
+    for (Node parent = node.parent; parent != null; parent = parent.parent) {
+      key += parent.pending;
+    }
+    return key;
+  }
+
+  /**
+   * Сдвиг ключей всех узлов, ключ которых больше либо равен указанному.
+   * Затрагивает только узлы на пути от корня, остальным смещение откладывается.
+   *
+   * @param key   минимальный сдвигаемый ключ
+   * @param delta смещение
+   * @return количество сдвинутых узлов
+   */
+  int shiftFrom(long key, long delta) {
+    int shifted = 0;
+    Node node = root;
+    while (node != null) {
+      push(node);
+      if (node.key >= key) {
+        node.key += delta;
+        addPending(node.right, delta);
+        shifted += 1 + size(node.right);
+        node = node.left;
+      } else {
+        node = node.right;
+      }
+    }
+    return shifted;
+  }
+
+  /**
+   * Обход узлов в порядке возрастания ключей.
+   *
+   * @param visitor обработчик узлов
+   */
+  void forEach(Visitor visitor) {
+    Node[] nodes = new Node[64];
+    long[] offsets = new long[64];
+    int depth = 0;
+    Node node = root;
+    long offset = 0;
+    while (node != null || depth > 0) {
+      while (node != null) {
+        if (depth == nodes.length) {
+          nodes = Arrays.copyOf(nodes, depth * 2);
+          offsets = Arrays.copyOf(offsets, depth * 2);
+        }
+        nodes[depth] = node;
+        offsets[depth++] = offset;
+        offset += node.pending;
+        node = node.left;
+      }
+      node = nodes[--depth];
+      offset = offsets[depth];
+      visitor.visit(node, node.key + offset);
+      offset += node.pending;
+      node = node.right;
+    }
+  }
+
+  /**
+   * Перенумерация ключей всех узлов с равным шагом с сохранением порядка.
+   * Отложенные смещения при этом сбрасываются.
+   *
+   * @param step шаг между ключами соседних узлов
+   */
+  void renumber(long step) {
+    long[] key = {0};
+    forEach((node, oldKey) -> {
+      node.key = key[0];
+      node.pending = 0;
+      key[0] += step;
+    });
+  }
+
+  /**
+   * Узел по его порядковому номеру.
+   *
+   * @param rank порядковый номер, начиная с 0
+   * @return узел
+   * @throws IndexOutOfBoundsException если номер вне диапазона
+   */
+  Node atRank(int rank) {
+    if (rank < 0 || rank >= size()) {
+      throw new IndexOutOfBoundsException("Ранг " + rank + " вне диапазона, размер: " + size());
+    }
+    Node node = root;
+    int remaining = rank;
+    while (true) {
+      int leftSize = size(node.left);
+      if (remaining < leftSize) {
+        node = node.left;
+      } else if (remaining == leftSize) {
+        return node;
+      } else {
+        remaining -= leftSize + 1;
+        node = node.right;
+      }
+    }
+  }
+
+  /**
+   * Порядковый номер узла.
+   *
+   * @param node узел дерева
+   * @return порядковый номер, начиная с 0
+   */
+  int rankOf(Node node) {
+    int rank = size(node.left);
+    for (Node current = node; current.parent != null; current = current.parent) {
+      if (current == current.parent.right) {
+        rank += size(current.parent.left) + 1;
+      }
+    }
+    return rank;
+  }
+
+  /**
+   * Следующий по порядку узел.
+   *
+   * @param node узел дерева
+   * @return следующий узел или {@code null}
+   */
+  static Node successor(Node node) {
+    Node current = node;
+    if (current.right != null) {
+      current = current.right;
+      while (current.left != null) {
+        current = current.left;
+      }
+      return current;
+    }
+    Node parent = current.parent;
+    while (parent != null && current == parent.right) {
+      current = parent;
+      parent = parent.parent;
+    }
+    return parent;
+  }
+
+  /**
+   * Предыдущий по порядку узел.
+   *
+   * @param node узел дерева
+   * @return предыдущий узел или {@code null}
+   */
+  static Node predecessor(Node node) {
+    Node current = node;
+    if (current.left != null) {
+      current = current.left;
+      while (current.right != null) {
+        current = current.right;
+      }
+      return current;
+    }
+    Node parent = current.parent;
+    while (parent != null && current == parent.left) {
+      current = parent;
+      parent = parent.parent;
+    }
+    return parent;
+  }
+
+  /**
+   * Вставка виджета. Ключ не должен совпадать с ключами других узлов.
+   *
+   * @param key    ключ
+   * @param widget виджет
+   * @return созданный узел
+   */
+  Node insert(long key, Widget widget) {
+    Node node = new Node(key, widget, random.nextInt());
+    if (root == null) {
+      root = node;
+      return node;
+    }
+    Node parent = root;
+    while (true) {
+      push(parent);
+      parent.size++;
+      if (key < parent.key) {
+        if (parent.left == null) {
+          parent.left = node;
+          break;
+        }
+        parent = parent.left;
+      } else {
+        if (parent.right == null) {
+          parent.right = node;
+          break;
+        }
+        parent = parent.right;
+      }
+    }
+    node.parent = parent;
+    while (node.parent != null && node.priority > node.parent.priority) {
+      rotateUp(node);
+    }
+    return node;
+  }
+
+  /**
+   * Удаление узла из дерева.
+   *
+   * @param node узел дерева
+   */
+  void remove(Node node) {
+    /* опускаем узел вниз, пока у него два потомка */
+    while (node.left != null && node.right != null) {
+      rotateUp(node.left.priority > node.right.priority ? node.left : node.right);
+    }
+    push(node);
+    Node child = node.left != null ? node.left : node.right;
+    Node parent = node.parent;
+    if (child != null) {
+      child.parent = parent;
+    }
+    if (parent == null) {
+      root = child;
+    } else if (parent.left == node) {
+      parent.left = child;
+    } else {
+      parent.right = child;
+    }
+    for (Node current = parent; current != null; current = current.parent) {
+      current.size--;
+    }
+    node.left = null;
+    node.right = null;
+    node.parent = null;
+    node.size = 1;
+    node.pending = 0;
+  }
+
+  /**
+   * Удаление всех узлов.
+   */
+  void clear() {
+    root = null;
+  }
+
+  /**
+   * Поворот, поднимающий узел на место его родителя.
+   *
+   * @param node узел
+   */
+  private void rotateUp(Node node) {
+    Node parent = node.parent;
+    Node grand = parent.parent;
+    /* после поворота поддеревья узлов меняются, поэтому их отложенные смещения
+    проталкиваются заранее */
+    push(parent);
+    push(node);
+    if (node == parent.left) {
+      parent.left = node.right;
+      if (node.right != null) {
+        node.right.parent = parent;
+      }
+      node.right = parent;
+    } else {
+      parent.right = node.left;
+      if (node.left != null) {
+        node.left.parent = parent;
+      }
+      node.left = parent;
+    }
+    parent.parent = node;
+    node.parent = grand;
+    if (grand == null) {
+      root = node;
+    } else if (grand.left == parent) {
+      grand.left = node;
+    } else {
+      grand.right = node;
+    }
+    parent.size = 1 + size(parent.left) + size(parent.right);
+    node.size = 1 + size(node.left) + size(node.right);
+  }
+
+  /**
+   * Проталкивание отложенного смещения узла его потомкам.
+   *
+   * @param node узел
+   */
+  private static void push(Node node) {
+    if (node.pending != 0) {
+      addPending(node.left, node.pending);
+      addPending(node.right, node.pending);
+      node.pending = 0;
+    }
+  }
+
+  /**
+   * Сдвиг ключей всего поддерева.
+   *
+   * @param node  корень поддерева
+   * @param delta смещение
+   */
+  private static void addPending(Node node, long delta) {
+    if (node != null) {
+      node.key += delta;
+      node.pending += delta;
+    }
+  }
+
+  /**
+   * Размер поддерева.
+   *
+   * @param node корень поддерева
+   * @return количество узлов
+   */
+  private static int size(Node node) {
+    return node == null ? 0 : node.size;
+  }
+
+  /**
+   * Обработчик узлов при обходе дерева.
+   */
+  @FunctionalInterface
+  interface Visitor {
+
+    /**
+     * Обработка узла.
+     *
+     * @param node узел
+     * @param key  фактический ключ узла
+     */
+    void visit(Node node, long key);
+  }
+
+  /**
+   * Узел дерева.
+   */
+  static final class Node {
+
+    /**
+     * Ключ Z-order без учета отложенных смещений предков.
+     */
+    private long key;
+
+    /**
+     * Смещение ключей, отложенное для всех потомков узла.
+     */
+    private long pending;
+
+    /**
+     * Виджет.
+     */
+    Widget widget;
+
+    /**
+     * Приоритет узла (куча по приоритетам).
+     */
+    private final int priority;
+
+    /**
+     * Размер поддерева.
+     */
+    private int size = 1;
+
+    /**
+     * Левый потомок.
+     */
+    private Node left;
+
+    /**
+     * Правый потомок.
+     */
+    private Node right;
+
+    /**
+     * Родитель.
+     */
+    private Node parent;
+
+    /**
+     * Создание узла.
+     *
+     * @param key      ключ
+     * @param widget   виджет
+     * @param priority приоритет
+     */
+    private Node(long key, Widget widget, int priority) {
+      this.key = key;
+      this.widget = widget;
+      this.priority = priority;
+    }
+  }
+}
@@ -0,0 +1,430 @@
+package ru.kirillspirikhin.mirowidgets.services.journal;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetVersionMismatchException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetChanges;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.WidgetSnapshot;
+import ru.kirillspirikhin.mirowidgets.services.journal.WriteAheadLog.RecordType;
+
+/**
+ * Хранилище виджетов доски с записью изменений в журнал.
+ *
+ * <p>Изменения, затрагивающие Z-order (добавление, перемещение, удаление, пакеты),
+ * и записи о них выполняются под одной блокировкой доски, поэтому их порядок в журнале
+ * совпадает с порядком изменений, и повтор журнала через {@link WidgetService#putWidget}
+ * воспроизводит доску. Изменение без Z-order (перетаскивание, изменение размера)
+ * блокировку доски не берет и не ждет перемещений: оно никого не сдвигает, а его запись
+ * ({@link RecordType#GEOMETRY}) при повторе не меняет Z-order, поэтому ее достаточно
+ * упорядочить с изменениями того же виджета. Для этого перетаскивание и запись о нем
+ * выполняются под блокировкой полосы по ИД виджета. Изменения под блокировкой доски
+ * берут полосу только на время записи, а не на все изменение (сдвиг доски),
+ * и пишут текущую геометрию виджета: перетаскивание, записанное между изменением
+ * и записью о нем, уже учтено в этой записи, а перетаскивание, записанное раньше
+ * добавления виджета, при повторе пропускается.
+ * Добавленные и измененные виджеты пишутся целиком, поэтому повтор не зависит
+ * от текущего времени и случайных ИД. Журнал проверяется
+ * до изменения доски: если он недоступен после ошибки записи, изменение отклоняется,
+ * а не остается только в памяти. Записи, добавленные до ошибки, но не сброшенные
+ * на диск, теряются при сбое, как и при любой ошибке сброса.
+ * Чтение передается хранилищу без блокировки.
+ */
+class JournaledWidgetService implements WidgetService {
+
+  /**
+   * ИД доски.
+   */
+  private final String boardId;
+
+  /**
+   * Хранилище виджетов.
+   */
+  private final WidgetService delegate;
+
+  /**
+   * Журнал.
+   */
+  private final WriteAheadLog wal;
+
+  /**
+   * Признак ожидания сброса журнала на диск.
+   */
+  private final boolean sync;
+
+  /**
+   * Количество полос блокировок виджетов (степень двойки).
+   */
+  private static final int STRIPES = 64;
+
+  /**
+   * Блокировка изменений доски, затрагивающих Z-order, вместе с записью в журнал.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Блокировки записи изменений виджетов в журнал по полосам ИД виджета;
+   * берутся после блокировки доски, по одной.
+   */
+  private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+  /**
+   * Признак удаления доски: изменения удаленной доски в журнал не пишутся,
+   * иначе повтор журнала воскресил бы ее.
+   */
+  private volatile boolean dropped;
+
+  /**
+   * Создание хранилища с журналом.
+   *
+   * @param boardId  ИД доски
+   * @param delegate хранилище виджетов
+   * @param wal      журнал
+   * @param sync     признак ожидания сброса журнала на диск
+   */
+  JournaledWidgetService(String boardId, WidgetService delegate, WriteAheadLog wal,
+                         boolean sync) {
+    this.boardId = boardId;
+    this.delegate = delegate;
+    this.wal = wal;
+    this.sync = sync;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+  }
+
+  @Override
+  public Widget addWidget(WidgetDescription widgetDescription) {
+    final Widget widget;
+    final long seq;
+    lock.lock();
+    try {
+      checkWritable();
+      widget = delegate.addWidget(widgetDescription);
+      seq = logCurrent(widget);
+    } finally {
+      lock.unlock();
+    }
+    awaitDurable(seq);
+    return widget;
+  }
+
+  @Override
+  public Widget getById(UUID id) throws WidgetNotFoundException {
+    return delegate.getById(id);
+  }
+
+  /**
+   * Изменение виджета; без Z-order - без блокировки доски, только под блокировкой
+   * полосы виджета.
+   */
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description)
+      throws WidgetNotFoundException {
+    final Widget widget;
+    final long seq;
+    if (description.getZ() != null) {
+      lock.lock();
+      try {
+        checkWritable();
+        widget = delegate.editWidget(id, description);
+        seq = logCurrent(widget);
+      } finally {
+        lock.unlock();
+      }
+    } else {
+      final ReentrantLock stripe = stripe(id);
+      stripe.lock();
+      try {
+        checkWritable();
+        widget = delegate.editWidget(id, description);
+        seq = log(RecordType.GEOMETRY, widget, null);
+      } finally {
+        stripe.unlock();
+      }
+    }
+    awaitDurable(seq);
+    return widget;
+  }
+
+  /**
+   * Изменение виджета с проверкой версии; без Z-order версия проверяется хранилищем
+   * без блокировки доски, только под блокировкой полосы виджета.
+   */
+  @Override
+  public Widget editWidget(UUID id, WidgetDescription description, long expectedVersion)
+      throws WidgetNotFoundException, WidgetVersionMismatchException {
+    final Widget widget;
+    final long seq;
+    if (description.getZ() != null) {
+      lock.lock();
+      try {
+        checkWritable();
+        widget = delegate.editWidget(id, description, expectedVersion);
+        seq = logCurrent(widget);
+      } finally {
+        lock.unlock();
+      }
+    } else {
+      final ReentrantLock stripe = stripe(id);
+      stripe.lock();
+      try {
+        checkWritable();
+        widget = delegate.editWidget(id, description, expectedVersion);
+        seq = log(RecordType.GEOMETRY, widget, null);
+      } finally {
+        stripe.unlock();
+      }
+    }
+    awaitDurable(seq);
+    return widget;
+  }
+
+  @Override
+  public boolean deleteWidget(UUID id) {
+    final long seq;
+    lock.lock();
+    try {
+      checkWritable();
+      if (!delegate.deleteWidget(id)) {
+        return false;
+      }
+      seq = logDeleted(id);
+    } finally {
+      lock.unlock();
+    }
+    awaitDurable(seq);
+    return true;
+  }
+
+  @Override
+  public Widget[] applyBatch(List<WidgetOperation> operations)
+      throws WidgetNotFoundException {
+    final Widget[] results;
+    long seq = 0;
+    lock.lock();
+    try {
+      checkWritable();
+      results = delegate.applyBatch(operations);
+      for (int i = 0; i < results.length; i++) {
+        seq = operations.get(i).getType() == WidgetOperation.Type.DELETE
+            ? logDeleted(results[i].getId()) : logCurrent(results[i]);
+      }
+    } finally {
+      lock.unlock();
+    }
+    awaitDurable(seq);
+    return results;
+  }
+
+  @Override
+  public void putWidget(Widget widget) {
+    final long seq;
+    lock.lock();
+    try {
+      checkWritable();
+      delegate.putWidget(widget);
+      seq = logCurrent(widget);
+    } finally {
+      lock.unlock();
+    }
+    awaitDurable(seq);
+  }
+
+  @Override
+  public Widget[] getAllWidgets() {
+    return delegate.getAllWidgets();
+  }
+
+  @Override
+  public int getWidgetCount() {
+    return delegate.getWidgetCount();
+  }
+
+  @Override
+  public WidgetSnapshot getSnapshot() {
+    return delegate.getSnapshot();
+  }
+
+  @Override
+  public Widget[] getWidgetsPage(UUID afterId, int fromZ, int toZ, int limit)
+      throws WidgetNotFoundException {
+    return delegate.getWidgetsPage(afterId, fromZ, toZ, limit);
+  }
+
+  @Override
+  public Widget[] getWidgetsInArea(int x, int y, int width, int height) {
+    return delegate.getWidgetsInArea(x, y, width, height);
+  }
+
+  @Override
+  public Optional<Widget> getTopWidgetAt(int x, int y) {
+    return delegate.getTopWidgetAt(x, y);
+  }
+
+  @Override
+  public Widget[] getWidgetsAt(int x, int y) {
+    return delegate.getWidgetsAt(x, y);
+  }
+
+  @Override
+  public Widget getByRank(int rank) {
+    return delegate.getByRank(rank);
+  }
+
+  @Override
+  public int getRank(UUID id) throws WidgetNotFoundException {
+    return delegate.getRank(id);
+  }
+
+  @Override
+  public void deleteAllWidgets() {
+    final long seq;
+    lock.lock();
+    try {
+      checkWritable();
+      delegate.deleteAllWidgets();
+      seq = log(RecordType.CLEAR, null, null);
+    } finally {
+      lock.unlock();
+    }
+    awaitDurable(seq);
+  }
+
+  @Override
+  public long getVersion() {
+    return delegate.getVersion();
+  }
+
+  @Override
+  public WidgetChanges getChanges(long since) {
+    return delegate.getChanges(since);
+  }
+
+  @Override
+  public boolean isDenseZOrder() {
+    return delegate.isDenseZOrder();
+  }
+
+  /**
+   * Удаление доски: запись в журнал, после которой изменения доски не журналируются.
+   */
+  void drop() {
+    final long seq;
+    lock.lock();
+    try {
+      seq = log(RecordType.DROP_BOARD, null, null);
+      dropped = true;
+    } finally {
+      lock.unlock();
+    }
+    awaitDurable(seq);
+  }
+
+  /**
+   * Согласованный снимок доски вместе с номером последней учтенной в нем записи журнала.
+   *
+   * @return снимок доски или {@code null}, если доска удалена
+   */
+  SnapshotFile.BoardImage checkpoint() {
+    lock.lock();
+    try {
+      return dropped ? null
+          : new SnapshotFile.BoardImage(boardId, wal.lastSeq(), delegate.getSnapshot());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Запись добавленного или измененного виджета (под блокировкой доски). Виджет виден
+   * читателям до записи, и его могли уже перетащить, поэтому пишется его текущая
+   * геометрия под блокировкой полосы виджета; Z-order - на момент операции (в пакете
+   * следующие операции могли его сдвинуть, и повтор сдвинет его так же).
+   *
+   * @param widget виджет после операции
+   * @return номер записи; 0, если доска удалена
+   */
+  private long logCurrent(Widget widget) {
+    final ReentrantLock stripe = stripe(widget.getId());
+    stripe.lock();
+    try {
+      Widget current;
+      try {
+        current = delegate.getById(widget.getId()).withZ(widget.getZ());
+      } catch (WidgetNotFoundException e) {
+        /* удален следующей операцией пакета */
+        current = widget;
+      }
+      return log(RecordType.PUT, current, null);
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * Запись удаления виджета (под блокировкой доски) под блокировкой полосы виджета:
+   * перетаскивание, успевшее до удаления, записывается раньше него.
+   *
+   * @param id ИД удаленного виджета
+   * @return номер записи; 0, если доска удалена
+   */
+  private long logDeleted(UUID id) {
+    final ReentrantLock stripe = stripe(id);
+    stripe.lock();
+    try {
+      return log(RecordType.DELETE, null, id);
+    } finally {
+      stripe.unlock();
+    }
+  }
+
+  /**
+   * Блокировка полосы виджета.
+   *
+   * @param id ИД виджета
+   * @return блокировка
+   */
+  private ReentrantLock stripe(UUID id) {
+    return stripes[id.hashCode() & (STRIPES - 1)];
+  }
+
+  /**
+   * Добавление записи в журнал (под блокировкой доски или полосы виджета).
+   *
+   * @param type   тип записи
+   * @param widget виджет
+   * @param id     ИД виджета
+   * @return номер записи; 0, если доска удалена
+   */
+  private long log(RecordType type, Widget widget, UUID id) {
+    return dropped ? 0 : wal.append(type, boardId, widget, id);
+  }
+
+  /**
+   * Проверка перед изменением доски, что журнал принимает записи.
+   * Изменения удаленной доски не журналируются и не проверяются.
+   */
+  private void checkWritable() {
+    if (!dropped) {
+      wal.checkWritable();
+    }
+  }
+
+  /**
+   * Ожидание сброса записи на диск, если оно включено.
+   *
+   * @param seq номер записи
+   */
+  private void awaitDurable(long seq) {
+    if (sync && seq > 0) {
+      wal.awaitDurable(seq);
+    }
+  }
+}
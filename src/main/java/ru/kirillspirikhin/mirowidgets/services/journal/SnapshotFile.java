@@ -0,0 +1,217 @@
+package ru.kirillspirikhin.mirowidgets.services.journal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import lombok.Value;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.services.WidgetSnapshot;
+
+/**
+ * Файл снимка досок {@code snapshot.bin}: сигнатура и количество досок, затем по каждой
+ * доске - длина и ИД доски (UTF-8), номер последней учтенной записи журнала,
+ * количество виджетов и виджеты в порядке Z-order в двоичном представлении
+ * фиксированной длины ({@link WidgetCodec}).
+ *
+ * <p>Снимок пишется во временный файл, сбрасывается на диск и атомарно переименовывается,
+ * поэтому на диске всегда целый снимок. При чтении виджеты доски не копируются
+ * в кучу: область файла отображается в память ({@link java.nio.MappedByteBuffer}),
+ * и виджеты создаются прямо из нее по мере обхода снимка доски.
+ */
+final class SnapshotFile {
+
+  /**
+   * Имя файла снимка.
+   */
+  private static final String NAME = "snapshot.bin";
+
+  /**
+   * Сигнатура файла ("MWS2").
+   */
+  private static final int MAGIC = 0x4D575332;
+
+  private SnapshotFile() {
+  }
+
+  /**
+   * Снимок доски.
+   */
+  @Value
+  static class BoardImage {
+    /**
+     * ИД доски.
+     */
+    String boardId;
+
+    /**
+     * Номер последней записи журнала, учтенной в снимке.
+     */
+    long seq;
+
+    /**
+     * Виджеты доски.
+     */
+    WidgetSnapshot widgets;
+  }
+
+  /**
+   * Запись снимка досок.
+   *
+   * @param directory каталог журнала
+   * @param boards    снимки досок
+   * @throws IOException ошибка записи
+   */
+  static void write(Path directory, List<BoardImage> boards) throws IOException {
+    Path target = directory.resolve(NAME);
+    Path temp = directory.resolve(NAME + ".tmp");
+    try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+         DataOutputStream out = new DataOutputStream(
+             new BufferedOutputStream(Channels.newOutputStream(file), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(boards.size());
+      for (BoardImage board : boards) {
+        byte[] boardId = board.getBoardId().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(boardId.length);
+        out.write(boardId);
+        out.writeLong(board.getSeq());
+        out.writeInt(board.getWidgets().size());
+        for (Widget widget : board.getWidgets()) {
+          WidgetCodec.write(out, widget);
+        }
+      }
+      out.flush();
+      file.force(true);
+    }
+    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Чтение снимка досок: читаются только заголовки досок, виджеты каждой доски
+   * отображаются в память (до 2 Гб на доску).
+   *
+   * @param directory каталог журнала
+   * @return снимки досок (пустой список, если снимка нет)
+   * @throws IOException ошибка чтения или файл не является снимком
+   */
+  static List<BoardImage> read(Path directory) throws IOException {
+    Path target = directory.resolve(NAME);
+    if (!Files.exists(target)) {
+      return Collections.emptyList();
+    }
+    try (FileChannel file = FileChannel.open(target, StandardOpenOption.READ)) {
+      ByteBuffer header = read(file, 0, 8);
+      if (header.getInt() != MAGIC) {
+        throw new IOException("Файл " + target + " не является снимком досок");
+      }
+      int count = header.getInt();
+      long position = 8;
+      List<BoardImage> boards = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        int idLength = read(file, position, 4).getInt();
+        position += 4;
+        ByteBuffer board = read(file, position, idLength + 12);
+        position += idLength + 12;
+        byte[] boardId = new byte[idLength];
+        board.get(boardId);
+        long seq = board.getLong();
+        int size = board.getInt();
+        long bytes = (long) size * WidgetCodec.WIDGET_BYTES;
+        /* отображение остается действительным и после закрытия файла */
+        ByteBuffer widgets = file.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+        position += bytes;
+        boards.add(new BoardImage(new String(boardId, StandardCharsets.UTF_8), seq,
+            new MappedSnapshot(widgets, size)));
+      }
+      return boards;
+    }
+  }
+
+  /**
+   * Чтение области файла целиком.
+   *
+   * @param file     файл
+   * @param position начало области
+   * @param length   длина области
+   * @return буфер, готовый к чтению
+   * @throws IOException ошибка чтения или файл оборван
+   */
+  private static ByteBuffer read(FileChannel file, long position, int length)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (file.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException("Снимок досок оборван");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Снимок доски поверх отображенной в память области файла.
+   */
+  private static final class MappedSnapshot implements WidgetSnapshot {
+
+    /**
+     * Виджеты в двоичном представлении.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Количество виджетов.
+     */
+    private final int size;
+
+    /**
+     * Создание снимка.
+     *
+     * @param buffer виджеты в двоичном представлении
+     * @param size   количество виджетов
+     */
+    private MappedSnapshot(ByteBuffer buffer, int size) {
+      this.buffer = buffer;
+      this.size = size;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public Iterator<Widget> iterator() {
+      return new Iterator<Widget>() {
+        private int next;
+
+        @Override
+        public boolean hasNext() {
+          return next < size;
+        }
+
+        @Override
+        public Widget next() {
+          if (next == size) {
+            throw new NoSuchElementException();
+          }
+          return WidgetCodec.get(buffer, next++ * WidgetCodec.WIDGET_BYTES);
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package ru.kirillspirikhin.mirowidgets.services.journal;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+
+/**
+ * Двоичное представление виджета фиксированной длины {@value #WIDGET_BYTES} байта
+ * в журнале и снимке досок: ИД (2 x 8 байт), X, Y, Z, ширина, высота (5 x 4 байта),
+ * дата последнего изменения - наносекунды от начала эпохи UTC (8 байт); big-endian.
+ * Фиксированная длина позволяет читать виджет снимка по номеру прямо из отображенного
+ * в память файла.
+ */
+final class WidgetCodec {
+
+  /**
+   * Размер виджета в байтах.
+   */
+  static final int WIDGET_BYTES = 16 + 20 + 8;
+
+  private WidgetCodec() {
+  }
+
+  /**
+   * Запись ИД.
+   *
+   * @param out поток
+   * @param id  ИД
+   * @throws IOException ошибка записи
+   */
+  static void writeId(DataOutput out, UUID id) throws IOException {
+    out.writeLong(id.getMostSignificantBits());
+    out.writeLong(id.getLeastSignificantBits());
+  }
+
+  /**
+   * Чтение ИД.
+   *
+   * @param in поток
+   * @return ИД
+   * @throws IOException ошибка чтения
+   */
+  static UUID readId(DataInput in) throws IOException {
+    return new UUID(in.readLong(), in.readLong());
+  }
+
+  /**
+   * Запись виджета.
+   *
+   * @param out    поток
+   * @param widget виджет
+   * @throws IOException ошибка записи
+   */
+  static void write(DataOutput out, Widget widget) throws IOException {
+    out.writeLong(widget.idMostSigBits());
+    out.writeLong(widget.idLeastSigBits());
+    out.writeInt(widget.getX());
+    out.writeInt(widget.getY());
+    out.writeInt(widget.getZ());
+    out.writeInt(widget.getWidth());
+    out.writeInt(widget.getHeight());
+    out.writeLong(widget.modifiedNanos());
+  }
+
+  /**
+   * Чтение виджета.
+   *
+   * @param in поток
+   * @return виджет
+   * @throws IOException ошибка чтения
+   */
+  static Widget read(DataInput in) throws IOException {
+    return Widget.of(in.readLong(), in.readLong(), in.readInt(), in.readInt(), in.readInt(),
+        in.readInt(), in.readInt(), in.readLong());
+  }
+
+  /**
+   * Чтение виджета из буфера по абсолютному смещению (позиция буфера не меняется,
+   * поэтому буфер можно читать из нескольких потоков).
+   *
+   * @param buffer буфер
+   * @param offset смещение виджета
+   * @return виджет
+   */
+  static Widget get(ByteBuffer buffer, int offset) {
+    return Widget.of(buffer.getLong(offset), buffer.getLong(offset + 8),
+        buffer.getInt(offset + 16), buffer.getInt(offset + 20), buffer.getInt(offset + 24),
+        buffer.getInt(offset + 28), buffer.getInt(offset + 32), buffer.getLong(offset + 36));
+  }
+}
@@ -0,0 +1,251 @@
+package ru.kirillspirikhin.mirowidgets.services.journal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import ru.kirillspirikhin.mirowidgets.config.JournalProperties;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+
+/**
+ * Журнал изменений досок: восстановление досок при запуске и запись их изменений.
+ *
+ * <p>Изменения досок дописываются в журнал упреждающей записи ({@link WriteAheadLog})
+ * с групповым сбросом на диск. Периодически записывается снимок всех досок
+ * ({@link SnapshotFile}), после чего сегменты журнала, учтенные в снимке, удаляются.
+ * При запуске загружается последний снимок и повторяются записи журнала после него.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "widgets.journal.enabled", havingValue = "true")
+public class WidgetJournal implements Closeable {
+
+  /**
+   * Настройки журнала.
+   */
+  private final JournalProperties properties;
+
+  /**
+   * Каталог журнала.
+   */
+  private final Path directory;
+
+  /**
+   * Журнал упреждающей записи.
+   */
+  private final WriteAheadLog wal;
+
+  /**
+   * Доски с журналом по ИД.
+   */
+  private final ConcurrentMap<String, JournaledWidgetService> boards = new ConcurrentHashMap<>();
+
+  /**
+   * Планировщик записи снимков.
+   */
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Создание журнала.
+   *
+   * @param properties настройки журнала
+   */
+  @Autowired
+  public WidgetJournal(JournalProperties properties) {
+    this.properties = properties;
+    this.directory = Paths.get(properties.getDirectory());
+    this.wal = new WriteAheadLog(directory, properties.getFlushInterval(),
+        properties.getMaxPending().toBytes());
+  }
+
+  /**
+   * Восстановление досок из снимка и журнала и запуск записи изменений.
+   * Вызывается один раз до работы с досками.
+   *
+   * @param storages фабрика пустых хранилищ виджетов
+   * @return восстановленные доски с журналом по ИД
+   * @throws IOException ошибка чтения журнала
+   */
+  public Map<String, WidgetService> recover(Supplier<WidgetService> storages)
+      throws IOException {
+    final Map<String, WidgetService> restored = new LinkedHashMap<>();
+    /* номер последней записи журнала, учтенной в снимке доски */
+    final Map<String, Long> applied = new HashMap<>();
+    long snapshotSeq = 0;
+    List<SnapshotFile.BoardImage> images = SnapshotFile.read(directory);
+    /* доски независимы - заполняются параллельно, виджеты создаются прямо
+    из отображенного в память снимка */
+    List<WidgetService> loaded = images.parallelStream()
+        .map(image -> {
+          WidgetService storage = storages.get();
+          for (Widget widget : image.getWidgets()) {
+            storage.putWidget(widget);
+          }
+          return storage;
+        })
+        .collect(Collectors.toList());
+    for (int i = 0; i < images.size(); i++) {
+      SnapshotFile.BoardImage image = images.get(i);
+      restored.put(image.getBoardId(), loaded.get(i));
+      applied.put(image.getBoardId(), image.getSeq());
+      snapshotSeq = Math.max(snapshotSeq, image.getSeq());
+    }
+    wal.open(snapshotSeq, new WriteAheadLog.Visitor() {
+      @Override
+      public void put(long seq, String boardId, Widget widget) {
+        if (isNew(seq, boardId)) {
+          restored.computeIfAbsent(boardId, id -> storages.get()).putWidget(widget);
+        }
+      }
+
+      @Override
+      public void delete(long seq, String boardId, UUID id) {
+        if (isNew(seq, boardId)) {
+          restored.computeIfAbsent(boardId, key -> storages.get()).deleteWidget(id);
+        }
+      }
+
+      @Override
+      public void clear(long seq, String boardId) {
+        if (isNew(seq, boardId)) {
+          restored.computeIfAbsent(boardId, id -> storages.get()).deleteAllWidgets();
+        }
+      }
+
+      @Override
+      public void geometry(long seq, String boardId, Widget widget) {
+        WidgetService board = restored.get(boardId);
+        if (board == null || !isNew(seq, boardId)) {
+          return;
+        }
+        try {
+          /* Z-order мог сдвинуться после изменения геометрии - он берется с доски */
+          board.putWidget(widget.withZ(board.getById(widget.getId()).getZ()));
+        } catch (WidgetNotFoundException e) {
+          /* виджет удален после изменения или записан позже него (добавление
+          пишет текущую геометрию) */
+        }
+      }
+
+      @Override
+      public void dropBoard(long seq, String boardId) {
+        if (isNew(seq, boardId)) {
+          restored.remove(boardId);
+          applied.remove(boardId);
+        }
+      }
+
+      private boolean isNew(long seq, String boardId) {
+        Long boardSeq = applied.get(boardId);
+        return boardSeq == null || seq > boardSeq;
+      }
+    });
+    Map<String, WidgetService> journaled = new LinkedHashMap<>();
+    restored.forEach((boardId, storage) -> journaled.put(boardId, journaled(boardId, storage)));
+    log.info("Из журнала {} восстановлено досок: {}", directory.toAbsolutePath(),
+        journaled.size());
+    long interval = properties.getSnapshotInterval().toMillis();
+    scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "widgets-snapshot");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this::scheduledCheckpoint, interval, interval,
+        TimeUnit.MILLISECONDS);
+    return journaled;
+  }
+
+  /**
+   * Подключение хранилища доски к журналу.
+   *
+   * @param boardId ИД доски
+   * @param storage хранилище виджетов доски
+   * @return хранилище, изменения которого пишутся в журнал
+   */
+  public WidgetService journaled(String boardId, WidgetService storage) {
+    JournaledWidgetService board = new JournaledWidgetService(boardId, storage, wal,
+        properties.isSync());
+    boards.put(boardId, board);
+    return board;
+  }
+
+  /**
+   * Запись удаления доски.
+   *
+   * @param boardId ИД доски
+   */
+  public void dropBoard(String boardId) {
+    JournaledWidgetService board = boards.remove(boardId);
+    if (board != null) {
+      board.drop();
+    }
+  }
+
+  /**
+   * Запись снимка всех досок и удаление учтенных в нем сегментов журнала.
+   * Доски блокируются по одной и только на время получения снимка.
+   *
+   * @throws IOException ошибка записи
+   */
+  public synchronized void checkpoint() throws IOException {
+    /* все записи до нового сегмента уже на диске, а снимок каждой доски
+    берется позже - значит, учитывает их все */
+    long start = wal.rotate();
+    List<SnapshotFile.BoardImage> images = new ArrayList<>();
+    for (JournaledWidgetService board : boards.values()) {
+      SnapshotFile.BoardImage image = board.checkpoint();
+      if (image != null) {
+        images.add(image);
+      }
+    }
+    SnapshotFile.write(directory, images);
+    wal.deleteSegmentsBefore(start);
+  }
+
+  /**
+   * Периодическая запись снимка.
+   */
+  private void scheduledCheckpoint() {
+    try {
+      checkpoint();
+    } catch (IOException | RuntimeException e) {
+      log.error("Ошибка записи снимка досок", e);
+    }
+  }
+
+  /**
+   * Остановка журнала: снимок досок для быстрого запуска и сброс оставшихся записей.
+   */
+  @Override
+  public void close() throws IOException {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      try {
+        scheduler.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      scheduledCheckpoint();
+    }
+    wal.close();
+  }
+}
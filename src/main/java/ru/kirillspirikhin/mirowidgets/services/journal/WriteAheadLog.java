@@ -0,0 +1,665 @@
+package ru.kirillspirikhin.mirowidgets.services.journal;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+
+/**
+ * Журнал упреждающей записи изменений досок.
+ *
+ * <p>Журнал состоит из сегментов {@code wal-<номер первой записи>.log}, записи в них
+ * только дописываются. Запись: длина тела (4 байта), CRC32 тела (4 байта) и тело -
+ * номер записи, тип, ИД доски и данные (виджет целиком или ИД удаленного виджета).
+ * Добавление записи только кодирует ее в буфер в памяти и выдает номер, поэтому
+ * стоит единицы микросекунд. Фоновый поток забирает накопленный буфер целиком,
+ * пишет его в сегмент и вызывает fsync: один сброс на диск подтверждает все записи,
+ * добавленные, пока выполнялся предыдущий (групповой сброс). Размер буфера ограничен:
+ * если диск не успевает, добавление ждет сброса, а не копит записи до исчерпания памяти.
+ *
+ * <p>При чтении журнал останавливается на первой оборванной или поврежденной записи
+ * сегмента (сбой посреди записи), хвост сегмента после нее отрезается.
+ */
+@Slf4j
+class WriteAheadLog implements Closeable {
+
+  /**
+   * Максимальный размер тела записи - защита от мусора вместо длины.
+   */
+  private static final int MAX_RECORD_BYTES = 1 << 16;
+
+  /**
+   * Префикс имени сегмента.
+   */
+  private static final String SEGMENT_PREFIX = "wal-";
+
+  /**
+   * Суффикс имени сегмента.
+   */
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /**
+   * Тип записи.
+   */
+  enum RecordType {
+    /**
+     * Виджет добавлен или изменен - в записи виджет целиком.
+     */
+    PUT,
+    /**
+     * Виджет удален.
+     */
+    DELETE,
+    /**
+     * Удалены все виджеты доски.
+     */
+    CLEAR,
+    /**
+     * Доска удалена.
+     */
+    DROP_BOARD,
+    /**
+     * Изменены координаты или размеры виджета без изменения Z-order - в записи виджет
+     * целиком, но его Z-order при повторе не применяется.
+     */
+    GEOMETRY
+  }
+
+  /**
+   * Получатель записей журнала при восстановлении.
+   */
+  interface Visitor {
+    /**
+     * Виджет добавлен или изменен.
+     *
+     * @param seq     номер записи
+     * @param boardId ИД доски
+     * @param widget  виджет
+     */
+    void put(long seq, String boardId, Widget widget);
+
+    /**
+     * Виджет удален.
+     *
+     * @param seq     номер записи
+     * @param boardId ИД доски
+     * @param id      ИД виджета
+     */
+    void delete(long seq, String boardId, UUID id);
+
+    /**
+     * Удалены все виджеты доски.
+     *
+     * @param seq     номер записи
+     * @param boardId ИД доски
+     */
+    void clear(long seq, String boardId);
+
+    /**
+     * Доска удалена.
+     *
+     * @param seq     номер записи
+     * @param boardId ИД доски
+     */
+    void dropBoard(long seq, String boardId);
+
+    /**
+     * Изменены координаты или размеры виджета без изменения Z-order.
+     *
+     * @param seq     номер записи
+     * @param boardId ИД доски
+     * @param widget  виджет (его Z-order не применяется)
+     */
+    void geometry(long seq, String boardId, Widget widget);
+  }
+
+  /**
+   * Каталог сегментов.
+   */
+  private final Path directory;
+
+  /**
+   * Пауза между групповыми сбросами, нс.
+   */
+  private final long flushIntervalNanos;
+
+  /**
+   * Наибольший размер буфера записей, ожидающих сброса, байт.
+   */
+  private final long maxPendingBytes;
+
+  /**
+   * Блокировка буфера записей и номеров.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Условие "в пустой буфер добавлена запись".
+   */
+  private final Condition appended = lock.newCondition();
+
+  /**
+   * Условие "продвинулся номер последней сброшенной записи".
+   */
+  private final Condition flushed = lock.newCondition();
+
+  /**
+   * Блокировка файла текущего сегмента: сброс и смена сегмента.
+   */
+  private final ReentrantLock ioLock = new ReentrantLock();
+
+  /**
+   * Буфер тела кодируемой записи.
+   */
+  private final RecordBuffer record = new RecordBuffer();
+
+  /**
+   * Поток кодирования тела записи.
+   */
+  private final DataOutputStream recordOut = new DataOutputStream(record);
+
+  /**
+   * Контрольная сумма тела записи.
+   */
+  private final CRC32 crc = new CRC32();
+
+  /**
+   * Буфер записей, ожидающих сброса.
+   */
+  private RecordBuffer pending = new RecordBuffer();
+
+  /**
+   * Буфер сбрасываемых записей; меняется местами с {@link #pending}.
+   */
+  private RecordBuffer writing = new RecordBuffer();
+
+  /**
+   * Номер последней добавленной записи.
+   */
+  private long lastSeq;
+
+  /**
+   * Номер последней сброшенной на диск записи.
+   */
+  private long durableSeq;
+
+  /**
+   * Ошибка записи на диск; после нее журнал не принимает записей.
+   */
+  private IOException failure;
+
+  /**
+   * Признак закрытия журнала.
+   */
+  private boolean closed;
+
+  /**
+   * Файл текущего сегмента.
+   */
+  private FileChannel channel;
+
+  /**
+   * Поток группового сброса.
+   */
+  private Thread flusher;
+
+  /**
+   * Создание журнала.
+   *
+   * @param directory       каталог сегментов
+   * @param flushInterval   пауза между групповыми сбросами
+   * @param maxPendingBytes наибольший размер буфера записей, ожидающих сброса, байт
+   */
+  WriteAheadLog(Path directory, Duration flushInterval, long maxPendingBytes) {
+    this.directory = directory;
+    this.flushIntervalNanos = flushInterval.toNanos();
+    this.maxPendingBytes = maxPendingBytes;
+  }
+
+  /**
+   * Открытие журнала: чтение существующих записей, начало нового сегмента
+   * и запуск потока группового сброса.
+   *
+   * @param minSeq  номер, с которого должна продолжиться нумерация
+   *                (последний номер, учтенный в снимке досок)
+   * @param visitor получатель существующих записей
+   * @throws IOException ошибка чтения или создания сегмента
+   */
+  void open(long minSeq, Visitor visitor) throws IOException {
+    Files.createDirectories(directory);
+    long seq = Math.max(minSeq, replay(visitor));
+    lock.lock();
+    try {
+      lastSeq = seq;
+      durableSeq = seq;
+    } finally {
+      lock.unlock();
+    }
+    channel = openSegment(seq + 1);
+    flusher = new Thread(this::flushLoop, "widgets-wal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Проверка, что журнал принимает записи: после ошибки записи или закрытия
+   * изменения не должны попадать в память, минуя журнал.
+   *
+   * @throws UncheckedIOException  журнал недоступен после ошибки записи
+   * @throws IllegalStateException журнал закрыт
+   */
+  void checkWritable() {
+    lock.lock();
+    try {
+      if (failure != null) {
+        throw new UncheckedIOException("Журнал недоступен после ошибки записи", failure);
+      }
+      if (closed) {
+        throw new IllegalStateException("Журнал закрыт");
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Добавление записи. Запись попадает на диск при ближайшем групповом сбросе.
+   * Если буфер записей, ожидающих сброса, заполнен (сброс отстает от изменений),
+   * добавление ждет очередного сброса.
+   *
+   * @param type    тип записи
+   * @param boardId ИД доски
+   * @param widget  виджет (для {@link RecordType#PUT} и {@link RecordType#GEOMETRY})
+   * @param id      ИД виджета (для {@link RecordType#DELETE})
+   * @return номер записи
+   */
+  long append(RecordType type, String boardId, Widget widget, UUID id) {
+    lock.lock();
+    try {
+      checkWritable();
+      while (pending.size() >= maxPendingBytes) {
+        flushed.awaitUninterruptibly();
+        checkWritable();
+      }
+      final long seq = lastSeq + 1;
+      record.reset();
+      recordOut.writeLong(seq);
+      recordOut.writeByte(type.ordinal());
+      recordOut.writeUTF(boardId);
+      if (widget != null) {
+        WidgetCodec.write(recordOut, widget);
+      } else if (id != null) {
+        WidgetCodec.writeId(recordOut, id);
+      }
+      crc.reset();
+      crc.update(record.array(), 0, record.size());
+      if (pending.size() == 0) {
+        appended.signal();
+      }
+      pending.writeInt(record.size());
+      pending.writeInt((int) crc.getValue());
+      pending.write(record.array(), 0, record.size());
+      lastSeq = seq;
+      return seq;
+    } catch (IOException e) {
+      /* запись кодируется в память - недостижимо */
+      throw new UncheckedIOException(e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Номер последней добавленной записи.
+   *
+   * @return номер
+   */
+  long lastSeq() {
+    lock.lock();
+    try {
+      return lastSeq;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Ожидание сброса записи на диск.
+   *
+   * @param seq номер записи
+   */
+  void awaitDurable(long seq) {
+    lock.lock();
+    try {
+      while (durableSeq < seq) {
+        if (failure != null) {
+          throw new UncheckedIOException("Журнал недоступен после ошибки записи", failure);
+        }
+        flushed.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Сброс накопленных записей и начало нового сегмента.
+   *
+   * @return номер первой записи нового сегмента: все записи с меньшими номерами
+   *     находятся в предыдущих сегментах и сброшены на диск
+   * @throws IOException ошибка записи
+   */
+  long rotate() throws IOException {
+    ioLock.lock();
+    try {
+      flush();
+      final long start;
+      lock.lock();
+      try {
+        if (failure != null) {
+          throw failure;
+        }
+        start = durableSeq + 1;
+      } finally {
+        lock.unlock();
+      }
+      channel.close();
+      channel = openSegment(start);
+      return start;
+    } finally {
+      ioLock.unlock();
+    }
+  }
+
+  /**
+   * Удаление сегментов, начинающихся раньше указанной записи.
+   *
+   * @param start номер первой записи сегмента, возвращенный {@link #rotate()}
+   * @throws IOException ошибка удаления
+   */
+  void deleteSegmentsBefore(long start) throws IOException {
+    for (long segment : segments()) {
+      if (segment < start) {
+        Files.deleteIfExists(segmentPath(segment));
+      }
+    }
+  }
+
+  /**
+   * Закрытие журнала: сброс оставшихся записей и остановка потока сброса.
+   */
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      closed = true;
+      appended.signal();
+    } finally {
+      lock.unlock();
+    }
+    if (flusher != null) {
+      try {
+        flusher.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (channel != null) {
+      channel.close();
+    }
+  }
+
+  /**
+   * Цикл потока группового сброса.
+   */
+  private void flushLoop() {
+    while (true) {
+      lock.lock();
+      try {
+        while (pending.size() == 0 && !closed) {
+          appended.awaitUninterruptibly();
+        }
+        if (pending.size() == 0) {
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+      flush();
+      if (flushIntervalNanos > 0) {
+        LockSupport.parkNanos(flushIntervalNanos);
+      }
+    }
+  }
+
+  /**
+   * Групповой сброс: все накопленные записи пишутся в сегмент одним вызовом
+   * и подтверждаются одним fsync.
+   */
+  private void flush() {
+    ioLock.lock();
+    try {
+      final long upTo;
+      lock.lock();
+      try {
+        RecordBuffer full = pending;
+        pending = writing;
+        writing = full;
+        upTo = lastSeq;
+      } finally {
+        lock.unlock();
+      }
+      if (writing.size() > 0) {
+        try {
+          writing.writeTo(channel);
+          channel.force(false);
+        } catch (IOException e) {
+          log.error("Ошибка записи журнала виджетов", e);
+          lock.lock();
+          try {
+            failure = e;
+            flushed.signalAll();
+          } finally {
+            lock.unlock();
+          }
+          return;
+        } finally {
+          writing.reset();
+        }
+      }
+      lock.lock();
+      try {
+        durableSeq = upTo;
+        flushed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    } finally {
+      ioLock.unlock();
+    }
+  }
+
+  /**
+   * Чтение всех сегментов журнала по порядку.
+   *
+   * @param visitor получатель записей
+   * @return номер последней записи (с учетом номеров в именах пустых сегментов)
+   * @throws IOException ошибка чтения
+   */
+  private long replay(Visitor visitor) throws IOException {
+    long last = 0;
+    for (long segment : segments()) {
+      last = Math.max(last, segment - 1);
+      Path path = segmentPath(segment);
+      try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+           DataInputStream in = new DataInputStream(
+               new BufferedInputStream(Channels.newInputStream(file)))) {
+        long position = 0;
+        while (true) {
+          byte[] body;
+          try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_BYTES) {
+              break;
+            }
+            body = new byte[length];
+            in.readFully(body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != checksum) {
+              break;
+            }
+          } catch (EOFException e) {
+            break;
+          }
+          last = Math.max(last, apply(body, visitor));
+          position += 8 + body.length;
+        }
+        if (position < file.size()) {
+          log.warn("Журнал виджетов {}: оборванная или поврежденная запись в позиции {}, "
+              + "хвост сегмента отброшен", path, position);
+          file.truncate(position);
+        }
+      }
+    }
+    return last;
+  }
+
+  /**
+   * Разбор тела записи и передача ее получателю.
+   *
+   * @param body    тело записи
+   * @param visitor получатель
+   * @return номер записи
+   * @throws IOException ошибка разбора
+   */
+  private static long apply(byte[] body, Visitor visitor) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    long seq = in.readLong();
+    RecordType type = RecordType.values()[in.readByte()];
+    String boardId = in.readUTF();
+    switch (type) {
+      case PUT:
+        visitor.put(seq, boardId, WidgetCodec.read(in));
+        break;
+      case DELETE:
+        visitor.delete(seq, boardId, WidgetCodec.readId(in));
+        break;
+      case CLEAR:
+        visitor.clear(seq, boardId);
+        break;
+      case GEOMETRY:
+        visitor.geometry(seq, boardId, WidgetCodec.read(in));
+        break;
+      default:
+        visitor.dropBoard(seq, boardId);
+    }
+    return seq;
+  }
+
+  /**
+   * Номера первых записей существующих сегментов по возрастанию.
+   *
+   * @return номера
+   * @throws IOException ошибка чтения каталога
+   */
+  private List<Long> segments() throws IOException {
+    List<Long> segments = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+        SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+            name.length() - SEGMENT_SUFFIX.length())));
+      }
+    }
+    segments.sort(null);
+    return segments;
+  }
+
+  /**
+   * Путь к сегменту.
+   *
+   * @param start номер первой записи сегмента
+   * @return путь
+   */
+  private Path segmentPath(long start) {
+    return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, start, SEGMENT_SUFFIX));
+  }
+
+  /**
+   * Создание сегмента для записи.
+   *
+   * @param start номер первой записи сегмента
+   * @return файл сегмента
+   * @throws IOException ошибка создания
+   */
+  private FileChannel openSegment(long start) throws IOException {
+    return FileChannel.open(segmentPath(start), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /**
+   * Буфер байтов с доступом к массиву без копирования.
+   */
+  private static final class RecordBuffer extends ByteArrayOutputStream {
+
+    /**
+     * Массив буфера.
+     *
+     * @return массив (заполнен до {@link #size()})
+     */
+    byte[] array() {
+      return buf;
+    }
+
+    /**
+     * Запись целого числа (big-endian, как {@link DataOutputStream}).
+     *
+     * @param value число
+     */
+    void writeInt(int value) {
+      write(value >>> 24);
+      write(value >>> 16);
+      write(value >>> 8);
+      write(value);
+    }
+
+    /**
+     * Запись содержимого буфера в файл.
+     *
+     * @param channel файл
+     * @throws IOException ошибка записи
+     */
+    void writeTo(FileChannel channel) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(buf, 0, count);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+}
@@ -0,0 +1,551 @@
+package ru.kirillspirikhin.mirowidgets.services.push;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ru.kirillspirikhin.mirowidgets.config.PushProperties;
+import ru.kirillspirikhin.mirowidgets.exceptions.BoardNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.WidgetChanges;
+import ru.kirillspirikhin.mirowidgets.services.BoardRegistry;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+
+/**
+ * Рассылка изменений досок подписчикам.
+ *
+ * <p>Раз в кадр ({@link PushProperties#getFrameInterval()}, по умолчанию 16 мс) для каждой
+ * доски с подписчиками проверяется версия; если доска изменилась, изменения за кадр
+ * берутся из журнала изменений доски ({@link WidgetService#getChanges}) одним событием
+ * и сериализуются один раз для всех подписчиков. Поэтому многократные изменения одного
+ * виджета за кадр приходят одним обновлением, а стоимость кадра на подписчика - только
+ * передача готового события потоку отправки.
+ *
+ * <p>У подписчика не больше одного отправляемого события. Если подписчик не успел
+ * получить предыдущее событие, новые ему не накапливаются: он переходит в состояние
+ * пересинхронизации и после завершения отправки получает одно событие с изменениями
+ * от своей последней версии (или доску целиком, если эти изменения уже не хранятся).
+ *
+ * <p>Отправка одного события ограничена сроком ({@link PushProperties#getSendTimeout()}).
+ * Поток кадров отключает подписчика, отправка которому не уложилась в срок, прерывает
+ * поток отправки и добавляет в пул поток на замену, поэтому клиенты, переставшие читать
+ * ответ, не занимают все потоки отправки. Зависшая отправка закрывает соединение,
+ * когда завершится, и ее поток возвращается в пул сверх его размера и завершается.
+ */
+@Slf4j
+@Service
+public class ChangeBroadcaster {
+
+  /**
+   * Реестр досок.
+   */
+  private final BoardRegistry boardRegistry;
+
+  /**
+   * Сериализатор JSON.
+   */
+  private final ObjectMapper objectMapper;
+
+  /**
+   * Подписки по ИД доски.
+   */
+  private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+  /**
+   * Поток кадров.
+   */
+  private final ScheduledExecutorService ticker;
+
+  /**
+   * Потоки отправки событий.
+   */
+  private final ThreadPoolExecutor senders;
+
+  /**
+   * Количество потоков отправки без учета замененных зависшими отправками.
+   */
+  private final int senderThreads;
+
+  /**
+   * Срок отправки одного события, нс.
+   */
+  private final long sendTimeoutNanos;
+
+  /**
+   * Подписчики, которым идет отправка события.
+   */
+  private final Set<Subscriber> inFlight = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Количество зависших отправок, потоки которых заменены.
+   */
+  private int stuckSenders;
+
+  /**
+   * Количество подписчиков.
+   */
+  private final AtomicInteger subscriberCount = new AtomicInteger();
+
+  /**
+   * Счетчик переходов подписчиков в пересинхронизацию.
+   */
+  private final Counter resyncs;
+
+  /**
+   * Счетчик подписчиков, отключенных по сроку отправки.
+   */
+  private final Counter dropped;
+
+  /**
+   * Создание рассылки.
+   *
+   * @param boardRegistry  реестр досок
+   * @param objectMapper   сериализатор JSON
+   * @param properties     настройки рассылки
+   * @param meterRegistry  реестр метрик
+   */
+  @Autowired
+  public ChangeBroadcaster(BoardRegistry boardRegistry, ObjectMapper objectMapper,
+                           PushProperties properties, MeterRegistry meterRegistry) {
+    this.boardRegistry = boardRegistry;
+    this.objectMapper = objectMapper;
+    this.ticker = Executors.newSingleThreadScheduledExecutor(threads("widgets-push-frame"));
+    this.senderThreads = properties.getSenderThreads();
+    this.sendTimeoutNanos = properties.getSendTimeout().toNanos();
+    /* основные потоки - фиксированный пул; сверх него - только замены зависших отправок */
+    this.senders = new ThreadPoolExecutor(senderThreads, Integer.MAX_VALUE,
+        0, TimeUnit.NANOSECONDS, new LinkedBlockingQueue<>(), threads("widgets-push-sender"));
+    Gauge.builder("widgets.push.subscribers", subscriberCount, AtomicInteger::get)
+        .description("Количество подписчиков на изменения досок")
+        .register(meterRegistry);
+    this.resyncs = Counter.builder("widgets.push.resyncs")
+        .description("Переходы медленных подписчиков в пересинхронизацию")
+        .register(meterRegistry);
+    this.dropped = Counter.builder("widgets.push.dropped")
+        .description("Подписчики, отключенные по сроку отправки события")
+        .register(meterRegistry);
+    /* кадры начинаются, когда все поля рассылки уже заданы */
+    long interval = properties.getFrameInterval().toNanos();
+    ticker.scheduleWithFixedDelay(this::frame, interval, interval, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Подписка на изменения доски. Первое событие - изменения после версии {@code since}
+   * (доска целиком для 0 или неизвестной версии), если они есть.
+   *
+   * @param boardId ИД доски ({@code null} - доска по умолчанию)
+   * @param since   версия доски, известная подписчику
+   * @param sink    получатель событий
+   * @return подписка; закрывается при отключении клиента
+   * @throws BoardNotFoundException доски нет - подписка ее не создает
+   */
+  public Subscription subscribe(String boardId, long since, ChangeSink sink)
+      throws BoardNotFoundException {
+    final String id = boardId != null ? boardId : BoardRegistry.DEFAULT_BOARD;
+    final WidgetService board = boardRegistry.findBoard(id);
+    if (board == null) {
+      throw new BoardNotFoundException(id);
+    }
+    Subscriber subscriber = new Subscriber(since, sink);
+    channels.compute(id, (key, channel) -> {
+      Channel target = channel;
+      if (channel == null || channel.board != board) {
+        if (channel != null) {
+          /* доска пересоздана - подписчики прежней доски переподключаются */
+          channel.subscribers.forEach(Subscriber::close);
+        }
+        target = new Channel(board);
+      }
+      subscriber.channel = target;
+      target.subscribers.add(subscriber);
+      return target;
+    });
+    subscriberCount.incrementAndGet();
+    subscriber.offer(null);
+    return subscriber;
+  }
+
+  /**
+   * Кадр: отключение зависших отправок и рассылка изменений всех досок с подписчиками.
+   */
+  private void frame() {
+    final long now = System.nanoTime();
+    for (Subscriber subscriber : inFlight) {
+      subscriber.expire(now);
+    }
+    for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+      try {
+        frame(entry.getKey(), entry.getValue());
+      } catch (RuntimeException e) {
+        log.error("Ошибка рассылки изменений доски {}", entry.getKey(), e);
+      }
+    }
+  }
+
+  /**
+   * Кадр доски.
+   *
+   * @param boardId ИД доски
+   * @param channel подписки доски
+   */
+  private void frame(String boardId, Channel channel) {
+    /* проверка и удаление атомарны с подпиской, иначе новый подписчик мог бы остаться
+    в уже удаленных подписках доски */
+    if (channels.computeIfPresent(boardId, (key, current) ->
+        current == channel && current.subscribers.isEmpty() ? null : current) != channel) {
+      return;
+    }
+    WidgetService board = boardRegistry.findBoard(boardId);
+    if (board != channel.board) {
+      /* доска удалена (и, возможно, создана заново) - подписчики переподключаются */
+      if (channels.remove(boardId, channel)) {
+        channel.subscribers.forEach(Subscriber::close);
+      }
+      return;
+    }
+    if (board.getVersion() == channel.version) {
+      return;
+    }
+    Frame frame = changes(board, channel.version);
+    channel.version = frame.version;
+    for (Subscriber subscriber : channel.subscribers) {
+      subscriber.offer(frame);
+    }
+  }
+
+  /**
+   * Событие с изменениями доски после версии.
+   *
+   * @param board доска
+   * @param since версия
+   * @return событие
+   */
+  private Frame changes(WidgetService board, long since) {
+    WidgetChanges changes = board.getChanges(since);
+    try {
+      return new Frame(since, changes.getVersion(),
+          changes.isFull() || changes.getChanged().length > 0 || changes.getDeleted().length > 0
+              ? objectMapper.writeValueAsString(changes) : null);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Изменение количества потоков отправки на замену зависшим.
+   *
+   * @param delta изменение количества зависших отправок
+   */
+  private synchronized void replaceSenders(int delta) {
+    stuckSenders += delta;
+    senders.setCorePoolSize(senderThreads + stuckSenders);
+  }
+
+  /**
+   * Остановка рассылки и закрытие всех подписок.
+   */
+  @PreDestroy
+  public void shutdown() {
+    ticker.shutdownNow();
+    senders.shutdownNow();
+    channels.values().forEach(channel -> channel.subscribers.forEach(Subscriber::close));
+    channels.clear();
+  }
+
+  /**
+   * Фабрика потоков-демонов.
+   *
+   * @param name имя потоков
+   * @return фабрика
+   */
+  private static ThreadFactory threads(String name) {
+    AtomicInteger number = new AtomicInteger();
+    return task -> {
+      Thread thread = new Thread(task, name + "-" + number.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Подписка на изменения доски.
+   */
+  public interface Subscription {
+
+    /**
+     * Отмена подписки.
+     */
+    void cancel();
+  }
+
+  /**
+   * Событие: изменения доски между версиями и их JSON.
+   */
+  private static final class Frame {
+
+    /**
+     * Версия, после которой взяты изменения.
+     */
+    final long since;
+
+    /**
+     * Версия доски после изменений.
+     */
+    final long version;
+
+    /**
+     * Изменения в JSON; {@code null} - изменений нет, отправлять нечего.
+     */
+    final String payload;
+
+    /**
+     * Создание события.
+     *
+     * @param since   версия, после которой взяты изменения
+     * @param version версия доски после изменений
+     * @param payload изменения в JSON
+     */
+    Frame(long since, long version, String payload) {
+      this.since = since;
+      this.version = version;
+      this.payload = payload;
+    }
+  }
+
+  /**
+   * Подписчики доски.
+   */
+  private static final class Channel {
+
+    /**
+     * Доска.
+     */
+    final WidgetService board;
+
+    /**
+     * Подписчики.
+     */
+    final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Версия доски, до которой разосланы изменения (пишется только потоком кадров).
+     */
+    volatile long version;
+
+    /**
+     * Создание подписок доски.
+     *
+     * @param board доска
+     */
+    Channel(WidgetService board) {
+      this.board = board;
+      this.version = board.getVersion();
+    }
+  }
+
+  /**
+   * Подписчик: версия, до которой он получил изменения, и состояние отправки.
+   */
+  private final class Subscriber implements Subscription {
+
+    /**
+     * Получатель событий.
+     */
+    private final ChangeSink sink;
+
+    /**
+     * Подписки доски.
+     */
+    private Channel channel;
+
+    /**
+     * Версия доски, до которой подписчик получил изменения.
+     */
+    private long version;
+
+    /**
+     * Признак отправки события.
+     */
+    private boolean sending;
+
+    /**
+     * Признак пересинхронизации: пока шла отправка, подписчик пропустил события.
+     */
+    private boolean stale;
+
+    /**
+     * Признак закрытой подписки.
+     */
+    private boolean closed;
+
+    /**
+     * Поток, передающий событие получателю; {@code null} - передачи нет.
+     */
+    private Thread sender;
+
+    /**
+     * Начало передачи события, нс.
+     */
+    private long sendStarted;
+
+    /**
+     * Признак отключения по сроку отправки.
+     */
+    private boolean expired;
+
+    /**
+     * Создание подписчика.
+     *
+     * @param version версия доски, известная подписчику
+     * @param sink    получатель событий
+     */
+    Subscriber(long version, ChangeSink sink) {
+      this.version = version;
+      this.sink = sink;
+    }
+
+    /**
+     * Предложение события: отправляется, если подписчик свободен и событие продолжает
+     * его версию; иначе подписчик получит изменения от своей версии.
+     *
+     * @param frame событие или {@code null} - изменения от версии подписчика
+     */
+    void offer(Frame frame) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        if (sending) {
+          if (!stale) {
+            stale = true;
+            resyncs.increment();
+          }
+          return;
+        }
+        sending = true;
+      }
+      final Frame next = frame != null && frame.since == version ? frame : null;
+      senders.execute(() -> send(next));
+    }
+
+    /**
+     * Отправка события и, пока подписчик отстает, изменений от его версии.
+     *
+     * @param frame событие или {@code null} - изменения от версии подписчика
+     */
+    private void send(Frame frame) {
+      try {
+        while (true) {
+          if (frame == null) {
+            frame = changes(channel.board, version);
+          }
+          if (frame.payload != null && !transmit(frame)) {
+            return;
+          }
+          synchronized (this) {
+            version = frame.version;
+            if (closed || !stale) {
+              sending = false;
+              return;
+            }
+            stale = false;
+          }
+          frame = null;
+        }
+      } catch (IOException | RuntimeException e) {
+        log.debug("Подписчик отключен: {}", e.toString());
+        cancel();
+      }
+    }
+
+    /**
+     * Передача события получателю с отметкой начала для проверки срока отправки.
+     *
+     * @param frame событие
+     * @return {@code false} - отправка не уложилась в срок, подписка закрыта
+     * @throws IOException ошибка отправки
+     */
+    private boolean transmit(Frame frame) throws IOException {
+      synchronized (this) {
+        sender = Thread.currentThread();
+        sendStarted = System.nanoTime();
+      }
+      inFlight.add(this);
+      final boolean late;
+      try {
+        sink.send(frame.version, frame.payload);
+      } finally {
+        inFlight.remove(this);
+        synchronized (this) {
+          sender = null;
+          /* прерывание просроченной отправки не должно достаться следующей задаче потока */
+          Thread.interrupted();
+          late = expired;
+        }
+        if (late) {
+          /* поток уже заменен: пул уменьшается до прежнего размера */
+          replaceSenders(-1);
+          sink.close();
+        }
+      }
+      return !late;
+    }
+
+    /**
+     * Отключение подписчика, если передача события идет дольше срока отправки
+     * (вызывается потоком кадров). Соединение закрывает сама отправка, когда завершится:
+     * получатель может быть заблокирован на все время передачи.
+     *
+     * @param now текущее время, нс
+     */
+    void expire(long now) {
+      synchronized (this) {
+        if (sender == null || expired || now - sendStarted < sendTimeoutNanos) {
+          return;
+        }
+        expired = true;
+        sender.interrupt();
+      }
+      replaceSenders(1);
+      dropped.increment();
+      log.debug("Подписчик отключен: отправка события дольше {} мс",
+          TimeUnit.NANOSECONDS.toMillis(sendTimeoutNanos));
+      cancel();
+    }
+
+    @Override
+    public void cancel() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      channel.subscribers.remove(this);
+      subscriberCount.decrementAndGet();
+    }
+
+    /**
+     * Закрытие подписки со стороны сервера.
+     */
+    void close() {
+      cancel();
+      sink.close();
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package ru.kirillspirikhin.mirowidgets.services.push;
+
+import java.io.IOException;
+
+/**
+ * Получатель событий изменений доски (например, поток server-sent events клиента).
+ */
+public interface ChangeSink {
+
+  /**
+   * Отправка события.
+   *
+   * @param version версия доски после изменений
+   * @param changes изменения доски в JSON ({@link ru.kirillspirikhin.mirowidgets.model.WidgetChanges})
+   * @throws IOException ошибка отправки - подписка закрывается
+   */
+  void send(long version, String changes) throws IOException;
+
+  /**
+   * Закрытие получателя: доска удалена или рассылка остановлена.
+   */
+  void close();
+}
@@ -1,7 +1,13 @@
 package ru.kirillspirikhin.mirowidgets;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.jayway.jsonpath.JsonPath;
+import java.nio.ByteBuffer;
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.UUID;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -11,19 +17,27 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+import ru.kirillspirikhin.mirowidgets.controllers.WidgetController;
 import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @AutoConfigureMockMvc
-@SpringBootTest
+@SpringBootTest(properties = "widgets.journal.enabled=false")
 @RequiredArgsConstructor(onConstructor_ = @Autowired)
 @Slf4j
 @DisplayName("Тестирование контроллера")
@@ -290,7 +304,7 @@ class MiroWidgetsApplicationTests {
     res = result.getResponse().getContentAsString();
     UUID id2 = UUID.fromString(JsonPath.parse(res).read("$.id"));
     log.info(res);
-    result = mockMvc.perform(MockMvcRequestBuilders.get("/getAll")
+    result = performAsync(MockMvcRequestBuilders.get("/getAll")
         .accept(MediaType.APPLICATION_JSON))
         .andExpect(status().isOk())
         .andReturn();
@@ -302,4 +316,567 @@ class MiroWidgetsApplicationTests {
     assertEquals(id2.toString(), id21.toString());
   }
 
+  @Test
+  @DisplayName("Получение виджетов постранично")
+  void getWidgetsPage() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      mockMvc.perform(MockMvcRequestBuilders.post("/create")
+          .param("x", "0")
+          .param("y", "1")
+          .param("height", "3")
+          .param("width", "4")
+          .accept(MediaType.APPLICATION_JSON))
+          .andExpect(status().isCreated());
+    }
+    MvcResult result = performAsync(MockMvcRequestBuilders.get("/getAll")
+        .param("limit", "1")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(1))
+        .andExpect(MockMvcResultMatchers.header().exists(WidgetController.NEXT_CURSOR_HEADER))
+        .andReturn();
+    String res = result.getResponse().getContentAsString();
+    int z = JsonPath.parse(res).read("$[0].z");
+    String cursor = result.getResponse().getHeader(WidgetController.NEXT_CURSOR_HEADER);
+    result = performAsync(MockMvcRequestBuilders.get("/getAll")
+        .param("limit", "1")
+        .param("cursor", cursor)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(1))
+        .andReturn();
+    res = result.getResponse().getContentAsString();
+    log.info(res);
+    int z1 = JsonPath.parse(res).read("$[0].z");
+    Assertions.assertTrue(z1 > z);
+    mockMvc.perform(MockMvcRequestBuilders.get("/getAll")
+        .param("cursor", "not a cursor")
+        .characterEncoding("UTF-8")
+        .accept(MediaType.ALL))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  @DisplayName("Продолжение по курсору после перемещения его виджета")
+  void getWidgetsPageCursorMoved() throws Exception {
+    String boardId = UUID.randomUUID().toString();
+    String[] ids = new String[5];
+    for (int i = 0; i < ids.length; i++) {
+      MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/create", boardId)
+          .param("x", String.valueOf(i))
+          .param("y", "1")
+          .param("height", "3")
+          .param("width", "4")
+          .accept(MediaType.APPLICATION_JSON))
+          .andExpect(status().isCreated())
+          .andReturn();
+      ids[i] = JsonPath.parse(result.getResponse().getContentAsString()).read("$.id");
+    }
+    String cursor = performAsync(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .param("limit", "2")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$[1].id").value(ids[1]))
+        .andReturn().getResponse().getHeader(WidgetController.NEXT_CURSOR_HEADER);
+    /* виджет курсора перемещен наверх - перебор продолжается с его прежнего места */
+    mockMvc.perform(MockMvcRequestBuilders.patch("/boards/{boardId}/edit/{id}", boardId, ids[1])
+        .param("z", "100")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk());
+    performAsync(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .param("limit", "2")
+        .param("cursor", cursor)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(2))
+        .andExpect(MockMvcResultMatchers.jsonPath("$[0].id").value(ids[2]))
+        .andExpect(MockMvcResultMatchers.jsonPath("$[1].id").value(ids[3]));
+  }
+
+  @Test
+  @DisplayName("Получение виджетов в области")
+  void getWidgetsInArea() throws Exception {
+    MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/create")
+        .param("x", "-1000")
+        .param("y", "-1000")
+        .param("height", "3")
+        .param("width", "4")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isCreated())
+        .andReturn();
+    String res = result.getResponse().getContentAsString();
+    UUID id = UUID.fromString(JsonPath.parse(res).read("$.id"));
+    mockMvc.perform(MockMvcRequestBuilders.get("/getInArea")
+        .param("x", "-999")
+        .param("y", "-999")
+        .param("width", "1")
+        .param("height", "1")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(1))
+        .andExpect(MockMvcResultMatchers.jsonPath("$[0].id").value(id.toString()));
+    mockMvc.perform(MockMvcRequestBuilders.get("/getInArea")
+        .param("x", "0")
+        .param("y", "0")
+        .param("width", "-1")
+        .param("height", "1")
+        .characterEncoding("UTF-8")
+        .accept(MediaType.ALL))
+        .andExpect(status().isBadRequest());
+  }
+
+  @Test
+  @DisplayName("Виджеты разных досок независимы")
+  void boardsAreIsolated() throws Exception {
+    String boardId = UUID.randomUUID().toString();
+    MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/create", boardId)
+        .param("x", "0")
+        .param("y", "1")
+        .param("height", "3")
+        .param("width", "4")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isCreated())
+        .andReturn();
+    String res = result.getResponse().getContentAsString();
+    UUID id = UUID.fromString(JsonPath.parse(res).read("$.id"));
+    int z = JsonPath.parse(res).read("$.z");
+    assertEquals(0, z);
+    mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk());
+    mockMvc.perform(MockMvcRequestBuilders.get("/get/{id}", id)
+        .characterEncoding("UTF-8")
+        .accept(MediaType.ALL))
+        .andExpect(status().isNotFound());
+    performAsync(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(1));
+    mockMvc.perform(MockMvcRequestBuilders.delete("/boards/{boardId}", boardId)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk());
+    performAsync(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(0));
+  }
+
+  @Test
+  @DisplayName("Чтение несуществующей доски не создает ее")
+  void readsDoNotCreateBoard() throws Exception {
+    String boardId = UUID.randomUUID().toString();
+    UUID id = UUID.randomUUID();
+    performAsync(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(0));
+    mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/changes", boardId)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.full").value(true))
+        .andExpect(MockMvcResultMatchers.jsonPath("$.changed.length()").value(0));
+    mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/getInArea", boardId)
+        .param("x", "0")
+        .param("y", "0")
+        .param("width", "10")
+        .param("height", "10")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(0));
+    mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/getAt", boardId)
+        .param("x", "0")
+        .param("y", "0")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(0));
+    mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isNotFound());
+    mockMvc.perform(MockMvcRequestBuilders.patch("/boards/{boardId}/edit/{id}", boardId, id)
+        .param("x", "1")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isNotFound());
+    mockMvc.perform(MockMvcRequestBuilders.delete("/boards/{boardId}/delete/{id}", boardId, id)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isNotFound());
+    mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/batch", boardId)
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("[{\"type\":\"DELETE\",\"id\":\"" + id + "\"}]")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isNotFound());
+    mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/subscribe", boardId)
+        .accept(MediaType.TEXT_EVENT_STREAM))
+        .andExpect(status().isNotFound());
+    List<String> boards = JsonPath.parse(mockMvc.perform(MockMvcRequestBuilders.get("/boards")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andReturn().getResponse().getContentAsString()).read("$");
+    Assertions.assertFalse(boards.contains(boardId));
+  }
+
+  @Test
+  @DisplayName("Версии доски и виджета в ETag")
+  void notModified() throws Exception {
+    String boardId = UUID.randomUUID().toString();
+    MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/create", boardId)
+        .param("x", "0")
+        .param("y", "1")
+        .param("height", "3")
+        .param("width", "4")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isCreated())
+        .andReturn();
+    UUID id = UUID.fromString(JsonPath.parse(result.getResponse().getContentAsString()).read("$.id"));
+    String boardTag = singleETag(performAsync(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andReturn());
+    String widgetTag = singleETag(mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andReturn());
+    assertEquals(boardTag, singleETag(mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .header(HttpHeaders.IF_NONE_MATCH, boardTag)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isNotModified())
+        .andReturn()));
+    assertEquals(widgetTag, singleETag(mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .header(HttpHeaders.IF_NONE_MATCH, widgetTag)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isNotModified())
+        .andReturn()));
+    /* вставка под виджет сдвигает его Z-order - меняются обе версии */
+    mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/create", boardId)
+        .param("x", "0")
+        .param("y", "1")
+        .param("z", "0")
+        .param("height", "3")
+        .param("width", "4")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isCreated());
+    String changedTag = performAsync(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .header(HttpHeaders.IF_NONE_MATCH, boardTag)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(2))
+        .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+    assertNotEquals(boardTag, changedTag);
+    mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .header(HttpHeaders.IF_NONE_MATCH, widgetTag)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.z").value(1));
+  }
+
+  @Test
+  @DisplayName("Изменение виджета с проверкой версии (If-Match)")
+  void ifMatch() throws Exception {
+    String boardId = UUID.randomUUID().toString();
+    MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/create", boardId)
+        .param("x", "0")
+        .param("y", "1")
+        .param("height", "3")
+        .param("width", "4")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isCreated())
+        .andReturn();
+    UUID id = UUID.fromString(JsonPath.parse(result.getResponse().getContentAsString()).read("$.id"));
+    String widgetTag = mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+    String editedTag = mockMvc.perform(MockMvcRequestBuilders.patch("/boards/{boardId}/edit/{id}", boardId, id)
+        .param("x", "10")
+        .header(HttpHeaders.IF_MATCH, widgetTag)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.x").value(10))
+        .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+    assertNotEquals(widgetTag, editedTag);
+    /* устаревшая версия - изменение отклоняется, ETag ответа - текущая версия */
+    mockMvc.perform(MockMvcRequestBuilders.patch("/boards/{boardId}/edit/{id}", boardId, id)
+        .param("x", "20")
+        .header(HttpHeaders.IF_MATCH, widgetTag)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isPreconditionFailed())
+        .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, editedTag));
+    mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.x").value(10));
+    mockMvc.perform(MockMvcRequestBuilders.patch("/boards/{boardId}/edit/{id}", boardId, id)
+        .param("z", "5")
+        .header(HttpHeaders.IF_MATCH, editedTag)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.z").value(5));
+    mockMvc.perform(MockMvcRequestBuilders.patch("/boards/{boardId}/edit/{id}", boardId, id)
+        .param("x", "30")
+        .header(HttpHeaders.IF_MATCH, "*")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.x").value(30));
+    mockMvc.perform(MockMvcRequestBuilders.patch("/boards/{boardId}/edit/{id}", boardId, id)
+        .param("x", "40")
+        .header(HttpHeaders.IF_MATCH, "version")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isBadRequest());
+    /* список меток: достаточно совпадения одной */
+    String currentTag = mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .accept(MediaType.APPLICATION_JSON))
+        .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+    mockMvc.perform(MockMvcRequestBuilders.patch("/boards/{boardId}/edit/{id}", boardId, id)
+        .param("x", "50")
+        .header(HttpHeaders.IF_MATCH, widgetTag + ", " + currentTag)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.x").value(50));
+    /* слабая метка не совпадает при строгом сравнении даже с текущей версией */
+    currentTag = mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .accept(MediaType.APPLICATION_JSON))
+        .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+    mockMvc.perform(MockMvcRequestBuilders.patch("/boards/{boardId}/edit/{id}", boardId, id)
+        .param("x", "60")
+        .header(HttpHeaders.IF_MATCH, "W/" + currentTag)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isPreconditionFailed())
+        .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.ETAG, currentTag));
+    mockMvc.perform(MockMvcRequestBuilders.patch("/boards/{boardId}/edit/{id}", boardId, id)
+        .param("x", "70")
+        .header(HttpHeaders.IF_MATCH, widgetTag + ", *")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.x").value(70));
+  }
+
+  @Test
+  @DisplayName("Ответы в двоичных форматах (Smile, CBOR)")
+  void binaryFormats() throws Exception {
+    String boardId = UUID.randomUUID().toString();
+    MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/create", boardId)
+        .param("x", "7")
+        .param("y", "1")
+        .param("height", "3")
+        .param("width", "4")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isCreated())
+        .andReturn();
+    String json = result.getResponse().getContentAsString();
+    UUID id = UUID.fromString(JsonPath.parse(json).read("$.id"));
+    ByteBuffer idBytes = ByteBuffer.allocate(16)
+        .putLong(id.getMostSignificantBits())
+        .putLong(id.getLeastSignificantBits());
+    MediaType smile = MediaType.parseMediaType("application/x-jackson-smile");
+    byte[] content = performAsync(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .accept(smile))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.content().contentType(smile))
+        .andReturn().getResponse().getContentAsByteArray();
+    JsonNode widgets = new ObjectMapper(new SmileFactory()).readTree(content);
+    assertEquals(1, widgets.size());
+    /* ИД - 16 байт, дата изменения - наносекунды от начала эпохи */
+    assertArrayEquals(idBytes.array(), widgets.get(0).get("id").binaryValue());
+    assertEquals(7, widgets.get(0).get("x").intValue());
+    assertTrue(widgets.get(0).get("modifiedDate").isLong());
+    MediaType cbor = MediaType.parseMediaType("application/cbor");
+    content = mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .accept(cbor))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.content().contentType(cbor))
+        .andReturn().getResponse().getContentAsByteArray();
+    JsonNode widget = new ObjectMapper(new CBORFactory()).readTree(content);
+    assertArrayEquals(idBytes.array(), widget.get("id").binaryValue());
+    assertEquals(4, widget.get("width").intValue());
+    /* без предпочтений клиента ответ по-прежнему в JSON */
+    performAsync(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .accept(MediaType.ALL))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.content().contentType(MediaType.APPLICATION_JSON))
+        .andExpect(MockMvcResultMatchers.jsonPath("$[0].id").value(id.toString()));
+  }
+
+  @Test
+  @DisplayName("Переподключение подписки продолжается с Last-Event-ID, а не с since из URL")
+  void subscribeReconnect() throws Exception {
+    String boardId = UUID.randomUUID().toString();
+    mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/create", boardId)
+        .param("x", "0")
+        .param("y", "1")
+        .param("height", "3")
+        .param("width", "4")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isCreated());
+    long lastEventId = ((Number) JsonPath.parse(mockMvc.perform(
+        MockMvcRequestBuilders.get("/boards/{boardId}/changes", boardId)
+            .accept(MediaType.APPLICATION_JSON))
+        .andReturn().getResponse().getContentAsString()).read("$.version")).longValue();
+    String missed = JsonPath.parse(mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/create", boardId)
+        .param("x", "5")
+        .param("y", "1")
+        .param("height", "3")
+        .param("width", "4")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isCreated())
+        .andReturn().getResponse().getContentAsString()).read("$.id");
+    MvcResult result = mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/subscribe", boardId)
+        .param("since", "0")
+        .header("Last-Event-ID", Long.toString(lastEventId))
+        .accept(MediaType.TEXT_EVENT_STREAM))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+    String data = null;
+    for (int i = 0; i < 500 && data == null; i++) {
+      for (String line : result.getResponse().getContentAsString().split("\n")) {
+        if (line.startsWith("data:")) {
+          data = line.substring("data:".length());
+        }
+      }
+      Thread.sleep(10);
+    }
+    Assertions.assertNotNull(data, "нет события изменений");
+    assertEquals(false, JsonPath.parse(data).read("$.full"));
+    assertEquals(1, (int) JsonPath.parse(data).read("$.changed.length()"));
+    assertEquals(missed, JsonPath.parse(data).read("$.changed[0].id"));
+    mockMvc.perform(MockMvcRequestBuilders.delete("/boards/{boardId}", boardId));
+  }
+
+  @Test
+  @DisplayName("ETag зависит от формата ответа, ответы различаются по Accept")
+  void notModifiedAcrossFormats() throws Exception {
+    String boardId = UUID.randomUUID().toString();
+    MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/create", boardId)
+        .param("x", "0")
+        .param("y", "1")
+        .param("height", "3")
+        .param("width", "4")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isCreated())
+        .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT))
+        .andReturn();
+    UUID id = UUID.fromString(JsonPath.parse(result.getResponse().getContentAsString()).read("$.id"));
+    MediaType cbor = MediaType.parseMediaType("application/cbor");
+    String boardTag = singleETag(performAsync(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT))
+        .andReturn());
+    String widgetTag = singleETag(mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT))
+        .andReturn());
+    /* метка JSON не подходит для CBOR: ответ целиком, со своей меткой */
+    String cborBoardTag = singleETag(performAsync(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .header(HttpHeaders.IF_NONE_MATCH, boardTag)
+        .accept(cbor))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.content().contentType(cbor))
+        .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT))
+        .andReturn());
+    String cborWidgetTag = singleETag(mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .header(HttpHeaders.IF_NONE_MATCH, widgetTag)
+        .accept(cbor))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.content().contentType(cbor))
+        .andReturn());
+    assertNotEquals(boardTag, cborBoardTag);
+    assertNotEquals(widgetTag, cborWidgetTag);
+    mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/getAll", boardId)
+        .header(HttpHeaders.IF_NONE_MATCH, cborBoardTag)
+        .accept(cbor))
+        .andExpect(status().isNotModified())
+        .andExpect(MockMvcResultMatchers.header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT));
+    mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .header(HttpHeaders.IF_NONE_MATCH, cborWidgetTag)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk());
+    /* If-Match проверяет версию виджета: подходит метка любого формата */
+    mockMvc.perform(MockMvcRequestBuilders.patch("/boards/{boardId}/edit/{id}", boardId, id)
+        .param("x", "10")
+        .header(HttpHeaders.IF_MATCH, cborWidgetTag)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.x").value(10));
+  }
+
+  @Test
+  @DisplayName("Пакетное изменение виджетов")
+  void applyBatch() throws Exception {
+    String boardId = UUID.randomUUID().toString();
+    MvcResult result = mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/batch", boardId)
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("[{\"type\":\"CREATE\",\"description\":{\"x\":0,\"y\":0,\"width\":1,\"height\":1}},"
+            + "{\"type\":\"CREATE\",\"description\":{\"x\":1,\"y\":1,\"z\":0,\"width\":1,\"height\":1}}]")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.length()").value(2))
+        .andExpect(MockMvcResultMatchers.jsonPath("$[0].z").value(0))
+        .andExpect(MockMvcResultMatchers.jsonPath("$[1].z").value(0))
+        .andReturn();
+    String res = result.getResponse().getContentAsString();
+    UUID id = UUID.fromString(JsonPath.parse(res).read("$[0].id"));
+    mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/batch", boardId)
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("[{\"type\":\"DELETE\",\"id\":\"" + id + "\"},"
+            + "{\"type\":\"EDIT\",\"id\":\"" + id + "\",\"description\":{\"x\":5}}]")
+        .characterEncoding("UTF-8")
+        .accept(MediaType.ALL))
+        .andExpect(status().isNotFound());
+    mockMvc.perform(MockMvcRequestBuilders.post("/boards/{boardId}/batch", boardId)
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("[{\"type\":\"CREATE\",\"description\":{\"x\":0,\"y\":0,\"width\":-1,\"height\":1}}]")
+        .characterEncoding("UTF-8")
+        .accept(MediaType.ALL))
+        .andExpect(status().isPreconditionFailed());
+    mockMvc.perform(MockMvcRequestBuilders.get("/boards/{boardId}/get/{id}", boardId, id)
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.z").value(1));
+  }
+
+  @Test
+  @DisplayName("Метрики операций с виджетами")
+  void widgetMetrics() throws Exception {
+    mockMvc.perform(MockMvcRequestBuilders.post("/create")
+        .param("x", "0")
+        .param("y", "1")
+        .param("height", "3")
+        .param("width", "4")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isCreated());
+    mockMvc.perform(MockMvcRequestBuilders.get("/actuator/metrics/widgets.operations")
+        .param("tag", "operation:create")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk())
+        .andExpect(MockMvcResultMatchers.jsonPath("$.measurements[0].value").isNumber());
+    mockMvc.perform(MockMvcRequestBuilders.get("/actuator/metrics/widgets.count")
+        .accept(MediaType.APPLICATION_JSON))
+        .andExpect(status().isOk());
+  }
+
+  /**
+   * Единственный заголовок ETag ответа.
+   *
+   * @param result результат запроса
+   * @return значение ETag
+   */
+  private static String singleETag(MvcResult result) {
+    List<String> tags = result.getResponse().getHeaders(HttpHeaders.ETAG);
+    assertEquals(1, tags.size(), "ETag: " + tags);
+    return tags.get(0);
+  }
+
+  /**
+   * Выполнение запроса с потоковым ответом: ответ пишется после асинхронной обработки.
+   *
+   * @param builder запрос
+   * @return результат асинхронной обработки
+   * @throws Exception ошибка выполнения
+   */
+  private ResultActions performAsync(RequestBuilder builder) throws Exception {
+    MvcResult started = mockMvc.perform(builder)
+        .andExpect(request().asyncStarted())
+        .andReturn();
+    return mockMvc.perform(asyncDispatch(started));
+  }
 }
@@ -0,0 +1,238 @@
+package ru.kirillspirikhin.mirowidgets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetChanges;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+import ru.kirillspirikhin.mirowidgets.services.VersionedWidgetService;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceColumnar;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServicePersistent;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceSparse;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceTree;
+
+/**
+ * Тестирование изменений доски после версии ({@link VersionedWidgetService}).
+ */
+@Slf4j
+@DisplayName("Тестирование изменений доски после версии")
+public class WidgetChangesTests {
+
+  @ParameterizedTest
+  @ValueSource(strings = {"linked-list", "tree", "sparse", "persistent", "columnar"})
+  @DisplayName("Копия доски у клиента совпадает с доской после применения изменений")
+  void replicaTest(String storage) throws WidgetNotFoundException {
+    log.info("replicaTest start: {}", storage);
+    WidgetService board = new VersionedWidgetService(storages(storage).get(), 256);
+    Random random = new Random(17);
+    Map<UUID, Widget> replica = new HashMap<>();
+    long version = 0;
+    int deltas = 0;
+    for (int round = 0; round < 300; round++) {
+      mutate(board, random, 1 + random.nextInt(round % 50 == 0 ? 300 : 5));
+      WidgetChanges changes = board.getChanges(version);
+      Assertions.assertEquals(board.getVersion(), changes.getVersion());
+      if (changes.isFull()) {
+        replica.clear();
+      } else {
+        deltas++;
+        Arrays.stream(changes.getDeleted()).forEach(replica::remove);
+      }
+      Arrays.stream(changes.getChanged()).forEach(widget -> replica.put(widget.getId(), widget));
+      version = changes.getVersion();
+      Widget[] actual = replica.values().stream()
+          .sorted(Comparator.comparingInt(Widget::getZ)).toArray(Widget[]::new);
+      Assertions.assertArrayEquals(board.getAllWidgets(), actual);
+    }
+    Assertions.assertTrue(deltas > 200, "deltas: " + deltas);
+    log.info("replicaTest finish: {}", storage);
+  }
+
+  @Test
+  @DisplayName("Изменения без сдвигов не содержат остальных виджетов")
+  void deltaTest() throws WidgetNotFoundException {
+    log.info("deltaTest start");
+    WidgetService board = new VersionedWidgetService(new WidgetServiceLinkedList(), 16);
+    for (int i = 0; i < 100; i++) {
+      board.addWidget(WidgetDescription.builder().x(i).y(0).width(1).height(1).build());
+    }
+    WidgetChanges all = board.getChanges(0);
+    Assertions.assertTrue(all.isFull());
+    Assertions.assertEquals(100, all.getChanged().length);
+    Assertions.assertEquals(0, board.getChanges(all.getVersion()).getChanged().length);
+
+    Widget top = board.addWidget(WidgetDescription.builder().x(0).y(0).width(1).height(1).build());
+    Widget edited = board.editWidget(all.getChanged()[10].getId(),
+        WidgetDescription.builder().x(-1).build());
+    board.deleteWidget(all.getChanged()[20].getId());
+    WidgetChanges delta = board.getChanges(all.getVersion());
+    Assertions.assertFalse(delta.isFull());
+    Assertions.assertArrayEquals(new Widget[] {edited, top}, delta.getChanged());
+    Assertions.assertArrayEquals(new UUID[] {all.getChanged()[20].getId()}, delta.getDeleted());
+
+    /* вставка на Z-order 95 сдвигает виджеты с Z-order 95-100 */
+    board.addWidget(WidgetDescription.builder().x(0).y(0).z(95).width(1).height(1).build());
+    Assertions.assertEquals(1 + 6, board.getChanges(delta.getVersion()).getChanged().length);
+
+    /* изменения старше хранимых - доска целиком */
+    for (int i = 0; i < 20; i++) {
+      board.addWidget(WidgetDescription.builder().x(i).y(0).width(1).height(1).build());
+    }
+    Assertions.assertTrue(board.getChanges(delta.getVersion()).isFull());
+    board.deleteAllWidgets();
+    WidgetChanges cleared = board.getChanges(all.getVersion());
+    Assertions.assertTrue(cleared.isFull());
+    Assertions.assertEquals(0, cleared.getChanged().length);
+    log.info("deltaTest finish");
+  }
+
+  @Test
+  @DisplayName("Копия доски сходится с доской при перетаскивании параллельно с перемещениями")
+  void concurrentDragTest() throws Exception {
+    log.info("concurrentDragTest start");
+    WidgetService board = new VersionedWidgetService(new WidgetServiceLinkedList(), 4096);
+    for (int i = 0; i < 200; i++) {
+      board.addWidget(description(new Random(i), false));
+    }
+    final Widget[] widgets = board.getAllWidgets();
+    final AtomicBoolean stop = new AtomicBoolean();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> writers = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final Random random = new Random(t);
+      final boolean withZ = t == 0;
+      writers.add(executor.submit(() -> {
+        while (!stop.get()) {
+          board.editWidget(widgets[random.nextInt(widgets.length)].getId(),
+              description(random, withZ));
+        }
+        return null;
+      }));
+    }
+    Map<UUID, Widget> replica = new HashMap<>();
+    long version = 0;
+    for (int round = 0; round < 2000; round++) {
+      version = apply(replica, board.getChanges(version));
+    }
+    stop.set(true);
+    for (Future<?> writer : writers) {
+      writer.get(10, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+    apply(replica, board.getChanges(version));
+    Widget[] actual = replica.values().stream()
+        .sorted(Comparator.comparingInt(Widget::getZ)).toArray(Widget[]::new);
+    Assertions.assertArrayEquals(board.getAllWidgets(), actual);
+    log.info("concurrentDragTest finish");
+  }
+
+  /**
+   * Применение изменений к копии доски.
+   *
+   * @param replica копия доски
+   * @param changes изменения
+   * @return версия копии
+   */
+  private static long apply(Map<UUID, Widget> replica, WidgetChanges changes) {
+    if (changes.isFull()) {
+      replica.clear();
+    } else {
+      Arrays.stream(changes.getDeleted()).forEach(replica::remove);
+    }
+    Arrays.stream(changes.getChanged()).forEach(widget -> replica.put(widget.getId(), widget));
+    return changes.getVersion();
+  }
+
+  /**
+   * Фабрика хранилищ.
+   *
+   * @param storage хранилище (значение widgets.storage)
+   * @return фабрика
+   */
+  private static Supplier<WidgetService> storages(String storage) {
+    switch (storage) {
+      case "tree":
+        return WidgetServiceTree::new;
+      case "sparse":
+        return WidgetServiceSparse::new;
+      case "persistent":
+        return WidgetServicePersistent::new;
+      case "columnar":
+        return WidgetServiceColumnar::new;
+      default:
+        return WidgetServiceLinkedList::new;
+    }
+  }
+
+  /**
+   * Случайные изменения доски: добавление в конец и с Z-order, изменение
+   * с перемещением и без, удаление, пакеты и изредка очистка доски.
+   *
+   * @param board  доска
+   * @param random генератор
+   * @param count  количество изменений
+   * @throws WidgetNotFoundException не ожидается
+   */
+  private static void mutate(WidgetService board, Random random, int count)
+      throws WidgetNotFoundException {
+    for (int i = 0; i < count; i++) {
+      Widget[] all = board.getAllWidgets();
+      int operation = all.length == 0 ? 0 : random.nextInt(200);
+      Widget target = all.length == 0 ? null : all[random.nextInt(all.length)];
+      if (operation == 199) {
+        board.deleteAllWidgets();
+      } else if (operation < 60) {
+        board.addWidget(description(random, random.nextBoolean()));
+      } else if (operation < 120) {
+        board.editWidget(target.getId(), description(random, random.nextBoolean()));
+      } else if (operation < 170) {
+        board.deleteWidget(target.getId());
+      } else {
+        board.applyBatch(Arrays.asList(
+            WidgetOperation.create(description(random, true)),
+            WidgetOperation.edit(target.getId(), description(random, true)),
+            WidgetOperation.create(description(random, false)),
+            WidgetOperation.delete(all[0].getId())));
+      }
+    }
+  }
+
+  /**
+   * Случайное описание виджета.
+   *
+   * @param random генератор
+   * @param withZ  признак указания Z-order
+   * @return описание
+   */
+  private static WidgetDescription description(Random random, boolean withZ) {
+    return WidgetDescription.builder()
+        .x(random.nextInt(1000))
+        .y(random.nextInt(1000))
+        .z(withZ ? random.nextInt(50) : null)
+        .width(1 + random.nextInt(100))
+        .height(1 + random.nextInt(100))
+        .build();
+  }
+}
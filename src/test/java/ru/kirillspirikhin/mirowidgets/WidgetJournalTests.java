@@ -0,0 +1,385 @@
+package ru.kirillspirikhin.mirowidgets;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.util.unit.DataSize;
+import ru.kirillspirikhin.mirowidgets.config.JournalProperties;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceColumnar;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServicePersistent;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceSparse;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceTree;
+import ru.kirillspirikhin.mirowidgets.services.journal.WidgetJournal;
+
+/**
+ * Тестирование {@link WidgetJournal}.
+ */
+@Slf4j
+@DisplayName("Тестирование журнала изменений досок")
+public class WidgetJournalTests {
+
+  /**
+   * Каталог журнала.
+   */
+  @TempDir
+  Path directory;
+
+  @ParameterizedTest
+  @ValueSource(strings = {"linked-list", "tree", "sparse", "persistent", "columnar"})
+  @DisplayName("Восстановление досок из снимка и журнала после сбоя")
+  void recoverTest(String storage) throws IOException, WidgetNotFoundException {
+    log.info("recoverTest start: {}", storage);
+    Supplier<WidgetService> storages = storages(storage);
+    WidgetJournal journal = journal();
+    Assertions.assertTrue(journal.recover(storages).isEmpty());
+    WidgetService first = journal.journaled("b1", storages.get());
+    WidgetService second = journal.journaled("b2", storages.get());
+    WidgetService third = journal.journaled("b3", storages.get());
+    Random random = new Random(42);
+    mutate(first, random, 200);
+    mutate(second, random, 200);
+    mutate(third, random, 200);
+    journal.checkpoint();
+    mutate(first, random, 200);
+    mutate(third, random, 50);
+    third.deleteAllWidgets();
+    mutate(third, random, 20);
+    journal.dropBoard("b2");
+    /* изменения удаленной доски не должны ее воскресить */
+    mutate(second, random, 20);
+
+    /* сбой: журнал не закрывается, снимок при остановке не пишется */
+    Map<String, WidgetService> recovered = journal().recover(storages);
+    Assertions.assertEquals(new HashSet<>(Arrays.asList("b1", "b3")), recovered.keySet());
+    Assertions.assertArrayEquals(first.getAllWidgets(), recovered.get("b1").getAllWidgets());
+    Assertions.assertArrayEquals(third.getAllWidgets(), recovered.get("b3").getAllWidgets());
+
+    /* восстановленная доска продолжает журналироваться; остановка пишет снимок */
+    WidgetService board = recovered.get("b1");
+    mutate(board, random, 100);
+    Widget[] expected = board.getAllWidgets();
+    WidgetJournal last = journal();
+    Assertions.assertArrayEquals(expected, last.recover(storages).get("b1").getAllWidgets());
+    last.close();
+    WidgetJournal closed = journal();
+    Assertions.assertArrayEquals(expected, closed.recover(storages).get("b1").getAllWidgets());
+    closed.close();
+    log.info("recoverTest finish: {}", storage);
+  }
+
+  @Test
+  @DisplayName("Оборванная запись в конце журнала")
+  void tornTailTest() throws IOException, WidgetNotFoundException {
+    log.info("tornTailTest start");
+    Supplier<WidgetService> storages = WidgetServiceLinkedList::new;
+    WidgetJournal journal = journal();
+    journal.recover(storages);
+    WidgetService board = journal.journaled("b1", storages.get());
+    mutate(board, new Random(7), 100);
+    Widget[] expected = board.getAllWidgets();
+    /* сбой посреди записи: длина есть, тела нет */
+    Path segment;
+    try (Stream<Path> files = Files.list(directory)) {
+      segment = files.filter(file -> file.getFileName().toString().startsWith("wal-"))
+          .sorted().reduce((a, b) -> b).orElseThrow(AssertionError::new);
+    }
+    long size = Files.size(segment);
+    Files.write(segment, new byte[] {0, 0, 1, 0, 1, 2, 3}, StandardOpenOption.APPEND);
+
+    WidgetJournal recovered = journal();
+    board = recovered.recover(storages).get("b1");
+    Assertions.assertArrayEquals(expected, board.getAllWidgets());
+    Assertions.assertEquals(size, Files.size(segment));
+    /* записи после отрезанного хвоста попадают в новый сегмент и тоже повторяются */
+    Widget added = board.addWidget(WidgetDescription.builder()
+        .x(0).y(0).z(0).width(1).height(1).build());
+    Assertions.assertEquals(added,
+        journal().recover(storages).get("b1").getById(added.getId()));
+    log.info("tornTailTest finish");
+  }
+
+  @Test
+  @DisplayName("Изменения отклоняются до изменения доски, если журнал недоступен")
+  void unavailableJournalTest() throws IOException, WidgetNotFoundException {
+    log.info("unavailableJournalTest start");
+    WidgetJournal journal = journal();
+    journal.recover(WidgetServiceLinkedList::new);
+    WidgetService board = journal.journaled("b1", new WidgetServiceLinkedList());
+    mutate(board, new Random(3), 20);
+    Widget[] expected = board.getAllWidgets();
+    journal.close();
+    Widget target = expected[0];
+    WidgetDescription description = description(new Random(5), true);
+    Assertions.assertThrows(IllegalStateException.class, () -> board.addWidget(description));
+    Assertions.assertThrows(IllegalStateException.class,
+        () -> board.editWidget(target.getId(), description));
+    Assertions.assertThrows(IllegalStateException.class,
+        () -> board.deleteWidget(target.getId()));
+    Assertions.assertThrows(IllegalStateException.class, () -> board.applyBatch(
+        Arrays.asList(WidgetOperation.create(description))));
+    Assertions.assertThrows(IllegalStateException.class, board::deleteAllWidgets);
+    Assertions.assertArrayEquals(expected, board.getAllWidgets());
+    log.info("unavailableJournalTest finish");
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"linked-list", "tree", "sparse", "persistent", "columnar"})
+  @DisplayName("Восстановление доски после перетаскиваний параллельно с перемещениями")
+  void concurrentDragRecoverTest(String storage) throws Exception {
+    log.info("concurrentDragRecoverTest start: {}", storage);
+    Supplier<WidgetService> storages = storages(storage);
+    WidgetJournal journal = journal();
+    journal.recover(storages);
+    WidgetService board = journal.journaled("b1", storages.get());
+    mutate(board, new Random(11), 100);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> tasks = new ArrayList<>();
+    for (int t = 0; t < 3; t++) {
+      final Random random = new Random(t);
+      tasks.add(executor.submit(() -> {
+        for (int i = 0; i < 500; i++) {
+          Widget[] all = board.getAllWidgets();
+          if (all.length == 0) {
+            continue;
+          }
+          try {
+            board.editWidget(all[random.nextInt(all.length)].getId(),
+                description(random, false));
+          } catch (WidgetNotFoundException e) {
+            /* виджет удален параллельно */
+          }
+        }
+        return null;
+      }));
+    }
+    tasks.add(executor.submit(() -> {
+      mutate(board, new Random(12), 300);
+      return null;
+    }));
+    for (Future<?> task : tasks) {
+      task.get(60, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+    Assertions.assertArrayEquals(board.getAllWidgets(),
+        journal().recover(storages).get("b1").getAllWidgets());
+    log.info("concurrentDragRecoverTest finish: {}", storage);
+  }
+
+  @Test
+  @DisplayName("Перетаскивание с журналом не ждет перемещения по Z-order")
+  void dragDoesNotWaitForMoveTest() throws Exception {
+    log.info("dragDoesNotWaitForMoveTest start");
+    CountDownLatch moving = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    WidgetService storage = new WidgetServiceLinkedList() {
+      @Override
+      public Widget editWidget(UUID id, WidgetDescription description)
+          throws WidgetNotFoundException {
+        Widget widget = super.editWidget(id, description);
+        if (description.getZ() != null) {
+          /* перемещение (сдвиг доски) задерживается под блокировкой доски */
+          moving.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return widget;
+      }
+    };
+    WidgetJournal journal = journal();
+    journal.recover(WidgetServiceLinkedList::new);
+    WidgetService board = journal.journaled("b1", storage);
+    Widget moved = widget(new UUID(0, 1), 0);
+    Widget dragged = widget(new UUID(0, 2), 1);
+    board.putWidget(moved);
+    board.putWidget(dragged);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<Widget> move = executor.submit(() -> board.editWidget(moved.getId(),
+          WidgetDescription.builder().z(5).build()));
+      Assertions.assertTrue(moving.await(10, TimeUnit.SECONDS));
+      Future<Widget> drag = executor.submit(() -> board.editWidget(dragged.getId(),
+          WidgetDescription.builder().x(42).build()));
+      Widget draggedNow = drag.get(10, TimeUnit.SECONDS);
+      Assertions.assertEquals(42, draggedNow.getX());
+      /* перетаскивание с проверкой версии тоже не ждет перемещения */
+      Future<Widget> checked = executor.submit(() -> board.editWidget(dragged.getId(),
+          WidgetDescription.builder().x(43).build(), draggedNow.fingerprint()));
+      Assertions.assertEquals(43, checked.get(10, TimeUnit.SECONDS).getX());
+      /* перетаскивание самого перемещаемого виджета до записи перемещения в журнал */
+      Future<Widget> dragMoved = executor.submit(() -> board.editWidget(moved.getId(),
+          WidgetDescription.builder().y(42).build()));
+      Assertions.assertEquals(42, dragMoved.get(10, TimeUnit.SECONDS).getY());
+      Assertions.assertFalse(move.isDone());
+      release.countDown();
+      Assertions.assertEquals(5, move.get(10, TimeUnit.SECONDS).getZ());
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+    Assertions.assertArrayEquals(board.getAllWidgets(),
+        journal().recover(WidgetServiceLinkedList::new).get("b1").getAllWidgets());
+    log.info("dragDoesNotWaitForMoveTest finish");
+  }
+
+  @Test
+  @DisplayName("Изменения ждут сброса, если буфер журнала заполнен")
+  void backPressureTest() throws IOException, WidgetNotFoundException {
+    log.info("backPressureTest start");
+    JournalProperties properties = new JournalProperties();
+    properties.setEnabled(true);
+    properties.setDirectory(directory.toString());
+    properties.setFlushInterval(Duration.ofMillis(20));
+    properties.setMaxPending(DataSize.ofKilobytes(1));
+    WidgetJournal journal = new WidgetJournal(properties);
+    journal.recover(WidgetServiceLinkedList::new);
+    WidgetService board = journal.journaled("b1", new WidgetServiceLinkedList());
+    long start = System.nanoTime();
+    /* около 13 КБ записей при буфере в 1 КБ и сбросе раз в 20 мс */
+    for (int i = 0; i < 200; i++) {
+      board.addWidget(description(new Random(i), false));
+    }
+    Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    Widget[] expected = board.getAllWidgets();
+    journal.close();
+    Assertions.assertArrayEquals(expected,
+        journal().recover(WidgetServiceLinkedList::new).get("b1").getAllWidgets());
+    log.info("backPressureTest finish");
+  }
+
+  /**
+   * Журнал в каталоге теста с ожиданием сброса на диск, чтобы после каждого
+   * изменения журнал можно было открыть заново, как после сбоя.
+   *
+   * @return журнал
+   */
+  private WidgetJournal journal() {
+    JournalProperties properties = new JournalProperties();
+    properties.setEnabled(true);
+    properties.setDirectory(directory.toString());
+    properties.setSync(true);
+    return new WidgetJournal(properties);
+  }
+
+  /**
+   * Фабрика хранилищ.
+   *
+   * @param storage хранилище (значение widgets.storage)
+   * @return фабрика
+   */
+  private static Supplier<WidgetService> storages(String storage) {
+    switch (storage) {
+      case "tree":
+        return WidgetServiceTree::new;
+      case "sparse":
+        return WidgetServiceSparse::new;
+      case "persistent":
+        return WidgetServicePersistent::new;
+      case "columnar":
+        return WidgetServiceColumnar::new;
+      default:
+        return WidgetServiceLinkedList::new;
+    }
+  }
+
+  /**
+   * Случайные изменения доски: добавление в конец и с Z-order, изменение
+   * с перемещением и без, удаление и пакеты.
+   *
+   * @param board  доска
+   * @param random генератор
+   * @param count  количество изменений
+   * @throws WidgetNotFoundException не ожидается
+   */
+  private static void mutate(WidgetService board, Random random, int count)
+      throws WidgetNotFoundException {
+    for (int i = 0; i < count; i++) {
+      Widget[] all = board.getAllWidgets();
+      int operation = all.length == 0 ? 0 : random.nextInt(5);
+      Widget target = all.length == 0 ? null : all[random.nextInt(all.length)];
+      switch (operation) {
+        case 0:
+          board.addWidget(description(random, random.nextBoolean()));
+          break;
+        case 1:
+          board.editWidget(target.getId(), description(random, random.nextBoolean()));
+          break;
+        case 2:
+          board.deleteWidget(target.getId());
+          break;
+        case 3:
+          board.applyBatch(Arrays.asList(
+              WidgetOperation.create(description(random, true)),
+              WidgetOperation.edit(target.getId(), description(random, true)),
+              WidgetOperation.create(description(random, false))));
+          break;
+        default:
+          board.applyBatch(Arrays.asList(
+              WidgetOperation.edit(target.getId(), description(random, true)),
+              WidgetOperation.delete(target.getId())));
+      }
+    }
+  }
+
+  /**
+   * Виджет с заданным ИД.
+   *
+   * @param id ИД
+   * @param z  Z-order
+   * @return виджет
+   */
+  private static Widget widget(UUID id, int z) {
+    return Widget.builder().id(id).x(0).y(0).z(z).width(10).height(10)
+        .modifiedDate(LocalDateTime.now(ZoneOffset.UTC)).build();
+  }
+
+  /**
+   * Случайное описание виджета.
+   *
+   * @param random генератор
+   * @param withZ  признак указания Z-order
+   * @return описание
+   */
+  private static WidgetDescription description(Random random, boolean withZ) {
+    return WidgetDescription.builder()
+        .x(random.nextInt(1000))
+        .y(random.nextInt(1000))
+        .z(withZ ? random.nextInt(50) : null)
+        .width(1 + random.nextInt(100))
+        .height(1 + random.nextInt(100))
+        .build();
+  }
+}
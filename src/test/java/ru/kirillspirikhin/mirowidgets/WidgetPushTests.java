@@ -0,0 +1,256 @@
+package ru.kirillspirikhin.mirowidgets;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import ru.kirillspirikhin.mirowidgets.config.PushProperties;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.services.BoardRegistry;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.push.ChangeBroadcaster;
+import ru.kirillspirikhin.mirowidgets.services.push.ChangeSink;
+
+/**
+ * Тестирование {@link ChangeBroadcaster}.
+ */
+@SpringBootTest(properties = "widgets.journal.enabled=false")
+@RequiredArgsConstructor(onConstructor_ = @Autowired)
+@Slf4j
+@DisplayName("Тестирование рассылки изменений досок")
+class WidgetPushTests {
+
+  private final ChangeBroadcaster changeBroadcaster;
+
+  private final BoardRegistry boardRegistry;
+
+  private final ObjectMapper objectMapper;
+
+  @Test
+  @DisplayName("Изменения за кадр приходят одним событием")
+  void coalesceTest() throws Exception {
+    log.info("coalesceTest start");
+    String boardId = UUID.randomUUID().toString();
+    WidgetService board = boardRegistry.getBoard(boardId);
+    Widget widget = board.addWidget(description(0));
+    Replica replica = new Replica(null);
+    ChangeBroadcaster.Subscription subscription = changeBroadcaster.subscribe(boardId, 0, replica);
+    replica.await(board);
+    int before = replica.events;
+    for (int i = 0; i < 50; i++) {
+      board.editWidget(widget.getId(), WidgetDescription.builder().x(i).build());
+    }
+    board.addWidget(description(1));
+    replica.await(board);
+    Assertions.assertTrue(replica.events - before < 50, "events: " + (replica.events - before));
+    replica.assertSame(board);
+    subscription.cancel();
+    log.info("coalesceTest finish");
+  }
+
+  @Test
+  @DisplayName("Медленный подписчик получает пропущенные изменения одним событием")
+  void slowSubscriberTest() throws Exception {
+    log.info("slowSubscriberTest start");
+    String boardId = UUID.randomUUID().toString();
+    WidgetService board = boardRegistry.getBoard(boardId);
+    board.addWidget(description(0));
+    CountDownLatch release = new CountDownLatch(1);
+    Replica slow = new Replica(release);
+    Replica fast = new Replica(null);
+    changeBroadcaster.subscribe(boardId, 0, slow);
+    changeBroadcaster.subscribe(boardId, 0, fast);
+    fast.await(board);
+    for (int i = 0; i < 20; i++) {
+      board.addWidget(description(i));
+      /* каждое изменение - в своем кадре */
+      Thread.sleep(40);
+    }
+    fast.await(board);
+    Assertions.assertEquals(1, slow.events);
+    release.countDown();
+    slow.await(board);
+    /* первое событие, зависшее событие первого кадра и одно событие со всеми
+    пропущенными изменениями */
+    Assertions.assertEquals(3, slow.events);
+    slow.assertSame(board);
+    fast.assertSame(board);
+    log.info("slowSubscriberTest finish");
+  }
+
+  @Test
+  @DisplayName("Зависшие отправки не занимают потоки отправки остальных подписчиков")
+  void stuckSubscribersTest() throws Exception {
+    log.info("stuckSubscribersTest start");
+    PushProperties properties = new PushProperties();
+    properties.setSenderThreads(2);
+    properties.setSendTimeout(Duration.ofMillis(200));
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    ChangeBroadcaster broadcaster =
+        new ChangeBroadcaster(boardRegistry, objectMapper, properties, meterRegistry);
+    String boardId = UUID.randomUUID().toString();
+    WidgetService board = boardRegistry.getBoard(boardId);
+    board.addWidget(description(0));
+    int stuck = properties.getSenderThreads() + 1;
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch closed = new CountDownLatch(stuck);
+    try {
+      for (int i = 0; i < stuck; i++) {
+        broadcaster.subscribe(boardId, 0, new ChangeSink() {
+          @Override
+          public void send(long version, String changes) {
+            /* клиент перестал читать ответ: запись не завершается и не прерывается */
+            boolean interrupted = false;
+            while (release.getCount() > 0) {
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                interrupted = true;
+              }
+            }
+            if (interrupted) {
+              Thread.currentThread().interrupt();
+            }
+          }
+
+          @Override
+          public void close() {
+            closed.countDown();
+          }
+        });
+      }
+      Replica fast = new Replica(null);
+      broadcaster.subscribe(boardId, 0, fast);
+      fast.await(board);
+      for (int i = 1; i <= 5; i++) {
+        board.addWidget(description(i));
+        fast.await(board);
+      }
+      fast.assertSame(board);
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (meterRegistry.counter("widgets.push.dropped").count() < stuck
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      Assertions.assertEquals(stuck, meterRegistry.counter("widgets.push.dropped").count());
+      /* зависшие отправки закрывают соединения, когда завершатся */
+      Assertions.assertEquals(stuck, closed.getCount());
+      release.countDown();
+      Assertions.assertTrue(closed.await(10, TimeUnit.SECONDS));
+    } finally {
+      release.countDown();
+      broadcaster.shutdown();
+    }
+    log.info("stuckSubscribersTest finish");
+  }
+
+  /**
+   * Описание виджета.
+   *
+   * @param x координата X
+   * @return описание
+   */
+  private static WidgetDescription description(int x) {
+    return WidgetDescription.builder().x(x).y(0).z(0).width(1).height(1).build();
+  }
+
+  /**
+   * Копия доски у подписчика.
+   */
+  private class Replica implements ChangeSink {
+
+    /**
+     * Виджеты по ИД: поля JSON.
+     */
+    final Map<String, Map<String, Object>> widgets = new HashMap<>();
+
+    /**
+     * Разрешение отправки после первого события ({@code null} - без ожидания).
+     */
+    final CountDownLatch release;
+
+    /**
+     * Количество событий.
+     */
+    volatile int events;
+
+    /**
+     * Версия доски из последнего события.
+     */
+    volatile long version;
+
+    Replica(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized void send(long version, String changes) throws IOException {
+      if (release != null && events > 0) {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      Map<String, Object> event = objectMapper.readValue(changes, Map.class);
+      if ((Boolean) event.get("full")) {
+        widgets.clear();
+      }
+      ((List<String>) event.get("deleted")).forEach(widgets::remove);
+      for (Map<String, Object> widget : (List<Map<String, Object>>) event.get("changed")) {
+        widgets.put((String) widget.get("id"), widget);
+      }
+      events++;
+      this.version = version;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Ожидание события с текущей версией доски.
+     *
+     * @param board доска
+     * @throws InterruptedException прерывание
+     */
+    void await(WidgetService board) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10_000;
+      while (version != board.getVersion() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      Assertions.assertEquals(board.getVersion(), version);
+    }
+
+    /**
+     * Проверка совпадения копии с доской.
+     *
+     * @param board доска
+     */
+    synchronized void assertSame(WidgetService board) {
+      Widget[] expected = board.getAllWidgets();
+      Assertions.assertEquals(expected.length, widgets.size());
+      for (Widget widget : expected) {
+        Map<String, Object> copy = widgets.get(widget.getId().toString());
+        Assertions.assertNotNull(copy);
+        Assertions.assertEquals(widget.getX(), copy.get("x"));
+        Assertions.assertEquals(widget.getZ(), copy.get("z"));
+      }
+    }
+  }
+}
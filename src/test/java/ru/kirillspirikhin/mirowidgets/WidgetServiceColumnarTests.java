@@ -0,0 +1,146 @@
+package ru.kirillspirikhin.mirowidgets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceColumnar;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
+
+/**
+ * Тестирование {@link WidgetServiceColumnar}.
+ */
+@Slf4j
+@DisplayName("Тестирование хранилища на столбцах")
+public class WidgetServiceColumnarTests {
+
+  /**
+   * Сервис для тестирования.
+   */
+  final WidgetService widgetService = new WidgetServiceColumnar();
+
+  /**
+   * Эталонный сервис.
+   */
+  final WidgetService referenceService = new WidgetServiceLinkedList();
+
+  @Test
+  @DisplayName("Удаление с переносом последнего слота")
+  void deleteTest() throws WidgetNotFoundException {
+    log.info("deleteTest start");
+    List<UUID> ids = new ArrayList<>();
+    for (int i = 0; i < 1_000; i++) {
+      ids.add(widgetService.addWidget(WidgetDescription.builder()
+          .x(i).y(0).height(1).width(1).build()).getId());
+    }
+    /* удаление через один перемещает слоты и записи хеш-таблицы */
+    for (int i = 0; i < ids.size(); i += 2) {
+      Assertions.assertTrue(widgetService.deleteWidget(ids.get(i)));
+      Assertions.assertFalse(widgetService.deleteWidget(ids.get(i)));
+    }
+    Widget[] all = widgetService.getAllWidgets();
+    Assertions.assertEquals(500, all.length);
+    for (int i = 0; i < all.length; i++) {
+      UUID id = ids.get(2 * i + 1);
+      Assertions.assertEquals(id, all[i].getId());
+      Assertions.assertEquals(2 * i + 1, widgetService.getById(id).getX());
+      Assertions.assertEquals(i, widgetService.getRank(id));
+    }
+    for (int i = 0; i < ids.size(); i += 2) {
+      UUID id = ids.get(i);
+      Assertions.assertThrows(WidgetNotFoundException.class, () -> widgetService.getById(id));
+    }
+    widgetService.deleteAllWidgets();
+    Assertions.assertEquals(0, widgetService.getWidgetCount());
+    Assertions.assertThrows(IndexOutOfBoundsException.class, () -> widgetService.getByRank(0));
+    log.info("deleteTest finish");
+  }
+
+  @Test
+  @DisplayName("Совпадение с эталонной реализацией")
+  void sameAsLinkedListTest() throws WidgetNotFoundException {
+    log.info("sameAsLinkedListTest start");
+    Random r = new Random();
+    List<Widget> widgets = new ArrayList<>();
+    List<Widget> references = new ArrayList<>();
+    for (int operation = 0; operation < 5_000; operation++) {
+      int q = r.nextInt(10);
+      if (q < 6 || widgets.isEmpty()) {
+        WidgetDescription description = WidgetDescription.builder()
+            .x(r.nextInt(1000))
+            .y(r.nextInt(1000))
+            .z(q == 0 ? null : r.nextInt(200) - 100)
+            .height(1 + r.nextInt(100))
+            .width(1 + r.nextInt(100)).build();
+        widgets.add(widgetService.addWidget(description));
+        references.add(referenceService.addWidget(description));
+      } else if (q < 8) {
+        int i = r.nextInt(widgets.size());
+        WidgetDescription description = WidgetDescription.builder()
+            .x(r.nextInt(1000))
+            .z(q == 6 ? null : r.nextInt(200) - 100).build();
+        Widget actual = widgetService.editWidget(widgets.get(i).getId(), description);
+        Widget expected = referenceService.editWidget(references.get(i).getId(), description);
+        Assertions.assertEquals(expected.getZ(), actual.getZ());
+      } else {
+        int i = r.nextInt(widgets.size());
+        Assertions.assertTrue(widgetService.deleteWidget(widgets.remove(i).getId()));
+        Assertions.assertTrue(referenceService.deleteWidget(references.remove(i).getId()));
+      }
+    }
+    Widget[] actual = widgetService.getAllWidgets();
+    Widget[] expected = referenceService.getAllWidgets();
+    Assertions.assertEquals(expected.length, actual.length);
+    Assertions.assertArrayEquals(actual, widgetService.getSnapshot().toArray());
+    for (int i = 0; i < expected.length; i++) {
+      Assertions.assertEquals(expected[i].getZ(), actual[i].getZ());
+      Assertions.assertEquals(expected[i].getX(), actual[i].getX());
+      Assertions.assertEquals(i, widgetService.getRank(actual[i].getId()));
+      Assertions.assertEquals(actual[i].getId(), widgetService.getByRank(i).getId());
+      Assertions.assertEquals(actual[i], widgetService.getById(actual[i].getId()));
+    }
+    for (int i = 0; i < 100; i++) {
+      int x = r.nextInt(1100) - 50;
+      int y = r.nextInt(1100) - 50;
+      Assertions.assertEquals(zOrders(referenceService.getWidgetsInArea(x, y, 200, 100)),
+          zOrders(widgetService.getWidgetsInArea(x, y, 200, 100)));
+      Assertions.assertEquals(zOrders(referenceService.getWidgetsAt(x, y)),
+          zOrders(widgetService.getWidgetsAt(x, y)));
+      Assertions.assertEquals(referenceService.getTopWidgetAt(x, y).map(Widget::getZ),
+          widgetService.getTopWidgetAt(x, y).map(Widget::getZ));
+    }
+    for (int i = 0; i < 100 && expected.length > 0; i++) {
+      int fromZ = expected[r.nextInt(expected.length)].getZ() + r.nextInt(3) - 1;
+      int toZ = fromZ + r.nextInt(100);
+      int after = r.nextBoolean() ? r.nextInt(expected.length) : -1;
+      int limit = 1 + r.nextInt(20);
+      Assertions.assertEquals(
+          zOrders(referenceService.getWidgetsPage(
+              after >= 0 ? expected[after].getId() : null, fromZ, toZ, limit)),
+          zOrders(widgetService.getWidgetsPage(
+              after >= 0 ? actual[after].getId() : null, fromZ, toZ, limit)));
+    }
+    log.info("sameAsLinkedListTest finish");
+  }
+
+  /**
+   * Z-order виджетов.
+   *
+   * @param widgets виджеты
+   * @return Z-order в порядке виджетов
+   */
+  private static List<Integer> zOrders(Widget[] widgets) {
+    List<Integer> zOrders = new ArrayList<>();
+    Arrays.stream(widgets).forEach(widget -> zOrders.add(widget.getZ()));
+    return zOrders;
+  }
+}
@@ -8,17 +8,24 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetVersionMismatchException;
 import ru.kirillspirikhin.mirowidgets.model.Widget;
 import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
 import ru.kirillspirikhin.mirowidgets.services.WidgetService;
 import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -155,4 +162,132 @@ public class WidgetServiceConcurrentTests {
     }
     log.info("concurrentTest finish");
   }
+
+  /**
+   * Изменения геометрии без блокировки одновременно с перемещениями по Z-order.
+   */
+  @Test
+  @DisplayName("Изменения геометрии без блокировки не теряются при перемещениях")
+  public void geometryEditTest() throws Exception {
+    log.info("geometryEditTest start");
+    final int draggers = 4;
+    final int moves = 2_000;
+    List<UUID> ids = new ArrayList<>();
+    for (int i = 0; i < draggers * 10; i++) {
+      ids.add(widgetService.addWidget(WidgetDescription.builder()
+          .x(0).y(i * 10).width(5).height(5).build()).getId());
+    }
+    /* пространственный индекс построен - перетаскивания должны его обновлять */
+    widgetService.getWidgetsInArea(0, 0, 10, 10);
+    CountDownLatch doneLatch = new CountDownLatch(draggers + 2);
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    /* поиск в области идет без блокировки доски одновременно с изменениями */
+    new Thread(() -> {
+      Random r2 = new Random(29);
+      try {
+        for (int i = 0; i < moves; i++) {
+          int x = r2.nextInt(moves);
+          for (Widget widget : widgetService.getWidgetsInArea(x, 0, 10, draggers * 100)) {
+            Assertions.assertTrue(widget.intersects(x, 0, 10, draggers * 100));
+          }
+          widgetService.getTopWidgetAt(x, r2.nextInt(draggers * 100));
+        }
+      } catch (Throwable e) {
+        errors.add(e);
+      }
+      doneLatch.countDown();
+    }, "areaTest").start();
+    for (int t = 0; t < draggers; t++) {
+      /* у каждого виджета один перетаскивающий поток, последний X известен */
+      final List<UUID> own = ids.subList(t * 10, t * 10 + 10);
+      new Thread(() -> {
+        try {
+          for (int x = 1; x <= moves; x++) {
+            for (UUID id : own) {
+              widgetService.editWidget(id, WidgetDescription.builder().x(x).build());
+            }
+          }
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+        doneLatch.countDown();
+      }, "dragTest").start();
+    }
+    new Thread(() -> {
+      Random r1 = new Random(23);
+      try {
+        for (int i = 0; i < moves; i++) {
+          UUID id = ids.get(r1.nextInt(ids.size()));
+          if (i % 2 == 0) {
+            widgetService.editWidget(id, WidgetDescription.builder().z(0).height(6).build());
+          } else {
+            widgetService.applyBatch(Arrays.asList(
+                WidgetOperation.edit(id, WidgetDescription.builder().z(ids.size() / 2).build()),
+                WidgetOperation.create(WidgetDescription.builder()
+                    .x(-100).y(-100).z(0).width(1).height(1).build())));
+          }
+        }
+      } catch (Throwable e) {
+        errors.add(e);
+      }
+      doneLatch.countDown();
+    }, "moveTest").start();
+    doneLatch.await();
+    Assertions.assertEquals(Collections.emptyList(), errors);
+    Widget[] widgets = widgetService.getAllWidgets();
+    for (int i = 1; i < widgets.length; i++) {
+      Assertions.assertTrue(widgets[i - 1].getZ() < widgets[i].getZ());
+    }
+    for (UUID id : ids) {
+      Widget widget = widgetService.getById(id);
+      Assertions.assertEquals(moves, widget.getX());
+      Assertions.assertEquals(1, widgetService.getWidgetsAt(moves, widget.getY()).length);
+      Assertions.assertEquals(0, widgetService.getWidgetsInArea(0, widget.getY(), 1, 1).length);
+    }
+    log.info("geometryEditTest finish");
+  }
+
+  /**
+   * Изменения с проверкой версии: счетчик в координате X без потерянных обновлений.
+   */
+  @Test
+  @DisplayName("Изменения с проверкой версии не теряются и не затирают друг друга")
+  public void conditionalEditTest() throws Exception {
+    log.info("conditionalEditTest start");
+    final int threads = 8;
+    final UUID id = widgetService.addWidget(WidgetDescription.builder()
+        .x(0).y(0).width(1).height(1).build()).getId();
+    CountDownLatch doneLatch = new CountDownLatch(threads);
+    AtomicLong conflicts = new AtomicLong();
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    for (int t = 0; t < threads; t++) {
+      final boolean mover = t == 0;
+      new Thread(() -> {
+        try {
+          for (int i = 0; i < 2_000; i++) {
+            Widget widget = widgetService.getById(id);
+            /* половина изменений перемещает виджет - проверка под блокировкой */
+            WidgetDescription.WidgetDescriptionBuilder description = WidgetDescription.builder()
+                .x(widget.getX() + 1);
+            if (mover && i % 2 == 0) {
+              description.z(widget.getZ() + 1);
+            }
+            try {
+              widgetService.editWidget(id, description.build(), widget.fingerprint());
+            } catch (WidgetVersionMismatchException e) {
+              conflicts.incrementAndGet();
+            }
+          }
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+        doneLatch.countDown();
+      }, "conditionalEditTest").start();
+    }
+    doneLatch.await();
+    Assertions.assertEquals(Collections.emptyList(), errors);
+    log.info("conflicts: {}", conflicts.get());
+    Assertions.assertEquals(threads * 2_000 - conflicts.get(), widgetService.getById(id).getX());
+    log.info("conditionalEditTest finish");
+  }
 }
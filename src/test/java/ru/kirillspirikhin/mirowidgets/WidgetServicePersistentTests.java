@@ -0,0 +1,175 @@
+package ru.kirillspirikhin.mirowidgets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.WidgetSnapshot;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServicePersistent;
+
+/**
+ * Тестирование {@link WidgetServicePersistent}.
+ */
+@Slf4j
+@DisplayName("Тестирование персистентного хранилища")
+public class WidgetServicePersistentTests {
+
+  /**
+   * Сервис для тестирования.
+   */
+  final WidgetService widgetService = new WidgetServicePersistent();
+
+  /**
+   * Эталонный сервис.
+   */
+  final WidgetService referenceService = new WidgetServiceLinkedList();
+
+  @Test
+  @DisplayName("Снимок не меняется после изменений доски")
+  void snapshotTest() throws WidgetNotFoundException {
+    log.info("snapshotTest start");
+    Widget first = widgetService.addWidget(WidgetDescription.builder()
+        .x(0).y(0).z(0).height(1).width(1).build());
+    Widget second = widgetService.addWidget(WidgetDescription.builder()
+        .x(1).y(0).z(1).height(1).width(1).build());
+    WidgetSnapshot snapshot = widgetService.getSnapshot();
+    widgetService.addWidget(WidgetDescription.builder()
+        .x(2).y(0).z(0).height(1).width(1).build());
+    widgetService.editWidget(second.getId(), WidgetDescription.builder().x(10).build());
+    widgetService.deleteWidget(first.getId());
+    Widget[] widgets = snapshot.toArray();
+    Assertions.assertAll("snapshot",
+        () -> Assertions.assertEquals(2, snapshot.size()),
+        () -> Assertions.assertEquals(first.getId(), widgets[0].getId()),
+        () -> Assertions.assertEquals(0, widgets[0].getZ()),
+        () -> Assertions.assertEquals(1, widgets[1].getX()),
+        () -> Assertions.assertEquals(1, widgets[1].getZ()),
+        () -> Assertions.assertEquals(10, widgetService.getById(second.getId()).getX()),
+        () -> Assertions.assertEquals(2, widgetService.getById(second.getId()).getZ()),
+        () -> Assertions.assertEquals(2, widgetService.getSnapshot().size()));
+    log.info("snapshotTest finish");
+  }
+
+  @Test
+  @DisplayName("Исчерпание промежутков между ключами")
+  void renumberTest() throws WidgetNotFoundException {
+    log.info("renumberTest start");
+    List<UUID> expected = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      expected.add(widgetService.addWidget(WidgetDescription.builder()
+          .x(i).y(0).height(1).width(1).build()).getId());
+    }
+    for (int i = 0; i < 100; i++) {
+      expected.add(1, widgetService.addWidget(WidgetDescription.builder()
+          .x(i).y(0).z(1).height(1).width(1).build()).getId());
+    }
+    Widget[] all = widgetService.getAllWidgets();
+    Assertions.assertEquals(expected.size(), all.length);
+    for (int i = 0; i < all.length; i++) {
+      Assertions.assertEquals(expected.get(i), all[i].getId());
+      Assertions.assertEquals(i, all[i].getZ());
+      Assertions.assertEquals(i, widgetService.getRank(all[i].getId()));
+      Assertions.assertEquals(i, widgetService.getById(all[i].getId()).getZ());
+    }
+    log.info("renumberTest finish");
+  }
+
+  @Test
+  @DisplayName("Пакет операций публикуется одной версией")
+  void batchTest() throws WidgetNotFoundException {
+    log.info("batchTest start");
+    Widget first = widgetService.addWidget(WidgetDescription.builder()
+        .x(0).y(0).height(1).width(1).build());
+    WidgetSnapshot before = widgetService.getSnapshot();
+    Widget[] results = widgetService.applyBatch(Arrays.asList(
+        WidgetOperation.create(WidgetDescription.builder()
+            .x(1).y(0).z(0).height(1).width(1).build()),
+        WidgetOperation.edit(first.getId(), WidgetDescription.builder().x(5).build()),
+        WidgetOperation.create(WidgetDescription.builder()
+            .x(2).y(0).height(1).width(1).build())));
+    Assertions.assertThrows(WidgetNotFoundException.class,
+        () -> widgetService.applyBatch(Arrays.asList(
+            WidgetOperation.delete(first.getId()),
+            WidgetOperation.delete(first.getId()))));
+    Widget[] widgets = widgetService.getAllWidgets();
+    Assertions.assertAll("batch",
+        () -> Assertions.assertEquals(1, before.size()),
+        () -> Assertions.assertEquals(1, results[1].getZ()),
+        () -> Assertions.assertEquals(5, results[1].getX()),
+        () -> Assertions.assertEquals(2, results[2].getZ()),
+        () -> Assertions.assertEquals(3, widgets.length),
+        () -> Assertions.assertEquals(first.getId(), widgets[1].getId()));
+    log.info("batchTest finish");
+  }
+
+  @Test
+  @DisplayName("Совпадение с эталонной реализацией")
+  void sameAsLinkedListTest() throws WidgetNotFoundException {
+    log.info("sameAsLinkedListTest start");
+    Random r = new Random();
+    List<Widget> widgets = new ArrayList<>();
+    List<Widget> references = new ArrayList<>();
+    for (int operation = 0; operation < 5_000; operation++) {
+      int q = r.nextInt(10);
+      if (q < 6 || widgets.isEmpty()) {
+        WidgetDescription description = WidgetDescription.builder()
+            .x(r.nextInt())
+            .y(r.nextInt())
+            .z(q == 0 ? null : r.nextInt(200) - 100)
+            .height(Math.abs(r.nextInt()))
+            .width(Math.abs(r.nextInt())).build();
+        widgets.add(widgetService.addWidget(description));
+        references.add(referenceService.addWidget(description));
+      } else if (q < 8) {
+        int i = r.nextInt(widgets.size());
+        WidgetDescription description = WidgetDescription.builder()
+            .x(r.nextInt())
+            .z(q == 6 ? null : r.nextInt(200) - 100).build();
+        Widget actual = widgetService.editWidget(widgets.get(i).getId(), description);
+        Widget expected = referenceService.editWidget(references.get(i).getId(), description);
+        Assertions.assertEquals(expected.getZ(), actual.getZ());
+      } else {
+        int i = r.nextInt(widgets.size());
+        Assertions.assertTrue(widgetService.deleteWidget(widgets.remove(i).getId()));
+        Assertions.assertTrue(referenceService.deleteWidget(references.remove(i).getId()));
+      }
+    }
+    Widget[] actual = widgetService.getAllWidgets();
+    Widget[] expected = referenceService.getAllWidgets();
+    Assertions.assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      Assertions.assertEquals(expected[i].getZ(), actual[i].getZ());
+      Assertions.assertEquals(expected[i].getX(), actual[i].getX());
+      Assertions.assertEquals(i, widgetService.getRank(actual[i].getId()));
+      Assertions.assertEquals(actual[i].getId(), widgetService.getByRank(i).getId());
+      Assertions.assertEquals(actual[i].getZ(), widgetService.getById(actual[i].getId()).getZ());
+    }
+    for (int i = 0; i < 100 && expected.length > 0; i++) {
+      int fromZ = expected[r.nextInt(expected.length)].getZ() + r.nextInt(3) - 1;
+      int toZ = fromZ + r.nextInt(100);
+      int after = r.nextBoolean() ? r.nextInt(expected.length) : -1;
+      int limit = 1 + r.nextInt(20);
+      Widget[] expectedPage = referenceService.getWidgetsPage(
+          after >= 0 ? expected[after].getId() : null, fromZ, toZ, limit);
+      Widget[] actualPage = widgetService.getWidgetsPage(
+          after >= 0 ? actual[after].getId() : null, fromZ, toZ, limit);
+      Assertions.assertEquals(expectedPage.length, actualPage.length);
+      for (int j = 0; j < expectedPage.length; j++) {
+        Assertions.assertEquals(expectedPage[j].getZ(), actualPage[j].getZ());
+        Assertions.assertEquals(expectedPage[j].getX(), actualPage[j].getX());
+      }
+    }
+    log.info("sameAsLinkedListTest finish");
+  }
+}
@@ -0,0 +1,189 @@
+package ru.kirillspirikhin.mirowidgets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceSparse;
+
+/**
+ * Тестирование {@link WidgetServiceSparse}.
+ */
+@Slf4j
+@DisplayName("Тестирование хранилища с разреженными ключами")
+public class WidgetServiceSparseTests {
+
+  /**
+   * Отложенные задачи перенумерации.
+   */
+  final List<Runnable> compactions = new ArrayList<>();
+
+  /**
+   * Сервис для тестирования.
+   */
+  final WidgetServiceSparse widgetService = new WidgetServiceSparse(compactions::add);
+
+  @Test
+  @DisplayName("Плотный Z-order")
+  void denseZTest() throws WidgetNotFoundException {
+    log.info("denseZTest start");
+    Widget first = widgetService.addWidget(WidgetDescription.builder()
+        .x(0).y(0).z(10).height(1).width(1).build());
+    Widget second = widgetService.addWidget(WidgetDescription.builder()
+        .x(0).y(0).z(0).height(1).width(1).build());
+    Widget third = widgetService.addWidget(WidgetDescription.builder()
+        .x(0).y(0).height(1).width(1).build());
+    Assertions.assertAll("dense z",
+        () -> Assertions.assertEquals(0, first.getZ()),
+        () -> Assertions.assertEquals(0, second.getZ()),
+        () -> Assertions.assertEquals(2, third.getZ()),
+        () -> Assertions.assertEquals(1, widgetService.getById(first.getId()).getZ()),
+        () -> Assertions.assertEquals(1, widgetService.getRank(first.getId())));
+    Assertions.assertTrue(widgetService.deleteWidget(second.getId()));
+    Assertions.assertEquals(0, widgetService.getById(first.getId()).getZ());
+    Assertions.assertEquals(1, widgetService.getById(third.getId()).getZ());
+    log.info("denseZTest finish");
+  }
+
+  @Test
+  @DisplayName("Исчерпание промежутков и перенумерация")
+  void compactionTest() {
+    log.info("compactionTest start");
+    List<UUID> expected = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      expected.add(widgetService.addWidget(WidgetDescription.builder()
+          .x(i).y(0).height(1).width(1).build()).getId());
+    }
+    for (int i = 0; i < 30; i++) {
+      expected.add(1, widgetService.addWidget(WidgetDescription.builder()
+          .x(i).y(0).z(1).height(1).width(1).build()).getId());
+    }
+    Assertions.assertTrue(widgetService.getGapExhaustedCount() > 0);
+    Assertions.assertEquals(1, compactions.size());
+    compactions.forEach(Runnable::run);
+    Assertions.assertEquals(1, widgetService.getCompactionCount());
+    Widget[] all = widgetService.getAllWidgets();
+    for (int i = 0; i < all.length; i++) {
+      Assertions.assertEquals(expected.get(i), all[i].getId());
+      Assertions.assertEquals(i, all[i].getZ());
+    }
+    log.info("compactionTest finish");
+  }
+
+  @Test
+  @DisplayName("Совпадение с моделью на списке")
+  void sameAsListTest() throws WidgetNotFoundException {
+    log.info("sameAsListTest start");
+    Random r = new Random();
+    List<UUID> expected = new ArrayList<>();
+    for (int operation = 0; operation < 5_000; operation++) {
+      int q = r.nextInt(10);
+      if (q < 6 || expected.isEmpty()) {
+        Integer z = q == 0 ? null : r.nextInt(expected.size() + 1);
+        Widget widget = widgetService.addWidget(WidgetDescription.builder()
+            .x(r.nextInt()).y(r.nextInt()).z(z).height(1).width(1).build());
+        expected.add(z == null ? expected.size() : z, widget.getId());
+      } else if (q < 8) {
+        int from = r.nextInt(expected.size());
+        int z = r.nextInt(expected.size() + 1);
+        UUID id = expected.get(from);
+        widgetService.editWidget(id, WidgetDescription.builder().z(z).build());
+        /* виджет встает ниже виджета, занимавшего позицию z */
+        UUID anchor = z < expected.size() ? expected.get(z) : null;
+        expected.remove(from);
+        expected.add(anchor == null ? expected.size()
+            : anchor.equals(id) ? from : expected.indexOf(anchor), id);
+      } else {
+        Assertions.assertTrue(
+            widgetService.deleteWidget(expected.remove(r.nextInt(expected.size()))));
+      }
+      if (!compactions.isEmpty() && r.nextInt(10) == 0) {
+        compactions.forEach(Runnable::run);
+        compactions.clear();
+      }
+    }
+    Widget[] all = widgetService.getAllWidgets();
+    Assertions.assertEquals(expected.size(), all.length);
+    for (int i = 0; i < all.length; i++) {
+      Assertions.assertEquals(expected.get(i), all[i].getId());
+      Assertions.assertEquals(i, widgetService.getById(all[i].getId()).getZ());
+    }
+    for (int i = 0; i < 100 && !expected.isEmpty(); i++) {
+      int fromZ = r.nextInt(expected.size());
+      int toZ = fromZ + r.nextInt(100);
+      int limit = 1 + r.nextInt(20);
+      UUID afterId = expected.get(r.nextInt(expected.size()));
+      int start = Math.max(fromZ, expected.indexOf(afterId) + 1);
+      Widget[] page = widgetService.getWidgetsPage(afterId, fromZ, toZ, limit);
+      Assertions.assertEquals(
+          Math.max(0, Math.min(limit, Math.min(toZ + 1, expected.size()) - start)), page.length);
+      for (int j = 0; j < page.length; j++) {
+        Assertions.assertEquals(expected.get(start + j), page[j].getId());
+        Assertions.assertEquals(start + j, page[j].getZ());
+      }
+    }
+    log.info("sameAsListTest finish");
+  }
+
+  @Test
+  @DisplayName("Тот же порядок виджетов, что и в эталонной реализации")
+  void sameOrderAsLinkedListTest() throws WidgetNotFoundException {
+    log.info("sameOrderAsLinkedListTest start");
+    Random r = new Random();
+    WidgetService referenceService = new WidgetServiceLinkedList();
+    /* одинаковые виджеты различаются координатой X, позиция задается номером виджета
+    в порядке Z-order: в эталоне - Z-order виджета на этой позиции */
+    Map<Integer, UUID> ids = new HashMap<>();
+    Map<Integer, UUID> referenceIds = new HashMap<>();
+    for (int operation = 0; operation < 5_000; operation++) {
+      int q = r.nextInt(10);
+      int size = referenceService.getWidgetCount();
+      if (q < 5 || size == 0) {
+        int rank = r.nextInt(size + 1);
+        WidgetDescription.WidgetDescriptionBuilder description = WidgetDescription.builder()
+            .x(operation).y(0).height(1).width(1);
+        if (q == 0 || rank == size) {
+          description.z(null);
+          ids.put(operation, widgetService.addWidget(description.build()).getId());
+        } else {
+          ids.put(operation, widgetService.addWidget(description.z(rank).build()).getId());
+          description.z(referenceService.getByRank(rank).getZ());
+        }
+        referenceIds.put(operation, referenceService.addWidget(description.build()).getId());
+      } else if (q < 8) {
+        int x = referenceService.getByRank(r.nextInt(size)).getX();
+        int rank = r.nextInt(size + 1);
+        int z = rank < size ? referenceService.getByRank(rank).getZ()
+            : referenceService.getByRank(size - 1).getZ() + 1;
+        widgetService.editWidget(ids.get(x), WidgetDescription.builder().z(rank).build());
+        referenceService.editWidget(referenceIds.get(x), WidgetDescription.builder().z(z).build());
+      } else {
+        int x = referenceService.getByRank(r.nextInt(size)).getX();
+        Assertions.assertTrue(widgetService.deleteWidget(ids.remove(x)));
+        Assertions.assertTrue(referenceService.deleteWidget(referenceIds.remove(x)));
+      }
+      if (!compactions.isEmpty() && r.nextInt(10) == 0) {
+        compactions.forEach(Runnable::run);
+        compactions.clear();
+      }
+    }
+    Widget[] all = widgetService.getAllWidgets();
+    Widget[] expected = referenceService.getAllWidgets();
+    Assertions.assertEquals(expected.length, all.length);
+    for (int i = 0; i < all.length; i++) {
+      Assertions.assertEquals(expected[i].getX(), all[i].getX());
+    }
+    log.info("sameOrderAsLinkedListTest finish");
+  }
+}
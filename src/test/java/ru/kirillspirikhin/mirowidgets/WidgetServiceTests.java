@@ -1,5 +1,8 @@
 package ru.kirillspirikhin.mirowidgets;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
@@ -7,11 +10,15 @@ import org.junit.jupiter.api.Test;
 import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
 import ru.kirillspirikhin.mirowidgets.model.Widget;
 import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
 import ru.kirillspirikhin.mirowidgets.services.WidgetService;
 import org.junit.jupiter.api.Assertions;
 import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import java.util.UUID;
 
@@ -51,7 +58,12 @@ public class WidgetServiceTests {
                     .height(Math.abs(r.nextInt()))
                     .width(Math.abs(r.nextInt())).build());
         }
-        Assertions.assertEquals(10, widget.getZ());
+        Assertions.assertEquals(0, widget.getZ());
+        try {
+            Assertions.assertEquals(10, widgetService.getById(widget.getId()).getZ());
+        } catch (WidgetNotFoundException e) {
+            Assertions.fail(e.getMessage());
+        }
         log.info("addWidgetTest finish");
     }
 
@@ -130,18 +142,248 @@ public class WidgetServiceTests {
             Thread.sleep(1); //-- если этого нет, время не меняется
             Widget w1 = widgetService.editWidget(w.getId(), widgetDescription);
             Assertions.assertAll("check edit widget",
-                    () -> Assertions.assertEquals(w, w1),
-                    () -> Assertions.assertNotEquals(w.getModifiedDate(), modifiedDate),
-                    () -> Assertions.assertEquals(w.getId(), widgetId),
-                    () -> Assertions.assertEquals(w.getX(), widgetDescription.getX()),
-                    () -> Assertions.assertEquals(w.getY(), widgetDescription.getY()),
-                    () -> Assertions.assertEquals(w.getZ(), widgetDescription.getZ()),
-                    () -> Assertions.assertEquals(w.getHeight(), widgetDescription.getHeight()),
-                    () -> Assertions.assertEquals(w.getWidth(), widgetDescription.getWidth()),
+                    () -> Assertions.assertEquals(w1, widgetService.getById(widgetId)),
+                    () -> Assertions.assertEquals(modifiedDate, w.getModifiedDate()),
+                    () -> Assertions.assertEquals(w1.getId(), widgetId),
+                    () -> Assertions.assertEquals(w1.getX(), widgetDescription.getX()),
+                    () -> Assertions.assertEquals(w1.getY(), widgetDescription.getY()),
+                    () -> Assertions.assertEquals(w1.getZ(), widgetDescription.getZ()),
+                    () -> Assertions.assertEquals(w1.getHeight(), widgetDescription.getHeight()),
+                    () -> Assertions.assertEquals(w1.getWidth(), widgetDescription.getWidth()),
                     () -> Assertions.assertNotEquals(w1.getModifiedDate(), modifiedDate));
         } catch (WidgetNotFoundException | InterruptedException e) {
             Assertions.fail(e.getMessage());
         }
         log.info("editWidgetTest finish");
     }
+
+    @Test
+    @DisplayName("Поиск виджетов по ИД после удаления и перемещения")
+    void indexConsistencyTest() {
+        log.info("indexConsistencyTest start");
+        Random r = new Random();
+        Widget[] widgets = new Widget[5];
+        for (int i = 0; i < widgets.length; i++) {
+            widgets[i] = widgetService.addWidget(WidgetDescription.builder()
+                    .x(r.nextInt())
+                    .y(r.nextInt())
+                    .height(Math.abs(r.nextInt()))
+                    .width(Math.abs(r.nextInt())).build());
+        }
+        try {
+            Assertions.assertTrue(widgetService.deleteWidget(widgets[1].getId()));
+            Assertions.assertFalse(widgetService.deleteWidget(widgets[1].getId()));
+            Assertions.assertThrows(WidgetNotFoundException.class,
+                    () -> widgetService.getById(widgets[1].getId()));
+            widgetService.editWidget(widgets[4].getId(), WidgetDescription.builder().z(0).build());
+            Widget[] all = widgetService.getAllWidgets();
+            Assertions.assertEquals(4, all.length);
+            Assertions.assertEquals(widgets[4].getId(), all[0].getId());
+            for (int i = 1; i < all.length; i++) {
+                Assertions.assertTrue(all[i - 1].getZ() < all[i].getZ());
+            }
+            for (Widget w : all) {
+                Assertions.assertSame(w, widgetService.getById(w.getId()));
+            }
+        } catch (WidgetNotFoundException e) {
+            Assertions.fail(e.getMessage());
+        }
+        log.info("indexConsistencyTest finish");
+    }
+
+    @Test
+    @DisplayName("Получение виджетов постранично")
+    void widgetsPageTest() throws WidgetNotFoundException {
+        log.info("widgetsPageTest start");
+        Random r = new Random();
+        for (int i = 0; i < 50; i++) {
+            widgetService.addWidget(WidgetDescription.builder()
+                    .x(r.nextInt())
+                    .y(r.nextInt())
+                    .z(r.nextInt(100))
+                    .height(Math.abs(r.nextInt()))
+                    .width(Math.abs(r.nextInt())).build());
+        }
+        Widget[] all = widgetService.getAllWidgets();
+        List<Widget> paged = new ArrayList<>();
+        Widget[] page = widgetService.getWidgetsPage(null, Integer.MIN_VALUE, Integer.MAX_VALUE, 7);
+        while (page.length > 0) {
+            paged.addAll(Arrays.asList(page));
+            page = widgetService.getWidgetsPage(page[page.length - 1].getId(),
+                    Integer.MIN_VALUE, Integer.MAX_VALUE, 7);
+        }
+        Assertions.assertEquals(Arrays.asList(all), paged);
+        int fromZ = all[10].getZ();
+        int toZ = all[20].getZ();
+        Assertions.assertEquals(Arrays.asList(all).subList(10, 21),
+                Arrays.asList(widgetService.getWidgetsPage(null, fromZ, toZ, 100)));
+        Assertions.assertEquals(Arrays.asList(all).subList(13, 16),
+                Arrays.asList(widgetService.getWidgetsPage(all[12].getId(), fromZ, toZ, 3)));
+        Assertions.assertThrows(WidgetNotFoundException.class,
+                () -> widgetService.getWidgetsPage(UUID.randomUUID(), fromZ, toZ, 3));
+        log.info("widgetsPageTest finish");
+    }
+
+    @Test
+    @DisplayName("Поиск виджетов в области")
+    void widgetsInAreaTest() throws WidgetNotFoundException {
+        log.info("widgetsInAreaTest start");
+        Random r = new Random();
+        List<UUID> ids = new ArrayList<>();
+        for (int operation = 0; operation < 5_000; operation++) {
+            int q = r.nextInt(10);
+            if (q < 6 || ids.isEmpty()) {
+                ids.add(widgetService.addWidget(WidgetDescription.builder()
+                        .x(r.nextInt(1000))
+                        .y(r.nextInt(1000))
+                        .z(r.nextInt(100))
+                        .height(r.nextInt(50))
+                        .width(r.nextInt(50)).build()).getId());
+            } else if (q < 8) {
+                widgetService.editWidget(ids.get(r.nextInt(ids.size())),
+                        WidgetDescription.builder().x(r.nextInt(1000)).width(r.nextInt(50)).build());
+            } else {
+                Assertions.assertTrue(widgetService.deleteWidget(ids.remove(r.nextInt(ids.size()))));
+            }
+        }
+        Widget[] all = widgetService.getAllWidgets();
+        for (int i = 0; i < 100; i++) {
+            int x = r.nextInt(1100) - 50;
+            int y = r.nextInt(1100) - 50;
+            int width = r.nextInt(200);
+            int height = r.nextInt(200);
+            List<Widget> expected = new ArrayList<>();
+            for (Widget w : all) {
+                if (w.intersects(x, y, width, height)) {
+                    expected.add(w);
+                }
+            }
+            Assertions.assertEquals(expected,
+                    Arrays.asList(widgetService.getWidgetsInArea(x, y, width, height)));
+        }
+        log.info("widgetsInAreaTest finish");
+    }
+
+    @Test
+    @DisplayName("Верхний виджет в точке")
+    void topWidgetAtTest() {
+        log.info("topWidgetAtTest start");
+        Widget bottom = widgetService.addWidget(WidgetDescription.builder()
+                .x(0).y(0).height(100).width(100).build());
+        Widget top = widgetService.addWidget(WidgetDescription.builder()
+                .x(50).y(50).height(100).width(100).build());
+        Widget middle = widgetService.addWidget(WidgetDescription.builder()
+                .x(40).y(40).z(1).height(20).width(20).build());
+        Assertions.assertAll("hit test",
+                () -> Assertions.assertEquals(top.getId(),
+                        widgetService.getTopWidgetAt(55, 55).map(Widget::getId).orElse(null)),
+                () -> Assertions.assertEquals(middle.getId(),
+                        widgetService.getTopWidgetAt(45, 45).map(Widget::getId).orElse(null)),
+                () -> Assertions.assertEquals(bottom.getId(),
+                        widgetService.getTopWidgetAt(0, 99).map(Widget::getId).orElse(null)),
+                () -> Assertions.assertFalse(widgetService.getTopWidgetAt(100, 0).isPresent()),
+                () -> Assertions.assertArrayEquals(
+                        new UUID[] {top.getId(), middle.getId(), bottom.getId()},
+                        Arrays.stream(widgetService.getWidgetsAt(55, 55))
+                                .map(Widget::getId).toArray(UUID[]::new)));
+        log.info("topWidgetAtTest finish");
+    }
+
+    @Test
+    @DisplayName("Пакет операций совпадает с отдельными операциями")
+    void batchTest() throws WidgetNotFoundException {
+        log.info("batchTest start");
+        Random r = new Random();
+        WidgetService referenceService = new WidgetServiceLinkedList();
+        List<Widget> widgets = new ArrayList<>();
+        List<Widget> references = new ArrayList<>();
+        for (int batch = 0; batch < 200; batch++) {
+            List<WidgetOperation> operations = new ArrayList<>();
+            Widget[] expected = new Widget[1 + r.nextInt(30)];
+            List<Widget> deleted = new ArrayList<>();
+            for (int i = 0; i < expected.length; i++) {
+                int q = r.nextInt(10);
+                if (q < 5 || widgets.isEmpty()) {
+                    WidgetDescription description = WidgetDescription.builder()
+                            .x(r.nextInt(1000))
+                            .y(r.nextInt(1000))
+                            .z(q == 0 ? null : r.nextInt(100) - 50)
+                            .height(r.nextInt(100))
+                            .width(r.nextInt(100)).build();
+                    operations.add(WidgetOperation.create(description));
+                    expected[i] = referenceService.addWidget(description);
+                } else if (q < 8) {
+                    int j = r.nextInt(widgets.size());
+                    WidgetDescription description = WidgetDescription.builder()
+                            .x(r.nextInt(1000))
+                            .z(r.nextBoolean() ? r.nextInt(100) - 50 : null).build();
+                    operations.add(WidgetOperation.edit(widgets.get(j).getId(), description));
+                    expected[i] = referenceService.editWidget(references.get(j).getId(), description);
+                } else {
+                    int j = r.nextInt(widgets.size());
+                    operations.add(WidgetOperation.delete(widgets.remove(j).getId()));
+                    expected[i] = referenceService.getById(references.get(j).getId());
+                    referenceService.deleteWidget(references.remove(j).getId());
+                }
+            }
+            Widget[] actual = widgetService.applyBatch(operations);
+            for (int i = 0; i < expected.length; i++) {
+                Assertions.assertEquals(expected[i].getZ(), actual[i].getZ());
+                Assertions.assertEquals(expected[i].getX(), actual[i].getX());
+                if (operations.get(i).getType() == WidgetOperation.Type.CREATE) {
+                    widgets.add(actual[i]);
+                    references.add(expected[i]);
+                }
+            }
+        }
+        Widget[] expected = referenceService.getAllWidgets();
+        Widget[] actual = widgetService.getAllWidgets();
+        Assertions.assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            Assertions.assertEquals(expected[i].getZ(), actual[i].getZ());
+            Assertions.assertEquals(expected[i].getX(), actual[i].getX());
+            Assertions.assertEquals(expected[i].getY(), actual[i].getY());
+            Assertions.assertSame(actual[i], widgetService.getById(actual[i].getId()));
+        }
+        Assertions.assertEquals(expected.length,
+                widgetService.getWidgetsInArea(-100, -100, 1200, 1200).length);
+        log.info("batchTest finish");
+    }
+
+    @Test
+    @DisplayName("Пакет с несуществующим виджетом не применяется")
+    void batchAtomicityTest() {
+        log.info("batchAtomicityTest start");
+        Widget widget = widgetService.addWidget(WidgetDescription.builder()
+                .x(0).y(0).height(1).width(1).build());
+        List<WidgetOperation> operations = Arrays.asList(
+                WidgetOperation.create(WidgetDescription.builder()
+                        .x(0).y(0).z(0).height(1).width(1).build()),
+                WidgetOperation.delete(widget.getId()),
+                WidgetOperation.edit(widget.getId(), WidgetDescription.builder().x(1).build()));
+        Assertions.assertThrows(WidgetNotFoundException.class,
+                () -> widgetService.applyBatch(operations));
+        Assertions.assertArrayEquals(new Widget[] {widget}, widgetService.getAllWidgets());
+        log.info("batchAtomicityTest finish");
+    }
+
+    @Test
+    @DisplayName("Метрики хранилища")
+    void metricsTest() {
+        log.info("metricsTest start");
+        MeterRegistry registry = new SimpleMeterRegistry();
+        WidgetServiceLinkedList service = new WidgetServiceLinkedList();
+        service.setMeterRegistry(registry);
+        for (int i = 0; i < 3; i++) {
+            service.addWidget(WidgetDescription.builder()
+                    .x(0).y(0).z(0).height(1).width(1).build());
+        }
+        DistributionSummary shifts = registry.get("widgets.shift.size").summary();
+        Assertions.assertAll("metrics",
+                () -> Assertions.assertEquals(3, shifts.count()),
+                () -> Assertions.assertEquals(0 + 1 + 2, shifts.totalAmount()),
+                () -> Assertions.assertEquals(3, registry.get("widgets.lock.wait").timer().count()),
+                () -> Assertions.assertEquals(3, registry.get("widgets.lock.hold").timer().count()));
+        log.info("metricsTest finish");
+    }
 }
@@ -0,0 +1,141 @@
+package ru.kirillspirikhin.mirowidgets;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceTree;
+
+/**
+ * Тестирование {@link WidgetServiceTree}.
+ */
+@Slf4j
+@DisplayName("Тестирование хранилища на дереве")
+public class WidgetServiceTreeTests {
+
+  /**
+   * Сервис для тестирования.
+   */
+  final WidgetService widgetService = new WidgetServiceTree();
+
+  /**
+   * Эталонный сервис.
+   */
+  final WidgetService referenceService = new WidgetServiceLinkedList();
+
+  @Test
+  @DisplayName("Виджет по рангу и ранг виджета")
+  void rankTest() throws WidgetNotFoundException {
+    log.info("rankTest start");
+    Widget first = widgetService.addWidget(WidgetDescription.builder()
+        .x(0).y(0).z(5).height(1).width(1).build());
+    Widget second = widgetService.addWidget(WidgetDescription.builder()
+        .x(0).y(0).z(5).height(1).width(1).build());
+    Widget third = widgetService.addWidget(WidgetDescription.builder()
+        .x(0).y(0).height(1).width(1).build());
+    Assertions.assertAll("ranks",
+        () -> Assertions.assertEquals(0, widgetService.getRank(second.getId())),
+        () -> Assertions.assertEquals(1, widgetService.getRank(first.getId())),
+        () -> Assertions.assertEquals(2, widgetService.getRank(third.getId())),
+        () -> Assertions.assertEquals(second.getId(), widgetService.getByRank(0).getId()),
+        () -> Assertions.assertEquals(third.getId(), widgetService.getByRank(2).getId()),
+        () -> Assertions.assertThrows(IndexOutOfBoundsException.class,
+            () -> widgetService.getByRank(3)));
+    log.info("rankTest finish");
+  }
+
+  @Test
+  @DisplayName("Совпадение с эталонной реализацией")
+  void sameAsLinkedListTest() throws WidgetNotFoundException {
+    log.info("sameAsLinkedListTest start");
+    Random r = new Random();
+    List<Widget> widgets = new ArrayList<>();
+    List<Widget> references = new ArrayList<>();
+    for (int operation = 0; operation < 5_000; operation++) {
+      int q = r.nextInt(10);
+      if (q < 6 || widgets.isEmpty()) {
+        WidgetDescription description = WidgetDescription.builder()
+            .x(r.nextInt())
+            .y(r.nextInt())
+            .z(q == 0 ? null : r.nextInt(200) - 100)
+            .height(Math.abs(r.nextInt()))
+            .width(Math.abs(r.nextInt())).build();
+        widgets.add(widgetService.addWidget(description));
+        references.add(referenceService.addWidget(description));
+      } else if (q < 8) {
+        int i = r.nextInt(widgets.size());
+        WidgetDescription description = WidgetDescription.builder()
+            .x(r.nextInt())
+            .z(r.nextInt(200) - 100).build();
+        widgetService.editWidget(widgets.get(i).getId(), description);
+        referenceService.editWidget(references.get(i).getId(), description);
+      } else {
+        int i = r.nextInt(widgets.size());
+        Assertions.assertTrue(widgetService.deleteWidget(widgets.remove(i).getId()));
+        Assertions.assertTrue(referenceService.deleteWidget(references.remove(i).getId()));
+      }
+    }
+    Widget[] actual = widgetService.getAllWidgets();
+    Widget[] expected = referenceService.getAllWidgets();
+    Assertions.assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      Assertions.assertEquals(expected[i].getZ(), actual[i].getZ());
+      Assertions.assertEquals(expected[i].getX(), actual[i].getX());
+      Assertions.assertEquals(i, widgetService.getRank(actual[i].getId()));
+      Assertions.assertEquals(actual[i].getId(), widgetService.getByRank(i).getId());
+    }
+    for (int i = 0; i < 100 && expected.length > 0; i++) {
+      int fromZ = expected[r.nextInt(expected.length)].getZ() + r.nextInt(3) - 1;
+      int toZ = fromZ + r.nextInt(100);
+      int after = r.nextBoolean() ? r.nextInt(expected.length) : -1;
+      int limit = 1 + r.nextInt(20);
+      Widget[] expectedPage = referenceService.getWidgetsPage(
+          after >= 0 ? expected[after].getId() : null, fromZ, toZ, limit);
+      Widget[] actualPage = widgetService.getWidgetsPage(
+          after >= 0 ? actual[after].getId() : null, fromZ, toZ, limit);
+      Assertions.assertEquals(expectedPage.length, actualPage.length);
+      for (int j = 0; j < expectedPage.length; j++) {
+        Assertions.assertEquals(expectedPage[j].getZ(), actualPage[j].getZ());
+        Assertions.assertEquals(expectedPage[j].getX(), actualPage[j].getX());
+      }
+    }
+    log.info("sameAsLinkedListTest finish");
+  }
+
+  @Test
+  @DisplayName("Многократное перемещение виджетов в самый низ")
+  void sendToBackTest() throws WidgetNotFoundException {
+    log.info("sendToBackTest start");
+    List<Widget> widgets = new ArrayList<>();
+    List<Widget> references = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      WidgetDescription description = WidgetDescription.builder()
+          .x(i).y(i).height(1).width(1).build();
+      widgets.add(widgetService.addWidget(description));
+      references.add(referenceService.addWidget(description));
+    }
+    for (int i = 99; i >= 0; i--) {
+      Widget widget = widgetService.editWidget(widgets.get(i).getId(),
+          WidgetDescription.builder().z(0).build());
+      referenceService.editWidget(references.get(i).getId(),
+          WidgetDescription.builder().z(0).build());
+      Assertions.assertEquals(0, widget.getZ());
+    }
+    Widget[] all = widgetService.getAllWidgets();
+    Widget[] expected = referenceService.getAllWidgets();
+    for (int i = 0; i < all.length; i++) {
+      Assertions.assertEquals(i, all[i].getX());
+      Assertions.assertEquals(expected[i].getZ(), all[i].getZ());
+      Assertions.assertEquals(all[i].getZ(), widgetService.getById(all[i].getId()).getZ());
+    }
+    log.info("sendToBackTest finish");
+  }
+}
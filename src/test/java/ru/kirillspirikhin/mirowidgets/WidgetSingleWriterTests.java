@@ -0,0 +1,186 @@
+package ru.kirillspirikhin.mirowidgets;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import ru.kirillspirikhin.mirowidgets.exceptions.WidgetNotFoundException;
+import ru.kirillspirikhin.mirowidgets.model.Widget;
+import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
+import ru.kirillspirikhin.mirowidgets.model.WidgetOperation;
+import ru.kirillspirikhin.mirowidgets.services.SingleWriterWidgetService;
+import ru.kirillspirikhin.mirowidgets.services.VersionedWidgetService;
+import ru.kirillspirikhin.mirowidgets.services.WidgetService;
+import ru.kirillspirikhin.mirowidgets.services.impl.WidgetServiceLinkedList;
+
+/**
+ * Тестирование {@link SingleWriterWidgetService}.
+ */
+@Slf4j
+@DisplayName("Тестирование применения изменений одним писателем")
+public class WidgetSingleWriterTests {
+
+  /**
+   * Размеры пакетов.
+   */
+  final DistributionSummary batchSizes =
+      DistributionSummary.builder("batch").register(new SimpleMeterRegistry());
+
+  @Test
+  @DisplayName("Изменения из очереди применяются одним пакетом, ошибка - только у своего вызова")
+  void batchTest() throws WidgetNotFoundException {
+    log.info("batchTest start");
+    WidgetService expected = new WidgetServiceLinkedList();
+    /* писатель запускается вручную, после постановки всех изменений в очередь */
+    List<Runnable> tasks = new ArrayList<>();
+    SingleWriterWidgetService board = new SingleWriterWidgetService(
+        new VersionedWidgetService(new WidgetServiceLinkedList(), 16), tasks::add, 64, 64,
+        batchSizes);
+    List<WidgetOperation> operations = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      operations.add(WidgetOperation.create(description(i, i % 2 == 0 ? 0 : null)));
+    }
+    List<CompletableFuture<Widget>> created = new ArrayList<>();
+    for (WidgetOperation operation : operations) {
+      created.add(board.submit(operation));
+      expected.addWidget(operation.getDescription());
+    }
+    Assertions.assertEquals(1, tasks.size());
+    tasks.remove(0).run();
+    Assertions.assertEquals(1, batchSizes.count());
+    Assertions.assertEquals(10, batchSizes.totalAmount());
+    Widget[] widgets = expected.getAllWidgets();
+    for (int i = 0; i < 10; i++) {
+      Widget widget = created.get(i).join();
+      Assertions.assertEquals(i, widget.getX());
+      Assertions.assertEquals(widgets[rank(widgets, i)].getZ(),
+          board.getById(widget.getId()).getZ());
+    }
+
+    UUID first = created.get(0).join().getId();
+    UUID second = created.get(1).join().getId();
+    CompletableFuture<Widget> moved = board.submit(
+        WidgetOperation.edit(first, WidgetDescription.builder().z(0).build()));
+    CompletableFuture<Widget> deleted = board.submit(WidgetOperation.delete(second));
+    CompletableFuture<Widget> missing = board.submit(
+        WidgetOperation.edit(second, WidgetDescription.builder().x(100).build()));
+    tasks.remove(0).run();
+    Assertions.assertEquals(0, moved.join().getZ());
+    Assertions.assertEquals(second, deleted.join().getId());
+    CompletionException error = Assertions.assertThrows(CompletionException.class, missing::join);
+    Assertions.assertTrue(error.getCause() instanceof WidgetNotFoundException);
+    Assertions.assertEquals(9, board.getWidgetCount());
+    Assertions.assertTrue(tasks.isEmpty());
+    log.info("batchTest finish");
+  }
+
+  @Test
+  @DisplayName("Прочая ошибка пакета возвращается всем его изменениям без повтора по одному")
+  void batchFailureTest() {
+    log.info("batchFailureTest start");
+    List<Runnable> tasks = new ArrayList<>();
+    WidgetService storage = new WidgetServiceLinkedList() {
+      @Override
+      public Widget[] applyBatch(List<WidgetOperation> operations)
+          throws WidgetNotFoundException {
+        Widget[] results = super.applyBatch(operations);
+        /* ошибка после применения пакета, например, при записи в журнал */
+        throw new IllegalStateException("applied " + results.length);
+      }
+    };
+    SingleWriterWidgetService board = new SingleWriterWidgetService(
+        new VersionedWidgetService(storage, 16), tasks::add, 64, 64, batchSizes);
+    CompletableFuture<Widget> first = board.submit(WidgetOperation.create(description(1, 0)));
+    CompletableFuture<Widget> second = board.submit(WidgetOperation.create(description(2, null)));
+    tasks.remove(0).run();
+    for (CompletableFuture<Widget> created : Arrays.asList(first, second)) {
+      CompletionException error =
+          Assertions.assertThrows(CompletionException.class, created::join);
+      Assertions.assertTrue(error.getCause() instanceof IllegalStateException);
+    }
+    Assertions.assertEquals(2, storage.getWidgetCount());
+    log.info("batchFailureTest finish");
+  }
+
+  @Test
+  @DisplayName("Одновременные изменения применяются пакетами без потерь")
+  void concurrentTest() throws Exception {
+    log.info("concurrentTest start");
+    ExecutorService writers = Executors.newFixedThreadPool(2);
+    ExecutorService callers = Executors.newFixedThreadPool(8);
+    try {
+      WidgetService board = new SingleWriterWidgetService(
+          new VersionedWidgetService(new WidgetServiceLinkedList(), 16), writers, 16, 256,
+          batchSizes);
+      List<Future<List<UUID>>> results = new ArrayList<>();
+      for (int caller = 0; caller < 8; caller++) {
+        results.add(callers.submit(() -> {
+          List<UUID> ids = new ArrayList<>();
+          for (int i = 0; i < 500; i++) {
+            /* вставка в начало доски сдвигает все виджеты */
+            Widget widget = board.addWidget(description(i, 0));
+            board.editWidget(widget.getId(), WidgetDescription.builder().x(-i).build());
+            ids.add(widget.getId());
+          }
+          return ids;
+        }));
+      }
+      for (Future<List<UUID>> result : results) {
+        for (UUID id : result.get(1, TimeUnit.MINUTES)) {
+          Assertions.assertTrue(board.getById(id).getX() <= 0);
+        }
+      }
+      Widget[] widgets = board.getAllWidgets();
+      Assertions.assertEquals(4000, widgets.length);
+      for (int i = 1; i < widgets.length; i++) {
+        Assertions.assertTrue(widgets[i - 1].getZ() < widgets[i].getZ());
+      }
+      Assertions.assertEquals(8000, batchSizes.totalAmount());
+      log.info("batches: {}, mean size: {}", batchSizes.count(), batchSizes.mean());
+      Assertions.assertTrue(batchSizes.count() < 8000);
+    } finally {
+      writers.shutdown();
+      callers.shutdown();
+    }
+    log.info("concurrentTest finish");
+  }
+
+  /**
+   * Номер в Z-order виджета с координатой X.
+   *
+   * @param widgets виджеты в порядке Z-order
+   * @param x       координата X
+   * @return номер
+   */
+  private static int rank(Widget[] widgets, int x) {
+    for (int i = 0; i < widgets.length; i++) {
+      if (widgets[i].getX() == x) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException(Arrays.toString(widgets));
+  }
+
+  /**
+   * Описание виджета.
+   *
+   * @param x координата X
+   * @param z Z-order ({@code null} - поверх всех)
+   * @return описание
+   */
+  private static WidgetDescription description(int x, Integer z) {
+    return WidgetDescription.builder().x(x).y(0).z(z).width(1).height(1).build();
+  }
+}
@@ -1,13 +1,23 @@
 package ru.kirillspirikhin.mirowidgets;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import ru.kirillspirikhin.mirowidgets.config.MiroWidgetsConfiguration;
 import ru.kirillspirikhin.mirowidgets.model.Widget;
 import ru.kirillspirikhin.mirowidgets.model.WidgetDescription;
 
+import java.io.IOException;
+import java.time.LocalDateTime;
 import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Тестирование класса {@link Widget}.
@@ -32,7 +42,69 @@ public class WidgetTests {
         () -> Assertions.assertEquals(w.getY(), widgetDescription.getY()),
         () -> Assertions.assertEquals(w.getZ(), widgetDescription.getZ()),
         () -> Assertions.assertEquals(w.getWidth(), widgetDescription.getWidth()),
-        () -> Assertions.assertEquals(w.getHeight(), widgetDescription.getHeight()));
+        () -> Assertions.assertEquals(w.getHeight(), widgetDescription.getHeight()),
+        /* дата изменения - время UTC, независимо от часового пояса сервера */
+        () -> Assertions.assertTrue(Math.abs(TimeUnit.NANOSECONDS.toMillis(w.modifiedNanos())
+            - System.currentTimeMillis()) < TimeUnit.MINUTES.toMillis(1)));
     log.info("fromDescriptionTest finish");
   }
+
+  @Test
+  @DisplayName("Размер виджета в ответе JSON, Smile и CBOR")
+  void binarySizeTest() throws IOException {
+    log.info("binarySizeTest start");
+    Random r = new Random(42);
+    Widget[] widgets = new Widget[1000];
+    for (int i = 0; i < widgets.length; i++) {
+      widgets[i] = Widget.fromDescription(WidgetDescription.builder()
+          .x(r.nextInt(10_000)).y(r.nextInt(10_000)).z(i)
+          .width(1 + r.nextInt(500)).height(1 + r.nextInt(500)).build());
+    }
+    /* как у сериализатора JSON приложения: даты - строки ISO */
+    double json = bytesPerWidget(Jackson2ObjectMapperBuilder.json()
+        .featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS).build(), widgets);
+    double smile = bytesPerWidget(MiroWidgetsConfiguration.binaryMapper(
+        new Jackson2ObjectMapperBuilder(), new SmileFactory()), widgets);
+    double cbor = bytesPerWidget(MiroWidgetsConfiguration.binaryMapper(
+        new Jackson2ObjectMapperBuilder(), new CBORFactory()), widgets);
+    log.info("bytes per widget: json {}, smile {}, cbor {}", json, smile, cbor);
+    Assertions.assertTrue(smile < json / 2, "smile: " + smile + ", json: " + json);
+    Assertions.assertTrue(cbor < json / 1.5, "cbor: " + cbor + ", json: " + json);
+    log.info("binarySizeTest finish");
+  }
+
+  @Test
+  @DisplayName("Изменение виджета создает новый экземпляр")
+  void copyOnWriteTest() {
+    log.info("copyOnWriteTest start");
+    UUID id = UUID.randomUUID();
+    LocalDateTime modifiedDate = LocalDateTime.of(2020, 2, 1, 12, 30, 15, 123_456_789);
+    Widget w = Widget.builder()
+        .id(id).x(1).y(2).z(3).width(4).height(5).modifiedDate(modifiedDate).build();
+    Widget w1 = w.withX(10).withModifiedDate(modifiedDate.plusSeconds(1));
+    Assertions.assertAll("Widget is immutable",
+        () -> Assertions.assertEquals(id, w.getId()),
+        () -> Assertions.assertEquals(modifiedDate, w.getModifiedDate()),
+        () -> Assertions.assertEquals(1, w.getX()),
+        () -> Assertions.assertEquals(id, w1.getId()),
+        () -> Assertions.assertEquals(10, w1.getX()),
+        () -> Assertions.assertEquals(3, w1.getZ()),
+        () -> Assertions.assertEquals(modifiedDate.plusSeconds(1), w1.getModifiedDate()),
+        () -> Assertions.assertEquals(w, w1.withX(1).withModifiedDate(modifiedDate)),
+        () -> Assertions.assertSame(w, w.withZ(3)));
+    log.info("copyOnWriteTest finish");
+  }
+
+  /**
+   * Размер массива виджетов в формате сериализатора на виджет.
+   *
+   * @param mapper  сериализатор
+   * @param widgets виджеты
+   * @return байт на виджет
+   * @throws IOException ошибка сериализации
+   */
+  private static double bytesPerWidget(ObjectMapper mapper, Widget[] widgets)
+      throws IOException {
+    return (double) mapper.writeValueAsBytes(widgets).length / widgets.length;
+  }
 }